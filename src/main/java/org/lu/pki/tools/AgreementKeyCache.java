@@ -0,0 +1,204 @@
+package org.lu.pki.tools;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Кэш ключей согласования (DH) по (алиас отправителя, отпечаток сертификата получателя, UKM).
+ * При неизменных ключе отправителя, сертификате получателя и UKM ключ согласования тот же, поэтому при шифровании
+ * в адрес постоянных получателей согласование выполняется один раз, а не для каждого сообщения.
+ * Подключается к профилю (CmsProfile.Builder.agreementKeyCache()), по умолчанию выключен.
+ * Ключ отправителя по алиасу, удаленный из кэша закрытых ключей (evict, evictAll), удаляется и отсюда. Потокобезопасен.
+ * @author Igor Konovalov ikonovalov@luxoft.com
+ *
+ */
+public final class AgreementKeyCache {
+
+	private static final Logger LOG = Logger.getLogger(AgreementKeyCache.class.getName());
+
+	public static final int DEFAULT_MAX_SIZE = 256;
+
+	public static final long DEFAULT_TTL_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+	/**
+	 * Ключ кэша. Отпечаток сертификата считается один раз при создании.
+	 */
+	public static final class Key {
+
+		private final String signerAlias;
+
+		private final ByteBuffer fingerprint;
+
+		private final ByteBuffer ukm;
+
+		private final int hash;
+
+		Key(String signerAlias, byte[] fingerprint, byte[] ukm) {
+			this.signerAlias = signerAlias;
+			this.fingerprint = ByteBuffer.wrap(fingerprint);
+			this.ukm = ByteBuffer.wrap(ukm.clone());
+			this.hash = (signerAlias.hashCode() * 31 + this.fingerprint.hashCode()) * 31 + this.ukm.hashCode();
+		}
+
+		public String getSignerAlias() {
+			return signerAlias;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return hash == other.hash && signerAlias.equals(other.signerAlias) && fingerprint.equals(other.fingerprint) && ukm.equals(other.ukm);
+		}
+
+		@Override
+		public String toString() {
+			return signerAlias + "->" + Arrays.toString(Arrays.copyOf(fingerprint.array(), 4)) + "...";
+		}
+	}
+
+	private static final class CachedKey {
+
+		private final PrivateKey senderKey;
+
+		private final SecretKey agreementKey;
+
+		CachedKey(PrivateKey senderKey, SecretKey agreementKey) {
+			this.senderKey = senderKey;
+			this.agreementKey = agreementKey;
+		}
+	}
+
+	private final BoundedTtlCache<Key, CachedKey> keys;
+
+	public AgreementKeyCache() {
+		this(DEFAULT_MAX_SIZE, DEFAULT_TTL_MILLIS);
+	}
+
+	/**
+	 * @param maxSize - максимальное число ключей (0 - кэширование отключено)
+	 * @param ttlMillis - время жизни ключа в кэше (0 и меньше - без ограничения)
+	 */
+	public AgreementKeyCache(int maxSize, long ttlMillis) {
+		this.keys = new BoundedTtlCache<Key, CachedKey>(maxSize, ttlMillis);
+	}
+
+	/**
+	 * @param signerAlias - алиас ключа отправителя
+	 * @param recipient - сертификат получателя
+	 * @param ukm - UKM согласования
+	 * @return ключ кэша
+	 * @throws CertificateEncodingException
+	 */
+	public static Key key(String signerAlias, X509Certificate recipient, byte[] ukm) throws CertificateEncodingException {
+		if (signerAlias == null) {
+			throw new NullPointerException("signerAlias");
+		}
+		try {
+			return new Key(signerAlias, MessageDigest.getInstance("SHA-256").digest(recipient.getEncoded()), ukm);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @param key
+	 * @param senderKey - текущий ключ отправителя: ключ согласования, выработанный на другом экземпляре, не выдается
+	 * @return ключ согласования или null, если его нет в кэше или истек срок жизни
+	 */
+	public SecretKey get(Key key, final PrivateKey senderKey) {
+		CachedKey entry = keys.get(key, new BoundedTtlCache.Matcher<CachedKey>() {
+			@Override
+			public boolean matches(CachedKey cached) {
+				return cached.senderKey == senderKey;
+			}
+		});
+		return entry != null ? entry.agreementKey : null;
+	}
+
+	/**
+	 * @param key
+	 * @param senderKey - ключ отправителя, на котором выработан ключ согласования
+	 * @param agreementKey - null не кэшируется
+	 */
+	public void put(Key key, PrivateKey senderKey, SecretKey agreementKey) {
+		if (agreementKey != null) {
+			keys.put(key, new CachedKey(senderKey, agreementKey));
+		}
+	}
+
+	/**
+	 * Удаление всех ключей согласования отправителя (например, после смены его ключа в хранилище).
+	 * @param signerAlias
+	 * @return число удаленных ключей
+	 */
+	public int evict(final String signerAlias) {
+		int removed = keys.removeIf(new BoundedTtlCache.Matcher<Key>() {
+			@Override
+			public boolean matches(Key key) {
+				return key.signerAlias.equals(signerAlias);
+			}
+		});
+		if (removed > 0 && LOG.isLoggable(Level.FINE)) {
+			LOG.fine("Evicted " + removed + " agreement key(s) of " + signerAlias);
+		}
+		return removed;
+	}
+
+	public void evictAll() {
+		keys.clear();
+		LOG.fine("Agreement key cache cleared");
+	}
+
+	public int size() {
+		return keys.size();
+	}
+
+	public int getMaxSize() {
+		return keys.getMaxSize();
+	}
+
+	public long getTtlMillis() {
+		return keys.getTtlMillis();
+	}
+
+	public long getHits() {
+		return keys.getHits();
+	}
+
+	public long getMisses() {
+		return keys.getMisses();
+	}
+
+	/**
+	 * @return число ключей, удаленных по размеру, сроку жизни или явно
+	 */
+	public long getEvictions() {
+		return keys.getEvictions();
+	}
+
+	@Override
+	public String toString() {
+		return "AgreementKeyCache [" + keys + "]";
+	}
+}
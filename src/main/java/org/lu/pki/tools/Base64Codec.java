@@ -0,0 +1,243 @@
+package org.lu.pki.tools;
+
+import java.util.Arrays;
+
+/**
+ * BASE64 по массиву за один проход: определение формата и снятие кодировки выполняются вместе,
+ * без промежуточных строк и регулярных выражений. Пробельные символы (переводы строк PEM/MIME) пропускаются.
+ * @author Igor Konovalov ikonovalov@luxoft.com
+ *
+ */
+public final class Base64Codec {
+
+	/**
+	 * Длина строки PEM (RFC 7468)
+	 */
+	public static final int PEM_LINE_LENGTH = 64;
+
+	/**
+	 * Длина строки MIME (RFC 2045)
+	 */
+	public static final int MIME_LINE_LENGTH = 76;
+
+	public static final byte[] CRLF = { '\r', '\n' };
+
+	static final byte[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes();
+
+	static final byte PAD = '=';
+
+	static final int WHITESPACE = -2;
+
+	static final int INVALID = -1;
+
+	static final int[] DECODE_TABLE = new int[256];
+
+	static {
+		Arrays.fill(DECODE_TABLE, INVALID);
+		for (int z = 0; z < ALPHABET.length; z++) {
+			DECODE_TABLE[ALPHABET[z]] = z;
+		}
+		DECODE_TABLE[' '] = WHITESPACE;
+		DECODE_TABLE['\t'] = WHITESPACE;
+		DECODE_TABLE['\r'] = WHITESPACE;
+		DECODE_TABLE['\n'] = WHITESPACE;
+		DECODE_TABLE['\f'] = WHITESPACE;
+		DECODE_TABLE[0x0B] = WHITESPACE;
+	}
+
+	private static final byte[] EMPTY = new byte[0];
+
+	/**
+	 * Значение '=' в decodeLenient (как в DatatypeConverter)
+	 */
+	private static final int LENIENT_PAD = 127;
+
+	private Base64Codec() {
+	}
+
+	/**
+	 * Строгая проверка: без учета пробельных символов - группы по 4 символа, '=' только в конце последней группы.
+	 * @param input
+	 * @return
+	 */
+	public static boolean isBase64(byte[] input) {
+		return scan(input, false) != null;
+	}
+
+	/**
+	 * Определение и снятие BASE64 за один проход. Двоичные данные (DER) отсекаются на первом недопустимом байте,
+	 * буфер результата выделяется только после первой корректной группы.
+	 * @param input
+	 * @return декодированные данные или null, если input - не BASE64 (в смысле isBase64)
+	 */
+	public static byte[] decodeIfBase64(byte[] input) {
+		return scan(input, true);
+	}
+
+	/**
+	 * Строгое снятие BASE64 (те же правила, что isBase64() и Base64InputStream). Пробельные символы пропускаются.
+	 * @param input
+	 * @return
+	 * @throws IllegalArgumentException - если input - не BASE64
+	 */
+	public static byte[] decode(byte[] input) {
+		byte[] decoded = scan(input, true);
+		if (decoded == null) {
+			throw new IllegalArgumentException("Not a BASE64 data");
+		}
+		return decoded;
+	}
+
+	/**
+	 * Нестрогое снятие BASE64, совместимое с DatatypeConverter.parseBase64Binary: символы вне алфавита пропускаются,
+	 * '=' только дополняет группу (данные после него тоже декодируются), неполная группа в конце отбрасывается.
+	 * Исключений не бросает; для данных не в BASE64 результат бессмысленный.
+	 * @param input
+	 * @return
+	 */
+	public static byte[] decodeLenient(byte[] input) {
+		byte[] out = new byte[input.length / 4 * 3];
+		int outPos = 0;
+		int[] quantum = new int[4];
+		int quantumLength = 0;
+		for (int z = 0; z < input.length; z++) {
+			int c = input[z] & 0xFF;
+			int v = c == PAD ? LENIENT_PAD : DECODE_TABLE[c];
+			if (v < 0) {
+				continue;
+			}
+			quantum[quantumLength++] = v;
+			if (quantumLength == 4) {
+				out[outPos++] = (byte) ((quantum[0] << 2) | (quantum[1] >> 4));
+				if (quantum[2] != LENIENT_PAD) {
+					out[outPos++] = (byte) ((quantum[1] << 4) | (quantum[2] >> 2));
+				}
+				if (quantum[3] != LENIENT_PAD) {
+					out[outPos++] = (byte) ((quantum[2] << 6) | quantum[3]);
+				}
+				quantumLength = 0;
+			}
+		}
+		return outPos == out.length ? out : Arrays.copyOf(out, outPos);
+	}
+
+	private static byte[] scan(byte[] input, boolean decode) {
+		byte[] out = null;
+		int outPos = 0;
+		int quantum = 0;
+		int significant = 0;
+		int padding = 0;
+		for (int z = 0; z < input.length; z++) {
+			int c = input[z] & 0xFF;
+			int v = DECODE_TABLE[c];
+			if (v == WHITESPACE) {
+				continue;
+			}
+			if (c == PAD) {
+				if (++padding > 2) {
+					return null;
+				}
+				continue;
+			}
+			if (v == INVALID || padding > 0) {
+				return null;
+			}
+			quantum = (quantum << 6) | v;
+			if ((++significant & 3) == 0) {
+				if (decode) {
+					if (out == null) {
+						out = new byte[input.length / 4 * 3]; // верхняя граница
+					}
+					out[outPos++] = (byte) (quantum >>> 16);
+					out[outPos++] = (byte) (quantum >>> 8);
+					out[outPos++] = (byte) quantum;
+				}
+				quantum = 0;
+			}
+		}
+		int rest = significant & 3;
+		if (significant == 0 || (rest + padding) % 4 != 0 || (padding > 0 && rest == 0)) {
+			return null;
+		}
+		if (!decode) {
+			return EMPTY;
+		}
+		if (out == null) {
+			out = new byte[3];
+		}
+		if (rest == 2) {
+			out[outPos++] = (byte) (quantum >>> 4);
+		} else if (rest == 3) {
+			out[outPos++] = (byte) (quantum >>> 10);
+			out[outPos++] = (byte) (quantum >>> 2);
+		}
+		return outPos == out.length ? out : Arrays.copyOf(out, outPos);
+	}
+
+	/**
+	 * Кодирование в одну строку без переводов.
+	 * @param data
+	 * @return
+	 */
+	public static byte[] encode(byte[] data) {
+		return encode(data, 0, null);
+	}
+
+	/**
+	 * Кодирование с разбиением на строки (PEM_LINE_LENGTH, MIME_LINE_LENGTH). Каждая строка, включая последнюю, завершается lineSeparator.
+	 * @param data
+	 * @param lineLength - 0 - без разбиения
+	 * @param lineSeparator
+	 * @return
+	 * @throws IllegalArgumentException - lineLength &lt; 0 или пустой lineSeparator при lineLength &gt; 0
+	 */
+	public static byte[] encode(byte[] data, int lineLength, byte[] lineSeparator) {
+		checkLines(lineLength, lineSeparator);
+		int chars = (data.length + 2) / 3 * 4;
+		int lines = lineLength > 0 ? (chars + lineLength - 1) / lineLength : 0;
+		byte[] out = new byte[chars + lines * (lines > 0 ? lineSeparator.length : 0)];
+		int pos = 0;
+		int column = 0;
+		byte[] group = new byte[4];
+		for (int z = 0; z < data.length; z += 3) {
+			int remaining = data.length - z;
+			int bits = (data[z] & 0xFF) << 16;
+			if (remaining > 1) {
+				bits |= (data[z + 1] & 0xFF) << 8;
+			}
+			if (remaining > 2) {
+				bits |= data[z + 2] & 0xFF;
+			}
+			group[0] = ALPHABET[(bits >>> 18) & 0x3F];
+			group[1] = ALPHABET[(bits >>> 12) & 0x3F];
+			group[2] = remaining > 1 ? ALPHABET[(bits >>> 6) & 0x3F] : PAD;
+			group[3] = remaining > 2 ? ALPHABET[bits & 0x3F] : PAD;
+			for (int g = 0; g < 4; g++) {
+				out[pos++] = group[g];
+				if (lineLength > 0 && ++column == lineLength) {
+					System.arraycopy(lineSeparator, 0, out, pos, lineSeparator.length);
+					pos += lineSeparator.length;
+					column = 0;
+				}
+			}
+		}
+		if (column > 0) {
+			System.arraycopy(lineSeparator, 0, out, pos, lineSeparator.length);
+		}
+		return out;
+	}
+
+	/**
+	 * Проверка параметров разбиения на строки - одна для encode() и Base64OutputStream.
+	 * @param lineLength
+	 * @param lineSeparator
+	 */
+	static void checkLines(int lineLength, byte[] lineSeparator) {
+		if (lineLength < 0) {
+			throw new IllegalArgumentException("Negative line length: " + lineLength);
+		}
+		if (lineLength > 0 && (lineSeparator == null || lineSeparator.length == 0)) {
+			throw new IllegalArgumentException("Line separator required");
+		}
+	}
+}
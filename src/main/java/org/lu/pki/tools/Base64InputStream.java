@@ -0,0 +1,172 @@
+package org.lu.pki.tools;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Потоковое снятие BASE64. Принимает и отвергает те же данные, что и Base64Codec.decode(): пробельные символы пропускаются,
+ * '=' допускается только в конце последней группы, после него - только пробельные символы.
+ * Ошибка обнаруживается по мере чтения: уже прочитанная часть данных к этому моменту отдана, конец потока без ошибки не наступает.
+ * @author Igor Konovalov ikonovalov@luxoft.com
+ *
+ */
+public class Base64InputStream extends FilterInputStream {
+
+	private final byte[] encoded = new byte[StreamUtils.BUFFER_SIZE];
+
+	private final byte[] decoded = new byte[3];
+
+	private int decodedPos = 0;
+
+	private int decodedLength = 0;
+
+	private final int[] quantum = new int[4];
+
+	private int quantumLength = 0;
+
+	private boolean eof = false;
+
+	private boolean significant = false;
+
+	private int encodedPos = 0;
+
+	private int encodedLength = 0;
+
+	public Base64InputStream(InputStream in) {
+		super(in);
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] one = new byte[1];
+		int len = read(one, 0, 1);
+		return len < 0 ? -1 : one[0] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		int count = 0;
+		while (count < len) {
+			if (decodedPos < decodedLength) {
+				b[off + count++] = decoded[decodedPos++];
+				continue;
+			}
+			if (!fillDecoded()) {
+				break;
+			}
+		}
+		return count == 0 ? -1 : count;
+	}
+
+	/**
+	 * Декодирование следующей группы из 4 символов.
+	 * @return false - данные закончились
+	 * @throws IOException
+	 */
+	private boolean fillDecoded() throws IOException {
+		decodedPos = 0;
+		decodedLength = 0;
+		if (eof) {
+			return false;
+		}
+		while (quantumLength < 4) {
+			int c = nextEncoded();
+			if (c < 0) {
+				if (quantumLength > 0) {
+					throw new IOException("Truncated BASE64 data");
+				}
+				if (!significant) {
+					throw new IOException("Not a BASE64 data");
+				}
+				eof = true;
+				return false;
+			}
+			if (c == Base64Codec.PAD) {
+				readPadding();
+				break;
+			}
+			int v = Base64Codec.DECODE_TABLE[c];
+			if (v == Base64Codec.WHITESPACE) {
+				continue;
+			}
+			if (v == Base64Codec.INVALID) {
+				throw new IOException("Illegal BASE64 character 0x" + Integer.toHexString(c));
+			}
+			quantum[quantumLength++] = v;
+			significant = true;
+		}
+		if (quantumLength > 1) {
+			decoded[decodedLength++] = (byte) ((quantum[0] << 2) | (quantum[1] >>> 4));
+		}
+		if (quantumLength > 2) {
+			decoded[decodedLength++] = (byte) ((quantum[1] << 4) | (quantum[2] >>> 2));
+		}
+		if (quantumLength > 3) {
+			decoded[decodedLength++] = (byte) ((quantum[2] << 6) | quantum[3]);
+		}
+		quantumLength = 0;
+		return decodedLength > 0;
+	}
+
+	/**
+	 * Дочитывание после первого '=': группа из 2 или 3 символов дополняется до 4, дальше - только пробельные символы.
+	 * @throws IOException
+	 */
+	private void readPadding() throws IOException {
+		if (quantumLength < 2) {
+			throw new IOException("Misplaced BASE64 padding");
+		}
+		int padding = 1;
+		for (int c = nextEncoded(); c >= 0; c = nextEncoded()) {
+			if (c == Base64Codec.PAD) {
+				padding++;
+			} else if (Base64Codec.DECODE_TABLE[c] != Base64Codec.WHITESPACE) {
+				throw new IOException("Data after BASE64 padding");
+			}
+		}
+		if (quantumLength + padding != 4) {
+			throw new IOException("Invalid BASE64 padding");
+		}
+		eof = true;
+	}
+
+	private int nextEncoded() throws IOException {
+		if (encodedPos == encodedLength) {
+			encodedLength = in.read(encoded);
+			encodedPos = 0;
+			if (encodedLength <= 0) {
+				encodedLength = 0;
+				return -1;
+			}
+		}
+		return encoded[encodedPos++] & 0xFF;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return decodedLength - decodedPos;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		long skipped = 0;
+		byte[] buf = new byte[512];
+		while (skipped < n) {
+			int len = read(buf, 0, (int) Math.min(buf.length, n - skipped));
+			if (len < 0) {
+				break;
+			}
+			skipped += len;
+		}
+		return skipped;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+}
@@ -0,0 +1,139 @@
+package org.lu.pki.tools;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Потоковое кодирование в BASE64 (стадии ACTION_BASE64* в потоковом конвейере).
+ * Результат совпадает с Base64Codec.encode: одна строка без переводов или строки заданной длины (PEM, MIME).
+ * @author Igor Konovalov ikonovalov@luxoft.com
+ *
+ */
+public class Base64OutputStream extends FilterOutputStream {
+
+	private static final byte[] ALPHABET = Base64Codec.ALPHABET;
+
+	private static final byte PAD = Base64Codec.PAD;
+
+	private final int lineLength;
+
+	private final byte[] lineSeparator;
+
+	private int column = 0;
+
+	private final byte[] tail = new byte[3];
+
+	private int tailLength = 0;
+
+	private final byte[] encoded = new byte[StreamUtils.BUFFER_SIZE];
+
+	private boolean closed = false;
+
+	public Base64OutputStream(OutputStream out) {
+		this(out, 0, null);
+	}
+
+	/**
+	 * @param out
+	 * @param lineLength - длина строки (Base64Codec.PEM_LINE_LENGTH, MIME_LINE_LENGTH), 0 - без разбиения
+	 * @param lineSeparator - завершает каждую строку, включая последнюю
+	 * @throws IllegalArgumentException - как и у Base64Codec.encode(byte[], int, byte[])
+	 */
+	public Base64OutputStream(OutputStream out, int lineLength, byte[] lineSeparator) {
+		super(out);
+		Base64Codec.checkLines(lineLength, lineSeparator);
+		this.lineLength = lineLength;
+		this.lineSeparator = lineSeparator;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		int pos = off;
+		int end = off + len;
+		// дозаполнение хвоста от предыдущей записи
+		while (tailLength > 0 && tailLength < 3 && pos < end) {
+			tail[tailLength++] = b[pos++];
+		}
+		int count = 0;
+		if (tailLength == 3) {
+			count = encodeGroup(tail, 0, encoded, count);
+			tailLength = 0;
+		}
+		while (end - pos >= 3) {
+			if (count + 4 > encoded.length) {
+				writeEncoded(encoded, 0, count);
+				count = 0;
+			}
+			count = encodeGroup(b, pos, encoded, count);
+			pos += 3;
+		}
+		if (count > 0) {
+			writeEncoded(encoded, 0, count);
+		}
+		while (pos < end) {
+			tail[tailLength++] = b[pos++];
+		}
+	}
+
+	private void writeEncoded(byte[] chars, int off, int len) throws IOException {
+		if (lineLength <= 0) {
+			out.write(chars, off, len);
+			return;
+		}
+		while (len > 0) {
+			int chunk = Math.min(len, lineLength - column);
+			out.write(chars, off, chunk);
+			off += chunk;
+			len -= chunk;
+			column += chunk;
+			if (column == lineLength) {
+				out.write(lineSeparator);
+				column = 0;
+			}
+		}
+	}
+
+	private static int encodeGroup(byte[] src, int off, byte[] dst, int dstOff) {
+		int group = ((src[off] & 0xFF) << 16) | ((src[off + 1] & 0xFF) << 8) | (src[off + 2] & 0xFF);
+		dst[dstOff++] = ALPHABET[(group >>> 18) & 0x3F];
+		dst[dstOff++] = ALPHABET[(group >>> 12) & 0x3F];
+		dst[dstOff++] = ALPHABET[(group >>> 6) & 0x3F];
+		dst[dstOff++] = ALPHABET[group & 0x3F];
+		return dstOff;
+	}
+
+	/**
+	 * Дописывает последнюю (неполную) группу с выравниванием '='. Нижележащий поток закрывается.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		if (tailLength > 0) {
+			int group = (tail[0] & 0xFF) << 16;
+			if (tailLength == 2) {
+				group |= (tail[1] & 0xFF) << 8;
+			}
+			byte[] last = new byte[4];
+			last[0] = ALPHABET[(group >>> 18) & 0x3F];
+			last[1] = ALPHABET[(group >>> 12) & 0x3F];
+			last[2] = tailLength == 2 ? ALPHABET[(group >>> 6) & 0x3F] : PAD;
+			last[3] = PAD;
+			writeEncoded(last, 0, last.length);
+			tailLength = 0;
+		}
+		if (lineLength > 0 && column > 0) {
+			out.write(lineSeparator);
+			column = 0;
+		}
+		super.close();
+	}
+}
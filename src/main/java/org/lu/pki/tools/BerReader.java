@@ -0,0 +1,569 @@
+package org.lu.pki.tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Минимальный разбор BER/DER (X.690) прямо по ByteBuffer - без декодирования структур и без копирования.
+ * Используется для быстрого поиска полей в CMS, когда полный разбор ASN.1-рантаймом не нужен.
+ * Те же операции есть и для InputStream - для сообщений, которые не нужно (или нельзя) держать в памяти целиком.
+ * @author Igor Konovalov ikonovalov@luxoft.com
+ *
+ */
+public final class BerReader {
+
+	public static final int INDEFINITE = -1;
+
+	private static final int CONSTRUCTED_BIT = 0x20;
+
+	private static final byte[] SIGNED_DATA_OID = BerWriter.encodeOid("1.2.840.113549.1.7.2");
+
+	private BerReader() {
+	}
+
+	/**
+	 * Заголовок элемента: тег, длина (или INDEFINITE) и смещение значения в буфере (для заголовка из потока - размер самого заголовка).
+	 */
+	public static final class Header {
+
+		private final int tag;
+
+		private final int length;
+
+		private final int valueOffset;
+
+		Header(int tag, int length, int valueOffset) {
+			this.tag = tag;
+			this.length = length;
+			this.valueOffset = valueOffset;
+		}
+
+		public int getTag() {
+			return tag;
+		}
+
+		public int getLength() {
+			return length;
+		}
+
+		public int getValueOffset() {
+			return valueOffset;
+		}
+
+		public boolean isIndefinite() {
+			return length == INDEFINITE;
+		}
+
+		public boolean isConstructed() {
+			return (tag & CONSTRUCTED_BIT) != 0;
+		}
+
+		public boolean isEndOfContents() {
+			return tag == 0 && length == 0;
+		}
+	}
+
+	/**
+	 * Чтение заголовка элемента по абсолютной позиции. Поддерживаются однобайтовые теги (все теги CMS).
+	 * @param buf
+	 * @param offset
+	 * @return заголовок или null, если данных не хватает или кодировка не поддерживается
+	 */
+	public static Header readHeader(ByteBuffer buf, int offset) {
+		int limit = buf.limit();
+		if (offset < 0 || offset + 2 > limit) {
+			return null;
+		}
+		int tag = buf.get(offset) & 0xFF;
+		if ((tag & 0x1F) == 0x1F) {
+			return null; // многобайтовый тег
+		}
+		int first = buf.get(offset + 1) & 0xFF;
+		int pos = offset + 2;
+		int length;
+		if (first < 0x80) {
+			length = first;
+		} else if (first == 0x80) {
+			if ((tag & CONSTRUCTED_BIT) == 0) {
+				return null; // неопределенная длина допустима только для конструированных
+			}
+			length = INDEFINITE;
+		} else {
+			int bytes = first & 0x7F;
+			if (bytes > 4 || pos + bytes > limit) {
+				return null;
+			}
+			long l = 0;
+			for (int z = 0; z < bytes; z++) {
+				l = (l << 8) | (buf.get(pos++) & 0xFF);
+			}
+			if (l > Integer.MAX_VALUE) {
+				return null;
+			}
+			length = (int) l;
+		}
+		if (length != INDEFINITE && (long) pos + length > limit) {
+			return null;
+		}
+		return new Header(tag, length, pos);
+	}
+
+	/**
+	 * Позиция сразу за элементом (для неопределенной длины - за его EOC).
+	 * @param buf
+	 * @param header
+	 * @return позиция или -1, если структура повреждена
+	 */
+	public static int skip(ByteBuffer buf, Header header) {
+		if (!header.isIndefinite()) {
+			return header.getValueOffset() + header.getLength();
+		}
+		int pos = header.getValueOffset();
+		while (true) {
+			Header child = readHeader(buf, pos);
+			if (child == null) {
+				return -1;
+			}
+			if (child.isEndOfContents()) {
+				return child.getValueOffset();
+			}
+			pos = skip(buf, child);
+			if (pos < 0) {
+				return -1;
+			}
+		}
+	}
+
+	/**
+	 * Поиск eContent в ContentInfo/SignedData без разбора остальных полей.
+	 * ContentInfo -> [0] -> SignedData { version, digestAlgorithms, encapContentInfo { eContentType, [0] eContent } ... }
+	 * @param signed - сообщение в BER/DER
+	 * @return заголовок OCTET STRING eContent (примитивной или конструированной) или null, если это не SignedData либо eContent отсутствует
+	 */
+	public static Header findSignedContent(ByteBuffer signed) {
+		Header contentInfo = readHeader(signed, signed.position());
+		if (contentInfo == null || contentInfo.getTag() != BerWriter.TAG_SEQUENCE) {
+			return null;
+		}
+		Header contentType = readHeader(signed, contentInfo.getValueOffset());
+		if (contentType == null || contentType.getTag() != BerWriter.TAG_OID || !valueEquals(signed, contentType, SIGNED_DATA_OID)) {
+			return null;
+		}
+		Header explicit = readHeader(signed, skip(signed, contentType));
+		if (explicit == null || explicit.getTag() != BerWriter.TAG_CONTEXT_0_CONSTRUCTED) {
+			return null;
+		}
+		Header signedData = readHeader(signed, explicit.getValueOffset());
+		if (signedData == null || signedData.getTag() != BerWriter.TAG_SEQUENCE) {
+			return null;
+		}
+		Header version = readHeader(signed, signedData.getValueOffset());
+		if (version == null) {
+			return null;
+		}
+		Header digestAlgorithms = readHeader(signed, skip(signed, version));
+		if (digestAlgorithms == null) {
+			return null;
+		}
+		int encapOffset = skip(signed, digestAlgorithms);
+		Header encap = encapOffset < 0 ? null : readHeader(signed, encapOffset);
+		if (encap == null || encap.getTag() != BerWriter.TAG_SEQUENCE) {
+			return null;
+		}
+		Header eContentType = readHeader(signed, encap.getValueOffset());
+		if (eContentType == null || eContentType.getTag() != BerWriter.TAG_OID) {
+			return null;
+		}
+		int eContentOffset = skip(signed, eContentType);
+		if (!encap.isIndefinite() && eContentOffset >= encap.getValueOffset() + encap.getLength()) {
+			return null; // отсоединенная подпись - eContent отсутствует
+		}
+		Header eContentExplicit = readHeader(signed, eContentOffset);
+		if (eContentExplicit == null || eContentExplicit.getTag() != BerWriter.TAG_CONTEXT_0_CONSTRUCTED) {
+			return null;
+		}
+		Header eContent = readHeader(signed, eContentExplicit.getValueOffset());
+		if (eContent == null || (eContent.getTag() != BerWriter.TAG_OCTET_STRING && eContent.getTag() != BerWriter.TAG_CONSTRUCTED_OCTET_STRING)) {
+			return null;
+		}
+		return eContent;
+	}
+
+	/**
+	 * Срез значения примитивного элемента (без копирования).
+	 * @param buf
+	 * @param header - заголовок примитивного элемента определенной длины
+	 * @return срез только для чтения
+	 */
+	public static ByteBuffer slice(ByteBuffer buf, Header header) {
+		ByteBuffer dup = buf.duplicate();
+		dup.limit(header.getValueOffset() + header.getLength());
+		dup.position(header.getValueOffset());
+		return dup.slice().asReadOnlyBuffer();
+	}
+
+	/**
+	 * Потоковое представление OCTET STRING любой формы (примитивной, конструированной, определенной или неопределенной длины):
+	 * сегменты отдаются по очереди прямо из буфера.
+	 * @param buf
+	 * @param header
+	 * @return
+	 */
+	public static InputStream openOctetString(ByteBuffer buf, Header header) {
+		return new OctetStringInputStream(buf, header);
+	}
+
+	/**
+	 * Чтение заголовка элемента из потока. Поток остается на первом байте значения.
+	 * @param in
+	 * @return заголовок (getValueOffset() - размер тега и длины) или null, если поток закончился до начала элемента
+	 * @throws IOException - поток оборвался внутри заголовка или кодировка не поддерживается
+	 */
+	public static Header readHeader(InputStream in) throws IOException {
+		int tag = in.read();
+		if (tag < 0) {
+			return null;
+		}
+		if ((tag & 0x1F) == 0x1F) {
+			throw new IOException("Multi-byte BER tags are not supported");
+		}
+		int first = readByte(in);
+		int size = 2;
+		int length;
+		if (first < 0x80) {
+			length = first;
+		} else if (first == 0x80) {
+			if ((tag & CONSTRUCTED_BIT) == 0) {
+				throw new IOException("Indefinite length of primitive element, tag " + tag);
+			}
+			length = INDEFINITE;
+		} else {
+			int bytes = first & 0x7F;
+			if (bytes > 4) {
+				throw new IOException("BER length is too long: " + bytes + " bytes");
+			}
+			long l = 0;
+			for (int z = 0; z < bytes; z++) {
+				l = (l << 8) | readByte(in);
+			}
+			if (l > Integer.MAX_VALUE) {
+				throw new IOException("BER length is too large: " + l);
+			}
+			size += bytes;
+			length = (int) l;
+		}
+		return new Header(tag, length, size);
+	}
+
+	/**
+	 * Элемент из потока целиком (тег, длина, значение) - для разбора небольших полей ASN.1-рантаймом.
+	 * Вложенные элементы неопределенной длины сохраняются как есть.
+	 * @param in
+	 * @param header - только что прочитанный заголовок элемента
+	 * @return
+	 * @throws IOException
+	 */
+	public static byte[] readElement(InputStream in, Header header) throws IOException {
+		ByteArrayOutputStream bOut = new ByteArrayOutputStream(header.isIndefinite() ? 256 : header.getLength() + 8);
+		copyElement(in, header, bOut);
+		return bOut.toByteArray();
+	}
+
+	/**
+	 * Значение примитивного элемента определенной длины из потока.
+	 * @param in
+	 * @param header
+	 * @return
+	 * @throws IOException
+	 */
+	public static byte[] readValue(InputStream in, Header header) throws IOException {
+		if (header.isIndefinite()) {
+			throw new IOException("Definite length expected, tag " + header.getTag());
+		}
+		byte[] value = new byte[header.getLength()];
+		readFully(in, value, value.length);
+		return value;
+	}
+
+	/**
+	 * Пропуск значения элемента в потоке (для неопределенной длины - до его EOC включительно).
+	 * @param in
+	 * @param header - только что прочитанный заголовок элемента
+	 * @throws IOException
+	 */
+	public static void skip(InputStream in, Header header) throws IOException {
+		if (header.isIndefinite()) {
+			while (true) {
+				Header child = readHeader(in);
+				if (child == null) {
+					throw new EOFException("Unexpected end of BER stream, EOC expected");
+				}
+				if (child.isEndOfContents()) {
+					return;
+				}
+				skip(in, child);
+			}
+		}
+		long remaining = header.getLength();
+		while (remaining > 0) {
+			long skipped = in.skip(remaining);
+			if (skipped <= 0) {
+				readByte(in);
+				skipped = 1;
+			}
+			remaining -= skipped;
+		}
+	}
+
+	/**
+	 * Потоковое представление OCTET STRING любой формы прямо из входного потока: сегменты читаются по мере чтения данных.
+	 * Читается ровно строка: после ее конца входной поток стоит на следующем элементе.
+	 * @param in
+	 * @param header - только что прочитанный заголовок строки
+	 * @return поток значения (закрытие не закрывает in)
+	 */
+	public static InputStream openOctetString(InputStream in, Header header) {
+		return new StreamOctetStringInputStream(in, header);
+	}
+
+	private static void copyElement(InputStream in, Header header, OutputStream out) throws IOException {
+		out.write(header.getTag());
+		if (header.isIndefinite()) {
+			out.write(0x80);
+			while (true) {
+				Header child = readHeader(in);
+				if (child == null) {
+					throw new EOFException("Unexpected end of BER stream, EOC expected");
+				}
+				if (child.isEndOfContents()) {
+					BerWriter.writeEndOfContents(out);
+					return;
+				}
+				copyElement(in, child, out);
+			}
+		}
+		BerWriter.writeLength(out, header.getLength());
+		byte[] buf = new byte[Math.min(header.getLength(), StreamUtils.BUFFER_SIZE)];
+		int remaining = header.getLength();
+		while (remaining > 0) {
+			int chunk = Math.min(remaining, buf.length);
+			readFully(in, buf, chunk);
+			out.write(buf, 0, chunk);
+			remaining -= chunk;
+		}
+	}
+
+	private static int readByte(InputStream in) throws IOException {
+		int b = in.read();
+		if (b < 0) {
+			throw new EOFException("Unexpected end of BER stream");
+		}
+		return b;
+	}
+
+	private static void readFully(InputStream in, byte[] b, int len) throws IOException {
+		int off = 0;
+		while (off < len) {
+			int count = in.read(b, off, len - off);
+			if (count < 0) {
+				throw new EOFException("Unexpected end of BER stream");
+			}
+			off += count;
+		}
+	}
+
+	private static boolean valueEquals(ByteBuffer buf, Header header, byte[] expected) {
+		if (header.getLength() != expected.length) {
+			return false;
+		}
+		for (int z = 0; z < expected.length; z++) {
+			if (buf.get(header.getValueOffset() + z) != expected[z]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Обход сегментов OCTET STRING в глубину. Стек хранит позиции и концы (или INDEFINITE) конструированных уровней.
+	 */
+	private static final class OctetStringInputStream extends InputStream {
+
+		private final ByteBuffer buf;
+
+		private int[] positions = new int[4];
+
+		private int[] ends = new int[4];
+
+		private int depth = 0;
+
+		private ByteBuffer current = null;
+
+		OctetStringInputStream(ByteBuffer buf, Header header) {
+			this.buf = buf;
+			if (header.isConstructed()) {
+				push(header);
+			} else {
+				current = slice(buf, header);
+			}
+		}
+
+		private void push(Header header) {
+			if (depth == positions.length) {
+				positions = Arrays.copyOf(positions, depth * 2);
+				ends = Arrays.copyOf(ends, depth * 2);
+			}
+			positions[depth] = header.getValueOffset();
+			ends[depth] = header.isIndefinite() ? INDEFINITE : header.getValueOffset() + header.getLength();
+			depth++;
+		}
+
+		private boolean nextSegment() throws IOException {
+			while (current == null || !current.hasRemaining()) {
+				current = null;
+				if (depth == 0) {
+					return false;
+				}
+				int level = depth - 1;
+				int pos = positions[level];
+				if (ends[level] != INDEFINITE && pos >= ends[level]) {
+					depth--;
+					continue;
+				}
+				Header child = readHeader(buf, pos);
+				if (child == null) {
+					throw new IOException("Malformed OCTET STRING at offset " + pos);
+				}
+				if (child.isEndOfContents()) {
+					if (ends[level] != INDEFINITE) {
+						throw new IOException("Unexpected EOC at offset " + pos);
+					}
+					depth--;
+					if (depth > 0) {
+						positions[depth - 1] = child.getValueOffset();
+					}
+					continue;
+				}
+				positions[level] = child.isIndefinite() ? pos : child.getValueOffset() + child.getLength();
+				if (child.isConstructed()) {
+					push(child); // для неопределенной длины позиция за элементом станет известна на его EOC
+				} else {
+					current = slice(buf, child);
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public int read() throws IOException {
+			return nextSegment() ? current.get() & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (!nextSegment()) {
+				return -1;
+			}
+			int count = Math.min(len, current.remaining());
+			current.get(b, off, count);
+			return count;
+		}
+	}
+
+	/**
+	 * То же для входного потока: вместо позиций в буфере - концы уровней в байтах от начала значения строки.
+	 */
+	private static final class StreamOctetStringInputStream extends InputStream {
+
+		private final InputStream in;
+
+		private long position = 0;
+
+		private long[] ends = new long[4];
+
+		private int depth = 0;
+
+		private long segmentRemaining = 0;
+
+		StreamOctetStringInputStream(InputStream in, Header header) {
+			this.in = in;
+			if (header.isConstructed()) {
+				push(header);
+			} else {
+				segmentRemaining = header.getLength();
+			}
+		}
+
+		private void push(Header header) {
+			if (depth == ends.length) {
+				ends = Arrays.copyOf(ends, depth * 2);
+			}
+			ends[depth++] = header.isIndefinite() ? INDEFINITE : position + header.getLength();
+		}
+
+		private boolean nextSegment() throws IOException {
+			while (segmentRemaining == 0) {
+				if (depth == 0) {
+					return false;
+				}
+				long end = ends[depth - 1];
+				if (end != INDEFINITE && position >= end) {
+					depth--;
+					continue;
+				}
+				Header child = readHeader(in);
+				if (child == null) {
+					throw new EOFException("Unexpected end of OCTET STRING");
+				}
+				position += child.getValueOffset();
+				if (child.isEndOfContents()) {
+					if (end != INDEFINITE) {
+						throw new IOException("Unexpected EOC in OCTET STRING of definite length");
+					}
+					depth--;
+				} else if (child.isConstructed()) {
+					push(child);
+				} else {
+					segmentRemaining = child.getLength();
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (!nextSegment()) {
+				return -1;
+			}
+			int b = readByte(in);
+			segmentRemaining--;
+			position++;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (!nextSegment()) {
+				return -1;
+			}
+			int count = in.read(b, off, (int) Math.min(len, segmentRemaining));
+			if (count < 0) {
+				throw new EOFException("Unexpected end of OCTET STRING");
+			}
+			segmentRemaining -= count;
+			position += count;
+			return count;
+		}
+	}
+}
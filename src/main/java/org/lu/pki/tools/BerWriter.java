@@ -0,0 +1,176 @@
+package org.lu.pki.tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Запись BER-структур "на лету" (X.690): заголовки неопределенной длины, EOC и OCTET STRING по сегментам.
+ * Нужна там, где ASN.1-рантайм требует держать всю структуру в памяти (Asn1BerEncodeBuffer), а сообщение может быть большим.
+ * @author Igor Konovalov ikonovalov@luxoft.com
+ *
+ */
+public final class BerWriter {
+
+	public static final int TAG_INTEGER = 0x02;
+
+	public static final int TAG_OCTET_STRING = 0x04;
+
+	public static final int TAG_OID = 0x06;
+
+	public static final int TAG_SEQUENCE = 0x30;
+
+	public static final int TAG_SET = 0x31;
+
+	public static final int TAG_CONSTRUCTED_OCTET_STRING = 0x24;
+
+	public static final int TAG_CONTEXT_0_CONSTRUCTED = 0xA0;
+
+	public static final int TAG_CONTEXT_0_PRIMITIVE = 0x80;
+
+	/**
+	 * Размер сегмента OCTET STRING. 1000 байт - как требует CER для конструированных строк.
+	 */
+	public static final int SEGMENT_SIZE = 1000;
+
+	private static final int INDEFINITE_LENGTH = 0x80;
+
+	private BerWriter() {
+	}
+
+	public static void writeLength(OutputStream out, int length) throws IOException {
+		if (length < 0x80) {
+			out.write(length);
+		} else {
+			int bytes = 1;
+			for (int l = length >>> 8; l != 0; l >>>= 8) {
+				bytes++;
+			}
+			out.write(0x80 | bytes);
+			for (int z = bytes - 1; z >= 0; z--) {
+				out.write(length >>> (8 * z));
+			}
+		}
+	}
+
+	public static void writeTlv(OutputStream out, int tag, byte[] value) throws IOException {
+		out.write(tag);
+		writeLength(out, value.length);
+		out.write(value);
+	}
+
+	/**
+	 * Заголовок конструированного элемента с неопределенной длиной. Должен быть закрыт writeEndOfContents.
+	 * @param out
+	 * @param tag
+	 * @throws IOException
+	 */
+	public static void writeIndefiniteHeader(OutputStream out, int tag) throws IOException {
+		out.write(tag);
+		out.write(INDEFINITE_LENGTH);
+	}
+
+	public static void writeEndOfContents(OutputStream out) throws IOException {
+		out.write(0);
+		out.write(0);
+	}
+
+	public static void writeOid(OutputStream out, String oid) throws IOException {
+		writeTlv(out, TAG_OID, encodeOid(oid));
+	}
+
+	/**
+	 * Кодирование значения OBJECT IDENTIFIER (без тега и длины).
+	 * @param oid - в точечной нотации, например 1.2.840.113549.1.7.1
+	 * @return
+	 */
+	public static byte[] encodeOid(String oid) {
+		String[] arcs = oid.split("\\.");
+		if (arcs.length < 2) {
+			throw new IllegalArgumentException("OID " + oid + " is too short");
+		}
+		ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+		writeArc(bOut, Long.parseLong(arcs[0]) * 40 + Long.parseLong(arcs[1]));
+		for (int z = 2; z < arcs.length; z++) {
+			writeArc(bOut, Long.parseLong(arcs[z]));
+		}
+		return bOut.toByteArray();
+	}
+
+	private static void writeArc(ByteArrayOutputStream out, long arc) {
+		int groups = 1;
+		for (long a = arc >>> 7; a != 0; a >>>= 7) {
+			groups++;
+		}
+		for (int z = groups - 1; z > 0; z--) {
+			out.write((int) (0x80 | ((arc >>> (7 * z)) & 0x7F)));
+		}
+		out.write((int) (arc & 0x7F));
+	}
+
+	/**
+	 * Поток, раскладывающий записанные данные в сегменты OCTET STRING внутри конструированного элемента неопределенной длины.
+	 * Заголовок пишется при создании, EOC - при закрытии. Нижележащий поток НЕ закрывается: после строки обычно идут другие поля.
+	 */
+	public static class SegmentedOctetStringOutputStream extends FilterOutputStream {
+
+		private final byte[] segment = new byte[SEGMENT_SIZE];
+
+		private int segmentLength = 0;
+
+		private boolean closed = false;
+
+		/**
+		 * @param out - куда писать
+		 * @param constructedTag - тег конструированной строки (0x24 для OCTET STRING, 0xA0 для [0] IMPLICIT OCTET STRING)
+		 * @throws IOException
+		 */
+		public SegmentedOctetStringOutputStream(OutputStream out, int constructedTag) throws IOException {
+			super(out);
+			writeIndefiniteHeader(out, constructedTag);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			segment[segmentLength++] = (byte) b;
+			if (segmentLength == segment.length) {
+				flushSegment();
+			}
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				int chunk = Math.min(len, segment.length - segmentLength);
+				System.arraycopy(b, off, segment, segmentLength, chunk);
+				segmentLength += chunk;
+				off += chunk;
+				len -= chunk;
+				if (segmentLength == segment.length) {
+					flushSegment();
+				}
+			}
+		}
+
+		private void flushSegment() throws IOException {
+			if (segmentLength > 0) {
+				out.write(TAG_OCTET_STRING);
+				writeLength(out, segmentLength);
+				out.write(segment, 0, segmentLength);
+				segmentLength = 0;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			flushSegment();
+			writeEndOfContents(out);
+			out.flush();
+		}
+	}
+}
@@ -0,0 +1,207 @@
+package org.lu.pki.tools;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Кэш ограниченного размера со временем жизни записей - основа PrivateKeyCache и AgreementKeyCache.
+ * При переполнении вытесняется запись, к которой дольше всего не обращались. Потокобезопасен.
+ * @author Igor Konovalov ikonovalov@luxoft.com
+ *
+ * @param <K>
+ * @param <V>
+ */
+final class BoundedTtlCache<K, V> {
+
+	/**
+	 * Условие отбора ключа или значения.
+	 */
+	interface Matcher<T> {
+
+		boolean matches(T t);
+	}
+
+	private static final class Slot<V> {
+
+		private final V value;
+
+		private final long expiresAt;
+
+		Slot(V value, long expiresAt) {
+			this.value = value;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	private final int maxSize;
+
+	private final long ttlNanos;
+
+	private final LinkedHashMap<K, Slot<V>> entries;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * @param maxSize - максимальное число записей (0 - кэширование отключено)
+	 * @param ttlMillis - время жизни записи (0 и меньше - без ограничения)
+	 */
+	BoundedTtlCache(final int maxSize, long ttlMillis) {
+		if (maxSize < 0) {
+			throw new IllegalArgumentException("maxSize < 0");
+		}
+		this.maxSize = maxSize;
+		this.ttlNanos = ttlMillis > 0 ? TimeUnit.MILLISECONDS.toNanos(ttlMillis) : 0;
+		this.entries = new LinkedHashMap<K, Slot<V>>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K, Slot<V>> eldest) {
+				if (size() > BoundedTtlCache.this.maxSize) {
+					evictions.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	V get(K key) {
+		return get(key, null);
+	}
+
+	/**
+	 * @param key
+	 * @param valid - запись, не прошедшая проверку, удаляется как устаревшая (null - без проверки)
+	 * @return значение или null, если его нет, истек срок жизни или оно не прошло проверку
+	 */
+	V get(K key, Matcher<? super V> valid) {
+		synchronized (entries) {
+			Slot<V> entry = entries.get(key);
+			if (entry != null && (ttlNanos > 0 && System.nanoTime() - entry.expiresAt > 0 || valid != null && !valid.matches(entry.value))) {
+				entries.remove(key);
+				evictions.incrementAndGet();
+				entry = null;
+			}
+			if (entry == null) {
+				misses.incrementAndGet();
+				return null;
+			}
+			hits.incrementAndGet();
+			return entry.value;
+		}
+	}
+
+	/**
+	 * @param key
+	 * @param value - null не кэшируется
+	 */
+	void put(K key, V value) {
+		if (value == null || maxSize == 0) {
+			return;
+		}
+		synchronized (entries) {
+			entries.put(key, new Slot<V>(value, System.nanoTime() + ttlNanos));
+		}
+	}
+
+	/**
+	 * @param key
+	 * @return запись была в кэше
+	 */
+	boolean remove(K key) {
+		synchronized (entries) {
+			if (entries.remove(key) == null) {
+				return false;
+			}
+		}
+		evictions.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * @param matcher
+	 * @return число удаленных записей
+	 */
+	int removeIf(Matcher<? super K> matcher) {
+		int removed = 0;
+		synchronized (entries) {
+			Iterator<K> it = entries.keySet().iterator();
+			while (it.hasNext()) {
+				if (matcher.matches(it.next())) {
+					it.remove();
+					removed++;
+				}
+			}
+		}
+		evictions.addAndGet(removed);
+		return removed;
+	}
+
+	void clear() {
+		synchronized (entries) {
+			evictions.addAndGet(entries.size());
+			entries.clear();
+		}
+	}
+
+	/**
+	 * @return число удаленных записей с истекшим сроком жизни
+	 */
+	int purgeExpired() {
+		if (ttlNanos == 0) {
+			return 0;
+		}
+		int purged = 0;
+		long now = System.nanoTime();
+		synchronized (entries) {
+			Iterator<Slot<V>> it = entries.values().iterator();
+			while (it.hasNext()) {
+				if (now - it.next().expiresAt > 0) {
+					it.remove();
+					purged++;
+				}
+			}
+		}
+		evictions.addAndGet(purged);
+		return purged;
+	}
+
+	int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	int getMaxSize() {
+		return maxSize;
+	}
+
+	long getTtlMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(ttlNanos);
+	}
+
+	long getHits() {
+		return hits.get();
+	}
+
+	long getMisses() {
+		return misses.get();
+	}
+
+	long getEvictions() {
+		return evictions.get();
+	}
+
+	@Override
+	public String toString() {
+		return "size=" + size() + "/" + maxSize + ", ttl=" + getTtlMillis() + "ms, hits=" + hits.get() + ", misses=" + misses.get() + ", evictions=" + evictions.get();
+	}
+}
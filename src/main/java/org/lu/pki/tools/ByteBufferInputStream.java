@@ -0,0 +1,88 @@
+package org.lu.pki.tools;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * InputStream поверх ByteBuffer (в т.ч. отображенного в память файла). Данные не копируются в кучу целиком,
+ * позиция исходного буфера не меняется - читается его дубликат.
+ * @author Igor Konovalov ikonovalov@luxoft.com
+ *
+ */
+public class ByteBufferInputStream extends InputStream {
+
+	private final ByteBuffer buffer;
+
+	public ByteBufferInputStream(ByteBuffer buffer) {
+		this.buffer = buffer.duplicate();
+	}
+
+	private ByteBufferInputStream(ByteBufferInputStream shared) {
+		this.buffer = shared.buffer;
+	}
+
+	@Override
+	public int read() throws IOException {
+		return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (!buffer.hasRemaining()) {
+			return -1;
+		}
+		int count = Math.min(len, buffer.remaining());
+		buffer.get(b, off, count);
+		return count;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		if (n <= 0) {
+			return 0;
+		}
+		int count = (int) Math.min(n, buffer.remaining());
+		buffer.position(buffer.position() + count);
+		return count;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return buffer.remaining();
+	}
+
+	@Override
+	public boolean markSupported() {
+		return true;
+	}
+
+	@Override
+	public synchronized void mark(int readlimit) {
+		buffer.mark();
+	}
+
+	@Override
+	public synchronized void reset() throws IOException {
+		buffer.reset();
+	}
+
+	/**
+	 * @return непрочитанный остаток в виде буфера (без копирования)
+	 */
+	public ByteBuffer remaining() {
+		return buffer.slice();
+	}
+
+	/**
+	 * Поток над тем же буфером (чтение через него сдвигает и этот поток), закрытие которого ничего не закрывает.
+	 * В отличие от FilterInputStream остается ByteBufferInputStream, поэтому стадии видят буфер (см. CryptoUtils.openDetachDirect).
+	 * @return
+	 */
+	ByteBufferInputStream closeShield() {
+		return new ByteBufferInputStream(this);
+	}
+}
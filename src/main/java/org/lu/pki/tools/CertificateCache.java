@@ -0,0 +1,150 @@
+package org.lu.pki.tools;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Канонизирующий кэш сертификатов, вложенных в сообщения. Ключ - SHA-256 от DER сертификата.
+ * Контрагенты присылают одни и те же 2-3 сертификата в миллионах сообщений: сертификат разбирается один раз,
+ * а все сообщения получают один и тот же экземпляр X509Certificate (меньше разборов и памяти, стабильная идентичность для других кэшей).
+ * Размер ограничен, вытесняется сертификат, к которому дольше всего не обращались. Потокобезопасен.
+ * @author Igor Konovalov ikonovalov@luxoft.com
+ *
+ */
+public final class CertificateCache {
+
+	public static final int DEFAULT_MAX_SIZE = 1024;
+
+	private static final CertificateCache SHARED = new CertificateCache(DEFAULT_MAX_SIZE);
+
+	private final static ThreadLocal<MessageDigest> sha256 = new ThreadLocal<MessageDigest>() {
+
+		@Override
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	};
+
+	private final static ThreadLocal<CertificateFactory> x509Factory = new ThreadLocal<CertificateFactory>() {
+
+		@Override
+		protected CertificateFactory initialValue() {
+			try {
+				return CertificateFactory.getInstance("X.509");
+			} catch (CertificateException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	};
+
+	private final int maxSize;
+
+	private final LinkedHashMap<ByteBuffer, X509Certificate> certificates;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	public CertificateCache(final int maxSize) {
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("maxSize <= 0");
+		}
+		this.maxSize = maxSize;
+		this.certificates = new LinkedHashMap<ByteBuffer, X509Certificate>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<ByteBuffer, X509Certificate> eldest) {
+				return size() > CertificateCache.this.maxSize;
+			}
+		};
+	}
+
+	/**
+	 * Общий кэш процесса (сертификаты - открытые данные, его могут разделять любые инстансы и провайдеры).
+	 * @return
+	 */
+	public static CertificateCache getShared() {
+		return SHARED;
+	}
+
+	/**
+	 * Канонический экземпляр сертификата по его DER. Разбор выполняется только при промахе.
+	 * @param der
+	 * @return
+	 * @throws CertificateException - der не является сертификатом X.509
+	 */
+	public X509Certificate intern(byte[] der) throws CertificateException {
+		ByteBuffer key = ByteBuffer.wrap(sha256.get().digest(der));
+		X509Certificate cert;
+		synchronized (certificates) {
+			cert = certificates.get(key);
+		}
+		if (cert != null) {
+			hits.incrementAndGet();
+			return cert;
+		}
+		misses.incrementAndGet();
+		X509Certificate parsed = parse(der);
+		synchronized (certificates) {
+			cert = certificates.get(key); // другой поток мог разобрать его же
+			if (cert == null) {
+				cert = parsed;
+				certificates.put(key, cert);
+			}
+		}
+		return cert;
+	}
+
+	/**
+	 * Разбор сертификата без кэширования.
+	 * @param der
+	 * @return
+	 * @throws CertificateException
+	 */
+	static X509Certificate parse(byte[] der) throws CertificateException {
+		return (X509Certificate) x509Factory.get().generateCertificate(new ByteArrayInputStream(der));
+	}
+
+	public void clear() {
+		synchronized (certificates) {
+			certificates.clear();
+		}
+	}
+
+	public int size() {
+		synchronized (certificates) {
+			return certificates.size();
+		}
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	@Override
+	public String toString() {
+		return "CertificateCache [size=" + size() + "/" + maxSize + ", hits=" + hits.get() + ", misses=" + misses.get() + "]";
+	}
+}
@@ -10,7 +10,6 @@ import static org.lu.pki.tools.PKIXUtils.isIndirectCRL;
 import static org.lu.pki.tools.PKIXUtils.isOCSPEnabled;
 import static org.lu.pki.tools.PKIXUtils.isSelfSigned;
 import static org.lu.pki.tools.PKIXUtils.isSunCRLDPEnabled;
-import static org.lu.pki.tools.PKIXUtils.isX509Certificate;
 
 import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
@@ -25,10 +24,6 @@ import java.security.cert.CertPathValidator;
 import java.security.cert.CertPathValidatorException;
 import java.security.cert.CertPathValidatorResult;
 import java.security.cert.CertStore;
-import java.security.cert.Certificate;
-import java.security.cert.CertificateExpiredException;
-import java.security.cert.CertificateNotYetValidException;
-import java.security.cert.CollectionCertStoreParameters;
 import java.security.cert.PKIXBuilderParameters;
 import java.security.cert.PKIXCertPathBuilderResult;
 import java.security.cert.TrustAnchor;
@@ -37,7 +32,6 @@ import java.security.cert.X509CertSelector;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
@@ -60,6 +54,11 @@ public class CertificateVerifier {
 	private static final String CERT_BUILDER_ALG_PKIX = "PKIX";
 
 	private static final Logger LOG = Logger.getLogger(CertificateVerifier.class.getName());
+	
+	/**
+	 * Ограничение длины цепочки при подборе издателей по компактному индексу.
+	 */
+	private static final int MAX_CHAIN_DEPTH = 16;
 		
 	/**
 	 * Построение цепочки сертификатов и их проверка в CRLDP и(или) OCSP
@@ -75,35 +74,101 @@ public class CertificateVerifier {
 	
 	
 	public static CertificateVerificationResult verifyCertificate(X509Certificate cert, KeyStore keyStore, boolean allowSelfSigned, String provider) throws CertificateVerificationException {
-		Set<X509Certificate> allStoredCerts = new HashSet<X509Certificate>();
-		// выборка всех сертификатов из хранилища
+		KeyStoreIndex index;
 		try {
-			Enumeration<String> aliases = keyStore.aliases();
-			while (aliases.hasMoreElements()) {
-				String alias = aliases.nextElement();
-				Certificate c = keyStore.getCertificate(alias);
-				if (!isX509Certificate(c)) {
-					continue;
-				}
-				try {
-					chechValidDate(c);
-				} catch (CertificateExpiredException cee) {
-					LOG.severe(alias + " (" + ((X509Certificate)c).getSubjectDN().getName() + ") expired " + cee.getMessage() + " and skipped");
-					continue;
-				} catch (CertificateNotYetValidException cnyve) {
-					LOG.severe(alias + " (" + ((X509Certificate)c).getSubjectDN().getName() + ") not yet valide " + cnyve.getMessage() + " and skipped");
-					continue;
-				}
-				allStoredCerts.add((X509Certificate) c);
-			}
+			index = KeyStoreIndex.build(keyStore);
 		} catch (KeyStoreException e) {
 			throw new CertificateVerificationException("Key store access problem.", e);
 		}
-       
-        return verifyCertificate(cert, allStoredCerts, allowSelfSigned, provider);
+		return verifyCertificate(cert, index, allowSelfSigned, provider);
 	}
 
 	
+	/**
+	 * Построение цепочки и проверка по снимку хранилища. Набор действующих сертификатов берется из снимка готовым (без перебора хранилища).
+	 * @param cert - проверяемый сертификат
+	 * @param index - снимок хранилища
+	 * @param allowSelfSigned
+	 * @param provider
+	 * @return CertificateVerificationResult
+	 * @throws CertificateVerificationException
+	 */
+	public static CertificateVerificationResult verifyCertificate(X509Certificate cert, KeyStoreIndex index, boolean allowSelfSigned, String provider) throws CertificateVerificationException {
+		return verifyCertificate(cert, index.getValidCertificates(), allowSelfSigned, provider);
+	}
+	
+	/**
+	 * Построение цепочки и проверка по большому списку доверия (CompactCertificateIndex). В построение идут не все сертификаты списка,
+	 * а только действующие издатели, подобранные по субъекту от проверяемого сертификата до корневого.
+	 * @param cert - проверяемый сертификат
+	 * @param trustList
+	 * @param allowSelfSigned
+	 * @param provider
+	 * @return CertificateVerificationResult
+	 * @throws CertificateVerificationException
+	 */
+	public static CertificateVerificationResult verifyCertificate(X509Certificate cert, CompactCertificateIndex trustList, boolean allowSelfSigned, String provider) throws CertificateVerificationException {
+		return verifyCertificate(cert, null, trustList, allowSelfSigned, provider);
+	}
+	
+	/**
+	 * Проверка по снимку хранилища и большому списку доверия: издатели подбираются по субъекту в обоих.
+	 * @param cert - проверяемый сертификат
+	 * @param index - снимок хранилища (null - только список доверия)
+	 * @param trustList
+	 * @param allowSelfSigned
+	 * @param provider
+	 * @return CertificateVerificationResult
+	 * @throws CertificateVerificationException
+	 */
+	public static CertificateVerificationResult verifyCertificate(X509Certificate cert, KeyStoreIndex index, CompactCertificateIndex trustList, boolean allowSelfSigned, String provider) throws CertificateVerificationException {
+		Set<X509Certificate> candidates = new HashSet<X509Certificate>();
+		if (index != null) {
+			candidates.addAll(index.getValidCertificates());
+		}
+		collectIssuers(cert, index, trustList, candidates);
+		return verifyCertificate(cert, candidates, allowSelfSigned, provider);
+	}
+	
+	/**
+	 * Подбор действующих издателей по субъекту от сертификата вверх до самоподписанных.
+	 */
+	private static void collectIssuers(X509Certificate cert, KeyStoreIndex index, CompactCertificateIndex trustList, Set<X509Certificate> candidates) {
+		long now = System.currentTimeMillis();
+		Set<X509Certificate> visited = new HashSet<X509Certificate>();
+		if (cert.equals(trustList.findByIssuerAndSerialNumber(cert.getIssuerX500Principal(), cert.getSerialNumber()))) {
+			candidates.add(cert); // сам сертификат в списке доверия
+		}
+		List<X509Certificate> level = new ArrayList<X509Certificate>();
+		level.add(cert);
+		for (int depth = 0; depth < MAX_CHAIN_DEPTH && !level.isEmpty(); depth++) {
+			List<X509Certificate> next = new ArrayList<X509Certificate>();
+			for (X509Certificate c : level) {
+				if (c.getSubjectX500Principal().equals(c.getIssuerX500Principal())) {
+					continue;
+				}
+				List<X509Certificate> issuers = new ArrayList<X509Certificate>(trustList.findValidBySubject(c.getIssuerX500Principal(), now));
+				if (index != null) {
+					for (String alias : index.findBySubject(c.getIssuerX500Principal())) {
+						X509Certificate issuer = index.getCertificate(alias);
+						if (index.getValidCertificates().contains(issuer)) {
+							issuers.add(issuer);
+						}
+					}
+				}
+				for (X509Certificate issuer : issuers) {
+					candidates.add(issuer);
+					if (visited.add(issuer)) {
+						next.add(issuer);
+					}
+				}
+			}
+			level = next;
+		}
+		if (LOG.isLoggable(Level.FINE)) {
+			LOG.fine("Chain candidates for " + cert.getSubjectX500Principal() + ": " + candidates.size());
+		}
+	}
 
 	/**
 	 * Attempts to build a certification chain for given certificate and to
@@ -250,7 +315,7 @@ public class CertificateVerifier {
 		pkixParams.setRevocationEnabled(false);
 
 		// Specify a list of intermediate certificates
-		CertStore intermediateCertStore = CertStore.getInstance("Collection", new CollectionCertStoreParameters(intermediateCerts));
+		CertStore intermediateCertStore = IndexedCertStore.create(intermediateCerts);
 		pkixParams.addCertStore(intermediateCertStore);
 		pkixParams.setSigProvider(provider);
 
@@ -305,11 +370,11 @@ public class CertificateVerifier {
 		pkixParams.setRevocationEnabled(true);
 		
 		// Specify a list of intermediate certificates
-		CertStore intermediateCertStore = CertStore.getInstance("Collection", new CollectionCertStoreParameters(intermediateCerts));
+		CertStore intermediateCertStore = IndexedCertStore.create(intermediateCerts);
 		pkixParams.addCertStore(intermediateCertStore);
 		pkixParams.setSigProvider(provider);
 
-		final CertPathValidator validator = CertPathValidator.getInstance(CERT_BUILDER_ALG_PKIX);
+		final CertPathValidator validator = EnginePool.certPathValidator(CERT_BUILDER_ALG_PKIX, null);
 		
 		if (isFine) {
 			LOG.fine("Validating certificate chain for "+ cert.getSubjectDN().getName() + " using provider '" + validator.getProvider().getName() + "' with signature '" + pkixParams.getSigProvider() + "' provider");
@@ -0,0 +1,410 @@
+package org.lu.pki.tools;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Асинхронные операции CMS на двух пулах: криптография (по числу ядер) и проверка сертификатов подписчиков
+ * (цепочка, CRL/OCSP - ожидание сети не занимает потоки криптографии).
+ * Рабочий поток криптографии получает собственный экземпляр через CryptoUtils.fork(), профиль фиксируется при создании.
+ * @author Igor Konovalov ikonovalov@luxoft.com
+ *
+ */
+public final class CmsAsync {
+
+	private static final Logger LOG = Logger.getLogger(CmsAsync.class.getName());
+
+	private static final AtomicInteger POOL_NUMBER = new AtomicInteger();
+
+	public static final int DEFAULT_IO_THREADS = 8;
+
+	private final CryptoUtils template;
+
+	private final CmsProfile profile;
+
+	private final ExecutorService cpu;
+
+	private final ExecutorService io;
+
+	private final ThreadLocal<CryptoUtils> engines = new ThreadLocal<CryptoUtils>();
+
+	private final Object pendingLock = new Object();
+
+	private int pending = 0;
+
+	/**
+	 * @param prototype - экземпляр с загруженным хранилищем
+	 * @param profile - профиль операций
+	 * @param cpuThreads - потоки криптографии
+	 * @param ioThreads - потоки проверки сертификатов
+	 * @throws Exception
+	 */
+	public CmsAsync(CryptoUtils prototype, CmsProfile profile, int cpuThreads, int ioThreads) throws Exception {
+		if (cpuThreads < 1 || ioThreads < 1) {
+			throw new IllegalArgumentException("threads must be positive: " + cpuThreads + "/" + ioThreads);
+		}
+		int pool = POOL_NUMBER.incrementAndGet();
+		this.template = prototype.fork();
+		this.profile = profile;
+		this.cpu = Executors.newFixedThreadPool(cpuThreads, new NamedThreadFactory("cms-cpu-" + pool + "-"));
+		this.io = Executors.newFixedThreadPool(ioThreads, new NamedThreadFactory("cms-io-" + pool + "-"));
+	}
+
+	/**
+	 * Пулы по умолчанию: криптография на всех ядрах, DEFAULT_IO_THREADS потоков проверки сертификатов.
+	 * @param prototype - настроенный экземпляр (signer, recipients, withVerificationOptions)
+	 * @throws Exception
+	 */
+	public CmsAsync(CryptoUtils prototype) throws Exception {
+		this(prototype, prototype.getProfile(), Runtime.getRuntime().availableProcessors(), DEFAULT_IO_THREADS);
+	}
+
+	public CmsProfile getProfile() {
+		return profile;
+	}
+
+	public CmsFuture<byte[]> encrypt(byte[] plain) {
+		return actions(plain, CryptoUtils.ACTION_ENCRYPT);
+	}
+
+	public CmsFuture<byte[]> signAttached(byte[] data) {
+		return actions(data, CryptoUtils.ACTION_SIGN);
+	}
+
+	public CmsFuture<byte[]> decrypt(byte[] ciphertext) {
+		return actions(ciphertext, CryptoUtils.ACTION_DECRYPT);
+	}
+
+	public CmsFuture<byte[]> detach(byte[] signed) {
+		return actions(signed, CryptoUtils.ACTION_DETACH);
+	}
+
+	/**
+	 * Проверка подписи: математика подписей в пуле криптографии, затем проверка сертификатов в пуле ввода-вывода.
+	 * @param signed
+	 * @return результат с подписчиками и результатами проверки их сертификатов
+	 */
+	public CmsFuture<VerificationOutcome> verify(final byte[] signed) {
+		final CmsFuture<VerificationOutcome> future = track(new CmsFuture<VerificationOutcome>());
+		submit(cpu, future, new Runnable() {
+			@Override
+			public void run() {
+				try {
+					final VerificationOutcome outcome = engine().verifySignatures(profile, signed);
+					validate(future, outcome, new Runnable() {
+						@Override
+						public void run() {
+							future.complete(outcome);
+						}
+					});
+				} catch (Throwable e) {
+					future.fail(e);
+				}
+			}
+		});
+		return future;
+	}
+
+	public CmsFuture<byte[]> actions(byte[] data, String command) {
+		return actions(data, CmsPlan.of(command));
+	}
+
+	public CmsFuture<byte[]> actions(byte[] data, int... actions) {
+		return actions(data, actions == null || actions.length == 0 ? null : CmsPlan.compile(actions));
+	}
+
+	/**
+	 * Цепочка операций по плану. На стадии verify цепочка уходит в пул ввода-вывода на проверку сертификатов
+	 * и возвращается в пул криптографии за следующими стадиями. Разобранное сообщение (CmsMessageContext)
+	 * одно на все стадии и переходит между пулами вместе с курсором плана.
+	 * @param data
+	 * @param plan - null - данные возвращаются без изменений
+	 * @return
+	 */
+	public CmsFuture<byte[]> actions(byte[] data, CmsPlan plan) {
+		CmsFuture<byte[]> future = track(new CmsFuture<byte[]>());
+		if (plan == null) {
+			future.complete(data);
+		} else {
+			scheduleStages(future, plan, new CmsPlan.Cursor(data));
+		}
+		return future;
+	}
+
+	private void scheduleStages(final CmsFuture<byte[]> future, final CmsPlan plan, final CmsPlan.Cursor cursor) {
+		submit(cpu, future, new Runnable() {
+			@Override
+			public void run() {
+				try {
+					runStages(future, plan, cursor);
+				} catch (Throwable e) {
+					future.fail(e);
+				}
+			}
+		});
+	}
+
+	private void runStages(final CmsFuture<byte[]> future, final CmsPlan plan, final CmsPlan.Cursor cursor) throws Exception {
+		if (future.isDone()) {
+			return; // отменено
+		}
+		VerificationOutcome outcome = plan.advance(engine(), profile, cursor, true);
+		if (outcome == null) {
+			future.complete(cursor.getBuffer());
+			return;
+		}
+		validate(future, outcome, new Runnable() {
+			@Override
+			public void run() {
+				scheduleStages(future, plan, cursor);
+			}
+		});
+	}
+
+	/**
+	 * Проверка сертификатов в пуле ввода-вывода, при успехе - продолжение.
+	 */
+	private void validate(final CmsFuture<?> future, final VerificationOutcome outcome, final Runnable continuation) {
+		if (!outcome.isCertificateValidationPending()) {
+			continuation.run();
+			return;
+		}
+		submit(io, future, new Runnable() {
+			@Override
+			public void run() {
+				try {
+					template.validateCertificates(outcome);
+					continuation.run();
+				} catch (Throwable e) {
+					future.fail(e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Учет незавершенных операций: цепочка переходит между пулами, поэтому пулы можно останавливать только когда их нет.
+	 */
+	private <T> CmsFuture<T> track(CmsFuture<T> future) {
+		synchronized (pendingLock) {
+			pending++;
+		}
+		future.addCallback(new CmsFuture.Callback<T>() {
+			@Override
+			public void completed(T result) {
+				release();
+			}
+
+			@Override
+			public void failed(Throwable error) {
+				release();
+			}
+
+			private void release() {
+				synchronized (pendingLock) {
+					if (--pending == 0) {
+						pendingLock.notifyAll();
+					}
+				}
+			}
+		});
+		return future;
+	}
+
+	private static void submit(ExecutorService executor, CmsFuture<?> future, Runnable task) {
+		try {
+			executor.execute(task);
+		} catch (RejectedExecutionException e) {
+			future.fail(e);
+		}
+	}
+
+	/**
+	 * Экземпляр CryptoUtils текущего потока криптографии.
+	 * @return
+	 * @throws Exception
+	 */
+	private CryptoUtils engine() throws Exception {
+		CryptoUtils engine = engines.get();
+		if (engine == null) {
+			engine = template.fork();
+			engines.set(engine);
+			LOG.fine("Engine created for " + Thread.currentThread().getName());
+		}
+		return engine;
+	}
+
+	/**
+	 * Поток сообщений с ограниченным числом одновременно обрабатываемых (обратное давление):
+	 * submit блокируется, пока не освободится место. Результаты отдаются слушателю строго в порядке подачи.
+	 * @param maxInFlight - сколько сообщений может быть в работе и в ожидании выдачи
+	 * @param listener
+	 * @param actions - ACTION_*
+	 * @return
+	 */
+	public Stream openStream(int maxInFlight, Listener listener, int... actions) {
+		return openStream(maxInFlight, listener, actions == null || actions.length == 0 ? null : CmsPlan.compile(actions));
+	}
+
+	public Stream openStream(int maxInFlight, Listener listener, String command) {
+		return openStream(maxInFlight, listener, CmsPlan.of(command));
+	}
+
+	public Stream openStream(int maxInFlight, Listener listener, CmsPlan plan) {
+		return new Stream(maxInFlight, listener, plan);
+	}
+
+	/**
+	 * Получатель результатов потока. Вызывается последовательно, в порядке подачи сообщений.
+	 */
+	public interface Listener {
+
+		void onResult(CmsBatchProcessor.Result result);
+	}
+
+	public final class Stream {
+
+		private final int maxInFlight;
+
+		private final Listener listener;
+
+		private final CmsPlan plan;
+
+		private final Semaphore permits;
+
+		private final Map<Integer, CmsBatchProcessor.Result> ready = new HashMap<Integer, CmsBatchProcessor.Result>();
+
+		private int submitted = 0;
+
+		private int delivered = 0;
+
+		private boolean delivering = false;
+
+		Stream(int maxInFlight, Listener listener, CmsPlan plan) {
+			if (maxInFlight < 1) {
+				throw new IllegalArgumentException("maxInFlight must be positive: " + maxInFlight);
+			}
+			this.maxInFlight = maxInFlight;
+			this.listener = listener;
+			this.plan = plan;
+			this.permits = new Semaphore(maxInFlight);
+		}
+
+		/**
+		 * Подача сообщения. Блокируется, если в работе уже maxInFlight сообщений.
+		 * @param message
+		 * @return порядковый номер сообщения в потоке
+		 * @throws InterruptedException
+		 */
+		public int submit(byte[] message) throws InterruptedException {
+			permits.acquire();
+			final int index;
+			synchronized (this) {
+				index = submitted++;
+			}
+			final long started = System.nanoTime();
+			actions(message, plan).addCallback(new CmsFuture.Callback<byte[]>() {
+				@Override
+				public void completed(byte[] result) {
+					arrived(new CmsBatchProcessor.Result(index, result, null, System.nanoTime() - started));
+				}
+
+				@Override
+				public void failed(Throwable error) {
+					if (LOG.isLoggable(Level.FINE)) {
+						LOG.log(Level.FINE, "Message #" + index + " failed", error);
+					}
+					arrived(new CmsBatchProcessor.Result(index, null, error, System.nanoTime() - started));
+				}
+			});
+			return index;
+		}
+
+		/**
+		 * Выдача готовых результатов по порядку. Выдает один поток за раз, остальные только складывают результат.
+		 */
+		private void arrived(CmsBatchProcessor.Result result) {
+			synchronized (this) {
+				ready.put(result.getIndex(), result);
+				if (delivering) {
+					return;
+				}
+				delivering = true;
+			}
+			while (true) {
+				CmsBatchProcessor.Result next;
+				synchronized (this) {
+					next = ready.remove(delivered);
+					if (next == null) {
+						delivering = false;
+						return;
+					}
+					delivered++;
+				}
+				try {
+					listener.onResult(next);
+				} catch (RuntimeException e) {
+					LOG.log(Level.WARNING, "Listener failed on message #" + next.getIndex(), e);
+				} finally {
+					permits.release();
+				}
+			}
+		}
+
+		/**
+		 * Ожидание выдачи всех поданных сообщений.
+		 * @throws InterruptedException
+		 */
+		public void drain() throws InterruptedException {
+			permits.acquire(maxInFlight);
+			permits.release(maxInFlight);
+		}
+	}
+
+	/**
+	 * Остановка пулов. Ожидает завершения уже поставленных операций.
+	 * @throws InterruptedException
+	 */
+	public void shutdown() throws InterruptedException {
+		synchronized (pendingLock) {
+			while (pending > 0) {
+				pendingLock.wait();
+			}
+		}
+		cpu.shutdown();
+		while (!cpu.awaitTermination(1, TimeUnit.MINUTES)) {
+			LOG.warning("Waiting for crypto workers to finish...");
+		}
+		io.shutdown();
+		while (!io.awaitTermination(1, TimeUnit.MINUTES)) {
+			LOG.warning("Waiting for certificate validation workers to finish...");
+		}
+	}
+
+	private static final class NamedThreadFactory implements ThreadFactory {
+
+		private final String prefix;
+
+		private final AtomicInteger number = new AtomicInteger();
+
+		NamedThreadFactory(String prefix) {
+			this.prefix = prefix;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, prefix + number.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
@@ -0,0 +1,289 @@
+package org.lu.pki.tools;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Пакетная обработка сообщений на нескольких ядрах. Каждый рабочий поток получает собственный экземпляр через CryptoUtils.fork()
+ * (свой ГСЧ, свои JCA-движки), хранилище ключей общее. Профиль (подписчики, получатели, опции) фиксируется при создании процессора.
+ * @author Igor Konovalov ikonovalov@luxoft.com
+ *
+ */
+public final class CmsBatchProcessor {
+
+	private static final Logger LOG = Logger.getLogger(CmsBatchProcessor.class.getName());
+
+	private static final AtomicInteger POOL_NUMBER = new AtomicInteger();
+
+	private final CryptoUtils template;
+
+	private final CmsProfile profile;
+
+	private final int threads;
+
+	private final ExecutorService executor;
+
+	private final ThreadLocal<CryptoUtils> engines = new ThreadLocal<CryptoUtils>();
+
+	/**
+	 * @param prototype - настроенный экземпляр (signer, recipients, withVerificationOptions)
+	 * @param threads - число рабочих потоков
+	 * @throws Exception
+	 */
+	public CmsBatchProcessor(CryptoUtils prototype, int threads) throws Exception {
+		this(prototype, prototype.getProfile(), threads);
+	}
+
+	/**
+	 * @param prototype - экземпляр с загруженным хранилищем
+	 * @param profile - профиль операций пакета
+	 * @param threads - число рабочих потоков
+	 * @throws Exception
+	 */
+	public CmsBatchProcessor(CryptoUtils prototype, CmsProfile profile, int threads) throws Exception {
+		if (threads < 1) {
+			throw new IllegalArgumentException("threads must be positive: " + threads);
+		}
+		this.template = prototype.fork();
+		this.profile = profile;
+		this.threads = threads;
+		this.executor = Executors.newFixedThreadPool(threads, new WorkerThreadFactory());
+	}
+
+	/**
+	 * Процессор на все доступные ядра.
+	 * @param prototype
+	 * @throws Exception
+	 */
+	public CmsBatchProcessor(CryptoUtils prototype) throws Exception {
+		this(prototype, Runtime.getRuntime().availableProcessors());
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	public BatchResult process(List<byte[]> messages, String command) throws InterruptedException {
+		return process(messages, CmsPlan.of(command));
+	}
+
+	public BatchResult process(List<byte[]> messages, int... actions) throws InterruptedException {
+		return process(messages, CmsPlan.compile(actions));
+	}
+
+	/**
+	 * Обработка пакета. Ошибка одного сообщения не прерывает остальные - она возвращается в его Result.
+	 * @param messages
+	 * @param plan - цепочка операций, компилируется один раз на пакет
+	 * @return результаты в порядке messages
+	 * @throws InterruptedException
+	 */
+	public BatchResult process(List<byte[]> messages, final CmsPlan plan) throws InterruptedException {
+		final long started = System.nanoTime();
+		List<Future<Result>> futures = new ArrayList<Future<Result>>(messages.size());
+		for (int z = 0; z < messages.size(); z++) {
+			final int index = z;
+			final byte[] message = messages.get(z);
+			futures.add(executor.submit(new Callable<Result>() {
+				@Override
+				public Result call() {
+					return processOne(index, message, plan);
+				}
+			}));
+		}
+		List<Result> results = new ArrayList<Result>(futures.size());
+		for (int z = 0; z < futures.size(); z++) {
+			try {
+				results.add(futures.get(z).get());
+			} catch (ExecutionException e) {
+				results.add(new Result(z, null, e.getCause(), 0)); // processOne ловит все сам, сюда попадают только Error
+			}
+		}
+		BatchResult batch = new BatchResult(results, threads, System.nanoTime() - started);
+		if (LOG.isLoggable(Level.FINE)) {
+			LOG.fine(batch.toString());
+		}
+		return batch;
+	}
+
+	private Result processOne(int index, byte[] message, CmsPlan plan) {
+		final long started = System.nanoTime();
+		try {
+			byte[] output = engine().actions(profile, message, null, plan);
+			return new Result(index, output, null, System.nanoTime() - started);
+		} catch (Exception e) {
+			if (LOG.isLoggable(Level.FINE)) {
+				LOG.log(Level.FINE, "Message #" + index + " failed", e);
+			}
+			return new Result(index, null, e, System.nanoTime() - started);
+		}
+	}
+
+	/**
+	 * Экземпляр CryptoUtils текущего рабочего потока. Создается при первом обращении.
+	 * @return
+	 * @throws Exception
+	 */
+	private CryptoUtils engine() throws Exception {
+		CryptoUtils engine = engines.get();
+		if (engine == null) {
+			engine = template.fork();
+			engines.set(engine);
+			LOG.fine("Engine created for " + Thread.currentThread().getName());
+		}
+		return engine;
+	}
+
+	/**
+	 * Остановка рабочих потоков. Ожидает завершения уже поставленных сообщений.
+	 * @throws InterruptedException
+	 */
+	public void shutdown() throws InterruptedException {
+		executor.shutdown();
+		while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+			LOG.warning("Waiting for batch workers to finish...");
+		}
+	}
+
+	private static final class WorkerThreadFactory implements ThreadFactory {
+
+		private final int pool = POOL_NUMBER.incrementAndGet();
+
+		private final AtomicInteger number = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "cms-batch-" + pool + "-" + number.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+
+	/**
+	 * Результат обработки одного сообщения: выход или ошибка.
+	 */
+	public static final class Result {
+
+		private final int index;
+
+		private final byte[] output;
+
+		private final Throwable error;
+
+		private final long nanos;
+
+		Result(int index, byte[] output, Throwable error, long nanos) {
+			this.index = index;
+			this.output = output;
+			this.error = error;
+			this.nanos = nanos;
+		}
+
+		public int getIndex() {
+			return index;
+		}
+
+		/**
+		 * @return результат цепочки или null при ошибке
+		 */
+		public byte[] getOutput() {
+			return output;
+		}
+
+		public Throwable getError() {
+			return error;
+		}
+
+		public boolean isSuccess() {
+			return error == null;
+		}
+
+		public long getNanos() {
+			return nanos;
+		}
+	}
+
+	/**
+	 * Результаты пакета и пропускная способность.
+	 */
+	public static final class BatchResult {
+
+		private final List<Result> results;
+
+		private final int threads;
+
+		private final long elapsedNanos;
+
+		private final int failed;
+
+		private final long bytesOut;
+
+		BatchResult(List<Result> results, int threads, long elapsedNanos) {
+			this.results = Collections.unmodifiableList(results);
+			this.threads = threads;
+			this.elapsedNanos = elapsedNanos;
+			int f = 0;
+			long b = 0;
+			for (Result r : results) {
+				if (r.isSuccess()) {
+					b += r.getOutput() != null ? r.getOutput().length : 0;
+				} else {
+					f++;
+				}
+			}
+			this.failed = f;
+			this.bytesOut = b;
+		}
+
+		public List<Result> getResults() {
+			return results;
+		}
+
+		public int size() {
+			return results.size();
+		}
+
+		public int getFailed() {
+			return failed;
+		}
+
+		public int getThreads() {
+			return threads;
+		}
+
+		public long getElapsedNanos() {
+			return elapsedNanos;
+		}
+
+		/**
+		 * @return сообщений в секунду (по настенному времени пакета)
+		 */
+		public double getMessagesPerSecond() {
+			return elapsedNanos == 0 ? 0 : results.size() * 1e9 / elapsedNanos;
+		}
+
+		/**
+		 * @return байт результата в секунду
+		 */
+		public double getBytesPerSecond() {
+			return elapsedNanos == 0 ? 0 : bytesOut * 1e9 / elapsedNanos;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("Batch of %d messages (%d failed) on %d threads: %.1f ms, %.1f msg/s, %.1f KB/s",
+					results.size(), failed, threads, elapsedNanos / 1e6, getMessagesPerSecond(), getBytesPerSecond() / 1024);
+		}
+	}
+}
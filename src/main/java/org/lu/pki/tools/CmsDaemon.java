@@ -0,0 +1,455 @@
+package org.lu.pki.tools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.file.Path;
+import java.security.Security;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import ru.signalcom.crypto.provider.SignalCOMProvider;
+
+/**
+ * Резидентный процесс: провайдер, хранилище и прогретые экземпляры CryptoUtils загружаются один раз,
+ * операции принимаются по локальному TCP (только loopback) от CmsDaemonClient.
+ * Loopback - не защита: к порту может подключиться любой локальный пользователь. Поэтому до первой команды
+ * клиент и процесс доказывают друг другу знание общего секрета (см. CmsFrames), иначе соединение закрывается.
+ * <p>
+ * Протокол после проверки секрета - кадры в обе стороны, запросы можно слать пачкой не дожидаясь ответов (pipelining),
+ * ответы приходят в порядке запросов:
+ * <pre>
+ * запрос: UTF команда ("decrypt -> verify -> detach"), int длина, данные
+ * ответ:  byte STATUS_OK | STATUS_ERROR, int длина, результат | сообщение об ошибке (UTF-8)
+ * </pre>
+ * Память ограничена: кадр не длиннее MAX_MESSAGE_SIZE_PROPERTY, а байты запросов, еще не получивших ответ,
+ * учитываются на соединение и на процесс в целом. При исчерпании лимита чтение сокета приостанавливается.
+ * @author Igor Konovalov ikonovalov@luxoft.com
+ *
+ */
+public final class CmsDaemon {
+
+	private static final Logger LOG = Logger.getLogger(CmsDaemon.class.getName());
+
+	public static final int DEFAULT_PORT = CmsFrames.DEFAULT_PORT;
+
+	/**
+	 * Сколько запросов одного соединения может быть в работе одновременно. Дальше чтение сокета приостанавливается.
+	 */
+	public static final int PIPELINE_DEPTH = 64;
+
+	/**
+	 * Максимальный размер кадра запроса в байтах. Длиннее - соединение закрывается до выделения памяти.
+	 */
+	public static final String MAX_MESSAGE_SIZE_PROPERTY = "org.lu.pki.tools.daemon.maxMessageSize";
+
+	public static final int DEFAULT_MAX_MESSAGE_SIZE = 16 * 1024 * 1024;
+
+	/**
+	 * Сколько байт запросов одного соединения может ждать ответа.
+	 */
+	public static final String CONNECTION_IN_FLIGHT_PROPERTY = "org.lu.pki.tools.daemon.connectionInFlightBytes";
+
+	public static final long DEFAULT_CONNECTION_IN_FLIGHT = 64L * 1024 * 1024;
+
+	/**
+	 * Сколько байт запросов всех соединений может ждать ответа.
+	 */
+	public static final String TOTAL_IN_FLIGHT_PROPERTY = "org.lu.pki.tools.daemon.totalInFlightBytes";
+
+	public static final long DEFAULT_TOTAL_IN_FLIGHT = 256L * 1024 * 1024;
+
+	/**
+	 * Время на проверку секрета, после него соединение закрывается.
+	 */
+	public static final int HANDSHAKE_TIMEOUT_MILLIS = 10000;
+
+	/**
+	 * Как часто поток чтения, ожидающий места в очереди ответов, проверяет, жив ли поток записи.
+	 */
+	private static final long WRITER_CHECK_MILLIS = 100;
+
+	private final CmsAsync async;
+
+	private final byte[] secret;
+
+	private final int maxMessageSize;
+
+	private final long connectionInFlight;
+
+	private final ByteBudget total;
+
+	private final ServerSocket server;
+
+	private final ExecutorService connections;
+
+	private volatile boolean running = true;
+
+	/**
+	 * @param prototype - настроенный экземпляр с загруженным хранилищем
+	 * @param port - порт на loopback-интерфейсе (0 - любой свободный)
+	 * @param secret - общий секрет с клиентами (см. secretFileOf)
+	 * @throws Exception
+	 */
+	public CmsDaemon(CryptoUtils prototype, int port, byte[] secret) throws Exception {
+		if (secret == null || secret.length == 0) {
+			throw new IllegalArgumentException("Empty secret");
+		}
+		this.maxMessageSize = Integer.getInteger(MAX_MESSAGE_SIZE_PROPERTY, DEFAULT_MAX_MESSAGE_SIZE);
+		this.connectionInFlight = Long.getLong(CONNECTION_IN_FLIGHT_PROPERTY, DEFAULT_CONNECTION_IN_FLIGHT);
+		long totalInFlight = Long.getLong(TOTAL_IN_FLIGHT_PROPERTY, DEFAULT_TOTAL_IN_FLIGHT);
+		if (maxMessageSize <= 0 || maxMessageSize > connectionInFlight || connectionInFlight > totalInFlight) {
+			throw new IllegalArgumentException("Limits must satisfy 0 < maxMessageSize <= connectionInFlightBytes <= totalInFlightBytes: "
+					+ maxMessageSize + ", " + connectionInFlight + ", " + totalInFlight);
+		}
+		this.secret = secret.clone();
+		this.total = new ByteBudget(totalInFlight);
+		this.async = new CmsAsync(prototype);
+		this.server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		this.connections = Executors.newCachedThreadPool(new ConnectionThreadFactory());
+	}
+
+	public int getPort() {
+		return server.getLocalPort();
+	}
+
+	public int getMaxMessageSize() {
+		return maxMessageSize;
+	}
+
+	/**
+	 * @return байты запросов всех соединений, ожидающих ответа
+	 */
+	public long getInFlightBytes() {
+		return total.getUsed();
+	}
+
+	/**
+	 * @param keyStoreFile - путь к хранилищу, как он передается процессу
+	 * @return файл общего секрета процесса и клиентов (только для владельца)
+	 */
+	public static Path secretFileOf(String keyStoreFile) {
+		return CmsFrames.secretFileOf(keyStoreFile);
+	}
+
+	/**
+	 * Прием соединений до вызова stop(). Каждое соединение обслуживается своей парой потоков (чтение и запись).
+	 * @throws IOException
+	 */
+	public void serve() throws IOException {
+		LOG.info("CMS daemon listening on " + server.getLocalSocketAddress());
+		while (running) {
+			final Socket socket;
+			try {
+				socket = server.accept();
+			} catch (SocketException e) {
+				if (!running) {
+					break; // stop() закрыл сокет
+				}
+				throw e;
+			}
+			socket.setTcpNoDelay(true);
+			connections.execute(new Runnable() {
+				@Override
+				public void run() {
+					handle(socket);
+				}
+			});
+		}
+	}
+
+	public void stop() throws InterruptedException {
+		running = false;
+		try {
+			server.close();
+		} catch (IOException e) {
+			LOG.log(Level.FINE, "Server socket close failed", e);
+		}
+		connections.shutdownNow();
+		async.shutdown();
+	}
+
+	/**
+	 * Проверка секрета, затем чтение запросов в текущем потоке, запись ответов - в отдельном. Между ними ограниченная очередь
+	 * результатов в порядке запросов. Если запись оборвалась (клиент сбросил соединение), чтение прекращается,
+	 * а лимиты всех запросов, оставшихся в очереди, возвращаются.
+	 */
+	private void handle(final Socket socket) {
+		final BlockingQueue<Pending> replies = new LinkedBlockingQueue<Pending>(PIPELINE_DEPTH);
+		final Pending endOfStream = new Pending(null, 0);
+		final ByteBudget connection = new ByteBudget(connectionInFlight);
+		final AtomicBoolean writerDead = new AtomicBoolean();
+		Thread writer = null;
+		try {
+			final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), StreamUtils.BUFFER_SIZE));
+			final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), StreamUtils.BUFFER_SIZE));
+			if (!authenticate(socket, in, out)) {
+				return;
+			}
+			writer = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					writeReplies(replies, endOfStream, connection, out, socket, writerDead);
+				}
+			}, Thread.currentThread().getName() + "-writer");
+			writer.setDaemon(true);
+			writer.start();
+			while (!writerDead.get()) {
+				final String command;
+				try {
+					command = in.readUTF();
+				} catch (EOFException e) {
+					break; // клиент закончил
+				}
+				int length = CmsFrames.readLength(in, maxMessageSize);
+				// память под кадр выделяется только в пределах лимитов, до тех пор сокет не читается
+				connection.acquire(length);
+				try {
+					total.acquire(length);
+				} catch (InterruptedException e) {
+					connection.release(length);
+					throw e;
+				}
+				boolean queued = false;
+				try {
+					queued = enqueue(replies, new Pending(submit(command, CmsFrames.readBytes(in, length)), length), writerDead);
+				} finally {
+					if (!queued) {
+						release(connection, length);
+					}
+				}
+			}
+		} catch (Exception e) {
+			if (running) {
+				LOG.log(Level.FINE, "Connection " + socket.getRemoteSocketAddress() + " failed", e);
+			}
+		} finally {
+			if (writer != null) {
+				try {
+					enqueue(replies, endOfStream, writerDead);
+					writer.join();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				// запросы, поставленные в очередь после обрыва записи: ответа не будет
+				Pending pending;
+				while ((pending = replies.poll()) != null) {
+					release(connection, pending.size);
+				}
+			}
+			closeQuietly(socket);
+		}
+	}
+
+	/**
+	 * Постановка в очередь ответов, пока поток записи жив.
+	 * @return false - запись оборвалась, pending в очередь не попал
+	 * @throws InterruptedException
+	 */
+	private static boolean enqueue(BlockingQueue<Pending> replies, Pending pending, AtomicBoolean writerDead) throws InterruptedException {
+		while (!replies.offer(pending, WRITER_CHECK_MILLIS, TimeUnit.MILLISECONDS)) {
+			if (writerDead.get()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Взаимный вызов-ответ по общему секрету (см. CmsFrames). До его прохождения команды не читаются.
+	 * @return false - клиент не знает секрета, соединение нужно закрыть
+	 */
+	private boolean authenticate(Socket socket, DataInputStream in, DataOutputStream out) throws IOException {
+		socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+		byte[] nonce = CmsFrames.newNonce();
+		CmsFrames.writeFrame(out, nonce);
+		out.flush();
+		byte[] clientNonce = CmsFrames.readNonce(in);
+		byte[] response = CmsFrames.readFrame(in, CmsFrames.NONCE_LENGTH * 2);
+		if (!CmsFrames.verify(secret, CmsFrames.ROLE_CLIENT, nonce, clientNonce, response)) {
+			LOG.warning("Connection " + socket.getRemoteSocketAddress() + " rejected: wrong secret");
+			CmsFrames.writeError(out, "Authentication failed");
+			out.flush();
+			return false;
+		}
+		out.writeByte(CmsFrames.STATUS_OK);
+		CmsFrames.writeFrame(out, CmsFrames.respond(secret, CmsFrames.ROLE_SERVER, clientNonce, nonce));
+		out.flush();
+		socket.setSoTimeout(0);
+		return true;
+	}
+
+	private void writeReplies(BlockingQueue<Pending> replies, Pending endOfStream, ByteBudget connection, DataOutputStream out, Socket socket, AtomicBoolean dead) {
+		try {
+			while (true) {
+				Pending pending = replies.poll();
+				if (pending == null) {
+					out.flush(); // очередь пуста - отдать клиенту то, что уже готово
+					pending = replies.take();
+				}
+				if (pending == endOfStream) {
+					break;
+				}
+				try {
+					byte[] result = pending.reply.get();
+					out.writeByte(CmsFrames.STATUS_OK);
+					CmsFrames.writeFrame(out, result);
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					LOG.log(Level.FINE, "Request failed", cause);
+					CmsFrames.writeError(out, String.valueOf(cause));
+				} finally {
+					release(connection, pending.size);
+				}
+			}
+			out.flush();
+		} catch (Exception e) {
+			if (running) {
+				LOG.log(Level.FINE, "Connection " + socket.getRemoteSocketAddress() + " write failed", e);
+			}
+			dead.set(true); // до закрытия: проснувшийся поток чтения должен увидеть флаг
+			closeQuietly(socket); // разбудит поток чтения
+			// освобождает место в лимите соединения, если поток чтения его ждет; остальное вернет поток чтения после join()
+			Pending pending;
+			while ((pending = replies.poll()) != null) {
+				release(connection, pending.size);
+			}
+		}
+	}
+
+	private CmsFuture<byte[]> submit(String command, byte[] data) {
+		try {
+			return async.actions(data, CmsPlan.of(command)); // план кэшируется по тексту команды
+		} catch (IllegalArgumentException e) {
+			CmsFuture<byte[]> failed = new CmsFuture<byte[]>();
+			failed.fail(new IllegalArgumentException("Bad command: " + command, e));
+			return failed;
+		}
+	}
+
+	private void release(ByteBudget connection, int size) {
+		connection.release(size);
+		total.release(size);
+	}
+
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			LOG.log(Level.FINE, "Socket close failed", e);
+		}
+	}
+
+	/**
+	 * Запрос, ожидающий отправки ответа, и его размер в лимитах.
+	 */
+	private static final class Pending {
+
+		private final CmsFuture<byte[]> reply;
+
+		private final int size;
+
+		Pending(CmsFuture<byte[]> reply, int size) {
+			this.reply = reply;
+			this.size = size;
+		}
+	}
+
+	/**
+	 * Лимит байт в работе: acquire ждет, пока освободится место.
+	 */
+	private static final class ByteBudget {
+
+		private final long limit;
+
+		private long used = 0;
+
+		ByteBudget(long limit) {
+			this.limit = limit;
+		}
+
+		synchronized void acquire(int bytes) throws InterruptedException {
+			while (used + bytes > limit) {
+				wait();
+			}
+			used += bytes;
+		}
+
+		synchronized void release(int bytes) {
+			used -= bytes;
+			notifyAll();
+		}
+
+		synchronized long getUsed() {
+			return used;
+		}
+	}
+
+	private static final class ConnectionThreadFactory implements ThreadFactory {
+
+		private final AtomicInteger number = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "cms-daemon-conn-" + number.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+
+	/**
+	 * Запуск: CmsDaemon cryptopro|signalcom keystore password [port] [signers] [recipients] [verificationOptions]
+	 * <br>signers и recipients - алиасы через запятую, verificationOptions - например "STORED_CERT_ONLY, SKIP_SELFSIGNED_CERT".
+	 * <br>Секрет берется из secretFileOf(keystore); если файла нет, он создается с правами 0600.
+	 */
+	public static void main(String... params) throws Exception {
+		if (params.length < 3) {
+			printHelp();
+			return;
+		}
+		CryptoUtils utils;
+		if ("signalcom".equalsIgnoreCase(params[0])) {
+			if (Security.getProvider("SC") == null) {
+				Security.addProvider(new SignalCOMProvider());
+			}
+			utils = new SignalComCryptoUtils(params[1], params[2]);
+		} else if ("cryptopro".equalsIgnoreCase(params[0])) {
+			utils = new CryptoProCryptoUtils(params[1], params[2]);
+		} else {
+			printHelp();
+			return;
+		}
+		int port = params.length > 3 ? Integer.parseInt(params[3]) : DEFAULT_PORT;
+		if (params.length > 4 && params[4].length() > 0) {
+			utils.signer(params[4].split("\\s*,\\s*"));
+		}
+		if (params.length > 5 && params[5].length() > 0) {
+			utils.recipients(params[5].split("\\s*,\\s*"));
+		}
+		if (params.length > 6) {
+			utils.withVerificationOptions(params[6]);
+		}
+		new CmsDaemon(utils, port, CmsFrames.readOrCreateSecret(secretFileOf(params[1]))).serve();
+	}
+
+	private static void printHelp() {
+		System.out.println("CMS daemon");
+		System.out.println("params: cryptopro|signalcom keystore password [port] [signers] [recipients] [verificationOptions]");
+	}
+}
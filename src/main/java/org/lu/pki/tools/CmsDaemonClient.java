@@ -0,0 +1,146 @@
+package org.lu.pki.tools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+
+/**
+ * Клиент CmsDaemon. Не загружает ни провайдер, ни хранилище - только передает данные резидентному процессу
+ * (протокол - CmsFrames, классы провайдеров клиенту не нужны). При подключении доказывает знание общего секрета процесса
+ * и до первого запроса проверяет, что процесс знает его тоже.
+ * Запросы можно отправлять пачкой (send) и затем забирать ответы по порядку (receive).
+ * Экземпляр не потокобезопасен.
+ * @author Igor Konovalov ikonovalov@luxoft.com
+ *
+ */
+public final class CmsDaemonClient implements Closeable {
+
+	private final Socket socket;
+
+	private final DataInputStream in;
+
+	private final DataOutputStream out;
+
+	private int outstanding = 0;
+
+	/**
+	 * @param port
+	 * @param secret - общий секрет процесса
+	 * @throws IOException - в т.ч. если процесс отверг секрет или не доказал его знание
+	 */
+	public CmsDaemonClient(int port, byte[] secret) throws IOException {
+		this.socket = new Socket(InetAddress.getLoopbackAddress(), port);
+		boolean connected = false;
+		try {
+			this.socket.setTcpNoDelay(true);
+			this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), StreamUtils.BUFFER_SIZE));
+			this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), StreamUtils.BUFFER_SIZE));
+			CmsFrames.authenticate(in, out, secret);
+			connected = true;
+		} finally {
+			if (!connected) {
+				socket.close();
+			}
+		}
+	}
+
+	/**
+	 * @param port
+	 * @param secretFile - файл секрета процесса (см. secretFileOf), доступный только владельцу
+	 * @throws IOException
+	 * @throws GeneralSecurityException - файл доступен кому-то кроме владельца
+	 */
+	public CmsDaemonClient(int port, Path secretFile) throws IOException, GeneralSecurityException {
+		this(port, CmsFrames.readSecret(secretFile));
+	}
+
+	/**
+	 * @param keyStoreFile - путь к хранилищу, как он передан процессу
+	 * @return файл секрета процесса
+	 */
+	public static Path secretFileOf(String keyStoreFile) {
+		return CmsFrames.secretFileOf(keyStoreFile);
+	}
+
+	/**
+	 * Отправка запроса без ожидания ответа.
+	 * @param command - цепочка вида "decrypt -> verify -> detach"
+	 * @param data
+	 * @throws IOException
+	 */
+	public void send(String command, byte[] data) throws IOException {
+		out.writeUTF(command);
+		CmsFrames.writeFrame(out, data);
+		outstanding++;
+	}
+
+	/**
+	 * Ответ на самый ранний из отправленных запросов.
+	 * @return результат цепочки
+	 * @throws IOException - в том числе если операция на стороне процесса завершилась ошибкой
+	 */
+	public byte[] receive() throws IOException {
+		if (outstanding == 0) {
+			throw new IllegalStateException("No outstanding requests");
+		}
+		out.flush();
+		byte status = in.readByte();
+		byte[] data = CmsFrames.readFrame(in, Integer.MAX_VALUE);
+		outstanding--;
+		if (status != CmsFrames.STATUS_OK) {
+			throw new IOException("CMS daemon: " + new String(data, CmsFrames.UTF8));
+		}
+		return data;
+	}
+
+	/**
+	 * Синхронный вызов.
+	 * @param command
+	 * @param data
+	 * @return
+	 * @throws IOException
+	 */
+	public byte[] call(String command, byte[] data) throws IOException {
+		if (outstanding != 0) {
+			throw new IllegalStateException(outstanding + " pipelined replies must be received first");
+		}
+		send(command, data);
+		return receive();
+	}
+
+	public int getOutstanding() {
+		return outstanding;
+	}
+
+	@Override
+	public void close() throws IOException {
+		socket.close();
+	}
+
+	/**
+	 * Запуск: CmsDaemonClient port secretFile "command" inputFile outputFile
+	 */
+	public static void main(String... params) throws Exception {
+		if (params.length < 5) {
+			System.out.println("CMS daemon client");
+			System.out.println("params: port secretFile \"decrypt -> verify -> detach\" inputFile outputFile");
+			return;
+		}
+		CmsDaemonClient client = new CmsDaemonClient(Integer.parseInt(params[0]), Paths.get(params[1]));
+		try {
+			byte[] result = client.call(params[2], Files.readAllBytes(Paths.get(params[3])));
+			MappedFiles.writeAtomically(Paths.get(params[4]), result);
+		} finally {
+			client.close();
+		}
+	}
+}
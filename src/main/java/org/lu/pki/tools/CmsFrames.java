@@ -0,0 +1,237 @@
+package org.lu.pki.tools;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Протокол CmsDaemon - общий для процесса и клиента. Без провайдеров и хранилищ: клиенту хватает JDK.
+ * <p>
+ * Соединение начинается со взаимной проверки общего секрета (он по сети не передается):
+ * <pre>
+ * процесс: int длина, случайный вызов процесса (NONCE_LENGTH байт)
+ * клиент:  int длина, случайный вызов клиента (NONCE_LENGTH байт); int длина, HMAC-SHA256(секрет, 'C' | вызов процесса | вызов клиента)
+ * процесс: STATUS_OK, int длина, HMAC-SHA256(секрет, 'S' | вызов клиента | вызов процесса)
+ *          или STATUS_ERROR, int длина, сообщение (UTF-8) - и соединение закрывается
+ * </pre>
+ * Клиент не отправляет запросов, пока не проверит ответ процесса: чужой процесс, занявший порт первым,
+ * не получит данных и не сможет подделать результат. Метки 'C' и 'S' не дают вернуть одной стороне ее же ответ.
+ * Секрет лежит в файле рядом с хранилищем (secretFileOf), доступном только владельцу.
+ * @author Igor Konovalov ikonovalov@luxoft.com
+ *
+ */
+final class CmsFrames {
+
+	private static final Logger LOG = Logger.getLogger(CmsFrames.class.getName());
+
+	static final int DEFAULT_PORT = 7707;
+
+	static final byte STATUS_OK = 0;
+
+	static final byte STATUS_ERROR = 1;
+
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	static final String SECRET_SUFFIX = ".daemon-secret";
+
+	static final int SECRET_LENGTH = 32;
+
+	static final int NONCE_LENGTH = 32;
+
+	static final byte ROLE_CLIENT = 'C';
+
+	static final byte ROLE_SERVER = 'S';
+
+	private static final String MAC_ALGORITHM = "HmacSHA256";
+
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	private CmsFrames() {
+	}
+
+	/**
+	 * @param in
+	 * @param maxLength - кадр длиннее отвергается до выделения памяти
+	 * @return данные кадра
+	 * @throws IOException
+	 */
+	static byte[] readFrame(DataInputStream in, int maxLength) throws IOException {
+		return readBytes(in, readLength(in, maxLength));
+	}
+
+	/**
+	 * Длина следующего кадра. Отдельно от данных - чтобы до выделения памяти под кадр ее можно было учесть.
+	 * @param in
+	 * @param maxLength
+	 * @return
+	 * @throws IOException
+	 */
+	static int readLength(DataInputStream in, int maxLength) throws IOException {
+		int length = in.readInt();
+		if (length < 0 || length > maxLength) {
+			throw new IOException("Bad frame length " + length + " (limit " + maxLength + ")");
+		}
+		return length;
+	}
+
+	static byte[] readBytes(DataInputStream in, int length) throws IOException {
+		byte[] data = new byte[length];
+		in.readFully(data);
+		return data;
+	}
+
+	static void writeFrame(DataOutputStream out, byte[] data) throws IOException {
+		out.writeInt(data.length);
+		out.write(data);
+	}
+
+	static void writeError(DataOutputStream out, String message) throws IOException {
+		out.writeByte(STATUS_ERROR);
+		writeFrame(out, String.valueOf(message).getBytes(UTF8));
+	}
+
+	static byte[] newNonce() {
+		byte[] nonce = new byte[NONCE_LENGTH];
+		RANDOM.nextBytes(nonce);
+		return nonce;
+	}
+
+	/**
+	 * Вызов другой стороны: ровно NONCE_LENGTH байт, чтобы границы полей под HMAC были однозначны.
+	 */
+	static byte[] readNonce(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length != NONCE_LENGTH) {
+			throw new IOException("Bad nonce length " + length);
+		}
+		return readBytes(in, length);
+	}
+
+	/**
+	 * @param secret
+	 * @param role - ROLE_CLIENT или ROLE_SERVER: кто отвечает
+	 * @param peerNonce - вызов другой стороны
+	 * @param ownNonce - свой вызов
+	 * @return ответ
+	 */
+	static byte[] respond(byte[] secret, byte role, byte[] peerNonce, byte[] ownNonce) {
+		try {
+			Mac mac = Mac.getInstance(MAC_ALGORITHM);
+			mac.init(new SecretKeySpec(secret, MAC_ALGORITHM));
+			mac.update(role);
+			mac.update(peerNonce);
+			return mac.doFinal(ownNonce);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		} catch (InvalidKeyException e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+	/**
+	 * Сравнение ответа с ожидаемым за постоянное время.
+	 */
+	static boolean verify(byte[] secret, byte role, byte[] peerNonce, byte[] ownNonce, byte[] response) {
+		return MessageDigest.isEqual(respond(secret, role, peerNonce, ownNonce), response);
+	}
+
+	/**
+	 * Сторона клиента: ответ на вызов процесса и проверка его ответа на вызов клиента.
+	 * @param in
+	 * @param out
+	 * @param secret
+	 * @throws IOException - в т.ч. если процесс отверг секрет или сам его не знает
+	 */
+	static void authenticate(DataInputStream in, DataOutputStream out, byte[] secret) throws IOException {
+		byte[] serverNonce = readNonce(in);
+		byte[] clientNonce = newNonce();
+		writeFrame(out, clientNonce);
+		writeFrame(out, respond(secret, ROLE_CLIENT, serverNonce, clientNonce));
+		out.flush();
+		byte status = in.readByte();
+		byte[] message = readFrame(in, 1024);
+		if (status != STATUS_OK) {
+			throw new IOException("CMS daemon: " + new String(message, UTF8));
+		}
+		if (!verify(secret, ROLE_SERVER, clientNonce, serverNonce, message)) {
+			throw new IOException("CMS daemon: server does not know the secret");
+		}
+	}
+
+	/**
+	 * @param keyStoreFile
+	 * @return файл секрета для хранилища
+	 */
+	static Path secretFileOf(String keyStoreFile) {
+		return Paths.get(keyStoreFile + SECRET_SUFFIX);
+	}
+
+	/**
+	 * Чтение секрета. На POSIX файл, доступный кому-то кроме владельца, отвергается.
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 * @throws GeneralSecurityException - файл доступен группе или остальным, или секрет слишком короткий
+	 */
+	static byte[] readSecret(Path file) throws IOException, GeneralSecurityException {
+		PosixFileAttributeView posix = Files.getFileAttributeView(file, PosixFileAttributeView.class);
+		if (posix != null) {
+			Set<PosixFilePermission> permissions = posix.readAttributes().permissions();
+			permissions.remove(PosixFilePermission.OWNER_READ);
+			permissions.remove(PosixFilePermission.OWNER_WRITE);
+			if (!permissions.isEmpty()) {
+				throw new GeneralSecurityException("Secret file " + file + " must be accessible by owner only (0600), found " + permissions);
+			}
+		}
+		byte[] secret = Files.readAllBytes(file);
+		if (secret.length < SECRET_LENGTH / 2) {
+			throw new GeneralSecurityException("Secret in " + file + " is too short: " + secret.length + " bytes");
+		}
+		return secret;
+	}
+
+	/**
+	 * Секрет из файла; если файла нет - новый случайный секрет записывается в файл с правами 0600 (где их можно задать).
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 * @throws GeneralSecurityException
+	 */
+	static byte[] readOrCreateSecret(Path file) throws IOException, GeneralSecurityException {
+		if (!Files.exists(file)) {
+			byte[] secret = new byte[SECRET_LENGTH];
+			RANDOM.nextBytes(secret);
+			try {
+				if (Files.getFileStore(file.toAbsolutePath().getParent()).supportsFileAttributeView(PosixFileAttributeView.class)) {
+					Files.createFile(file, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+				} else {
+					Files.createFile(file);
+				}
+				Files.write(file, secret);
+				LOG.info("New daemon secret written to " + file);
+				return secret;
+			} catch (FileAlreadyExistsException e) {
+				// создан параллельно - читаем его
+			}
+		}
+		return readSecret(file);
+	}
+}
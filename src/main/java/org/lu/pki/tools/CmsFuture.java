@@ -0,0 +1,138 @@
+package org.lu.pki.tools;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Результат асинхронной операции CmsAsync. Кроме блокирующего get() поддерживает обратные вызовы,
+ * которые выполняются в потоке, завершившем операцию (или сразу, если она уже завершена).
+ * @author Igor Konovalov ikonovalov@luxoft.com
+ *
+ * @param <T>
+ */
+public final class CmsFuture<T> implements Future<T> {
+
+	/**
+	 * Обратный вызов по завершении. Не должен блокироваться надолго - выполняется в рабочем потоке пула.
+	 */
+	public interface Callback<T> {
+
+		void completed(T result);
+
+		void failed(Throwable error);
+	}
+
+	private final CountDownLatch done = new CountDownLatch(1);
+
+	private final List<Callback<? super T>> callbacks = new ArrayList<Callback<? super T>>(1);
+
+	private T result;
+
+	private Throwable error;
+
+	private boolean completed = false;
+
+	private boolean cancelled = false;
+
+	CmsFuture() {
+	}
+
+	/**
+	 * @param callback
+	 * @return this
+	 */
+	public CmsFuture<T> addCallback(Callback<? super T> callback) {
+		synchronized (this) {
+			if (!completed) {
+				callbacks.add(callback);
+				return this;
+			}
+		}
+		notify(callback);
+		return this;
+	}
+
+	boolean complete(T value) {
+		return finish(value, null, false);
+	}
+
+	boolean fail(Throwable cause) {
+		return finish(null, cause, false);
+	}
+
+	private boolean finish(T value, Throwable cause, boolean cancel) {
+		List<Callback<? super T>> toNotify;
+		synchronized (this) {
+			if (completed) {
+				return false;
+			}
+			result = value;
+			error = cause;
+			cancelled = cancel;
+			completed = true;
+			toNotify = new ArrayList<Callback<? super T>>(callbacks);
+			callbacks.clear();
+		}
+		done.countDown();
+		for (Callback<? super T> callback : toNotify) {
+			notify(callback);
+		}
+		return true;
+	}
+
+	private void notify(Callback<? super T> callback) {
+		if (error == null) {
+			callback.completed(result);
+		} else {
+			callback.failed(error);
+		}
+	}
+
+	/**
+	 * Отмена не прерывает уже выполняющуюся криптографию - результат просто отбрасывается.
+	 */
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return finish(null, new CancellationException(), true);
+	}
+
+	@Override
+	public synchronized boolean isCancelled() {
+		return cancelled;
+	}
+
+	@Override
+	public synchronized boolean isDone() {
+		return completed;
+	}
+
+	@Override
+	public T get() throws InterruptedException, ExecutionException {
+		done.await();
+		return report();
+	}
+
+	@Override
+	public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		if (!done.await(timeout, unit)) {
+			throw new TimeoutException();
+		}
+		return report();
+	}
+
+	private synchronized T report() throws ExecutionException {
+		if (cancelled) {
+			throw (CancellationException) error;
+		}
+		if (error != null) {
+			throw new ExecutionException(error);
+		}
+		return result;
+	}
+}
@@ -0,0 +1,122 @@
+package org.lu.pki.tools;
+
+import java.nio.ByteBuffer;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Разобранное входящее сообщение, которое передается между стадиями цепочки (см. CmsPlan):
+ * BASE64 снимается один раз, ContentInfo декодируется один раз, eContent и вложенные сертификаты находятся один раз.
+ * Относится к одному сообщению и не потокобезопасен: в каждый момент им пользуется один поток
+ * (CmsAsync передает его между пулами вместе с сообщением).
+ * @author Igor Konovalov ikonovalov@luxoft.com
+ *
+ */
+public final class CmsMessageContext {
+
+	private static final Logger LOG = Logger.getLogger(CmsMessageContext.class.getName());
+
+	private final byte[] der;
+
+	private final boolean base64;
+
+	private ByteBuffer view;
+
+	private Object decoded;
+
+	private BerReader.Header signedContent;
+
+	private boolean signedContentLocated = false;
+
+	private List<X509Certificate> certificates;
+
+	private CmsMessageContext(byte[] der, boolean base64) {
+		this.der = der;
+		this.base64 = base64;
+	}
+
+	/**
+	 * Контекст сообщения неизвестной кодировки: BASE64 определяется и снимается за один проход.
+	 * @param message
+	 * @return
+	 */
+	public static CmsMessageContext detect(byte[] message) {
+		byte[] decoded = Base64Codec.decodeIfBase64(message);
+		if (decoded != null) {
+			LOG.fine("Performing convertation from BASE64 to bytes");
+			return new CmsMessageContext(decoded, true);
+		}
+		return new CmsMessageContext(message, false);
+	}
+
+	/**
+	 * Контекст сообщения, о котором известно, что оно в DER (результат sign, encrypt).
+	 * @param der
+	 * @return
+	 */
+	public static CmsMessageContext der(byte[] der) {
+		return new CmsMessageContext(der, false);
+	}
+
+	/**
+	 * @return сообщение в DER/BER
+	 */
+	public byte[] getDer() {
+		return der;
+	}
+
+	/**
+	 * @return сообщение пришло в BASE64
+	 */
+	public boolean isBase64() {
+		return base64;
+	}
+
+	/**
+	 * @return сообщение как ByteBuffer только для чтения (без копирования)
+	 */
+	public ByteBuffer getView() {
+		if (view == null) {
+			view = ByteBuffer.wrap(der).asReadOnlyBuffer();
+		}
+		return view.duplicate();
+	}
+
+	/**
+	 * Декодированное провайдером сообщение (например, ContentInfo ASN.1-рантайма КриптоПро).
+	 * @param type
+	 * @return null, если еще не декодировано или декодировано в другой тип
+	 */
+	public <T> T getDecoded(Class<T> type) {
+		return type.isInstance(decoded) ? type.cast(decoded) : null;
+	}
+
+	public void setDecoded(Object decoded) {
+		this.decoded = decoded;
+	}
+
+	/**
+	 * Заголовок eContent SignedData (ищется один раз, см. BerReader.findSignedContent).
+	 * @return null, если это не SignedData или eContent отсутствует
+	 */
+	public BerReader.Header getSignedContent() {
+		if (!signedContentLocated) {
+			signedContent = BerReader.findSignedContent(getView());
+			signedContentLocated = true;
+		}
+		return signedContent;
+	}
+
+	/**
+	 * @return сертификаты, вложенные в SignedData, или null, если провайдер их еще не разбирал
+	 */
+	public List<X509Certificate> getCertificates() {
+		return certificates;
+	}
+
+	public void setCertificates(List<X509Certificate> certificates) {
+		this.certificates = Collections.unmodifiableList(certificates);
+	}
+}
@@ -0,0 +1,286 @@
+package org.lu.pki.tools;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Скомпилированная цепочка операций ("decrypt -> verify -> detach"). Разбирается и проверяется один раз,
+ * затем выполняется для любого числа сообщений и из любых потоков (план неизменяем).
+ * <p>
+ * При компиляции соседние стадии сливаются: verify -> detach выполняется по одному разбору сообщения.
+ * При выполнении между стадиями передается CmsMessageContext: BASE64 снимается не более одного раза на сообщение,
+ * а после стадий, которые сами порождают DER (sign, encrypt), определение BASE64 не выполняется вовсе.
+ * @author Igor Konovalov ikonovalov@luxoft.com
+ *
+ */
+public final class CmsPlan {
+
+	/**
+	 * Сколько разных строк команд кэшируется в of(String). Остальные компилируются при каждом вызове.
+	 */
+	public static final int MAX_CACHED_PLANS = 256;
+
+	private static final ConcurrentMap<String, CmsPlan> CACHE = new ConcurrentHashMap<String, CmsPlan>();
+
+	private enum Stage {
+		DECRYPT("decrypt", true),
+		DETACH("detach", true),
+		VERIFY("verify", true),
+		VERIFY_DETACH("verify+detach", true),
+		SIGN("sign", false),
+		ENCRYPT("encrypt", false),
+		BASE64ENCODE("base64encode", false),
+		BASE64PEM("base64pem", false),
+		BASE64MIME("base64mime", false);
+
+		private final String name;
+
+		/**
+		 * Стадия разбирает входящее CMS-сообщение (нужен DER)
+		 */
+		private final boolean inbound;
+
+		private Stage(String name, boolean inbound) {
+			this.name = name;
+			this.inbound = inbound;
+		}
+	}
+
+	private final int[] actions;
+
+	private final Stage[] stages;
+
+	private CmsPlan(int[] actions, Stage[] stages) {
+		this.actions = actions;
+		this.stages = stages;
+	}
+
+	/**
+	 * План по строке команды. Планы кэшируются по тексту команды.
+	 * @param command - например "decrypt -> verify -> detach"
+	 * @return
+	 * @throws IllegalArgumentException - неизвестная операция или недопустимая цепочка
+	 */
+	public static CmsPlan of(String command) {
+		CmsPlan plan = CACHE.get(command);
+		if (plan == null) {
+			plan = compile(CryptoUtils.parseActions(command));
+			if (CACHE.size() < MAX_CACHED_PLANS) {
+				CACHE.putIfAbsent(command, plan);
+			}
+		}
+		return plan;
+	}
+
+	/**
+	 * @param actions - ACTION_*
+	 * @return
+	 * @throws IllegalArgumentException - неизвестная операция или недопустимая цепочка
+	 */
+	public static CmsPlan compile(int... actions) {
+		if (actions == null || actions.length == 0) {
+			throw new IllegalArgumentException("Empty action chain");
+		}
+		List<Stage> stages = new ArrayList<Stage>(actions.length);
+		int previous = 0;
+		for (int act : actions) {
+			Stage stage = toStage(act);
+			if (previous == CryptoUtils.ACTION_SIGN && act == CryptoUtils.ACTION_DECRYPT) {
+				throw new IllegalArgumentException("decrypt can't follow sign: SignedData is not EnvelopedData");
+			}
+			if (previous == CryptoUtils.ACTION_ENCRYPT && (act == CryptoUtils.ACTION_VERIFY || act == CryptoUtils.ACTION_DETACH)) {
+				throw new IllegalArgumentException(stage.name + " can't follow encrypt: EnvelopedData is not SignedData");
+			}
+			Stage last = stages.isEmpty() ? null : stages.get(stages.size() - 1);
+			if (stage == Stage.VERIFY && last == Stage.VERIFY) {
+				continue; // повторная проверка того же сообщения ничего не дает
+			}
+			if (stage == Stage.DETACH && last == Stage.VERIFY) {
+				stages.set(stages.size() - 1, Stage.VERIFY_DETACH);
+			} else {
+				stages.add(stage);
+			}
+			previous = act;
+		}
+		return new CmsPlan(actions.clone(), stages.toArray(new Stage[stages.size()]));
+	}
+
+	private static Stage toStage(int act) {
+		switch (act) {
+			case CryptoUtils.ACTION_DECRYPT:
+				return Stage.DECRYPT;
+			case CryptoUtils.ACTION_DETACH:
+				return Stage.DETACH;
+			case CryptoUtils.ACTION_VERIFY:
+				return Stage.VERIFY;
+			case CryptoUtils.ACTION_SIGN:
+				return Stage.SIGN;
+			case CryptoUtils.ACTION_ENCRYPT:
+				return Stage.ENCRYPT;
+			case CryptoUtils.ACTION_BASE64ENCODE:
+				return Stage.BASE64ENCODE;
+			case CryptoUtils.ACTION_BASE64PEM:
+				return Stage.BASE64PEM;
+			case CryptoUtils.ACTION_BASE64MIME:
+				return Stage.BASE64MIME;
+			default:
+				throw new IllegalArgumentException("Unknown action " + act);
+		}
+	}
+
+	/**
+	 * @return исходная цепочка ACTION_* (до слияния стадий)
+	 */
+	public int[] getActions() {
+		return actions.clone();
+	}
+
+	/**
+	 * @return число стадий после слияния
+	 */
+	public int size() {
+		return stages.length;
+	}
+
+	/**
+	 * Выполнение плана над сообщением.
+	 * @param utils
+	 * @param profile
+	 * @param data
+	 * @return результат последней стадии
+	 * @throws Exception
+	 */
+	byte[] execute(CryptoUtils utils, CmsProfile profile, byte[] data) throws Exception {
+		Cursor cursor = new Cursor(data);
+		advance(utils, profile, cursor, false);
+		return cursor.getBuffer();
+	}
+
+	/**
+	 * Положение сообщения в плане - для выполнения по частям (CmsAsync): между частями курсор переходит в другой поток
+	 * вместе с контекстом сообщения, поэтому после проверки сертификатов сообщение заново не разбирается.
+	 */
+	static final class Cursor {
+
+		private byte[] buffer;
+
+		/**
+		 * Разобранный buffer, если он уже известен
+		 */
+		private CmsMessageContext message;
+
+		/**
+		 * Следующая стадия
+		 */
+		private int next = 0;
+
+		/**
+		 * Подписи стадии next (verify+detach) уже проверены, осталось снять подпись
+		 */
+		private boolean verified = false;
+
+		Cursor(byte[] data) {
+			this.buffer = data;
+		}
+
+		byte[] getBuffer() {
+			return buffer;
+		}
+	}
+
+	/**
+	 * Выполнение стадий плана, начиная с текущей стадии курсора.
+	 * @param utils
+	 * @param profile
+	 * @param cursor
+	 * @param deferred - проверка сертификатов подписчиков откладывается: выполнение останавливается после проверки подписей,
+	 * продолжается следующим вызовом после validateCertificates
+	 * @return результат проверки подписей, если выполнение остановлено до проверки сертификатов, иначе null (план выполнен)
+	 * @throws Exception
+	 */
+	VerificationOutcome advance(CryptoUtils utils, CmsProfile profile, Cursor cursor, boolean deferred) throws Exception {
+		while (cursor.next < stages.length) {
+			Stage stage = stages[cursor.next];
+			if (stage.inbound && cursor.message == null) {
+				cursor.message = CmsMessageContext.detect(cursor.buffer);
+			}
+			switch (stage) {
+				case DECRYPT: {
+					cursor.buffer = utils.decrypt(cursor.message);
+					cursor.message = null;
+					break;
+				}
+				case DETACH: {
+					cursor.buffer = utils.detach(cursor.message);
+					cursor.message = null;
+					break;
+				}
+				case VERIFY:
+				case VERIFY_DETACH: {
+					if (!cursor.verified) {
+						VerificationOutcome outcome = new VerificationOutcome(deferred);
+						utils.verify(profile, cursor.message, outcome); // buffer и контекст не меняются
+						if (deferred) {
+							outcome.signaturesVerified();
+							if (outcome.isCertificateValidationPending()) {
+								if (stage == Stage.VERIFY) {
+									cursor.next++;
+								} else {
+									cursor.verified = true; // detach - после проверки сертификатов
+								}
+								return outcome;
+							}
+						}
+					}
+					cursor.verified = false;
+					if (stage == Stage.VERIFY_DETACH) {
+						cursor.buffer = utils.detach(cursor.message); // по тому же разбору
+						cursor.message = null;
+					}
+					break;
+				}
+				case SIGN: {
+					cursor.buffer = utils.signAttached(profile, cursor.buffer);
+					cursor.message = CmsMessageContext.der(cursor.buffer);
+					break;
+				}
+				case ENCRYPT: {
+					cursor.buffer = utils.encrypt(profile, cursor.buffer);
+					cursor.message = CmsMessageContext.der(cursor.buffer);
+					break;
+				}
+				case BASE64ENCODE: {
+					cursor.buffer = Base64Codec.encode(cursor.buffer);
+					cursor.message = null;
+					break;
+				}
+				case BASE64PEM: {
+					cursor.buffer = Base64Codec.encode(cursor.buffer, Base64Codec.PEM_LINE_LENGTH, Base64Codec.CRLF);
+					cursor.message = null;
+					break;
+				}
+				case BASE64MIME: {
+					cursor.buffer = Base64Codec.encode(cursor.buffer, Base64Codec.MIME_LINE_LENGTH, Base64Codec.CRLF);
+					cursor.message = null;
+					break;
+				}
+			}
+			cursor.next++;
+		}
+		return null;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("CmsPlan [");
+		for (int z = 0; z < stages.length; z++) {
+			if (z > 0) {
+				sb.append(' ').append(CryptoUtils.Action.SPLITTER).append(' ');
+			}
+			sb.append(stages[z].name);
+		}
+		return sb.append(']').toString();
+	}
+}
@@ -0,0 +1,279 @@
+package org.lu.pki.tools;
+
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Неизменяемый профиль операций CMS: ключи и сертификаты подписчиков, сертификаты получателей и опции проверки.
+ * Собирается один раз (CryptoUtils.profile()) и может одновременно использоваться из разных потоков
+ * с одним экземпляром CryptoUtils и одним загруженным хранилищем.
+ * <p>
+ * Профиль помнит снимок хранилища, по которому разрешены его алиасы. Если хранилище с тех пор перезагружено
+ * (обновлен сертификат, заменен ключ), операция берет профиль, заново разрешенный по текущему снимку (CryptoUtils.currentProfile).
+ * @author Igor Konovalov ikonovalov@luxoft.com
+ *
+ */
+public final class CmsProfile {
+
+	public static final CmsProfile EMPTY = new CmsProfile(Collections.<SignerEntry>emptyList(), Collections.<RecipientEntry>emptyList(), CryptoUtils.OPT_ALL_FLAGS_DOWN, null, null);
+
+	private final List<SignerEntry> signers;
+
+	private final List<RecipientEntry> recipients;
+
+	private final int verificationOptions;
+
+	private final AgreementKeyCache agreementKeyCache;
+
+	private final KeyStoreIndex snapshot;
+
+	/**
+	 * Последнее повторное разрешение алиасов этого профиля (для профилей, переживших перезагрузку хранилища).
+	 */
+	private volatile CmsProfile resolved;
+
+	private CmsProfile(List<SignerEntry> signers, List<RecipientEntry> recipients, int verificationOptions, AgreementKeyCache agreementKeyCache, KeyStoreIndex snapshot) {
+		this.signers = signers;
+		this.recipients = recipients;
+		this.verificationOptions = verificationOptions;
+		this.agreementKeyCache = agreementKeyCache;
+		this.snapshot = signers.isEmpty() && recipients.isEmpty() ? null : snapshot;
+	}
+
+	public List<SignerEntry> getSigners() {
+		return signers;
+	}
+
+	public List<RecipientEntry> getRecipients() {
+		return recipients;
+	}
+
+	public int getVerificationOptions() {
+		return verificationOptions;
+	}
+
+	/**
+	 * @return кэш ключей согласования для шифрования или null, если не используется
+	 */
+	public AgreementKeyCache getAgreementKeyCache() {
+		return agreementKeyCache;
+	}
+
+	/**
+	 * @return снимок хранилища, по которому разрешены алиасы, или null, если профиль не зависит от хранилища
+	 */
+	KeyStoreIndex getSnapshot() {
+		return snapshot;
+	}
+
+	CmsProfile getResolved() {
+		return resolved;
+	}
+
+	/**
+	 * Те же алиасы и опции, разрешенные по другому снимку. Результат запоминается в этом профиле.
+	 */
+	CmsProfile resolvedAgainst(KeyStoreIndex snapshot, List<SignerEntry> signers, List<RecipientEntry> recipients) {
+		CmsProfile fresh = new CmsProfile(immutableCopy(signers), immutableCopy(recipients), verificationOptions, agreementKeyCache, snapshot);
+		resolved = fresh;
+		return fresh;
+	}
+
+	public boolean isFlagSet(int flagbitN) {
+		return (verificationOptions & flagbitN) == flagbitN;
+	}
+
+	public boolean isFlagNotSet(int flagbitN) {
+		return !isFlagSet(flagbitN);
+	}
+
+	/**
+	 * Подписчики, заданные готовыми записями, не привязываются к снимку хранилища и заново не разрешаются.
+	 */
+	public CmsProfile withSigners(List<SignerEntry> signers) {
+		return new CmsProfile(immutableCopy(signers), recipients, verificationOptions, agreementKeyCache, null);
+	}
+
+	public CmsProfile withRecipients(List<RecipientEntry> recipients) {
+		return new CmsProfile(signers, immutableCopy(recipients), verificationOptions, agreementKeyCache, null);
+	}
+
+	/**
+	 * @param signers - разрешены по снимку resolvedIn
+	 */
+	CmsProfile withSigners(List<SignerEntry> signers, KeyStoreIndex resolvedIn) {
+		return new CmsProfile(immutableCopy(signers), recipients, verificationOptions, agreementKeyCache, oldest(recipients.isEmpty(), resolvedIn));
+	}
+
+	CmsProfile withRecipients(List<RecipientEntry> recipients, KeyStoreIndex resolvedIn) {
+		return new CmsProfile(signers, immutableCopy(recipients), verificationOptions, agreementKeyCache, oldest(signers.isEmpty(), resolvedIn));
+	}
+
+	/**
+	 * Снимок для профиля, часть которого разрешена по resolvedIn: если остальное разрешено по другому снимку,
+	 * остается прежний - при следующей операции профиль будет разрешен заново целиком. Профиль с готовыми записями
+	 * (snapshot == null) так и остается не привязанным к хранилищу.
+	 */
+	private KeyStoreIndex oldest(boolean restEmpty, KeyStoreIndex resolvedIn) {
+		return restEmpty ? resolvedIn : snapshot;
+	}
+
+	public CmsProfile withVerificationOptions(int verificationOptions) {
+		return new CmsProfile(signers, recipients, verificationOptions, agreementKeyCache, snapshot);
+	}
+
+	/**
+	 * Кэш должен быть привязан к кэшу закрытых ключей (PrivateKeyCache.link()), поэтому снаружи - через Builder или CryptoUtils.useAgreementKeyCache().
+	 */
+	CmsProfile withAgreementKeyCache(AgreementKeyCache agreementKeyCache) {
+		return new CmsProfile(signers, recipients, verificationOptions, agreementKeyCache, snapshot);
+	}
+
+	private static <T> List<T> immutableCopy(List<T> list) {
+		return list == null || list.isEmpty() ? Collections.<T>emptyList() : Collections.unmodifiableList(new ArrayList<T>(list));
+	}
+
+	@Override
+	public String toString() {
+		return "CmsProfile [signers=" + signers + ", recipients=" + recipients + ", verificationOptions=" + verificationOptions + (agreementKeyCache != null ? ", " + agreementKeyCache : "") + "]";
+	}
+
+	/**
+	 * Подписчик: закрытый ключ и его сертификат.
+	 */
+	public static final class SignerEntry {
+
+		private final String alias;
+
+		private final PrivateKey key;
+
+		private final X509Certificate cert;
+
+		public SignerEntry(String alias, PrivateKey key, X509Certificate cert) {
+			this.alias = alias;
+			this.key = key;
+			this.cert = cert;
+		}
+
+		public String getAlias() {
+			return alias;
+		}
+
+		public PrivateKey getKey() {
+			return key;
+		}
+
+		public X509Certificate getCert() {
+			return cert;
+		}
+
+		@Override
+		public String toString() {
+			return alias;
+		}
+	}
+
+	/**
+	 * Получатель: сертификат (keyEncipherment or keyAgreement bit required).
+	 */
+	public static final class RecipientEntry {
+
+		private final String alias;
+
+		private final X509Certificate cert;
+
+		public RecipientEntry(String alias, X509Certificate cert) {
+			this.alias = alias;
+			this.cert = cert;
+		}
+
+		public String getAlias() {
+			return alias;
+		}
+
+		public X509Certificate getCert() {
+			return cert;
+		}
+
+		@Override
+		public String toString() {
+			return alias;
+		}
+	}
+
+	/**
+	 * Сборка профиля по алиасам хранилища конкретного экземпляра CryptoUtils. Ключи и сертификаты разрешаются сразу
+	 * по текущему снимку хранилища; после его перезагрузки профиль разрешается заново.
+	 */
+	public static final class Builder {
+
+		private final CryptoUtils utils;
+
+		private final List<SignerEntry> signers = new ArrayList<SignerEntry>();
+
+		private final List<RecipientEntry> recipients = new ArrayList<RecipientEntry>();
+
+		private int verificationOptions = CryptoUtils.OPT_ALL_FLAGS_DOWN;
+
+		private AgreementKeyCache agreementKeyCache;
+
+		private final KeyStoreIndex snapshot;
+
+		Builder(CryptoUtils utils) {
+			this.utils = utils;
+			this.snapshot = utils.getKeyStoreIndex(); // до разрешения алиасов: перезагрузка посреди сборки приведет к повторному разрешению
+		}
+
+		public Builder signer(String... signerAliases) throws Exception {
+			signers.addAll(utils.resolveSigners(signerAliases));
+			return this;
+		}
+
+		public Builder recipients(String... recipientsAliases) throws Exception {
+			recipients.addAll(utils.resolveRecipients(recipientsAliases));
+			return this;
+		}
+
+		public Builder verificationOptions(int... flags) {
+			verificationOptions = CryptoUtils.combineVerificationOptions(flags);
+			return this;
+		}
+
+		/**
+		 * @param combination - например "STORED_CERT_ONLY, SKIP_SELFSIGNED_CERT"
+		 * @return
+		 */
+		public Builder verificationOptions(String combination) {
+			verificationOptions = CryptoUtils.parseVerificationOptions(combination);
+			return this;
+		}
+
+		/**
+		 * Кэширование ключей согласования при шифровании (размер и время жизни по умолчанию).
+		 * @return
+		 */
+		public Builder agreementKeyCache() {
+			return agreementKeyCache(new AgreementKeyCache());
+		}
+
+		/**
+		 * Кэширование ключей согласования при шифровании. Один кэш можно разделить между несколькими профилями.
+		 * @param cache - null отключает кэширование
+		 * @return
+		 */
+		public Builder agreementKeyCache(AgreementKeyCache cache) {
+			if (cache != null) {
+				utils.getPrivateKeyCache().link(cache);
+			}
+			agreementKeyCache = cache;
+			return this;
+		}
+
+		public CmsProfile build() {
+			return new CmsProfile(immutableCopy(signers), immutableCopy(recipients), verificationOptions, agreementKeyCache, snapshot);
+		}
+	}
+}
@@ -0,0 +1,486 @@
+package org.lu.pki.tools;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * Компактный индекс сертификатов вне кучи для больших списков доверия (сотни тысяч сертификатов УЦ и контрагентов).
+ * DER всех сертификатов и записи индекса лежат в direct-буферах, поиск - по таблицам с открытой адресацией из int
+ * по 64-битным хэшам отпечатка (SHA-256), (издатель, серийный номер), SubjectKeyIdentifier и субъекта.
+ * В куче живут только последние использованные разобранные сертификаты (LRU размером cacheSize).
+ * Найденный по хэшу сертификат сверяется с запросом после разбора, поэтому коллизии хэшей не дают ложных совпадений.
+ * Неизменяем и потокобезопасен; строится через Builder.
+ * @author Igor Konovalov ikonovalov@luxoft.com
+ *
+ */
+public final class CompactCertificateIndex {
+
+	private static final Logger LOG = Logger.getLogger(CompactCertificateIndex.class.getName());
+
+	public static final int DEFAULT_CACHE_SIZE = 256;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// запись: хэши отпечатка, (издатель, серийный номер), SKI и субъекта, notBefore, notAfter, смещение и длина DER
+	private static final int R_FINGERPRINT = 0;
+	private static final int R_ISSUER_SERIAL = 8;
+	private static final int R_SKI = 16;
+	private static final int R_SUBJECT = 24;
+	private static final int R_NOT_BEFORE = 32;
+	private static final int R_NOT_AFTER = 40;
+	private static final int R_OFFSET = 48;
+	private static final int R_LENGTH = 52;
+	private static final int RECORD_SIZE = 56;
+
+	/**
+	 * Хэш отсутствующего SKI (такие записи в таблицу SKI не попадают).
+	 */
+	private static final long NO_KEY = 0;
+
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private final int count;
+
+	private final ByteBuffer records;
+
+	private final ByteBuffer certificates;
+
+	private final IntBuffer byFingerprint;
+
+	private final IntBuffer byIssuerSerial;
+
+	private final IntBuffer bySki;
+
+	private final IntBuffer bySubject;
+
+	private final int mask;
+
+	private final int duplicates;
+
+	private final int cacheSize;
+
+	private final LinkedHashMap<Integer, X509Certificate> decoded;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	private CompactCertificateIndex(int count, ByteBuffer records, ByteBuffer certificates, final int cacheSize) {
+		this.count = count;
+		this.records = records;
+		this.certificates = certificates;
+		this.cacheSize = cacheSize;
+		int capacity = Integer.highestOneBit(Math.max(count, 1) * 2 - 1) << 1;
+		this.mask = capacity - 1;
+		this.byFingerprint = ByteBuffer.allocateDirect(capacity * 4).asIntBuffer();
+		this.byIssuerSerial = ByteBuffer.allocateDirect(capacity * 4).asIntBuffer();
+		this.bySki = ByteBuffer.allocateDirect(capacity * 4).asIntBuffer();
+		this.bySubject = ByteBuffer.allocateDirect(capacity * 4).asIntBuffer();
+		int duplicates = 0;
+		for (int slot = 0; slot < count; slot++) {
+			if (!insertFingerprint(slot)) {
+				duplicates++;
+				continue;
+			}
+			insert(byIssuerSerial, slot, R_ISSUER_SERIAL);
+			if (key(slot, R_SKI) != NO_KEY) {
+				insert(bySki, slot, R_SKI);
+			}
+			insert(bySubject, slot, R_SUBJECT);
+		}
+		this.duplicates = duplicates;
+		this.decoded = new LinkedHashMap<Integer, X509Certificate>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, X509Certificate> eldest) {
+				return size() > CompactCertificateIndex.this.cacheSize;
+			}
+		};
+	}
+
+	/**
+	 * Индекс по сертификатам снимка хранилища (поля для поиска берутся из индекса хранилища без разбора).
+	 * @param index
+	 * @return
+	 */
+	public static CompactCertificateIndex build(KeyStoreIndex index) {
+		Builder builder = new Builder();
+		for (KeyStoreIndex.AliasEntry entry : index.getEntries()) {
+			if (entry.getCertificate() != null) {
+				builder.add(entry.getCertificate());
+			}
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Построение индекса. Сертификаты добавляются по одному, в куче ничего не накапливается.
+	 */
+	public static final class Builder {
+
+		private ByteBuffer records = ByteBuffer.allocateDirect(RECORD_SIZE * 256);
+
+		private ByteBuffer certificates = ByteBuffer.allocateDirect(256 * 1024);
+
+		private int count = 0;
+
+		private int cacheSize = DEFAULT_CACHE_SIZE;
+
+		/**
+		 * @param cacheSize - сколько разобранных сертификатов держать в куче
+		 * @return this
+		 */
+		public Builder cacheSize(int cacheSize) {
+			if (cacheSize < 0) {
+				throw new IllegalArgumentException("cacheSize < 0");
+			}
+			this.cacheSize = cacheSize;
+			return this;
+		}
+
+		public Builder add(X509Certificate cert) throws CertificateEncodingException {
+			byte[] der = cert.getEncoded();
+			add(der, cert.getSubjectX500Principal(), cert.getIssuerX500Principal(), cert.getSerialNumber(), KeyStoreIndex.subjectKeyIdentifier(cert), cert.getNotBefore().getTime(), cert.getNotAfter().getTime());
+			return this;
+		}
+
+		/**
+		 * @param der - DER сертификата (разбирается только для извлечения полей индекса)
+		 * @return this
+		 * @throws CertificateException
+		 */
+		public Builder add(byte[] der) throws CertificateException {
+			return add(CertificateCache.parse(der));
+		}
+
+		Builder add(IndexedCertificate cert) {
+			add(cert.getEncoded(), cert.getSubject(), cert.getIssuer(), cert.getSerialNumber(), cert.getSubjectKeyIdentifier(), cert.getNotBefore(), cert.getNotAfter());
+			return this;
+		}
+
+		private void add(byte[] der, X500Principal subject, X500Principal issuer, BigInteger serialNumber, byte[] ski, long notBefore, long notAfter) {
+			if ((long) certificates.position() + der.length > Integer.MAX_VALUE) {
+				throw new IllegalStateException("Compact certificate index is limited to 2Gb of certificates");
+			}
+			records = ensure(records, RECORD_SIZE);
+			certificates = ensure(certificates, der.length);
+			int offset = certificates.position();
+			certificates.put(der);
+			records.putLong(fingerprint(sha256().digest(der)));
+			records.putLong(issuerSerialKey(issuer, serialNumber));
+			records.putLong(ski != null ? hash(ski) : NO_KEY);
+			records.putLong(principalKey(subject));
+			records.putLong(notBefore);
+			records.putLong(notAfter);
+			records.putInt(offset);
+			records.putInt(der.length);
+			count++;
+		}
+
+		public int size() {
+			return count;
+		}
+
+		public CompactCertificateIndex build() {
+			final long started = System.nanoTime();
+			ByteBuffer r = compact(records);
+			ByteBuffer c = compact(certificates);
+			CompactCertificateIndex index = new CompactCertificateIndex(count, r, c, cacheSize);
+			if (LOG.isLoggable(Level.FINE)) {
+				LOG.fine("Compact certificate index built: " + index + " in " + (System.nanoTime() - started) / 1000000 + " ms");
+			}
+			return index;
+		}
+
+		private static ByteBuffer ensure(ByteBuffer buf, int required) {
+			if (buf.remaining() >= required) {
+				return buf;
+			}
+			long capacity = Math.max((long) buf.capacity() * 2, (long) buf.position() + required);
+			ByteBuffer grown = ByteBuffer.allocateDirect((int) Math.min(capacity, Integer.MAX_VALUE));
+			buf.flip();
+			grown.put(buf);
+			return grown;
+		}
+
+		private static ByteBuffer compact(ByteBuffer buf) {
+			ByteBuffer exact = ByteBuffer.allocateDirect(buf.position());
+			ByteBuffer src = buf.duplicate();
+			src.flip();
+			exact.put(src);
+			exact.flip();
+			return exact.asReadOnlyBuffer();
+		}
+	}
+
+	/**
+	 * @param sha256 - SHA-256 от DER сертификата
+	 * @return сертификат или null
+	 */
+	public X509Certificate findByFingerprint(byte[] sha256) {
+		if (sha256 == null || sha256.length != 32) {
+			return null;
+		}
+		long key = fingerprint(sha256);
+		for (int i = (int) spread(key) & mask; ; i = (i + 1) & mask) {
+			int slot = byFingerprint.get(i) - 1;
+			if (slot < 0) {
+				return null;
+			}
+			if (key(slot, R_FINGERPRINT) == key && Arrays.equals(sha256, sha256().digest(encoded(slot)))) {
+				return certificate(slot);
+			}
+		}
+	}
+
+	/**
+	 * @param issuer
+	 * @param serialNumber
+	 * @return сертификат или null
+	 */
+	public X509Certificate findByIssuerAndSerialNumber(X500Principal issuer, BigInteger serialNumber) {
+		long key = issuerSerialKey(issuer, serialNumber);
+		for (int i = (int) spread(key) & mask; ; i = (i + 1) & mask) {
+			int slot = byIssuerSerial.get(i) - 1;
+			if (slot < 0) {
+				return null;
+			}
+			if (key(slot, R_ISSUER_SERIAL) == key) {
+				X509Certificate cert = certificate(slot);
+				if (cert.getSerialNumber().equals(serialNumber) && cert.getIssuerX500Principal().equals(issuer)) {
+					return cert;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Поиск по SubjectKeyIdentifier (сам идентификатор, без DER-обертки).
+	 * @param ski
+	 * @return сертификат или null
+	 */
+	public X509Certificate findBySubjectKeyIdentifier(byte[] ski) {
+		if (ski == null) {
+			return null;
+		}
+		long key = hash(ski);
+		for (int i = (int) spread(key) & mask; ; i = (i + 1) & mask) {
+			int slot = bySki.get(i) - 1;
+			if (slot < 0) {
+				return null;
+			}
+			if (key(slot, R_SKI) == key) {
+				X509Certificate cert = certificate(slot);
+				if (Arrays.equals(ski, KeyStoreIndex.subjectKeyIdentifier(cert))) {
+					return cert;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param subject
+	 * @return сертификаты субъекта (пустой список, если нет)
+	 */
+	public List<X509Certificate> findBySubject(X500Principal subject) {
+		return select(subject, Long.MIN_VALUE);
+	}
+
+	/**
+	 * Действующие сертификаты субъекта - кандидаты в издатели при построении цепочки.
+	 * Срок действия проверяется по индексу до разбора.
+	 * @param subject
+	 * @param now
+	 * @return
+	 */
+	List<X509Certificate> findValidBySubject(X500Principal subject, long now) {
+		return select(subject, now);
+	}
+
+	private List<X509Certificate> select(X500Principal subject, long now) {
+		long key = principalKey(subject);
+		List<X509Certificate> found = null;
+		for (int i = (int) spread(key) & mask; ; i = (i + 1) & mask) {
+			int slot = bySubject.get(i) - 1;
+			if (slot < 0) {
+				break;
+			}
+			if (key(slot, R_SUBJECT) != key || (now != Long.MIN_VALUE && (now < key(slot, R_NOT_BEFORE) || now > key(slot, R_NOT_AFTER)))) {
+				continue;
+			}
+			X509Certificate cert = certificate(slot);
+			if (cert.getSubjectX500Principal().equals(subject)) {
+				if (found == null) {
+					found = new ArrayList<X509Certificate>(1);
+				}
+				found.add(cert);
+			}
+		}
+		return found != null ? found : Collections.<X509Certificate>emptyList();
+	}
+
+	private boolean insertFingerprint(int slot) {
+		long key = key(slot, R_FINGERPRINT);
+		int i = (int) spread(key) & mask;
+		for (int other = byFingerprint.get(i) - 1; other >= 0; other = byFingerprint.get(i) - 1) {
+			if (key(other, R_FINGERPRINT) == key && derView(other).equals(derView(slot))) {
+				return false; // тот же сертификат уже есть
+			}
+			i = (i + 1) & mask;
+		}
+		byFingerprint.put(i, slot + 1);
+		return true;
+	}
+
+	private void insert(IntBuffer table, int slot, int field) {
+		int i = (int) spread(key(slot, field)) & mask;
+		while (table.get(i) != 0) {
+			i = (i + 1) & mask;
+		}
+		table.put(i, slot + 1);
+	}
+
+	private long key(int slot, int field) {
+		return records.getLong(slot * RECORD_SIZE + field);
+	}
+
+	private ByteBuffer derView(int slot) {
+		int offset = records.getInt(slot * RECORD_SIZE + R_OFFSET);
+		int length = records.getInt(slot * RECORD_SIZE + R_LENGTH);
+		ByteBuffer der = certificates.duplicate();
+		der.limit(offset + length).position(offset);
+		return der;
+	}
+
+	private byte[] encoded(int slot) {
+		ByteBuffer der = derView(slot);
+		byte[] data = new byte[der.remaining()];
+		der.get(data);
+		return data;
+	}
+
+	private X509Certificate certificate(int slot) {
+		Integer cacheKey = Integer.valueOf(slot);
+		X509Certificate cert;
+		synchronized (decoded) {
+			cert = decoded.get(cacheKey);
+		}
+		if (cert != null) {
+			hits.incrementAndGet();
+			return cert;
+		}
+		misses.incrementAndGet();
+		try {
+			cert = CertificateCache.parse(encoded(slot));
+		} catch (CertificateException e) {
+			throw new IllegalStateException("Broken certificate in compact index, slot " + slot, e);
+		}
+		if (cacheSize > 0) {
+			synchronized (decoded) {
+				decoded.put(cacheKey, cert);
+			}
+		}
+		return cert;
+	}
+
+	private static long fingerprint(byte[] sha256) {
+		return ByteBuffer.wrap(sha256).getLong();
+	}
+
+	private static long issuerSerialKey(X500Principal issuer, BigInteger serialNumber) {
+		return hash(serialNumber.toByteArray(), principalKey(issuer));
+	}
+
+	private static long principalKey(X500Principal principal) {
+		return hash(principal.getName(X500Principal.CANONICAL).getBytes(UTF8));
+	}
+
+	private static long hash(byte[] data) {
+		return hash(data, FNV_OFFSET);
+	}
+
+	/**
+	 * FNV-1a 64 (0 зарезервирован под отсутствующий ключ).
+	 */
+	private static long hash(byte[] data, long seed) {
+		long h = seed;
+		for (byte b : data) {
+			h ^= b & 0xFF;
+			h *= FNV_PRIME;
+		}
+		return h != NO_KEY ? h : 1;
+	}
+
+	private static long spread(long key) {
+		return key ^ (key >>> 32);
+	}
+
+	private final static ThreadLocal<MessageDigest> sha256 = new ThreadLocal<MessageDigest>() {
+
+		@Override
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	};
+
+	private static MessageDigest sha256() {
+		return sha256.get();
+	}
+
+	/**
+	 * @return число сертификатов (без повторов)
+	 */
+	public int size() {
+		return count - duplicates;
+	}
+
+	/**
+	 * @return память вне кучи: DER, записи и таблицы
+	 */
+	public long getOffHeapBytes() {
+		return (long) certificates.capacity() + records.capacity() + 4L * 4 * (mask + 1);
+	}
+
+	public int getCacheSize() {
+		return cacheSize;
+	}
+
+	public long getCacheHits() {
+		return hits.get();
+	}
+
+	public long getCacheMisses() {
+		return misses.get();
+	}
+
+	@Override
+	public String toString() {
+		return "CompactCertificateIndex [certificates=" + size() + ", duplicates=" + duplicates + ", offHeap=" + getOffHeapBytes() / 1024 + "Kb, cache=" + cacheSize + ", hits=" + hits.get() + ", misses=" + misses.get() + "]";
+	}
+}
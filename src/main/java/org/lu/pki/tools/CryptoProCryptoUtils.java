@@ -5,6 +5,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.math.BigInteger;
 import java.security.DigestException;
 import java.security.DigestInputStream;
@@ -22,15 +23,22 @@ import java.security.SecureRandom;
 import java.security.Signature;
 import java.security.SignatureException;
 import java.security.UnrecoverableKeyException;
-import java.security.cert.CertPathBuilder;
 import java.security.cert.CertStore;
+import java.security.cert.CertificateEncodingException;
 import java.security.cert.CertificateException;
-import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.security.spec.X509EncodedKeySpec;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -38,6 +46,7 @@ import javax.crypto.Cipher;
 import javax.crypto.KeyAgreement;
 import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.security.auth.x500.X500Principal;
 
@@ -123,21 +132,45 @@ public class CryptoProCryptoUtils extends CryptoUtils {
 	public static final String GOST28147_ALG = "GOST28147";
 	
 	/**
-	 * Список подписывающих (отправителей).
+	 * вектор усложнения ключа согласования
 	 */
-	private final List<Signer> signers = new ArrayList<Signer>();
+	private static final byte[] sv = { 0x11, 0x11, 0x11, 0x11, 0x11, 0x11, 0x11, 0x11 };
+	
+	private static final byte[] ENVELOPED_DATA_OID_VALUE = BerWriter.encodeOid(ENVELOPED_DATA_OID);
 	
 	/**
-	 * Список адресатов.
+	 * Число получателей, с которого RecipientInfo формируются параллельно (по умолчанию DEFAULT_PARALLEL_RECIPIENTS, 0 - всегда последовательно).
 	 */
-    private final List<Recipient> recipients = new ArrayList<Recipient>();
-
+	public static final String PARALLEL_RECIPIENTS_PROPERTY = "org.lu.pki.tools.encrypt.parallelRecipients";
+	
+	public static final int DEFAULT_PARALLEL_RECIPIENTS = 32;
+	
 	/**
-	 * вектор усложнения ключа согласования
+	 * Не меньше стольких получателей на задачу: иначе передача задачи между потоками дороже согласования и wrap.
 	 */
-	private static final byte[] sv = { 0x11, 0x11, 0x11, 0x11, 0x11, 0x11, 0x11, 0x11 };
+	private static final int MIN_RECIPIENTS_PER_TASK = 8;
+	
+	/**
+	 * Общий пул формирования RecipientInfo. Создается при первом параллельном шифровании, потоки - демоны.
+	 */
+	private static final class RecipientWorkers {
+		
+		private static final AtomicInteger number = new AtomicInteger();
+		
+		static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+			
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "cms-recipients-" + number.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
 	
 	private final ParamsInterface paramss = AlgIdSpec.getDefaultCryptParams();
+	
+	private volatile int parallelRecipients = Integer.getInteger(PARALLEL_RECIPIENTS_PROPERTY, DEFAULT_PARALLEL_RECIPIENTS);
 
 	private final String storeFile;
 	private final char[] storePassword;
@@ -148,105 +181,86 @@ public class CryptoProCryptoUtils extends CryptoUtils {
 
 		init();
 	}
+	
+	/**
+	 * Копия для другого потока (см. fork()).
+	 * @param parent
+	 * @throws GeneralSecurityException
+	 */
+	private CryptoProCryptoUtils(final CryptoProCryptoUtils parent) throws GeneralSecurityException {
+		this.storeFile = parent.storeFile;
+		this.storePassword = parent.storePassword;
+		setKeyStoreHolder(parent.getKeyStoreHolder());
+		setPrivateKeyCache(parent.getPrivateKeyCache());
+		useTrustList(parent.getTrustList());
+		setProfile(parent.getProfile());
+		this.parallelRecipients = parent.parallelRecipients;
+	}
+	
+	@Override
+	public CryptoProCryptoUtils fork() throws Exception {
+		return new CryptoProCryptoUtils(this);
+	}
 
-	private void init() throws KeyStoreException, NoSuchAlgorithmException, CertificateException, IOException {
+	private void init() throws Exception {
+		setKeyStore(storeFile, keyStoreLoader());
+	}
+	
+	private KeyStore loadKeyStore() throws KeyStoreException, NoSuchAlgorithmException, CertificateException, IOException {
 		KeyStore keyStore = KeyStore.getInstance(JCP.HD_STORE_NAME);
 		if (this.storeFile != null) {
 			InputStream in = new FileInputStream(new File(storeFile));
-			keyStore.load(in, storePassword);
-			in.close();
+			try {
+				keyStore.load(in, storePassword);
+			} finally {
+				in.close();
+			}
 		} else {
 			LOG.warning("Loading without cert store...");
 			keyStore.load(null, null);
 		}
-		setKeyStore(keyStore);
-		CryptoUtils.setCertPathBuilder(CertPathBuilder.getInstance("PKIX"));
-	}
-
-	private class Signer {
-		private final PrivateKey key;
-		private final X509Certificate cert;
-		
-		public Signer(PrivateKey key, X509Certificate cert) {
-			super();
-			this.key = key;
-			this.cert = cert;
-		}
-		
-		public final PrivateKey getKey() {
-			return key;
-		}
-		
-		public final X509Certificate getCert() {
-			return cert;
-		}
-		
-	}
-
-	private class Recipient {
-		private final X509Certificate cert;
-
-		public Recipient(X509Certificate cert) {
-			super();
-			this.cert = cert;
-		}
-
-		public final X509Certificate getCert() {
-			return cert;
-		}
-		
+		return keyStore;
 	}
 	
-	private X509Certificate addSignerToList(String alias) throws KeyStoreException, NoSuchAlgorithmException, UnrecoverableKeyException {
-		PrivateKey priv = getKeyFromStore(alias, storePassword);
-		X509Certificate cert = getCertificateFromStore(alias);
-		signers.add(new Signer(priv, cert));
-		return cert;
+	/**
+	 * Перезагрузка хранилища на лету при изменении файла (новые сертификаты контрагентов без пересоздания CryptoProCryptoUtils).
+	 * @return KeyStoreHolder
+	 * @throws IOException
+	 */
+	public KeyStoreHolder watchKeyStore() throws IOException {
+		return watchKeyStore(storeFile, keyStoreLoader());
 	}
 	
-	private X509Certificate addRecipientToList(String recipient) throws KeyStoreException {
-		X509Certificate cert = getCertificateFromStore(recipient);
-		recipients.add(new Recipient(cert));
-		return cert;
+	private KeyStoreHolder.Loader keyStoreLoader() {
+		return new KeyStoreHolder.Loader() {
+			
+			@Override
+			public KeyStore load() throws Exception {
+				return loadKeyStore();
+			}
+		};
+	}
+
+	@Override
+	protected PrivateKey loadPrivateKey(String alias) throws KeyStoreException, NoSuchAlgorithmException, UnrecoverableKeyException {
+		return getKeyFromStore(alias, storePassword);
 	}
 
 	//===========================================================================================================
 	
 	public CryptoUtils signer(String... signerAliases) throws Exception {
-		signers.clear();
-		
-    	if (signerAliases == null) { // ничего не делаем просто очищаем список
-    		return this;
-    	}
-    	KeyStore keyStore = getKeyStore();
-    	for (String signer : signerAliases) {
-    		if (keyStore.isKeyEntry(signer)) {
-    			addSignerToList(signer);
-    		} else {
-    			LOG.warning("Alias " + signer + " doesn't have private key and can't be a signer");
-    		}
-    	}
+		KeyStoreIndex snapshot = getKeyStoreIndex();
+		setSigners(resolveSigners(signerAliases), snapshot);
     	return this;
 	}
 	
 	public CryptoUtils recipients(String... recipientsAliases) throws Exception {
-		recipients.clear();
-		
-    	if (recipientsAliases != null) {	
-	    	for (String recipient : recipientsAliases) {
-	    		addRecipientToList(recipient);
-	    	}
-    	}
+		KeyStoreIndex snapshot = getKeyStoreIndex();
+		setRecipients(resolveRecipients(recipientsAliases), snapshot);
     	return this;
 	}
 
-	public byte[] encrypt(byte[] plain) throws Exception {
-		
-		// проверка исходных данных
-		if (signers == null || signers.size() == 0) {
-			throw new Exception("No one signer. Set at least one signer and try again.");
-		}
-		
+	public byte[] encrypt(CmsProfile profile, byte[] plain) throws Exception {
 		/*
 		 *  EnvelopedData ::= SEQUENCE {
 		 * version CMSVersion,
@@ -256,21 +270,8 @@ public class CryptoProCryptoUtils extends CryptoUtils {
 		 * unprotectedAttrs [1] IMPLICIT UnprotectedAttributes OPTIONAL }
 		 */
 		
-		final Cipher cipher = Cipher.getInstance(CIPHER_MODE); // my sweet enigma...
-		
 		// Генерирование симметричного ключа
 		final SecretKey simm = generateRandomSimmetricKey();
-
-		// Зашифрование текста на симметричном ключе.
-		cipher.init(Cipher.ENCRYPT_MODE, simm, (SecureRandom) null);
-		final byte[] initializationVector = cipher.getIV();
-		final byte[] enctryptedData = cipher.doFinal(plain, 0, plain.length);
-		
-		// выбор случайного отправителя из списка подписчиков
-		final Signer randomSigner = signers.get(new Random().nextInt(signers.size()));
-		LOG.fine("Sending from random signer. We are choosing " + randomSigner.getCert().getSubjectDN());
-		
-		final int recipientListSize = recipients.size();
 		
 		// формирование CMS-сообщения
 		final EnvelopedData envelopedData = new EnvelopedData();
@@ -279,98 +280,20 @@ public class CryptoProCryptoUtils extends CryptoUtils {
 		envelopedData.version = new CMSVersion(0);
 		
 		// EnvelopedData:recipientInfos
-		envelopedData.recipientInfos = new RecipientInfos(recipientListSize);
+		envelopedData.recipientInfos = createRecipientInfos(profile, simm);
 		
-		for (int z = 0; z < recipientListSize; z++) { // заполняем RecipientInfo[]
-			final Recipient recipient = recipients.get(z);
-			
-			// генерирование ключа согласования
-			final SecretKey agreementKey = generateDHAgreementKey(randomSigner.getKey(), recipient.getCert().getPublicKey());
-			
-			// Зашифрование симметричного ключа на ключе согласования отправителя
-			cipher.init(Cipher.WRAP_MODE, agreementKey, (SecureRandom) null);
-			final byte[] key = cipher.wrap(simm); // это ключик нужно положить в KTRI
-			
-			// Начинаем формировать RecipientInfo
-			final RecipientInfo recipientInfo = new RecipientInfo();
-			envelopedData.recipientInfos.elements[z] = recipientInfo;
-			/*
-			 *  RecipientInfo ::= CHOICE {
-             * 		ktri KeyTransRecipientInfo, -> KeyTransRecipientInfo ::= SEQUENCE {
-             * 											version CMSVersion,  -- always set to 0 or 2
-             * 											rid RecipientIdentifier,
-             * 											keyEncryptionAlgorithm KeyEncryptionAlgorithmIdentifier,
-             * 											encryptedKey EncryptedKey }
-             * 		kari [1] KeyAgreeRecipientInfo, -> не наш вариант
-             * 		kekri [2] KEKRecipientInfo, 	-> не наш вариант
-             * 		pwri [3] PasswordRecipientinfo, -> не наш вариант
-             * 		ori [4] OtherRecipientInfo }	-> не наш вариант
-			 */
-			
-			final KeyTransRecipientInfo keytrans = new KeyTransRecipientInfo();
-			
-			// KeyTransRecipientInfo:version
-			keytrans.version = new CMSVersion(0);
-			
-			final Asn1BerEncodeBuffer ebuf = new Asn1BerEncodeBuffer();
-			final SubjectPublicKeyInfo spki = new SubjectPublicKeyInfo();
-			final Asn1BerDecodeBuffer dbuff = new Asn1BerDecodeBuffer(randomSigner.getCert().getPublicKey().getEncoded());
-			spki.decode(dbuff);
-			dbuff.reset();
-			
-			// KeyTransRecipientInfo:keyEncryptionAlgorithm
-			final AlgIdInterface algid = new AlgIdSpec(spki.algorithm);
-			final AlgorithmIdentifier id = (AlgorithmIdentifier) algid.getDecoded();
-			id.encode(ebuf);
-			Asn1BerDecodeBuffer dbuf = new Asn1BerDecodeBuffer(ebuf.getMsgCopy());
-			keytrans.keyEncryptionAlgorithm = new KeyEncryptionAlgorithmIdentifier();
-			keytrans.keyEncryptionAlgorithm.decode(dbuf);
-			ebuf.reset();
-			dbuf.reset();
-			
-			// KeyTransRecipientInfo:rid
-			keytrans.rid = new RecipientIdentifier();
-			final IssuerAndSerialNumber issuer = new IssuerAndSerialNumber();
-			final X500Principal issuerName = recipient.getCert().getIssuerX500Principal();
-			dbuf = new Asn1BerDecodeBuffer(issuerName.getEncoded());
-			issuer.issuer = new Name();
-			final RDNSequence rnd = new RDNSequence();
-			rnd.decode(dbuf);
-			issuer.issuer.set_rdnSequence(rnd);
-			issuer.serialNumber = new CertificateSerialNumber(recipient.getCert().getSerialNumber());
-			keytrans.rid.set_issuerAndSerialNumber(issuer);
-			dbuf.reset();
-			
-			// KeyTransRecipientInfo:encryptedKey
-			final GostR3410_KeyTransport encrKey = new GostR3410_KeyTransport();
-			dbuf = new Asn1BerDecodeBuffer(key);
-			encrKey.sessionEncryptedKey = new Gost28147_89_EncryptedKey();
-			encrKey.sessionEncryptedKey.decode(dbuf);
-			dbuf.reset();
-			encrKey.transportParameters = new GostR3410_TransportParameters();
-			encrKey.transportParameters.encryptionParamSet = new Gost28147_89_ParamSet(algid.getCryptParams().getOID().value);
-			encrKey.transportParameters.ephemeralPublicKey = new SubjectPublicKeyInfo();
-			dbuf = new Asn1BerDecodeBuffer(randomSigner.getCert().getPublicKey().getEncoded());
-			encrKey.transportParameters.ephemeralPublicKey.decode(dbuf);
-			dbuf.reset();
-			encrKey.transportParameters.ukm = new Asn1OctetString(sv);
-			encrKey.encode(ebuf);
-			keytrans.encryptedKey = new EncryptedKey(ebuf.getMsgCopy());
-			ebuf.reset();
-			
-			// Устанавливаем получивнийся KeyTransRecipientInfo в RecipientInfo
-			recipientInfo.set_ktri(keytrans);
-			
-		}
+		final Cipher cipher = EnginePool.cipher(CIPHER_MODE); // my sweet enigma...
+		
+		// Зашифрование текста на симметричном ключе.
+		cipher.init(Cipher.ENCRYPT_MODE, simm, (SecureRandom) null);
+		final byte[] initializationVector = cipher.getIV();
+		final byte[] enctryptedData = cipher.doFinal(plain, 0, plain.length);
 		
 		// EnvelopedData:encryptedContentInfo
 		envelopedData.encryptedContentInfo = new EncryptedContentInfo();
-		final OID contentType = new OID("1.2.840.113549.1.7.1");
+		final OID contentType = new OID(ENCAP_CONTENT_INDO_OID);
 		envelopedData.encryptedContentInfo.contentType = new ContentType(contentType.value);
-		final Gost28147_89_Parameters params = new Gost28147_89_Parameters();
-		params.iv = new Gost28147_89_IV(initializationVector);
-		params.encryptionParamSet = new Gost28147_89_ParamSet(paramss.getOID().value);
-		envelopedData.encryptedContentInfo.contentEncryptionAlgorithm = new ContentEncryptionAlgorithmIdentifier(_Gost28147_89_EncryptionSyntaxValues.id_Gost28147_89, params);
+		envelopedData.encryptedContentInfo.contentEncryptionAlgorithm = createContentEncryptionAlgorithm(initializationVector);
 		envelopedData.encryptedContentInfo.encryptedContent = new EncryptedContent(enctryptedData);
 		
 		// Помещаем во внешнюю оболочку
@@ -384,7 +307,125 @@ public class CryptoProCryptoUtils extends CryptoUtils {
 		return contentInfoEncodeBuffer.getMsgCopy();
 	}
 	
+	/**
+	 * RecipientInfos сообщения: отправитель - случайный из подписчиков профиля, ключ simm шифруется для каждого получателя.
+	 * @param profile
+	 * @param simm - ключ шифрования содержимого
+	 * @return
+	 * @throws Exception
+	 */
+	private RecipientInfos createRecipientInfos(CmsProfile profile, SecretKey simm) throws Exception {
+		profile = currentProfile(profile);
+		final List<CmsProfile.SignerEntry> signers = profile.getSigners();
+		final List<CmsProfile.RecipientEntry> recipients = profile.getRecipients();
+		
+		// проверка исходных данных
+		if (signers == null || signers.size() == 0) {
+			throw new Exception("No one signer. Set at least one signer and try again.");
+		}
+		
+		// выбор случайного отправителя из списка подписчиков
+		final CmsProfile.SignerEntry randomSigner = signers.get(new Random().nextInt(signers.size()));
+		LOG.fine("Sending from random signer. We are choosing " + randomSigner.getCert().getSubjectDN());
+		
+		final RecipientInfos recipientInfos = new RecipientInfos(recipients.size());
+		final KeyTransBuilder keyTrans = new KeyTransBuilder(profile.getAgreementKeyCache(), randomSigner, simm);
+		createRecipientInfos(keyTrans, recipients, recipientInfos.elements);
+		return recipientInfos;
+	}
+	
+	private ContentEncryptionAlgorithmIdentifier createContentEncryptionAlgorithm(byte[] initializationVector) {
+		final Gost28147_89_Parameters params = new Gost28147_89_Parameters();
+		params.iv = new Gost28147_89_IV(initializationVector);
+		params.encryptionParamSet = new Gost28147_89_ParamSet(paramss.getOID().value);
+		return new ContentEncryptionAlgorithmIdentifier(_Gost28147_89_EncryptionSyntaxValues.id_Gost28147_89, params);
+	}
+	
+	/**
+	 * Потоковое формирование EnvelopedData с BER неопределенной длины: заголовок и recipientInfos пишутся сразу,
+	 * encryptedContent - сегментами по мере шифрования (cipher.update), EOC дописываются при закрытии потока.
+	 * Память не зависит от размера данных. Содержимое совпадает с encrypt, отличается только кодирование длин.
+	 * @param profile
+	 * @param ciphertext - приемник зашифрованного сообщения (закрывается вместе с возвращенным потоком)
+	 * @return поток для записи открытых данных
+	 * @throws Exception
+	 */
+	@Override
+	protected OutputStream openEncrypt(final CmsProfile profile, final OutputStream ciphertext) throws Exception {
+		final SecretKey simm = generateRandomSimmetricKey();
+		final RecipientInfos recipientInfos = createRecipientInfos(profile, simm);
+		
+		// свой Cipher, не из EnginePool: поток живет дольше вызова, а экземпляр пула нужен другим операциям этого потока
+		final Cipher cipher = Cipher.getInstance(CIPHER_MODE);
+		cipher.init(Cipher.ENCRYPT_MODE, simm, (SecureRandom) null);
+		
+		// ContentInfo -> [0] EXPLICIT -> EnvelopedData
+		BerWriter.writeIndefiniteHeader(ciphertext, BerWriter.TAG_SEQUENCE);
+		BerWriter.writeOid(ciphertext, ENVELOPED_DATA_OID);
+		BerWriter.writeIndefiniteHeader(ciphertext, BerWriter.TAG_CONTEXT_0_CONSTRUCTED);
+		BerWriter.writeIndefiniteHeader(ciphertext, BerWriter.TAG_SEQUENCE);
+		writeEncoded(ciphertext, new CMSVersion(0));
+		writeEncoded(ciphertext, recipientInfos);
+		
+		// encryptedContentInfo -> encryptedContent [0] IMPLICIT OCTET STRING (конструированная, по сегментам)
+		BerWriter.writeIndefiniteHeader(ciphertext, BerWriter.TAG_SEQUENCE);
+		BerWriter.writeOid(ciphertext, ENCAP_CONTENT_INDO_OID);
+		writeEncoded(ciphertext, createContentEncryptionAlgorithm(cipher.getIV()));
+		ciphertext.flush();
+		
+		return new BerWriter.SegmentedOctetStringOutputStream(ciphertext, BerWriter.TAG_CONTEXT_0_CONSTRUCTED) {
+			
+			private byte[] encrypted = new byte[BerWriter.SEGMENT_SIZE];
+			
+			private boolean closed = false;
+			
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				final int size = cipher.getOutputSize(len);
+				if (size > encrypted.length) {
+					encrypted = new byte[size];
+				}
+				try {
+					super.write(encrypted, 0, cipher.update(b, off, len, encrypted, 0));
+				} catch (ShortBufferException e) {
+					throw new IOException(e.getMessage(), e);
+				}
+			}
+			
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+			
+			@Override
+			public void close() throws IOException {
+				if (closed) {
+					return;
+				}
+				closed = true;
+				try {
+					final byte[] last = cipher.doFinal();
+					super.write(last, 0, last.length);
+					super.close(); // EOC для encryptedContent
+					BerWriter.writeEndOfContents(ciphertext); // encryptedContentInfo
+					BerWriter.writeEndOfContents(ciphertext); // EnvelopedData
+					BerWriter.writeEndOfContents(ciphertext); // [0]
+					BerWriter.writeEndOfContents(ciphertext); // ContentInfo
+				} catch (GeneralSecurityException e) {
+					throw new IOException(e.getMessage(), e);
+				} finally {
+					ciphertext.close();
+				}
+			}
+		};
+	}
+	
 	public ContentInfo _signAttached(byte[] data) throws Exception {
+		return _signAttached(getProfile(), data);
+	}
+	
+	public ContentInfo _signAttached(CmsProfile profile, byte[] data) throws Exception {
+		final List<CmsProfile.SignerEntry> signers = currentProfile(profile).getSigners();
 		/*
 		 *  SignedData ::= SEQUENCE {
 		 * 		version CMSVersion,
@@ -405,62 +446,78 @@ public class CryptoProCryptoUtils extends CryptoUtils {
 		signedData.version = new CMSVersion(1);
 		
 		// digestAlgorithms
-		signedData.digestAlgorithms = new DigestAlgorithmIdentifiers(signerListSize);
-		for (int z = 0; z < signerListSize; z++) {
-			final DigestAlgorithmIdentifier digistAlgIdentefer = new DigestAlgorithmIdentifier(new OID(JCP.GOST_DIGEST_OID).value);
-			digistAlgIdentefer.parameters = new Asn1Null();
-			signedData.digestAlgorithms.elements[z] = digistAlgIdentefer;
-		}
+		signedData.digestAlgorithms = createDigestAlgorithms(signerListSize);
 		
 		// encapContentInfo
 		signedData.encapContentInfo = createEncapsulatedContentInfo(data);
 		
 		// certificates -> CertificateSet ::= SET OF CertificateChoices
-		signedData.certificates = new CertificateSet(1);
-		signedData.certificates.elements = new CertificateChoices[signerListSize];
-		for (int z = 0; z < signerListSize; z++) {
-			Signer sig = signers.get(z);
-			final Certificate certificate = new Certificate(); // ASN.1
-			final Asn1BerDecodeBuffer decodeBuffer = new Asn1BerDecodeBuffer(sig.getCert().getEncoded());
-			certificate.decode(decodeBuffer);
-			
-			signedData.certificates.elements[z] = new CertificateChoices();
-			signedData.certificates.elements[z].set_certificate(certificate);
-		}
+		signedData.certificates = createCertificateSet(signers);
 		
 		// signerInfos -> SignerInfos ::= SET OF SignerInfo
 		signedData.signerInfos = new SignerInfos(signerListSize);
 		for (int z = 0; z < signerListSize; z++) {
-			Signer sig = signers.get(z);
+			CmsProfile.SignerEntry sig = signers.get(z);
 			
-			final Signature signature = Signature.getInstance(JCP.GOST_EL_SIGN_NAME);
+			final Signature signature = EnginePool.signature(JCP.GOST_EL_SIGN_NAME);
 			signature.initSign(sig.getKey());
 			signature.update(data);
 			final byte[] sign = signature.sign();
 			
-			signedData.signerInfos.elements[z] = new SignerInfo();
-			signedData.signerInfos.elements[z].version = new CMSVersion(1);
-			signedData.signerInfos.elements[z].sid = new SignerIdentifier();
-			
-			final byte[] encodedName = sig.getCert().getIssuerX500Principal().getEncoded();
-			final Asn1BerDecodeBuffer nameBuf = new Asn1BerDecodeBuffer(encodedName);
-			final Name name = new Name();
-			name.decode(nameBuf);
-			
-			final CertificateSerialNumber num = new CertificateSerialNumber(sig.getCert().getSerialNumber());
-			signedData.signerInfos.elements[z].sid.set_issuerAndSerialNumber(new IssuerAndSerialNumber(name, num));
-			signedData.signerInfos.elements[z].digestAlgorithm = new DigestAlgorithmIdentifier(new OID(JCP.GOST_DIGEST_OID).value);
-			signedData.signerInfos.elements[z].digestAlgorithm.parameters = new Asn1Null();
-			signedData.signerInfos.elements[z].signatureAlgorithm = new SignatureAlgorithmIdentifier(new OID(JCP.GOST_EL_KEY_OID).value);
-			signedData.signerInfos.elements[z].signatureAlgorithm.parameters = new Asn1Null();
-			signedData.signerInfos.elements[z].signature = new SignatureValue(sign);
+			signedData.signerInfos.elements[z] = createSignerInfo(sig, sign);
 		}
 		
 		return contentSign;
 	}
+	
+	private DigestAlgorithmIdentifiers createDigestAlgorithms(int signerListSize) {
+		final DigestAlgorithmIdentifiers digestAlgorithms = new DigestAlgorithmIdentifiers(signerListSize);
+		for (int z = 0; z < signerListSize; z++) {
+			final DigestAlgorithmIdentifier digistAlgIdentefer = new DigestAlgorithmIdentifier(new OID(JCP.GOST_DIGEST_OID).value);
+			digistAlgIdentefer.parameters = new Asn1Null();
+			digestAlgorithms.elements[z] = digistAlgIdentefer;
+		}
+		return digestAlgorithms;
+	}
+	
+	private CertificateSet createCertificateSet(List<CmsProfile.SignerEntry> signerList) throws Asn1Exception, IOException, CertificateEncodingException {
+		final int signerListSize = signerList.size();
+		final CertificateSet certificates = new CertificateSet(1);
+		certificates.elements = new CertificateChoices[signerListSize];
+		for (int z = 0; z < signerListSize; z++) {
+			CmsProfile.SignerEntry sig = signerList.get(z);
+			final Certificate certificate = new Certificate(); // ASN.1
+			final Asn1BerDecodeBuffer decodeBuffer = new Asn1BerDecodeBuffer(sig.getCert().getEncoded());
+			certificate.decode(decodeBuffer);
+			
+			certificates.elements[z] = new CertificateChoices();
+			certificates.elements[z].set_certificate(certificate);
+		}
+		return certificates;
+	}
+	
+	private SignerInfo createSignerInfo(CmsProfile.SignerEntry sig, byte[] sign) throws Asn1Exception, IOException {
+		final SignerInfo signerInfo = new SignerInfo();
+		signerInfo.version = new CMSVersion(1);
+		signerInfo.sid = new SignerIdentifier();
+		
+		final byte[] encodedName = sig.getCert().getIssuerX500Principal().getEncoded();
+		final Asn1BerDecodeBuffer nameBuf = new Asn1BerDecodeBuffer(encodedName);
+		final Name name = new Name();
+		name.decode(nameBuf);
+		
+		final CertificateSerialNumber num = new CertificateSerialNumber(sig.getCert().getSerialNumber());
+		signerInfo.sid.set_issuerAndSerialNumber(new IssuerAndSerialNumber(name, num));
+		signerInfo.digestAlgorithm = new DigestAlgorithmIdentifier(new OID(JCP.GOST_DIGEST_OID).value);
+		signerInfo.digestAlgorithm.parameters = new Asn1Null();
+		signerInfo.signatureAlgorithm = new SignatureAlgorithmIdentifier(new OID(JCP.GOST_EL_KEY_OID).value);
+		signerInfo.signatureAlgorithm.parameters = new Asn1Null();
+		signerInfo.signature = new SignatureValue(sign);
+		return signerInfo;
+	}
 
-	public byte[] signAttached(byte[] data) throws Exception {
-		final ContentInfo contentSign = _signAttached(data);
+	public byte[] signAttached(CmsProfile profile, byte[] data) throws Exception {
+		final ContentInfo contentSign = _signAttached(profile, data);
 		
 		// encoding
 		final Asn1BerEncodeBuffer asnBuf = new Asn1BerEncodeBuffer();
@@ -471,6 +528,108 @@ public class CryptoProCryptoUtils extends CryptoUtils {
 		return bufferContentInfo;
 	}
 
+	/**
+	 * Потоковое формирование SignedData с BER неопределенной длины: eContent пишется сегментами по мере поступления данных,
+	 * подписи считаются параллельно, а certificates и signerInfos дописываются при закрытии потока.
+	 * Содержимое совпадает с signAttached (подпись без signedAttrs), отличается только кодирование длин.
+	 * @param profile
+	 * @param signed - приемник подписанного сообщения (закрывается вместе с возвращенным потоком)
+	 * @return поток для записи подписываемых данных
+	 * @throws Exception
+	 */
+	@Override
+	protected OutputStream openSign(final CmsProfile profile, final OutputStream signed) throws Exception {
+		final List<CmsProfile.SignerEntry> signerList = currentProfile(profile).getSigners();
+		final Signature[] signatures = new Signature[signerList.size()];
+		for (int z = 0; z < signatures.length; z++) {
+			// свои Signature, не из EnginePool: поток живет дольше вызова
+			signatures[z] = Signature.getInstance(JCP.GOST_EL_SIGN_NAME);
+			signatures[z].initSign(signerList.get(z).getKey());
+		}
+		
+		// ContentInfo -> [0] EXPLICIT -> SignedData
+		BerWriter.writeIndefiniteHeader(signed, BerWriter.TAG_SEQUENCE);
+		BerWriter.writeOid(signed, SIGNED_DATA_OID);
+		BerWriter.writeIndefiniteHeader(signed, BerWriter.TAG_CONTEXT_0_CONSTRUCTED);
+		BerWriter.writeIndefiniteHeader(signed, BerWriter.TAG_SEQUENCE);
+		writeEncoded(signed, new CMSVersion(1));
+		writeEncoded(signed, createDigestAlgorithms(signerList.size()));
+		
+		// encapContentInfo -> eContent [0] EXPLICIT OCTET STRING (конструированная, по сегментам)
+		BerWriter.writeIndefiniteHeader(signed, BerWriter.TAG_SEQUENCE);
+		BerWriter.writeOid(signed, ENCAP_CONTENT_INDO_OID);
+		BerWriter.writeIndefiniteHeader(signed, BerWriter.TAG_CONTEXT_0_CONSTRUCTED);
+		
+		return new BerWriter.SegmentedOctetStringOutputStream(signed, BerWriter.TAG_CONSTRUCTED_OCTET_STRING) {
+			
+			private boolean closed = false;
+			
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				try {
+					for (Signature signature : signatures) {
+						signature.update(b, off, len);
+					}
+				} catch (SignatureException e) {
+					throw new IOException(e.getMessage(), e);
+				}
+				super.write(b, off, len);
+			}
+			
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+			
+			@Override
+			public void close() throws IOException {
+				if (closed) {
+					return;
+				}
+				closed = true;
+				super.close(); // EOC для OCTET STRING
+				try {
+					BerWriter.writeEndOfContents(signed); // eContent [0]
+					BerWriter.writeEndOfContents(signed); // encapContentInfo
+					
+					// certificates [0] IMPLICIT CertificateSet
+					final Asn1BerEncodeBuffer ebuf = new Asn1BerEncodeBuffer();
+					createCertificateSet(signerList).encode(ebuf, false);
+					BerWriter.writeTlv(signed, BerWriter.TAG_CONTEXT_0_CONSTRUCTED, ebuf.getMsgCopy());
+					
+					final SignerInfos signerInfos = new SignerInfos(signerList.size());
+					for (int z = 0; z < signatures.length; z++) {
+						signerInfos.elements[z] = createSignerInfo(signerList.get(z), signatures[z].sign());
+					}
+					writeEncoded(signed, signerInfos);
+					
+					BerWriter.writeEndOfContents(signed); // SignedData
+					BerWriter.writeEndOfContents(signed); // [0]
+					BerWriter.writeEndOfContents(signed); // ContentInfo
+				} catch (IOException e) {
+					throw e;
+				} catch (Exception e) {
+					throw new IOException(e.getMessage(), e);
+				} finally {
+					signed.close();
+				}
+			}
+		};
+	}
+	
+	/**
+	 * Запись ASN.1-структуры целиком (с тегом и длиной) в поток.
+	 * @param out
+	 * @param value
+	 * @throws Asn1Exception
+	 * @throws IOException
+	 */
+	private static void writeEncoded(OutputStream out, Asn1Type value) throws Asn1Exception, IOException {
+		final Asn1BerEncodeBuffer ebuf = new Asn1BerEncodeBuffer();
+		value.encode(ebuf);
+		out.write(ebuf.getMsgCopy());
+	}
+
 	private EncapsulatedContentInfo createEncapsulatedContentInfo(byte[] data) {
 		return new EncapsulatedContentInfo(new Asn1ObjectIdentifier(new OID(ENCAP_CONTENT_INDO_OID).value), new Asn1OctetString(data));
 	}
@@ -482,12 +641,218 @@ public class CryptoProCryptoUtils extends CryptoUtils {
 	 * @throws InvalidAlgorithmParameterException
 	 */
 	private SecretKey generateRandomSimmetricKey() throws NoSuchAlgorithmException, InvalidAlgorithmParameterException {
-		final KeyGenerator kg = KeyGenerator.getInstance(GOST28147_ALG);
+		final KeyGenerator kg = EnginePool.keyGenerator(GOST28147_ALG);
 		kg.init(paramss);
 		final SecretKey simmetricKey = kg.generateKey();
 		return simmetricKey;
 	}
 	
+	/**
+	 * Формирование RecipientInfo[]: от PARALLEL_RECIPIENTS_PROPERTY получателей - на пуле RecipientWorkers, поровну между задачами
+	 * (одну долю выполняет сам вызывающий поток). Каждый RecipientInfo пишется в свою ячейку out, так что порядок - порядок recipients.
+	 * @param keyTrans
+	 * @param recipients
+	 * @param out - RecipientInfos.elements
+	 * @throws Exception - первая ошибка формирования
+	 */
+	private void createRecipientInfos(final KeyTransBuilder keyTrans, final List<CmsProfile.RecipientEntry> recipients, final RecipientInfo[] out) throws Exception {
+		final int size = recipients.size();
+		final int threshold = parallelRecipients;
+		final int tasks = threshold > 0 && size >= threshold ? Math.min(Runtime.getRuntime().availableProcessors(), (size + MIN_RECIPIENTS_PER_TASK - 1) / MIN_RECIPIENTS_PER_TASK) : 1;
+		if (tasks <= 1) {
+			keyTrans.share(recipients, out, 0, 1).call();
+			return;
+		}
+		final List<Future<Void>> futures = new ArrayList<Future<Void>>(tasks - 1);
+		for (int t = 1; t < tasks; t++) {
+			futures.add(RecipientWorkers.EXECUTOR.submit(keyTrans.share(recipients, out, t, tasks)));
+		}
+		try {
+			keyTrans.share(recipients, out, 0, tasks).call();
+			for (Future<Void> future : futures) {
+				try {
+					future.get();
+				} catch (ExecutionException e) {
+					final Throwable cause = e.getCause();
+					if (cause instanceof Error) {
+						throw (Error) cause;
+					}
+					throw (Exception) cause;
+				}
+			}
+		} finally {
+			for (Future<Void> future : futures) {
+				future.cancel(false);
+			}
+		}
+	}
+	
+	/**
+	 * Минимальное число получателей для параллельного формирования RecipientInfo этим экземпляром.
+	 * @return 0 - всегда последовательно
+	 */
+	public int getParallelRecipients() {
+		return parallelRecipients;
+	}
+	
+	/**
+	 * @param threshold - минимальное число получателей для параллельного формирования RecipientInfo (0 - всегда последовательно)
+	 */
+	public void setParallelRecipients(int threshold) {
+		if (threshold < 0) {
+			throw new IllegalArgumentException("threshold < 0");
+		}
+		this.parallelRecipients = threshold;
+	}
+	
+	/**
+	 * KeyTransRecipientInfo для получателей одного сообщения. Части, зависящие только от отправителя (keyEncryptionAlgorithm,
+	 * ephemeralPublicKey), разбираются один раз на сообщение и затем только читаются, поэтому create() можно вызывать из разных потоков.
+	 */
+	private final class KeyTransBuilder {
+		
+		private final AgreementKeyCache agreementKeys;
+		
+		private final CmsProfile.SignerEntry sender;
+		
+		private final SecretKey simm;
+		
+		private final AlgIdInterface algid;
+		
+		private final KeyEncryptionAlgorithmIdentifier keyEncryptionAlgorithm;
+		
+		private final SubjectPublicKeyInfo ephemeralPublicKey;
+		
+		KeyTransBuilder(AgreementKeyCache agreementKeys, CmsProfile.SignerEntry sender, SecretKey simm) throws Asn1Exception, IOException {
+			this.agreementKeys = agreementKeys;
+			this.sender = sender;
+			this.simm = simm;
+			
+			final Asn1BerEncodeBuffer ebuf = new Asn1BerEncodeBuffer();
+			final SubjectPublicKeyInfo spki = new SubjectPublicKeyInfo();
+			final Asn1BerDecodeBuffer dbuff = new Asn1BerDecodeBuffer(sender.getCert().getPublicKey().getEncoded());
+			spki.decode(dbuff);
+			dbuff.reset();
+			
+			// KeyTransRecipientInfo:keyEncryptionAlgorithm
+			this.algid = new AlgIdSpec(spki.algorithm);
+			final AlgorithmIdentifier id = (AlgorithmIdentifier) algid.getDecoded();
+			id.encode(ebuf);
+			final Asn1BerDecodeBuffer dbuf = new Asn1BerDecodeBuffer(ebuf.getMsgCopy());
+			this.keyEncryptionAlgorithm = new KeyEncryptionAlgorithmIdentifier();
+			keyEncryptionAlgorithm.decode(dbuf);
+			
+			// GostR3410_TransportParameters:ephemeralPublicKey - открытый ключ отправителя
+			this.ephemeralPublicKey = spki;
+		}
+		
+		/**
+		 * Доля получателей: from, from + step, from + 2 * step...
+		 */
+		Callable<Void> share(final List<CmsProfile.RecipientEntry> recipients, final RecipientInfo[] out, final int from, final int step) {
+			return new Callable<Void>() {
+				
+				@Override
+				public Void call() throws Exception {
+					for (int z = from; z < recipients.size(); z += step) {
+						out[z] = create(recipients.get(z));
+					}
+					return null;
+				}
+			};
+		}
+		
+		RecipientInfo create(CmsProfile.RecipientEntry recipient) throws Exception {
+			// генерирование ключа согласования (или из кэша профиля: для тех же ключей и UKM он тот же)
+			final SecretKey agreementKey = getDHAgreementKey(agreementKeys, sender, recipient.getCert());
+			
+			// Зашифрование симметричного ключа на ключе согласования отправителя (Cipher свой у каждого потока)
+			final Cipher cipher = EnginePool.wrapCipher(CIPHER_MODE);
+			cipher.init(Cipher.WRAP_MODE, agreementKey, (SecureRandom) null);
+			final byte[] key = cipher.wrap(simm); // это ключик нужно положить в KTRI
+			
+			// Начинаем формировать RecipientInfo
+			final RecipientInfo recipientInfo = new RecipientInfo();
+			/*
+			 *  RecipientInfo ::= CHOICE {
+             * 		ktri KeyTransRecipientInfo, -> KeyTransRecipientInfo ::= SEQUENCE {
+             * 											version CMSVersion,  -- always set to 0 or 2
+             * 											rid RecipientIdentifier,
+             * 											keyEncryptionAlgorithm KeyEncryptionAlgorithmIdentifier,
+             * 											encryptedKey EncryptedKey }
+             * 		kari [1] KeyAgreeRecipientInfo, -> не наш вариант
+             * 		kekri [2] KEKRecipientInfo, 	-> не наш вариант
+             * 		pwri [3] PasswordRecipientinfo, -> не наш вариант
+             * 		ori [4] OtherRecipientInfo }	-> не наш вариант
+			 */
+			
+			final KeyTransRecipientInfo keytrans = new KeyTransRecipientInfo();
+			
+			// KeyTransRecipientInfo:version
+			keytrans.version = new CMSVersion(0);
+			
+			final Asn1BerEncodeBuffer ebuf = new Asn1BerEncodeBuffer();
+			
+			// KeyTransRecipientInfo:keyEncryptionAlgorithm
+			keytrans.keyEncryptionAlgorithm = keyEncryptionAlgorithm;
+			
+			// KeyTransRecipientInfo:rid
+			keytrans.rid = new RecipientIdentifier();
+			final IssuerAndSerialNumber issuer = new IssuerAndSerialNumber();
+			final X500Principal issuerName = recipient.getCert().getIssuerX500Principal();
+			Asn1BerDecodeBuffer dbuf = new Asn1BerDecodeBuffer(issuerName.getEncoded());
+			issuer.issuer = new Name();
+			final RDNSequence rnd = new RDNSequence();
+			rnd.decode(dbuf);
+			issuer.issuer.set_rdnSequence(rnd);
+			issuer.serialNumber = new CertificateSerialNumber(recipient.getCert().getSerialNumber());
+			keytrans.rid.set_issuerAndSerialNumber(issuer);
+			dbuf.reset();
+			
+			// KeyTransRecipientInfo:encryptedKey
+			final GostR3410_KeyTransport encrKey = new GostR3410_KeyTransport();
+			dbuf = new Asn1BerDecodeBuffer(key);
+			encrKey.sessionEncryptedKey = new Gost28147_89_EncryptedKey();
+			encrKey.sessionEncryptedKey.decode(dbuf);
+			dbuf.reset();
+			encrKey.transportParameters = new GostR3410_TransportParameters();
+			encrKey.transportParameters.encryptionParamSet = new Gost28147_89_ParamSet(algid.getCryptParams().getOID().value);
+			encrKey.transportParameters.ephemeralPublicKey = ephemeralPublicKey;
+			encrKey.transportParameters.ukm = new Asn1OctetString(sv);
+			encrKey.encode(ebuf);
+			keytrans.encryptedKey = new EncryptedKey(ebuf.getMsgCopy());
+			ebuf.reset();
+			
+			// Устанавливаем получивнийся KeyTransRecipientInfo в RecipientInfo
+			recipientInfo.set_ktri(keytrans);
+			return recipientInfo;
+		}
+	}
+	
+	/**
+	 * Ключ согласования через кэш профиля.
+	 * @param cache - null, если кэш не используется
+	 * @param sender
+	 * @param responder
+	 * @return
+	 * @throws CertificateEncodingException
+	 * @throws NoSuchAlgorithmException
+	 * @throws InvalidKeyException
+	 * @throws InvalidAlgorithmParameterException
+	 */
+	private SecretKey getDHAgreementKey(AgreementKeyCache cache, CmsProfile.SignerEntry sender, X509Certificate responder) throws CertificateEncodingException, NoSuchAlgorithmException, InvalidKeyException, InvalidAlgorithmParameterException {
+		if (cache == null) {
+			return generateDHAgreementKey(sender.getKey(), responder.getPublicKey());
+		}
+		final AgreementKeyCache.Key key = AgreementKeyCache.key(sender.getAlias(), responder, sv);
+		SecretKey agreementKey = cache.get(key, sender.getKey());
+		if (agreementKey == null) {
+			agreementKey = generateDHAgreementKey(sender.getKey(), responder.getPublicKey());
+			cache.put(key, sender.getKey(), agreementKey);
+		}
+		return agreementKey;
+	}
+	
 	/**
 	 * Генерация ключа согласования по DH
 	 * @param senderKey - PrivateKey отправителя
@@ -498,7 +863,7 @@ public class CryptoProCryptoUtils extends CryptoUtils {
 	 * @throws InvalidAlgorithmParameterException
 	 */
 	private SecretKey generateDHAgreementKey(PrivateKey senderKey, PublicKey responderPublic) throws NoSuchAlgorithmException, InvalidKeyException, InvalidAlgorithmParameterException {
-		final KeyAgreement senderKeyAgree = KeyAgreement.getInstance(JCP.GOST_DH_NAME);
+		final KeyAgreement senderKeyAgree = EnginePool.keyAgreement(JCP.GOST_DH_NAME);
 		senderKeyAgree.init(senderKey, new IvParameterSpec(sv), null);
 		senderKeyAgree.doPhase(responderPublic, true);
 		final SecretKey secret = senderKeyAgree.generateSecret("GOST28147");
@@ -506,16 +871,219 @@ public class CryptoProCryptoUtils extends CryptoUtils {
 	}
 	
 	public byte[] decrypt(byte[] ciphertext) throws Exception {
-		ciphertext = forceBASE64(ciphertext);
-		
+		return decrypt(CmsMessageContext.detect(ciphertext));
+	}
+	
+	@Override
+	protected byte[] decrypt(CmsMessageContext message) throws Exception {
 		//разбор CMS-сообщения
-	    Asn1BerDecodeBuffer dbuf = new Asn1BerDecodeBuffer(ciphertext);
+	    return decrypt(decodeContentInfo(message));
+	}
+	
+	/**
+	 * Стадия decrypt без буферизации сообщения: ASN.1-рантаймом разбираются только recipientInfos и contentEncryptionAlgorithm,
+	 * сеансовый ключ расшифровывается сразу, а encryptedContent (примитивный или по сегментам, определенной или неопределенной длины)
+	 * расшифровывается по мере чтения возвращенного потока. Память не зависит от размера сообщения.
+	 */
+	@Override
+	protected InputStream openDecrypt(InputStream ciphertext) throws Exception {
+		boolean opened = false;
+		try {
+			final InputStream plain = openEnvelopedData(forceBASE64(ciphertext));
+			opened = true;
+			return plain;
+		} finally {
+			if (!opened) {
+				ciphertext.close();
+			}
+		}
+	}
+	
+	/**
+	 * Разбор EnvelopedData из потока до начала encryptedContent.
+	 * ContentInfo { contentType, [0] EnvelopedData { version, [0] originatorInfo OPTIONAL, recipientInfos,
+	 * encryptedContentInfo { contentType, contentEncryptionAlgorithm, [0] encryptedContent } ... } }
+	 * @param der - сообщение (закрывается вместе с возвращенным потоком)
+	 * @return поток открытых данных
+	 * @throws Exception
+	 */
+	private InputStream openEnvelopedData(final InputStream der) throws Exception {
+		expectTag(BerReader.readHeader(der), BerWriter.TAG_SEQUENCE, "ContentInfo");
+		final BerReader.Header contentType = expectTag(BerReader.readHeader(der), BerWriter.TAG_OID, "ContentInfo.contentType");
+		if (!Arrays.equals(BerReader.readValue(der, contentType), ENVELOPED_DATA_OID_VALUE)) {
+			throw new GeneralSecurityException("Not an EnvelopedData message");
+		}
+		expectTag(BerReader.readHeader(der), BerWriter.TAG_CONTEXT_0_CONSTRUCTED, "ContentInfo.content");
+		expectTag(BerReader.readHeader(der), BerWriter.TAG_SEQUENCE, "EnvelopedData");
+		BerReader.skip(der, expectTag(BerReader.readHeader(der), BerWriter.TAG_INTEGER, "EnvelopedData.version"));
+		BerReader.Header header = BerReader.readHeader(der);
+		if (header != null && header.getTag() == BerWriter.TAG_CONTEXT_0_CONSTRUCTED) { // originatorInfo
+			BerReader.skip(der, header);
+			header = BerReader.readHeader(der);
+		}
+		final RecipientInfos recipientInfos = new RecipientInfos();
+		recipientInfos.decode(new Asn1BerDecodeBuffer(BerReader.readElement(der, expectTag(header, BerWriter.TAG_SET, "EnvelopedData.recipientInfos"))));
+		
+		expectTag(BerReader.readHeader(der), BerWriter.TAG_SEQUENCE, "EncryptedContentInfo");
+		BerReader.skip(der, expectTag(BerReader.readHeader(der), BerWriter.TAG_OID, "EncryptedContentInfo.contentType"));
+		final ContentEncryptionAlgorithmIdentifier algorithm = new ContentEncryptionAlgorithmIdentifier();
+		algorithm.decode(new Asn1BerDecodeBuffer(BerReader.readElement(der, expectTag(BerReader.readHeader(der), BerWriter.TAG_SEQUENCE, "EncryptedContentInfo.contentEncryptionAlgorithm"))));
+		final BerReader.Header encryptedContent = BerReader.readHeader(der);
+		if (encryptedContent == null || (encryptedContent.getTag() != BerWriter.TAG_CONTEXT_0_PRIMITIVE && encryptedContent.getTag() != BerWriter.TAG_CONTEXT_0_CONSTRUCTED)) {
+			throw new GeneralSecurityException("EnvelopedData without encryptedContent");
+		}
+		
+		// свой Cipher: поток живет дольше вызова
+		final Cipher cipher = Cipher.getInstance(CIPHER_MODE);
+		initContentCipher(cipher, algorithm, unwrapContentKey(recipientInfos.elements));
+		return new DecryptingInputStream(BerReader.openOctetString(der, encryptedContent), cipher, der);
+	}
+	
+	private static BerReader.Header expectTag(BerReader.Header header, int tag, String field) throws IOException {
+		if (header == null || header.getTag() != tag) {
+			throw new IOException("Malformed EnvelopedData: " + field + " expected" + (header != null ? ", but tag " + header.getTag() + " found" : ""));
+		}
+		return header;
+	}
+	
+	/**
+	 * Расшифрование по мере чтения: блок шифртекста читается, только когда открытые данные предыдущего блока выданы.
+	 */
+	private static final class DecryptingInputStream extends InputStream {
+		
+		private final InputStream encrypted;
+		
+		private final Cipher cipher;
+		
+		private final InputStream source;
+		
+		private final byte[] in = new byte[StreamUtils.BUFFER_SIZE];
+		
+		private byte[] out = new byte[StreamUtils.BUFFER_SIZE];
+		
+		private int position = 0;
+		
+		private int limit = 0;
+		
+		private boolean finished = false;
+		
+		/**
+		 * @param encrypted - шифртекст
+		 * @param cipher - инициализированный на расшифрование
+		 * @param source - исходный поток, закрывается в close()
+		 */
+		DecryptingInputStream(InputStream encrypted, Cipher cipher, InputStream source) {
+			this.encrypted = encrypted;
+			this.cipher = cipher;
+			this.source = source;
+		}
+		
+		private boolean fill() throws IOException {
+			while (position == limit) {
+				if (finished) {
+					return false;
+				}
+				final int count = encrypted.read(in);
+				try {
+					if (count < 0) {
+						out = cipher.doFinal();
+						limit = out.length;
+						finished = true;
+					} else {
+						final int size = cipher.getOutputSize(count);
+						if (size > out.length) {
+							out = new byte[size];
+						}
+						limit = cipher.update(in, 0, count, out, 0);
+					}
+				} catch (GeneralSecurityException e) {
+					throw new IOException(e.getMessage(), e);
+				}
+				position = 0;
+			}
+			return true;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			return fill() ? out[position++] & 0xFF : -1;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (!fill()) {
+				return -1;
+			}
+			final int count = Math.min(len, limit - position);
+			System.arraycopy(out, position, b, off, count);
+			position += count;
+			return count;
+		}
+		
+		@Override
+		public int available() {
+			return limit - position;
+		}
+		
+		@Override
+		public void close() throws IOException {
+			source.close();
+		}
+	}
+	
+	/**
+	 * Разбор ContentInfo.
+	 * @param dbuf - буфер (поверх массива или потока)
+	 * @return
+	 * @throws Asn1Exception
+	 * @throws IOException
+	 */
+	private static ContentInfo decodeContentInfo(Asn1BerDecodeBuffer dbuf) throws Asn1Exception, IOException {
 	    final ContentInfo all = new ContentInfo();
 	    all.decode(dbuf);
 	    dbuf.reset();
+	    return all;
+	}
+	
+	/**
+	 * ContentInfo сообщения: декодируется при первом обращении и сохраняется в контексте для следующих стадий.
+	 * @param message
+	 * @return
+	 * @throws Asn1Exception
+	 * @throws IOException
+	 */
+	private static ContentInfo decodeContentInfo(CmsMessageContext message) throws Asn1Exception, IOException {
+		ContentInfo all = message.getDecoded(ContentInfo.class);
+		if (all == null) {
+			all = decodeContentInfo(new Asn1BerDecodeBuffer(message.getDer()));
+			message.setDecoded(all);
+		}
+		return all;
+	}
+	
+	private byte[] decrypt(ContentInfo all) throws Exception {
 	    final EnvelopedData cms = (EnvelopedData) all.content;
+	    final SecretKey simmKey = unwrapContentKey(cms.recipientInfos.elements);
+	    final Cipher cipher = EnginePool.cipher(CIPHER_MODE);
+	    initContentCipher(cipher, cms.encryptedContentInfo.contentEncryptionAlgorithm, simmKey);
 	    
-	    RecipientInfo[] recipientInfos = cms.recipientInfos.elements;
+	    // зашифрованная нагрузка
+	    final byte[] encryptedData = cms.encryptedContentInfo.encryptedContent.value;
+	    byte[] result = cipher.doFinal(encryptedData, 0, encryptedData.length);
+	    return result;
+	}
+	
+	/**
+	 * Расшифрование сеансового ключа для первого получателя (ktri), чей закрытый ключ есть в хранилище.
+	 * @param recipientInfos
+	 * @return ключ шифрования содержимого
+	 * @throws Exception
+	 */
+	private SecretKey unwrapContentKey(RecipientInfo[] recipientInfos) throws Exception {
+	    Asn1BerDecodeBuffer dbuf;
 	    
 	    // Вращаем получателей
 	    for (RecipientInfo recipientInfo : recipientInfos) {
@@ -535,8 +1103,11 @@ public class CryptoProCryptoUtils extends CryptoUtils {
 		    	LOG.warning("Skip RecipientInfo because RI in a keystore not found by SERIAL or SKI or unknown type -> " + keytrans.rid.getElemName());
 		    	continue;
 		    }
+		    if (LOG.isLoggable(Level.FINE)) {
+		    	LOG.fine("Recipient '" + recipientAliase + "' found" + (getKeyStoreIndex().isFederated() ? " in key store " + getKeyStoreIndex().getStoreName(recipientAliase) : ""));
+		    }
 		    
-		    PrivateKey recipientPrivateKey = getKeyFromStore(recipientAliase, storePassword);
+		    PrivateKey recipientPrivateKey = getPrivateKey(recipientAliase);
 		    
 		    if (recipientPrivateKey == null) {
 		    	if (LOG.isLoggable(Level.WARNING)) {
@@ -564,50 +1135,54 @@ public class CryptoProCryptoUtils extends CryptoUtils {
 		    ebuf.reset();
 		    
 		    final byte[] sv = encrKey.transportParameters.ukm.value;
-		    final Gost28147_89_Parameters params = (Gost28147_89_Parameters) cms.encryptedContentInfo.contentEncryptionAlgorithm.parameters;
-		    final byte[] iv = params.iv.value;
-		    final OID cipherOID = new OID(params.encryptionParamSet.value);
-		    
-		    // зашифрованная нагрузка
-		    final byte[] encryptedData = cms.encryptedContentInfo.encryptedContent.value;
 		    
 		    //отправитель - открытый ключ из cms
 		    final X509EncodedKeySpec pspec = new X509EncodedKeySpec(encodedPub);
-		    final KeyFactory kf = KeyFactory.getInstance(JCP.GOST_DH_NAME);
+		    final KeyFactory kf = EnginePool.keyFactory(JCP.GOST_DH_NAME);
 		    final PublicKey senderPublicKey = kf.generatePublic(pspec);
 		    
 		    // выработка ключа согласования получателем
-		    final KeyAgreement responderKeyAgree = KeyAgreement.getInstance(JCP.GOST_DH_NAME);
+		    final KeyAgreement responderKeyAgree = EnginePool.keyAgreement(JCP.GOST_DH_NAME);
 		    responderKeyAgree.init(recipientPrivateKey, new IvParameterSpec(sv), null);
 		    responderKeyAgree.doPhase(senderPublicKey, true);
 		    final SecretKey agreemtntKey = responderKeyAgree.generateSecret("GOST28147");
 
 		    // Расшифрование симметричного ключа.
-		    final Cipher cipher = Cipher.getInstance(CIPHER_MODE);
+		    final Cipher cipher = EnginePool.wrapCipher(CIPHER_MODE);
 		    cipher.init(Cipher.UNWRAP_MODE, agreemtntKey, (SecureRandom) null);
 		    final SecretKey simmKey = (SecretKey) cipher.unwrap(wrapKey, null, Cipher.SECRET_KEY);
-		    
-		    // Расшифрование текста на симметричном ключе.
-		    final GostCipherSpec spec = new GostCipherSpec(iv, cipherOID);
-		    cipher.init(Cipher.DECRYPT_MODE, simmKey, spec, null); 
-		    byte[] result = cipher.doFinal(encryptedData, 0, encryptedData.length);
-		    return result;
+		    return simmKey;
 	    }
 		throw new GeneralSecurityException("Decription failed. No one suitable recipient.");
 	}
 	
+	/**
+	 * Расшифрование текста на симметричном ключе: IV и набор параметров - из contentEncryptionAlgorithm.
+	 * @param cipher
+	 * @param algorithm
+	 * @param simmKey
+	 * @throws GeneralSecurityException
+	 */
+	private static void initContentCipher(Cipher cipher, ContentEncryptionAlgorithmIdentifier algorithm, SecretKey simmKey) throws GeneralSecurityException {
+	    final Gost28147_89_Parameters params = (Gost28147_89_Parameters) algorithm.parameters;
+	    final byte[] iv = params.iv.value;
+	    final OID cipherOID = new OID(params.encryptionParamSet.value);
+	    final GostCipherSpec spec = new GostCipherSpec(iv, cipherOID);
+	    cipher.init(Cipher.DECRYPT_MODE, simmKey, spec, null);
+	}
+	
 	/**
 	 * Поиск алиаса в хранилище (keyStore) по SignerIdentifier
 	 * @param signerIdentifier
 	 * @return null - если сертификат не найден в хранилище
 	 * @throws KeyStoreException
 	 */
-	private String lookupAlias(SignerIdentifier signerIdentifier) throws KeyStoreException {
+	private String lookupAlias(SignerIdentifier signerIdentifier) throws KeyStoreException, Asn1Exception {
 		String res = null;
 		if (signerIdentifier.getChoiceID() == SignerIdentifier._ISSUERANDSERIALNUMBER) {
 			IssuerAndSerialNumber issuerAndSerialNumber = (IssuerAndSerialNumber) signerIdentifier.getElement();
 			BigInteger serialNumber = issuerAndSerialNumber.serialNumber.value;
-			res = lookupKeyStoreBySerialNumber(serialNumber);
+			res = lookupKeyStoreByIssuerAndSerialNumber(encodeX500Principal(issuerAndSerialNumber.issuer), serialNumber);
 			
 		} else if (signerIdentifier.getChoiceID() == SignerIdentifier._SUBJECTKEYIDENTIFIER) {
 			SubjectKeyIdentifier subjectKeyIdentifier = (SubjectKeyIdentifier) signerIdentifier.getElement();
@@ -628,12 +1203,12 @@ public class CryptoProCryptoUtils extends CryptoUtils {
 	 * @throws RecipientIdentifierNotFound
 	 * @throws KeyStoreException 
 	 */
-	private String lookupAlias(RecipientIdentifier recipientIdentifier) throws KeyStoreException {
+	private String lookupAlias(RecipientIdentifier recipientIdentifier) throws KeyStoreException, Asn1Exception {
 		String res = null;
 		if (recipientIdentifier.getChoiceID() == RecipientIdentifier._ISSUERANDSERIALNUMBER) {
 			IssuerAndSerialNumber issuerAndSerialNumber = (IssuerAndSerialNumber) recipientIdentifier.getElement();
 			BigInteger serialNumber = issuerAndSerialNumber.serialNumber.value;
-			res = lookupKeyStoreBySerialNumber(serialNumber);
+			res = lookupKeyStoreByIssuerAndSerialNumber(encodeX500Principal(issuerAndSerialNumber.issuer), serialNumber);
 			
 		} else if (recipientIdentifier.getChoiceID() == RecipientIdentifier._SUBJECTKEYIDENTIFIER) {
 			SubjectKeyIdentifier subjectKeyIdentifier = (SubjectKeyIdentifier) recipientIdentifier.getElement();
@@ -648,11 +1223,37 @@ public class CryptoProCryptoUtils extends CryptoUtils {
 	}
 
 	public byte[] detach(byte[] signed) throws Exception {
-		signed = forceBASE64(signed);
-		final Asn1BerDecodeBuffer asnBuf = new Asn1BerDecodeBuffer(signed);
-		final ContentInfo all = new ContentInfo();
-		all.decode(asnBuf);
-		
+		return detach(CmsMessageContext.detect(signed));
+	}
+	
+	@Override
+	protected byte[] detach(CmsMessageContext message) throws Exception {
+		final ContentInfo decoded = message.getDecoded(ContentInfo.class);
+		if (decoded != null) {
+			return detach(decoded); // уже разобрано предыдущей стадией (verify)
+		}
+		final byte[] direct = detachDirect(message);
+		if (direct != null) {
+			return direct;
+		}
+		return detach(decodeContentInfo(message));
+	}
+	
+	@Override
+	protected InputStream openDetach(InputStream signed) throws Exception {
+		final InputStream direct = openDetachDirect(signed);
+		if (direct != null) {
+			return direct;
+		}
+		try {
+			final byte[] payloadBytes = detach(decodeContentInfo(new Asn1BerDecodeBuffer(forceBASE64(signed))));
+			return new ByteArrayInputStream(payloadBytes != null ? payloadBytes : new byte[0]);
+		} finally {
+			signed.close();
+		}
+	}
+	
+	private byte[] detach(ContentInfo all) throws Exception {
 		if (!new OID(SIGNED_DATA_OID).eq(all.contentType.value))
 			throw new Exception("Not supported contentType. SignedData supported only. OID = " + SIGNED_DATA_OID);
 		
@@ -667,13 +1268,50 @@ public class CryptoProCryptoUtils extends CryptoUtils {
 		return payloadBytes;
 	}
 	
-	public void verify(byte[] signed) throws Exception {
-		signed = forceBASE64(signed);
-		
-		final Asn1BerDecodeBuffer asnBuf = new Asn1BerDecodeBuffer(signed);
-		final ContentInfo all = new ContentInfo();
-		all.decode(asnBuf);
-		
+	@Override
+	protected void verify(CmsProfile profile, byte[] signed, VerificationOutcome outcome) throws Exception {
+		verify(profile, CmsMessageContext.detect(signed), outcome);
+	}
+	
+	@Override
+	protected void verify(CmsProfile profile, CmsMessageContext message, VerificationOutcome outcome) throws Exception {
+		verify(profile, decodeContentInfo(message), message, outcome);
+	}
+	
+	@Override
+	protected void verify(CmsProfile profile, InputStream signed, VerificationOutcome outcome) throws Exception {
+		verify(profile, decodeContentInfo(new Asn1BerDecodeBuffer(forceBASE64(signed))), null, outcome);
+	}
+	
+	/**
+	 * Сертификаты, вложенные в SignedData. Разбираются один раз на сообщение (если есть контекст),
+	 * а повторяющиеся в разных сообщениях сертификаты - один раз вообще (см. CertificateCache).
+	 * @param signedData
+	 * @param message - контекст или null
+	 * @return
+	 * @throws Exception
+	 */
+	private static List<X509Certificate> embeddedCertificates(SignedData signedData, CmsMessageContext message) throws Exception {
+		if (message != null && message.getCertificates() != null) {
+			return message.getCertificates();
+		}
+		List<X509Certificate> signedDataCertificatesList = new ArrayList<X509Certificate>();
+		if (signedData.certificates != null) {
+			final CertificateCache cache = CertificateCache.getShared();
+			final Asn1BerEncodeBuffer encBuf = new Asn1BerEncodeBuffer();
+			for (int i = 0; i < signedData.certificates.elements.length; i++) {
+				encBuf.reset();
+				signedData.certificates.elements[i].encode(encBuf);
+				signedDataCertificatesList.add(cache.intern(encBuf.getMsgCopy()));
+			}
+		}
+		if (message != null) {
+			message.setCertificates(signedDataCertificatesList);
+		}
+		return signedDataCertificatesList;
+	}
+	
+	private void verify(CmsProfile profile, ContentInfo all, CmsMessageContext message, VerificationOutcome outcome) throws Exception {
 		final SignedData signedData = (SignedData) all.content;
 		
 		final OID eContTypeOID = new OID(signedData.encapContentInfo.eContentType.value);
@@ -704,22 +1342,14 @@ public class CryptoProCryptoUtils extends CryptoUtils {
 			throw new DigestException(JCP.GOST_DIGEST_OID + " (GOST_DIGEST_OID) not found in SignedData");
 		}
 		
-		// certificates
-		List<X509Certificate> signedDataCertificatesList = new ArrayList<X509Certificate>();
-		for (int i = 0; i < signedData.certificates.elements.length; i++) {
-			final Asn1BerEncodeBuffer encBuf = new Asn1BerEncodeBuffer();
-			signedData.certificates.elements[i].encode(encBuf);
-
-			final CertificateFactory cf = CertificateFactory.getInstance("X.509");
-			final X509Certificate cert = (X509Certificate) cf.generateCertificate(encBuf.getInputStream());
-			signedDataCertificatesList.add(cert);
+		// Сертификаты из SignedData - нужны, только если проверка на вложенных сертификатах разрешена
+		List<CertStore> certificates = null;
+		if (profile.isFlagNotSet(OPT_STORED_CERT_ONLY)) {
+			CertStore signedDataCertificates = PKIXUtils.createCertStoreFromList(embeddedCertificates(signedData, message));
+			certificates = new ArrayList<CertStore>();
+			certificates.add(signedDataCertificates);
 		}
 		
-		// Сертификаты из SignedData
-		CertStore signedDataCertificates = PKIXUtils.createCertStoreFromList(signedDataCertificatesList);
-		List<CertStore> certificates = new ArrayList<CertStore>();
-		certificates.add(signedDataCertificates);
-		
 		// Вращаем подписчиков
 		SignerInfo[] signerInfos = signedData.signerInfos.elements;
 		
@@ -737,7 +1367,7 @@ public class CryptoProCryptoUtils extends CryptoUtils {
 			
 			X509Certificate cert = null;
 
-			if (isFlagNotSet(OPT_STORED_CERT_ONLY)) { // только если есть проверка на вложеных сертификатах разрешена
+			if (profile.isFlagNotSet(OPT_STORED_CERT_ONLY)) { // только если есть проверка на вложеных сертификатах разрешена
 				// пробуем найти нужный сертификат во входящих сертификатах (по IssuerAndSerialNumber или SubjectKeyIdentifier)
 				if (sid.getChoiceID() == SignerIdentifier._ISSUERANDSERIALNUMBER) {
 					IssuerAndSerialNumber issuerAndSerialNumber = (IssuerAndSerialNumber) sid.getElement();
@@ -770,7 +1400,7 @@ public class CryptoProCryptoUtils extends CryptoUtils {
 			}
 			
 			// пропуск самоподписанного сертификата если такая опция установлена
-			boolean skipSelfSigned = isFlagSet(OPT_SKIP_SELFSIGNED_CERT);
+			boolean skipSelfSigned = profile.isFlagSet(OPT_SKIP_SELFSIGNED_CERT);
 			if (skipSelfSigned && PKIXUtils.isSelfSigned(cert)) {
 				LOG.info("Skip (with option OPT_SKIP_SELFSIGNED_CERT) self-signed certificate " + cert.getSubjectDN().getName() + " serial is " + cert.getSerialNumber());
 				continue;
@@ -868,11 +1498,8 @@ public class CryptoProCryptoUtils extends CryptoUtils {
 				throw new SignatureException("Signature verification failed. " + resMsg);
 			}
 			
-			if (isFlagNotSet(OPT_DISABLE_CERT_VALIDATION)) {
-				/* Проверить сертификат на валидность: дата, chain, CRL */
-				boolean allowSelfSignedCertificates = isFlagSet(OPT_ALLOW_SELFSIGNED_CERT);
-				CertificateVerifier.verifyCertificate(cert, getKeyStore(), allowSelfSignedCertificates, "JCP");
-			}
+			/* Проверить сертификат на валидность: дата, chain, CRL (если не отключено и не отложено) */
+			verifySignerCertificate(profile, cert, "JCP", outcome);
 			
 		}
 		
@@ -898,7 +1525,7 @@ public class CryptoProCryptoUtils extends CryptoUtils {
 	public static byte[] digestm(byte[] bytes, String digestAlgorithmName) throws Exception {
 	    //calculation messageDigest
 	    final ByteArrayInputStream stream = new ByteArrayInputStream(bytes);
-	    final MessageDigest digest = MessageDigest.getInstance(digestAlgorithmName);
+	    final MessageDigest digest = EnginePool.messageDigest(digestAlgorithmName);
 	    final DigestInputStream digestStream = new DigestInputStream(stream, digest);
 	    while (digestStream.available() != 0) digestStream.read();
 	    return digest.digest();
@@ -915,7 +1542,7 @@ public class CryptoProCryptoUtils extends CryptoUtils {
 	 * @throws SignatureException
 	 */
 	private static boolean verifySignature(X509Certificate cert, byte[] sign, byte[] text) throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
-		final Signature signature = Signature.getInstance(JCP.GOST_EL_SIGN_NAME);
+		final Signature signature = EnginePool.signature(JCP.GOST_EL_SIGN_NAME);
 		signature.initVerify(cert);
 		signature.update(text);
 		return signature.verify(sign);
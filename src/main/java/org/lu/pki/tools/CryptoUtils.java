@@ -1,7 +1,20 @@
 package org.lu.pki.tools;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
@@ -14,11 +27,10 @@ import java.security.cert.CertStoreException;
 import java.security.cert.X509CertSelector;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
-import java.util.Enumeration;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 import javax.security.auth.x500.X500Principal;
@@ -42,8 +54,8 @@ public abstract class CryptoUtils {
 		@Override
 		protected CertPathBuilder initialValue() {
 			try {
-				return CertPathBuilder.getInstance("PKIX");
-			} catch (NoSuchAlgorithmException e) {
+				return EnginePool.certPathBuilder("PKIX", null);
+			} catch (GeneralSecurityException e) {
 				throw new IllegalArgumentException(e);
 			}
 		}
@@ -52,9 +64,33 @@ public abstract class CryptoUtils {
 	
 	public static final String SUBJECT_KEY_IDENTEFER_OID = "2.5.29.14";
 	
-	private KeyStore keyStore = null;
+	/**
+	 * Текущий снимок хранилища с индексами поиска. Общий для инстанса и всех его fork(), при перезагрузке подменяется целиком.
+	 */
+	private volatile KeyStoreHolder keyStoreHolder = null;
+	
+	/**
+	 * Разблокированные закрытые ключи. Общий для инстанса и всех его fork().
+	 */
+	private volatile PrivateKeyCache privateKeyCache = new PrivateKeyCache();
+	
+	/**
+	 * Большой список доверия вне кучи (null - не используется). Общий для инстанса и всех его fork().
+	 */
+	private volatile CompactCertificateIndex trustList = null;
+	
+	/**
+	 * Время создания инстанса и первой операции с ключом или сертификатом хранилища (0 - операций еще не было).
+	 */
+	private final long createdNanos = System.nanoTime();
 	
-	private int verificationOptions = 0;
+	private volatile long firstOperationNanos = 0;
+	
+	/**
+	 * Текущий профиль для операций без явного профиля. signer(), recipients() и withVerificationOptions() заменяют его копией.
+	 * Замена - чтение и запись под блокировкой экземпляра, иначе одновременные изменения разных полей теряются.
+	 */
+	private volatile CmsProfile profile = CmsProfile.EMPTY;
 	
 	public final static int OPT_ALL_FLAGS_DOWN  = 0;
 	
@@ -96,15 +132,67 @@ public abstract class CryptoUtils {
 		certPathBuilder.set(builder);
 	}
 	
+	/**
+	 * Провайдер PKIX CertPathBuilder, которым реализация строит цепочку сертификата подписчика (null - провайдер по умолчанию).
+	 * Это не провайдер подписи из verifySignerCertificate(): построитель цепочки может быть из другого провайдера.
+	 * @return
+	 */
+	protected String getCertPathBuilderProvider() {
+		return null;
+	}
+	
 	public abstract byte[] decrypt(byte[] ciphertext) throws Exception;
 	
 	public abstract byte[] detach(byte[] signed) throws Exception;
 	
-	public abstract byte[] encrypt(byte[] plain) throws Exception;
+	public byte[] encrypt(byte[] plain) throws Exception {
+		return encrypt(getProfile(), plain);
+	}
+	
+	/**
+	 * Зашифрование для получателей профиля. Не меняет состояние экземпляра и может вызываться из разных потоков.
+	 * @param profile
+	 * @param plain
+	 * @return
+	 * @throws Exception
+	 */
+	public abstract byte[] encrypt(CmsProfile profile, byte[] plain) throws Exception;
+	
+	public void verify(byte[] signed) throws Exception {
+		verify(getProfile(), signed);
+	}
+	
+	/**
+	 * Проверка подписи с опциями профиля. Не меняет состояние экземпляра и может вызываться из разных потоков.
+	 * @param profile
+	 * @param signed
+	 * @throws Exception
+	 */
+	public void verify(CmsProfile profile, byte[] signed) throws Exception {
+		verify(profile, signed, new VerificationOutcome(false));
+	}
+	
+	/**
+	 * Проверка подписи. Сертификат каждого подписчика, чья подпись сошлась, передается в verifySignerCertificate.
+	 * @param profile
+	 * @param signed
+	 * @param outcome - куда собираются подписчики (и признак отложенной проверки сертификатов)
+	 * @throws Exception
+	 */
+	protected abstract void verify(CmsProfile profile, byte[] signed, VerificationOutcome outcome) throws Exception;
 	
-	public abstract void verify(byte[] signed) throws Exception;
+	public byte[] signAttached(byte[] data) throws Exception {
+		return signAttached(getProfile(), data);
+	}
 	
-	public abstract byte[] signAttached(byte[] data) throws Exception;
+	/**
+	 * Подпись ключами подписчиков профиля. Не меняет состояние экземпляра и может вызываться из разных потоков.
+	 * @param profile
+	 * @param data
+	 * @return
+	 * @throws Exception
+	 */
+	public abstract byte[] signAttached(CmsProfile profile, byte[] data) throws Exception;
 	
 	/**
 	 * Добавление списка получателей сообщения. Используется в RecipientInfo и при генерации ключа сограсования.
@@ -122,35 +210,263 @@ public abstract class CryptoUtils {
 	 */
 	public abstract CryptoUtils signer(String... signerAliases) throws Exception;
 	
+	/**
+	 * Независимая копия для работы в другом потоке: то же хранилище ключей (только чтение), тот же профиль
+	 * и собственные движки. Вызывается в том потоке, где копия будет работать.
+	 * @return
+	 * @throws Exception
+	 */
+	public abstract CryptoUtils fork() throws Exception;
+	
+	/**
+	 * Загрузка закрытого ключа подписчика из хранилища (с паролем хранилища).
+	 * @param alias
+	 * @return
+	 * @throws KeyStoreException
+	 * @throws NoSuchAlgorithmException
+	 * @throws UnrecoverableKeyException
+	 */
+	protected abstract PrivateKey loadPrivateKey(String alias) throws KeyStoreException, NoSuchAlgorithmException, UnrecoverableKeyException;
+	
+	/**
+	 * Закрытый ключ через кэш: из хранилища (loadPrivateKey) ключ читается только при промахе.
+	 * @param alias
+	 * @return null - если по алиасу нет ключа
+	 * @throws KeyStoreException
+	 * @throws NoSuchAlgorithmException
+	 * @throws UnrecoverableKeyException
+	 */
+	protected final PrivateKey getPrivateKey(String alias) throws KeyStoreException, NoSuchAlgorithmException, UnrecoverableKeyException {
+		if (alias == null) {
+			return null;
+		}
+		PrivateKeyCache cache = privateKeyCache;
+		PrivateKey key = cache.get(alias);
+		if (key == null) {
+			key = loadPrivateKey(alias);
+			cache.put(alias, key);
+		}
+		firstOperation();
+		return key;
+	}
+	
+	/**
+	 * Время до первой операции: от создания инстанса (включая загрузку хранилища) до первого ключа или сертификата,
+	 * выданного из хранилища, или первого проверенного подписчика. С отложенной загрузкой хранилища сюда входит и сама загрузка.
+	 * @return миллисекунды или -1, если операций еще не было
+	 */
+	public final long getTimeToFirstOperationMillis() {
+		long first = firstOperationNanos;
+		return first != 0 ? TimeUnit.NANOSECONDS.toMillis(first - createdNanos) : -1;
+	}
+	
+	private void firstOperation() {
+		if (firstOperationNanos == 0) {
+			long now = System.nanoTime();
+			synchronized (this) {
+				if (firstOperationNanos != 0) {
+					return;
+				}
+				firstOperationNanos = now;
+			}
+			KeyStoreIndex index = getKeyStoreIndex();
+			LOG.info("Time to first operation: " + getTimeToFirstOperationMillis() + " ms" + (index != null && !index.isKeyStoreLoaded() ? " (key store not loaded yet)" : ""));
+		}
+	}
+	
+	public final PrivateKeyCache getPrivateKeyCache() {
+		return privateKeyCache;
+	}
+	
+	/**
+	 * Замена кэша ключей (другие размер и ttl). Экземпляры, полученные fork() после замены, разделяют новый кэш.
+	 * Кэши ключей согласования, привязанные к прежнему кэшу, к новому не переходят.
+	 * @param cache
+	 */
+	public final void setPrivateKeyCache(PrivateKeyCache cache) {
+		if (cache == null) {
+			throw new NullPointerException("cache");
+		}
+		this.privateKeyCache = cache;
+	}
+	
+	public final CompactCertificateIndex getTrustList() {
+		return trustList;
+	}
+	
+	/**
+	 * Подключение большого списка доверия: в нем ищутся сертификаты подписчиков, не найденные в сообщении и хранилище,
+	 * и издатели при проверке цепочки. Экземпляры, полученные fork() после подключения, разделяют список.
+	 * @param trustList - null отключает список
+	 */
+	public final void useTrustList(CompactCertificateIndex trustList) {
+		this.trustList = trustList;
+	}
+	
+	// --- PROFILE PART ---------------------------------------------
+	
+	/**
+	 * Сборка неизменяемого профиля по алиасам хранилища этого экземпляра.
+	 * @return
+	 */
+	public CmsProfile.Builder profile() {
+		return new CmsProfile.Builder(this);
+	}
+	
+	/**
+	 * Текущий профиль (с подписчиками, получателями и опциями, заданными через signer(), recipients(), withVerificationOptions()).
+	 * @return
+	 */
+	public final CmsProfile getProfile() {
+		return profile;
+	}
+	
+	protected final void setProfile(CmsProfile profile) {
+		this.profile = profile;
+	}
+	
+	/**
+	 * Замена подписчиков текущего профиля (алиасы разрешаются до вызова, вне блокировки).
+	 * @param signers
+	 */
+	protected final synchronized void setSigners(List<CmsProfile.SignerEntry> signers) {
+		profile = profile.withSigners(signers);
+	}
+	
+	/**
+	 * Замена подписчиков текущего профиля, разрешенных по алиасам.
+	 * @param signers
+	 * @param resolvedIn - снимок хранилища, взятый до разрешения алиасов: после перезагрузки профиль разрешается заново (см. currentProfile())
+	 */
+	protected final synchronized void setSigners(List<CmsProfile.SignerEntry> signers, KeyStoreIndex resolvedIn) {
+		profile = profile.withSigners(signers, resolvedIn);
+	}
+	
+	protected final synchronized void setRecipients(List<CmsProfile.RecipientEntry> recipients) {
+		profile = profile.withRecipients(recipients);
+	}
+	
+	protected final synchronized void setRecipients(List<CmsProfile.RecipientEntry> recipients, KeyStoreIndex resolvedIn) {
+		profile = profile.withRecipients(recipients, resolvedIn);
+	}
+	
+	/**
+	 * Профиль для очередной операции. Если хранилище перезагружено после разрешения алиасов профиля,
+	 * подписчики и получатели разрешаются заново по текущему снимку (новые ключи и сертификаты),
+	 * опции проверки и кэш ключей согласования сохраняются. Повторное разрешение запоминается в профиле - одно на снимок.
+	 * @param profile
+	 * @return
+	 * @throws KeyStoreException - алиас получателя больше не найден в хранилище
+	 * @throws NoSuchAlgorithmException
+	 * @throws UnrecoverableKeyException
+	 */
+	protected final CmsProfile currentProfile(CmsProfile profile) throws KeyStoreException, NoSuchAlgorithmException, UnrecoverableKeyException {
+		KeyStoreIndex current = getKeyStoreIndex();
+		KeyStoreIndex snapshot = profile.getSnapshot();
+		if (snapshot == null || snapshot == current) {
+			return profile;
+		}
+		CmsProfile resolved = profile.getResolved();
+		if (resolved != null && resolved.getSnapshot() == current) {
+			return resolved;
+		}
+		String[] signerAliases = new String[profile.getSigners().size()];
+		for (int i = 0; i < signerAliases.length; i++) {
+			signerAliases[i] = profile.getSigners().get(i).getAlias();
+		}
+		String[] recipientAliases = new String[profile.getRecipients().size()];
+		for (int i = 0; i < recipientAliases.length; i++) {
+			recipientAliases[i] = profile.getRecipients().get(i).getAlias();
+		}
+		LOG.fine("KeyStore reloaded, resolving profile aliases again");
+		// снимок взят до разрешения: если хранилище перезагрузится еще раз, следующая операция разрешит профиль заново
+		return profile.resolvedAgainst(current, resolveSigners(signerAliases), resolveRecipients(recipientAliases));
+	}
+	
+	/**
+	 * Разрешение алиасов подписчиков. Алиасы без закрытого ключа пропускаются с предупреждением.
+	 * @param signerAliases
+	 * @return
+	 * @throws KeyStoreException
+	 * @throws NoSuchAlgorithmException
+	 * @throws UnrecoverableKeyException
+	 */
+	protected List<CmsProfile.SignerEntry> resolveSigners(String... signerAliases) throws KeyStoreException, NoSuchAlgorithmException, UnrecoverableKeyException {
+		List<CmsProfile.SignerEntry> res = new ArrayList<CmsProfile.SignerEntry>();
+		if (signerAliases == null) {
+			return res;
+		}
+		for (String signer : signerAliases) {
+			if (getKeyStoreIndex().isKeyEntry(signer)) {
+				res.add(new CmsProfile.SignerEntry(signer, getPrivateKey(signer), getCertificateFromStore(signer)));
+				LOG.fine("Adding signer with alias " + signer);
+			} else {
+				LOG.warning("Alias " + signer + " doesn't have private key and can't be a signer");
+			}
+		}
+		return res;
+	}
+	
+	protected List<CmsProfile.RecipientEntry> resolveRecipients(String... recipientsAliases) throws KeyStoreException {
+		List<CmsProfile.RecipientEntry> res = new ArrayList<CmsProfile.RecipientEntry>();
+		if (recipientsAliases == null) {
+			return res;
+		}
+		for (String recipient : recipientsAliases) {
+			res.add(new CmsProfile.RecipientEntry(recipient, getCertificateFromStore(recipient)));
+		}
+		return res;
+	}
+	
 	// =============================================================
 	
+	/**
+	 * Кэширование ключей согласования при шифровании с текущим профилем (см. AgreementKeyCache).
+	 * @param cache - null отключает кэширование
+	 */
+	public final synchronized void useAgreementKeyCache(AgreementKeyCache cache) {
+		if (cache != null) {
+			getPrivateKeyCache().link(cache);
+		}
+		profile = profile.withAgreementKeyCache(cache);
+	}
+	
 	public final int withVerificationOptions(String combination) {
+		return withVerificationOptions(parseVerificationOptions(combination));
+	}
+	
+	public final synchronized int withVerificationOptions(int... flags) {
+		int options = combineVerificationOptions(flags);
+		profile = profile.withVerificationOptions(options);
+		return options;
+	}
+	
+	static int parseVerificationOptions(String combination) {
 		if (combination == null) {
-			return withVerificationOptions(OPT_ALL_FLAGS_DOWN);
+			return OPT_ALL_FLAGS_DOWN;
 		}
-		int[] res = null;
 		String[] splitted = combination.split(VerificationOpetion.splitter);
-		res = new int[splitted.length];
+		int[] res = new int[splitted.length];
 		for (int z = 0; z < splitted.length; z++) {
 			res[z] = VerificationOpetion.valueOf(splitted[z].trim()).code;
 		}
-		return withVerificationOptions(res);
+		return combineVerificationOptions(res);
 	}
 	
-	public final int withVerificationOptions(int... flags) {
-		this.verificationOptions = OPT_ALL_FLAGS_DOWN;
+	static int combineVerificationOptions(int... flags) {
+		int options = OPT_ALL_FLAGS_DOWN;
 		for (int f : flags) {
-			this.verificationOptions |= f;
+			options |= f;
 		}
-		return this.verificationOptions;
+		return options;
 	}
 	
-	private final boolean isFlagSet(int combined, int flagbitN) {
-		return (combined & flagbitN) == flagbitN;
+	public final int getVerificationOptions() {
+		return profile.getVerificationOptions();
 	}
 	
 	protected final boolean isFlagSet(int flagbitN) {
-		return isFlagSet(verificationOptions, flagbitN);
+		return profile.isFlagSet(flagbitN);
 	}
 	
 	protected final boolean isFlagNotSet(int flagbitN) {
@@ -167,10 +483,11 @@ public abstract class CryptoUtils {
 		if (alias == null) {
 			return null;
 		}
-		X509Certificate cert = (X509Certificate) keyStore.getCertificate(alias);
+		X509Certificate cert = getKeyStoreIndex().getCertificate(alias);
 		if (cert == null) {
 			throw new KeyStoreException("Certificate for alias '" + alias + "' not found");
 		}
+		firstOperation();
 		return cert;
 	}
 	
@@ -178,7 +495,7 @@ public abstract class CryptoUtils {
 		if (alias == null) {
 			return null;
 		} else {
-			return (PrivateKey) getKeyStore().getKey(alias, password);
+			return (PrivateKey) getKeyStoreIndex().getKey(alias, password); // из того хранилища, где лежит алиас
 		}
 	}
 
@@ -187,16 +504,119 @@ public abstract class CryptoUtils {
 	 * @return KeyStore
 	 */
 	public final KeyStore getKeyStore() {
-		return keyStore;
+		KeyStoreIndex index = getKeyStoreIndex();
+		return index != null ? index.getKeyStore() : null;
+	}
+	
+	/**
+	 * Индексированный снимок текущего хранилища.
+	 * @return KeyStoreIndex
+	 */
+	public final KeyStoreIndex getKeyStoreIndex() {
+		KeyStoreHolder holder = keyStoreHolder;
+		return holder != null ? holder.getIndex() : null;
+	}
+	
+	public final KeyStoreHolder getKeyStoreHolder() {
+		return keyStoreHolder;
 	}
 	
 	/**
 	 * Установка хранилища сертификатов. Для инстанса выполняется только одина раз.
+	 * Сертификаты хранилища индексируются здесь же (см. KeyStoreIndex).
+	 * При перезагрузке хранилища ключи изменившихся алиасов удаляются из кэша ключей, а профили при следующей операции
+	 * разрешаются заново по новому снимку (см. currentProfile()).
+	 * @param keyStore
+	 * @throws KeyStoreException
+	 */
+	protected final void setKeyStore(KeyStore keyStore) throws KeyStoreException {
+		setKeyStoreIndex(KeyStoreIndex.build(keyStore));
+	}
+	
+	/**
+	 * Установка хранилища, загруженного из файла. Если включен файл индекса (см. KeyStoreIndexFile),
+	 * индекс берется из него без разбора сертификатов, а при его отсутствии или устаревании строится и сохраняется.
 	 * @param keyStore
+	 * @param file - файл хранилища (null - хранилище не из файла)
+	 * @throws KeyStoreException
+	 */
+	protected final void setKeyStore(KeyStore keyStore, String file) throws KeyStoreException {
+		if (file != null && KeyStoreIndexFile.isEnabled()) {
+			setKeyStoreIndex(KeyStoreIndexFile.load(Paths.get(file), keyStore));
+		} else {
+			setKeyStore(keyStore);
+		}
+	}
+	
+	/**
+	 * Установка хранилища из файла с возможной отложенной загрузкой (см. KeyStoreIndexFile.LAZY_PROPERTY):
+	 * при действительном файле индекса хранилище загружается только при первом обращении к ключу, сертификаты разбираются при первом использовании.
+	 * Без отложенной загрузки равносильно setKeyStore(loader.load(), file).
+	 * @param file - файл хранилища (null - хранилище не из файла, загружается сразу)
+	 * @param loader
+	 * @throws Exception - ошибка загрузки хранилища
 	 */
-	protected final void setKeyStore(KeyStore keyStore) {
-		if (this.keyStore == null) {
-			this.keyStore = keyStore;
+	protected final void setKeyStore(String file, KeyStoreHolder.Loader loader) throws Exception {
+		if (file != null && KeyStoreIndexFile.isLazy()) {
+			setKeyStoreIndex(KeyStoreIndexFile.load(Paths.get(file), loader));
+		} else {
+			setKeyStore(loader.load(), file);
+		}
+	}
+	
+	private void setKeyStoreIndex(KeyStoreIndex index) {
+		KeyStoreHolder holder = new KeyStoreHolder(index);
+		holder.addListener(new KeyStoreHolder.Listener() {
+			
+			@Override
+			public void onReload(KeyStoreIndex previous, KeyStoreIndex current, List<String> changedAliases) {
+				PrivateKeyCache cache = getPrivateKeyCache();
+				for (String alias : changedAliases) {
+					cache.evict(alias);
+				}
+			}
+		});
+		setKeyStoreHolder(holder);
+	}
+	
+	/**
+	 * Работа сразу с несколькими хранилищами: общий индекс подменяет текущее хранилище для этого инстанса и всех его fork().
+	 * Получатель (подписчик) ищется одним поиском во всех хранилищах, ключ берется из того, где найден сертификат.
+	 * Последующая перезагрузка (по watchKeyStore() или getKeyStoreHolder().reload()) перезагружает все хранилища,
+	 * добавленные с загрузчиком, и снова строит общий индекс; хранилища, добавленные готовыми, остаются как есть.
+	 * @param federated
+	 * @return изменившиеся алиасы
+	 * @throws KeyStoreException
+	 */
+	public final List<String> useKeyStores(FederatedKeyStore federated) throws KeyStoreException {
+		return getKeyStoreHolder().replace(federated.build(), federated.reloader());
+	}
+	
+	/**
+	 * Слежение за файлом хранилища: после его изменения хранилище перезагружается в фоне и подменяется для этого инстанса и всех его fork().
+	 * Остановка - getKeyStoreHolder().close().
+	 * @param file
+	 * @param loader - загрузка хранилища так же, как при инициализации провайдера
+	 * @return KeyStoreHolder (счетчики перезагрузок, длительность, число изменившихся записей)
+	 * @throws IOException
+	 */
+	protected final KeyStoreHolder watchKeyStore(String file, KeyStoreHolder.Loader loader) throws IOException {
+		if (file == null) {
+			throw new IllegalStateException("KeyStore loaded without file, nothing to watch");
+		}
+		KeyStoreHolder holder = getKeyStoreHolder();
+		holder.watch(Paths.get(file), loader);
+		return holder;
+	}
+	
+	/**
+	 * Установка уже загруженного хранилища (fork() разделяет хранилище родителя без повторного перебора и видит его перезагрузки).
+	 * Для инстанса выполняется только одина раз.
+	 * @param holder
+	 */
+	protected final void setKeyStoreHolder(KeyStoreHolder holder) {
+		if (this.keyStoreHolder == null) {
+			this.keyStoreHolder = holder;
 		} else {
 			String msg = "KeyStore already set";
 			LOG.severe(msg);
@@ -205,21 +625,14 @@ public abstract class CryptoUtils {
 	}
 	
 	/**
-	 * Вызгузка всех сертификатов в хранилище как CertStore
+	 * Вызгузка всех сертификатов в хранилище как CertStore (один на снимок хранилища, см. KeyStoreIndex.getCertStore())
 	 * @return
 	 * @throws KeyStoreException
 	 * @throws InvalidAlgorithmParameterException
 	 * @throws NoSuchAlgorithmException
 	 */
 	protected CertStore getAllCertificateFromStore() throws KeyStoreException, InvalidAlgorithmParameterException, NoSuchAlgorithmException {
-		List<X509Certificate> certs = new ArrayList<X509Certificate>();
-		Enumeration<String> aliasesEnum = getKeyStore().aliases();
-		while(aliasesEnum.hasMoreElements()) {
-			String currentAlias = aliasesEnum.nextElement();
-			X509Certificate cert = getCertificateFromStore(currentAlias);
-			certs.add(cert);
-		}
-		return PKIXUtils.createCertStoreFromList(certs);
+		return getKeyStoreIndex().getCertStore();
 	}
 	
 	/**
@@ -228,12 +641,7 @@ public abstract class CryptoUtils {
 	 * @throws KeyStoreException
 	 */
 	public List<String> getAllAliases() throws KeyStoreException {
-		Enumeration<String> aliasesEnum = getKeyStore().aliases();
-		List<String> listAliases = new ArrayList<String>();
-		while(aliasesEnum.hasMoreElements()) {
-			listAliases.add(aliasesEnum.nextElement());
-		}
-		return listAliases;
+		return new ArrayList<String>(getKeyStoreIndex().getAliases());
 	}
 	
 	/**
@@ -242,10 +650,10 @@ public abstract class CryptoUtils {
 	 * @throws KeyStoreException
 	 */
 	public List<String> getAllKeyAliases() throws KeyStoreException {
-		List<String> allAliases = getAllAliases();
+		KeyStoreIndex index = getKeyStoreIndex();
 		List<String> onlyKeyAliases = new ArrayList<String>();
-		for (String allAelement : allAliases) {
-			if (getKeyStore().isKeyEntry(allAelement)) {
+		for (String allAelement : index.getAliases()) {
+			if (index.isKeyEntry(allAelement)) {
 				onlyKeyAliases.add(allAelement);
 			}
 		}
@@ -259,17 +667,18 @@ public abstract class CryptoUtils {
 	 * @throws KeyStoreException
 	 */
 	protected final String lookupKeyStoreBySerialNumber(BigInteger serialNumber) throws KeyStoreException {
-		String res = null;
-		Enumeration<String> aliasesEnum = getKeyStore().aliases();
-		while(aliasesEnum.hasMoreElements()) {
-			String currentAlias = aliasesEnum.nextElement();
-			X509Certificate cer = getCertificateFromStore(currentAlias);
-			if (cer.getSerialNumber().equals(serialNumber) /*&& getKeyStore().isKeyEntry(currentAlias)*/) { // Мы должны получать все алиасы, а не только для ключей
-				res = currentAlias;
-				break;
-			}
-		}
-		return res;
+		return getKeyStoreIndex().findBySerialNumber(serialNumber); // все алиасы, а не только для ключей
+	}
+	
+	/**
+	 * Поиск в хранилище KeyStore алиаса сертификата по IssuerAndSerialNumber
+	 * @param issuer
+	 * @param serialNumber
+	 * @return null - если сертификат не найден.
+	 * @throws KeyStoreException
+	 */
+	protected final String lookupKeyStoreByIssuerAndSerialNumber(X500Principal issuer, BigInteger serialNumber) throws KeyStoreException {
+		return getKeyStoreIndex().findByIssuerAndSerialNumber(issuer, serialNumber);
 	}
 	
 	/**
@@ -279,18 +688,7 @@ public abstract class CryptoUtils {
 	 * @throws KeyStoreException
 	 */
 	protected final String lookupKeyStoreBySubjectKeyIdentefer(byte[] ski) throws KeyStoreException {
-		String res = null;
-		Enumeration<String> aliasesEnum = getKeyStore().aliases();
-		while(aliasesEnum.hasMoreElements()) {
-			String currentAlias = aliasesEnum.nextElement();
-			X509Certificate cer = getCertificateFromStore(currentAlias);
-			byte[] currentSKI = cer.getExtensionValue(SUBJECT_KEY_IDENTEFER_OID);
-			if (Arrays.equals(ski, currentSKI) /*&& getKeyStore().isKeyEntry(currentAlias)*/) {
-				res = currentAlias;
-				break;
-			}
-		}
-		return res;
+		return getKeyStoreIndex().findBySubjectKeyIdentifier(ski);
 	}
 	
 	 /**
@@ -307,7 +705,12 @@ public abstract class CryptoUtils {
         csel.setIssuer(issuer);
         csel.setSerialNumber(serial);
 
-        return lookupFirstCertificate(stores, csel);
+        X509Certificate cert = lookupFirstCertificate(stores, csel);
+        CompactCertificateIndex trusted = trustList;
+        if (cert == null && trusted != null) {
+            cert = trusted.findByIssuerAndSerialNumber(issuer, serial);
+        }
+        return cert;
     }
 	
 	/**
@@ -321,11 +724,17 @@ public abstract class CryptoUtils {
 
         X509CertSelector csel = new X509CertSelector();
         csel.setSubjectKeyIdentifier(subjectKeyIdentefer);
-        return lookupFirstCertificate(stores, csel);
+        X509Certificate cert = lookupFirstCertificate(stores, csel);
+        CompactCertificateIndex trusted = trustList;
+        if (cert == null && trusted != null) {
+            cert = trusted.findBySubjectKeyIdentifier(subjectKeyIdentefer);
+        }
+        return cert;
     }
 	
 	/**
-	 * Поиск в списке CertStore-ов по селектору
+	 * Поиск в списке CertStore-ов по селектору. Хранилище инстанса (getAllCertificateFromStore()) - IndexedCertStore:
+	 * селектор по (издателю, серийному номеру) или SKI обслуживается индексом без перебора.
 	 * @param stores List<CertStore>
 	 * @param selector - настроенный X509CertSelector
 	 * @return null - если сертификат не найден
@@ -363,15 +772,21 @@ public abstract class CryptoUtils {
 	}
 	
 	public static boolean isBase64(byte[] input) {
-		return new String(input).replaceAll("\\s", "").matches("^([A-Za-z0-9+/]{4})*([A-Za-z0-9+/]{4}|[A-Za-z0-9+/]{3}=|[A-Za-z0-9+/]{2}==)$");
+		return Base64Codec.isBase64(input);
 	}
 	
+	/**
+	 * Нестрогое снятие BASE64, как и прежде (DatatypeConverter.parseBase64Binary): посторонние символы пропускаются,
+	 * данные после '=' не отбрасываются, исключений нет. Строгое снятие - Base64Codec.decode().
+	 * @param array
+	 * @return
+	 */
 	public static final byte[] convertBASE64toDER(final byte[] array) {
-		return javax.xml.bind.DatatypeConverter.parseBase64Binary(new String(array));
+		return Base64Codec.decodeLenient(array);
 	}
 	
 	public static final byte[] convertDERtoBASE64(byte[] array) {
-		return javax.xml.bind.DatatypeConverter.printBase64Binary(array).getBytes();
+		return Base64Codec.encode(array);
 	}
 	
 	/**
@@ -380,14 +795,35 @@ public abstract class CryptoUtils {
 	 * @return
 	 */
 	protected byte[] forceBASE64(byte[] array) {
-		if (isBase64(array)) {
-			LOG.fine("Performing convertation from BASE64 to bytes");
-			return convertBASE64toDER(array);
+		return CmsMessageContext.detect(array).getDer(); // проверка и снятие за один проход
+	}
+	
+	/**
+	 * Потоковый вариант forceBASE64: по первому значащему байту определяется, пришел ли DER (SEQUENCE, 0x30) или BASE64.
+	 * @param in
+	 * @return поток DER
+	 * @throws IOException
+	 */
+	protected InputStream forceBASE64(InputStream in) throws IOException {
+		BufferedInputStream bIn = new BufferedInputStream(in, StreamUtils.BUFFER_SIZE);
+		bIn.mark(StreamUtils.BUFFER_SIZE);
+		int first;
+		int skipped = 0;
+		do {
+			first = bIn.read();
+			skipped++;
+		} while (first >= 0 && Character.isWhitespace(first) && skipped < StreamUtils.BUFFER_SIZE);
+		bIn.reset();
+		if (first < 0 || first == DER_SEQUENCE_TAG) {
+			return bIn;
 		} else {
-			return  array;
+			LOG.fine("Performing streaming convertation from BASE64 to bytes");
+			return new Base64InputStream(bIn);
 		}
 	}
 	
+	private static final int DER_SEQUENCE_TAG = 0x30;
+	
 	// ------------------------------------------------------------------------------
 	
 	public enum Action {
@@ -397,7 +833,9 @@ public abstract class CryptoUtils {
 		VERIFY(ACTION_VERIFY, "verify"),
 		SIGN(ACTION_SIGN, "sign"),
 		ENCRYPT(ACTION_ENCRYPT, "encrypt"),
-		BASE64ENCODE(ACTION_BASE64ENCODE, "base64encode");
+		BASE64ENCODE(ACTION_BASE64ENCODE, "base64encode"),
+		BASE64PEM(ACTION_BASE64PEM, "base64pem"),
+		BASE64MIME(ACTION_BASE64MIME, "base64mime");
 		private int code = 0;
 		private String name = null;
 		private Action(int code, String name) {
@@ -419,64 +857,658 @@ public abstract class CryptoUtils {
 
 	public static final int ACTION_BASE64ENCODE = 32; // code to base64
 	
+	public static final int ACTION_BASE64PEM = 64; // code to base64, 64-char lines
+	
+	public static final int ACTION_BASE64MIME = 128; // code to base64, 76-char lines
+	
 	public byte[] actions(byte[] data, String bufferToFile, String command) throws Exception {
-		int[] actions = null;
+		return actions(getProfile(), data, bufferToFile, CmsPlan.of(command));
+	}
+	
+	/**
+	 * Разбор цепочки вида "decrypt -> verify -> detach" в коды ACTION_*
+	 * @param command
+	 * @return
+	 */
+	protected static int[] parseActions(String command) {
 		final String[] splits = command.split(Action.SPLITTER);
-		actions = new int[splits.length];
+		int[] actions = new int[splits.length];
 		for (int z = 0; z < splits.length; z++) {
 			Action enumAct = Action.valueOf(splits[z].trim().toUpperCase());
 			actions[z] = enumAct.code;
 		}
-		
-		return actions(data, bufferToFile, actions);
+		return actions;
 	}
 	
 	public byte[] actions(byte[] data, String bufferToFile, int... actions) throws Exception {
-		byte[] buffer = data;
-		if (actions != null) {
-			for (int act : actions) {
-				switch (act) {
-					case ACTION_DECRYPT: {
-						buffer = decrypt(buffer);
-						break;
-					}
-					case ACTION_DETACH: {
-						buffer = detach(buffer);
-						break;
-					}
-					case ACTION_VERIFY: {
-						verify(buffer);
-						break;
-					}
-					case ACTION_SIGN: {
-						buffer = signAttached(buffer);
-						break;
-					}
-					case ACTION_ENCRYPT: {
-						buffer = encrypt(buffer);
-						break;
+		return actions(getProfile(), data, bufferToFile, actions);
+	}
+	
+	public byte[] actions(CmsProfile profile, byte[] data, String bufferToFile, String command) throws Exception {
+		return actions(profile, data, bufferToFile, CmsPlan.of(command));
+	}
+	
+	/**
+	 * Цепочка операций над массивом с явным профилем: можно вызывать из разных потоков на одном экземпляре.
+	 * @param profile
+	 * @param data
+	 * @param bufferToFile - файл для результата или null
+	 * @param actions - ACTION_*
+	 * @return
+	 * @throws Exception
+	 */
+	public byte[] actions(CmsProfile profile, byte[] data, String bufferToFile, int... actions) throws Exception {
+		return actions(profile, data, bufferToFile, toPlan(actions));
+	}
+	
+	/**
+	 * @param actions - ACTION_*
+	 * @return план или null для пустой цепочки
+	 * @throws IllegalArgumentException - неизвестная операция или недопустимая цепочка
+	 */
+	private static CmsPlan toPlan(int... actions) {
+		return actions == null || actions.length == 0 ? null : CmsPlan.compile(actions);
+	}
+	
+	/**
+	 * Цепочка операций по заранее скомпилированному плану (CmsPlan.of / CmsPlan.compile) - без разбора команды на каждое сообщение.
+	 * @param profile
+	 * @param data
+	 * @param bufferToFile - файл для результата или null
+	 * @param plan - null - данные возвращаются без изменений
+	 * @return
+	 * @throws Exception
+	 */
+	public byte[] actions(CmsProfile profile, byte[] data, String bufferToFile, CmsPlan plan) throws Exception {
+		byte[] buffer = plan != null ? plan.execute(this, profile, data) : data;
+		// store to file
+		if (bufferToFile != null) {
+			MappedFiles.writeAtomically(Paths.get(bufferToFile), buffer);
+		}
+		return buffer;
+	}
+	
+	// --- MESSAGE CONTEXT ----------------------------------------------------------
+	
+	/**
+	 * Стадия decrypt над разобранным сообщением (см. CmsPlan): BASE64 уже снят, результаты разбора можно сохранить в контексте
+	 * для следующих стадий того же сообщения.
+	 * @param message
+	 * @return
+	 * @throws Exception
+	 */
+	protected byte[] decrypt(CmsMessageContext message) throws Exception {
+		return decrypt(message.getDer());
+	}
+	
+	protected byte[] detach(CmsMessageContext message) throws Exception {
+		return detach(message.getDer());
+	}
+	
+	protected void verify(CmsProfile profile, CmsMessageContext message, VerificationOutcome outcome) throws Exception {
+		verify(profile, message.getDer(), outcome);
+	}
+	
+	// --- BATCH PART ---------------------------------------------------------------
+	
+	public List<CmsBatchProcessor.Result> actionsBatch(List<byte[]> messages, String command) throws Exception {
+		return actionsBatch(messages, CmsPlan.of(command));
+	}
+	
+	/**
+	 * Обработка пакета сообщений на всех ядрах. Для повторяющихся пакетов выгоднее держать свой CmsBatchProcessor.
+	 * @param messages
+	 * @param actions - ACTION_*
+	 * @return результаты в порядке messages, у каждого - свой выход или своя ошибка
+	 * @throws Exception
+	 */
+	public List<CmsBatchProcessor.Result> actionsBatch(List<byte[]> messages, int... actions) throws Exception {
+		return actionsBatch(messages, CmsPlan.compile(actions));
+	}
+	
+	public List<CmsBatchProcessor.Result> actionsBatch(List<byte[]> messages, CmsPlan plan) throws Exception {
+		CmsBatchProcessor processor = new CmsBatchProcessor(this);
+		try {
+			return processor.process(messages, plan).getResults();
+		} finally {
+			processor.shutdown();
+		}
+	}
+	
+	// --- ZERO-COPY DETACH ---------------------------------------------------------
+	
+	/**
+	 * Подписанные данные как срез исходного буфера - без разбора ASN.1 и без копирования.
+	 * @param signed - SignedData в DER/BER (не BASE64)
+	 * @return срез только для чтения или null, если eContent не является одной примитивной OCTET STRING
+	 * (BER неопределенной длины, сегментированная строка), отсутствует или сообщение не SignedData
+	 */
+	public ByteBuffer detachView(ByteBuffer signed) {
+		BerReader.Header eContent = BerReader.findSignedContent(signed);
+		if (eContent == null || eContent.isConstructed()) {
+			return null;
+		}
+		return BerReader.slice(signed, eContent);
+	}
+	
+	/**
+	 * Подписанные данные как поток поверх исходного буфера. В отличие от detachView работает и для BER
+	 * неопределенной длины: сегменты OCTET STRING отдаются по очереди, без склеивания.
+	 * @param signed - SignedData в DER/BER (не BASE64)
+	 * @return поток или null, если eContent отсутствует или сообщение не SignedData
+	 */
+	public InputStream openDetachView(ByteBuffer signed) {
+		BerReader.Header eContent = BerReader.findSignedContent(signed);
+		return eContent == null ? null : BerReader.openOctetString(signed, eContent);
+	}
+	
+	/**
+	 * Быстрый detach массива: одна копия eContent вместо полного декодирования сообщения.
+	 * @param der
+	 * @return данные или null, если быстрый путь неприменим (тогда нужен полный разбор)
+	 * @throws IOException
+	 */
+	protected byte[] detachDirect(byte[] der) throws IOException {
+		return detachDirect(CmsMessageContext.der(der));
+	}
+	
+	/**
+	 * Быстрый detach по контексту: eContent ищется в сообщении один раз на все стадии.
+	 * @param message
+	 * @return данные или null, если быстрый путь неприменим
+	 * @throws IOException
+	 */
+	protected byte[] detachDirect(CmsMessageContext message) throws IOException {
+		BerReader.Header eContent = message.getSignedContent();
+		if (eContent == null) {
+			return null;
+		}
+		if (!eContent.isConstructed()) {
+			ByteBuffer view = BerReader.slice(message.getView(), eContent);
+			byte[] payload = new byte[view.remaining()];
+			view.get(payload);
+			return payload;
+		}
+		return StreamUtils.readAll(BerReader.openOctetString(message.getView(), eContent));
+	}
+	
+	/**
+	 * Быстрый detach для стадии конвейера: если вход - поток поверх ByteBuffer (отображенный файл),
+	 * отдается поток поверх того же буфера. Исходный поток при этом не читается.
+	 * @param signed
+	 * @return поток или null, если быстрый путь неприменим
+	 */
+	protected InputStream openDetachDirect(InputStream signed) {
+		if (!(signed instanceof ByteBufferInputStream)) {
+			return null;
+		}
+		return openDetachView(((ByteBufferInputStream) signed).remaining());
+	}
+	
+	// --- FILE PART ----------------------------------------------------------------
+	
+	public void actions(Path in, Path out, String command) throws Exception {
+		actions(getProfile(), in, out, CmsPlan.of(command));
+	}
+	
+	/**
+	 * Обработка файла в файл. Вход отображается в память (FileChannel.map) и отдается стадиям как поток над ByteBuffer,
+	 * поэтому сообщение не копируется в кучу. Результат пишется через FileChannel во временный файл
+	 * и атомарно переименовывается в out только при успешном завершении всей цепочки.
+	 * @param in - исходный файл
+	 * @param out - файл результата
+	 * @param actions - ACTION_*
+	 * @throws Exception
+	 */
+	public void actions(Path in, Path out, int... actions) throws Exception {
+		actions(getProfile(), in, out, actions);
+	}
+	
+	public void actions(CmsProfile profile, Path in, Path out, int... actions) throws Exception {
+		actions(profile, in, out, toPlan(actions));
+	}
+	
+	/**
+	 * @param profile
+	 * @param in
+	 * @param out
+	 * @param plan - null - файл копируется без изменений
+	 * @throws Exception
+	 */
+	public void actions(CmsProfile profile, Path in, Path out, CmsPlan plan) throws Exception {
+		final InputStream source = MappedFiles.openMapped(in);
+		MappedFiles.AtomicFileOutputStream target = null;
+		boolean committed = false;
+		try {
+			target = MappedFiles.openAtomic(out);
+			actions(profile, source, target, plan);
+			target.commit();
+			committed = true;
+		} finally {
+			source.close();
+			if (target != null && !committed) {
+				target.abort();
+			}
+		}
+	}
+	
+	// --- STREAMING PART -----------------------------------------------------------
+	
+	public void actions(InputStream in, OutputStream out, String command) throws Exception {
+		actions(getProfile(), in, out, CmsPlan.of(command));
+	}
+	
+	/**
+	 * Потоковый вариант actions: каждая стадия - фильтр потока, поэтому расход памяти ограничен буферами, а не размером сообщения.
+	 * Входящие стадии (decrypt, verify, detach) оборачивают входной поток, исходящие (sign, encrypt, base64encode) - выходной.
+	 * Если входящая стадия идет после исходящей, промежуточный результат сбрасывается во временный файл.
+	 * Потоки in и out не закрываются.
+	 * @param in - исходные данные
+	 * @param out - куда писать результат
+	 * @param actions - ACTION_*
+	 * @throws Exception
+	 */
+	public void actions(InputStream in, OutputStream out, int... actions) throws Exception {
+		actions(getProfile(), in, out, actions);
+	}
+	
+	public void actions(CmsProfile profile, InputStream in, OutputStream out, int... actions) throws Exception {
+		actions(profile, in, out, toPlan(actions));
+	}
+	
+	/**
+	 * Потоковое выполнение плана: цепочка уже проверена при компиляции, стадии потока строятся по ее исходным операциям
+	 * (verify отдает detach отображенный буфер, так что detach после verify не копирует данные).
+	 * @param profile
+	 * @param in
+	 * @param out
+	 * @param plan - null - данные копируются без изменений
+	 * @throws Exception
+	 */
+	public void actions(CmsProfile profile, InputStream in, OutputStream out, CmsPlan plan) throws Exception {
+		InputStream source = StreamUtils.closeShield(in);
+		final List<Integer> outbound = new ArrayList<Integer>(); // исходящие стадии ждут, пока станет известен их приемник
+		try {
+			if (plan != null) {
+				for (int act : plan.getActions()) {
+					switch (act) {
+						case ACTION_DECRYPT:
+						case ACTION_DETACH:
+						case ACTION_VERIFY: {
+							if (!outbound.isEmpty()) {
+								source = drainToSpool(profile, source, outbound);
+								outbound.clear();
+							}
+							source = openInbound(profile, act, source);
+							break;
+						}
+						case ACTION_SIGN:
+						case ACTION_ENCRYPT:
+						case ACTION_BASE64ENCODE:
+						case ACTION_BASE64PEM:
+						case ACTION_BASE64MIME: {
+							outbound.add(act);
+							break;
+						}
 					}
-					case ACTION_BASE64ENCODE: {
-						buffer = convertDERtoBASE64(buffer);
-						break;
+				}
+			}
+			final OutputStream sink = openOutbound(profile, outbound, StreamUtils.closeShield(out));
+			StreamUtils.copy(source, sink);
+			sink.close();
+		} finally {
+			StreamUtils.closeQuietly(source);
+		}
+	}
+	
+	private InputStream openInbound(CmsProfile profile, int act, InputStream source) throws Exception {
+		switch (act) {
+			case ACTION_DECRYPT: 
+				return openDecrypt(source);
+			case ACTION_DETACH: 
+				return openDetach(source);
+			case ACTION_VERIFY: 
+				return openVerify(profile, source);
+			default:
+				throw new IllegalArgumentException("Not inbound action " + act);
+		}
+	}
+	
+	/**
+	 * Сборка цепочки исходящих стадий: первая стадия списка получает данные первой, последняя пишет в sink.
+	 * @param profile
+	 * @param outbound
+	 * @param sink
+	 * @return голова цепочки
+	 * @throws Exception
+	 */
+	private OutputStream openOutbound(CmsProfile profile, List<Integer> outbound, OutputStream sink) throws Exception {
+		OutputStream head = sink;
+		for (int z = outbound.size() - 1; z >= 0; z--) {
+			switch (outbound.get(z)) {
+				case ACTION_SIGN: {
+					head = openSign(profile, head);
+					break;
+				}
+				case ACTION_ENCRYPT: {
+					head = openEncrypt(profile, head);
+					break;
+				}
+				case ACTION_BASE64ENCODE: {
+					head = new Base64OutputStream(head);
+					break;
+				}
+				case ACTION_BASE64PEM: {
+					head = new Base64OutputStream(head, Base64Codec.PEM_LINE_LENGTH, Base64Codec.CRLF);
+					break;
+				}
+				case ACTION_BASE64MIME: {
+					head = new Base64OutputStream(head, Base64Codec.MIME_LINE_LENGTH, Base64Codec.CRLF);
+					break;
+				}
+			}
+		}
+		return head;
+	}
+	
+	private InputStream drainToSpool(CmsProfile profile, InputStream source, List<Integer> outbound) throws Exception {
+		final File spool = StreamUtils.createSpool();
+		final FileOutputStream fos = new FileOutputStream(spool);
+		boolean drained = false;
+		try {
+			final OutputStream sink = openOutbound(profile, outbound, fos);
+			StreamUtils.copy(source, sink);
+			sink.close();
+			drained = true;
+		} finally {
+			StreamUtils.closeQuietly(fos);
+			StreamUtils.closeQuietly(source);
+			if (!drained) {
+				StreamUtils.deleteSpool(spool);
+			}
+		}
+		return StreamUtils.openSpool(spool);
+	}
+	
+	/**
+	 * Проверка подписи по потоку с текущим профилем.
+	 * @param signed
+	 * @throws Exception
+	 */
+	public void verify(InputStream signed) throws Exception {
+		verify(getProfile(), signed);
+	}
+	
+	public void verify(CmsProfile profile, InputStream signed) throws Exception {
+		verify(profile, signed, new VerificationOutcome(false));
+	}
+	
+	/**
+	 * Расшифрование из потока в приемник через стадию decrypt: у провайдеров с потоковой стадией сообщение целиком в памяти не держится.
+	 * @param ciphertext - сообщение в DER или BASE64 (закрывается)
+	 * @param plain - приемник открытых данных (не закрывается)
+	 * @return число расшифрованных байт
+	 * @throws Exception
+	 */
+	public long decrypt(InputStream ciphertext, OutputStream plain) throws Exception {
+		InputStream opened = null;
+		try {
+			opened = openDecrypt(ciphertext);
+		} finally {
+			if (opened == null) {
+				StreamUtils.closeQuietly(ciphertext); // ошибочное сообщение, нет получателя и т.п.
+			}
+		}
+		final InputStream in = opened;
+		try {
+			return StreamUtils.copy(in, plain);
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * @param ciphertext - сообщение в DER или BASE64 (закрывается)
+	 * @param plain - приемник открытых данных (не закрывается)
+	 * @return число расшифрованных байт
+	 * @throws Exception
+	 */
+	public long decrypt(InputStream ciphertext, WritableByteChannel plain) throws Exception {
+		return decrypt(ciphertext, Channels.newOutputStream(plain));
+	}
+	
+	/**
+	 * Проверка подписи по потоку. По умолчанию поток вычитывается в память и передается в verify(CmsProfile, byte[], VerificationOutcome);
+	 * поток над ByteBuffer копируется из буфера один раз, без промежуточных буферов.
+	 * @param profile
+	 * @param signed
+	 * @param outcome
+	 * @throws Exception
+	 */
+	protected void verify(CmsProfile profile, InputStream signed, VerificationOutcome outcome) throws Exception {
+		if (signed instanceof ByteBufferInputStream) {
+			verify(profile, toArray(((ByteBufferInputStream) signed).remaining()), outcome);
+			return;
+		}
+		verify(profile, StreamUtils.readAll(signed), outcome);
+	}
+	
+	/**
+	 * Массив буфера без копирования, если буфер покрывает его целиком, иначе - одна копия.
+	 */
+	private static byte[] toArray(ByteBuffer buf) {
+		if (buf.hasArray() && buf.arrayOffset() == 0 && buf.position() == 0 && buf.remaining() == buf.array().length) {
+			return buf.array();
+		}
+		byte[] array = new byte[buf.remaining()];
+		buf.duplicate().get(array);
+		return array;
+	}
+	
+	// --- VERIFICATION PART --------------------------------------------------------
+	
+	/**
+	 * Только математика подписей: сертификаты подписчиков собираются, но не проверяются (цепочка, CRL).
+	 * Проверка сертификатов выполняется отдельно через validateCertificates - например, в другом пуле потоков.
+	 * @param profile
+	 * @param signed
+	 * @return
+	 * @throws Exception - если подписи не сошлись
+	 */
+	public VerificationOutcome verifySignatures(CmsProfile profile, byte[] signed) throws Exception {
+		VerificationOutcome outcome = new VerificationOutcome(true);
+		verify(profile, signed, outcome);
+		outcome.signaturesVerified();
+		return outcome;
+	}
+	
+	public VerificationOutcome verifySignatures(CmsProfile profile, InputStream signed) throws Exception {
+		VerificationOutcome outcome = new VerificationOutcome(true);
+		verify(profile, signed, outcome);
+		outcome.signaturesVerified();
+		return outcome;
+	}
+	
+	/**
+	 * Отложенная проверка сертификатов подписчиков (построение цепочки, CRL/OCSP - возможен сетевой ввод-вывод).
+	 * @param outcome - результат verifySignatures
+	 * @throws CertificateVerificationException - первый непрошедший проверку сертификат
+	 */
+	public void validateCertificates(VerificationOutcome outcome) throws CertificateVerificationException {
+		for (VerificationOutcome.SignerOutcome signer : outcome.getSigners()) {
+			if (signer.isValidationRequired() && signer.getCertificateResult() == null) {
+				validateCertificate(signer, outcome.isAllowSelfSigned());
+			}
+		}
+	}
+	
+	/**
+	 * Регистрация подписчика, чья подпись сошлась. Без отложенной проверки сертификат проверяется сразу.
+	 * @param profile
+	 * @param cert
+	 * @param provider - провайдер подписи для проверки цепочки (цепочку строит CertPathBuilder из getCertPathBuilderProvider())
+	 * @param outcome
+	 * @throws CertificateVerificationException
+	 */
+	protected final void verifySignerCertificate(CmsProfile profile, X509Certificate cert, String provider, VerificationOutcome outcome) throws CertificateVerificationException {
+		outcome.setAllowSelfSigned(profile.isFlagSet(OPT_ALLOW_SELFSIGNED_CERT));
+		VerificationOutcome.SignerOutcome signer = outcome.addSigner(cert, provider, profile.isFlagNotSet(OPT_DISABLE_CERT_VALIDATION));
+		firstOperation();
+		if (signer.isValidationRequired() && !outcome.isDeferred()) {
+			validateCertificate(signer, outcome.isAllowSelfSigned());
+		}
+	}
+	
+	/**
+	 * Проверка сертификата подписчика. CertPathBuilder этой реализации (getCertPathBuilderProvider()) ставится для текущего потока здесь же:
+	 * проверка может идти не в том потоке, где создавался экземпляр (fork(), отложенная проверка).
+	 */
+	private void validateCertificate(VerificationOutcome.SignerOutcome signer, boolean allowSelfSigned) throws CertificateVerificationException {
+		try {
+			setCertPathBuilder(EnginePool.certPathBuilder("PKIX", getCertPathBuilderProvider()));
+		} catch (GeneralSecurityException e) {
+			throw new CertificateVerificationException("No PKIX CertPathBuilder of provider " + getCertPathBuilderProvider(), e);
+		}
+		try {
+			CompactCertificateIndex trusted = trustList;
+			if (trusted != null) {
+				signer.setCertificateResult(CertificateVerifier.verifyCertificate(signer.getCert(), getKeyStoreIndex(), trusted, allowSelfSigned, signer.getProvider()));
+			} else {
+				signer.setCertificateResult(CertificateVerifier.verifyCertificate(signer.getCert(), getKeyStoreIndex(), allowSelfSigned, signer.getProvider()));
+			}
+		} catch (CertificateVerificationException e) {
+			signer.setCertificateResult(new CertificateVerificationResult(e));
+			throw e;
+		}
+	}
+	
+	/**
+	 * Стадия decrypt. Реализация по умолчанию буферизует сообщение целиком, провайдеры с потоковым API ее переопределяют.
+	 * @param ciphertext
+	 * @return поток открытых данных
+	 * @throws Exception
+	 */
+	protected InputStream openDecrypt(InputStream ciphertext) throws Exception {
+		try {
+			return new ByteArrayInputStream(decrypt(StreamUtils.readAll(ciphertext)));
+		} finally {
+			ciphertext.close();
+		}
+	}
+	
+	/**
+	 * Стадия detach. Реализация по умолчанию буферизует сообщение целиком.
+	 * @param signed
+	 * @return поток подписанных данных
+	 * @throws Exception
+	 */
+	protected InputStream openDetach(InputStream signed) throws Exception {
+		InputStream direct = openDetachDirect(signed);
+		if (direct != null) {
+			signed.close(); // буфер остается доступен через direct, а спул под ним можно удалять
+			return direct;
+		}
+		try {
+			return new ByteArrayInputStream(detach(StreamUtils.readAll(signed)));
+		} finally {
+			signed.close();
+		}
+	}
+	
+	/**
+	 * Стадия verify. DER в потоке над ByteBuffer (отображенный файл) проверяется прямо по буферу, и тот же поток
+	 * отдается следующей стадии. Прочий вход (BASE64, поток без буфера) сбрасывается без BASE64 во временный файл,
+	 * проверяется через verify(CmsProfile, InputStream) и в неизменном виде отдается следующей стадии.
+	 * Файл не больше MappedFiles.MAPPING_WINDOW отдается отображенным в память, чтобы следующий detach мог вернуть данные без копирования.
+	 * @param profile
+	 * @param signed
+	 * @return поток того же подписанного сообщения в DER
+	 * @throws Exception
+	 */
+	protected InputStream openVerify(CmsProfile profile, InputStream signed) throws Exception {
+		if (signed instanceof ByteBufferInputStream) {
+			ByteBuffer buffered = ((ByteBufferInputStream) signed).remaining();
+			if (buffered.hasRemaining() && buffered.get(0) == DER_SEQUENCE_TAG) {
+				boolean verified = false;
+				try {
+					verify(profile, new ByteBufferInputStream(buffered));
+					verified = true;
+				} finally {
+					if (!verified) {
+						signed.close();
 					}
 				}
+				return signed; // проверка читала свой дубликат буфера, позиция signed не сдвинулась
 			}
 		}
-		// store to file
-		if (bufferToFile != null) {
-			FileOutputStream fos = null;
+		final File spool;
+		try {
+			spool = StreamUtils.spool(forceBASE64(signed));
+		} finally {
+			signed.close();
+		}
+		boolean verified = false;
+		try {
+			final InputStream check = new FileInputStream(spool);
 			try {
-				fos = new FileOutputStream(bufferToFile);
-				fos.write(buffer);
-				fos.flush();
+				verify(profile, check);
 			} finally {
-				if (fos != null) {
-					fos.close();
-				}
+				check.close();
+			}
+			verified = true;
+		} finally {
+			if (!verified) {
+				StreamUtils.deleteSpool(spool);
 			}
 		}
-		return buffer;
+		if (spool.length() <= MappedFiles.MAPPING_WINDOW) {
+			ByteBuffer mapped = MappedFiles.map(spool.toPath());
+			if (spool.delete()) {
+				return new ByteBufferInputStream(mapped);
+			}
+			// отображенный файл удаляется не везде (Windows) - еще одна попытка при закрытии потока
+			LOG.fine("Mapped spool file " + spool + " not deleted yet, retrying on close");
+			return new ByteBufferInputStream(mapped) {
+				@Override
+				public void close() throws IOException {
+					super.close();
+					StreamUtils.deleteSpool(spool);
+				}
+			};
+		}
+		return StreamUtils.openSpool(spool);
+	}
+	
+	/**
+	 * Стадия sign. Реализация по умолчанию копит данные и подписывает их при закрытии потока.
+	 * @param profile
+	 * @param signed - приемник подписанного сообщения
+	 * @return поток для записи подписываемых данных
+	 * @throws Exception
+	 */
+	protected OutputStream openSign(final CmsProfile profile, OutputStream signed) throws Exception {
+		return new StreamUtils.BufferedStageOutputStream(signed) {
+			@Override
+			protected byte[] transform(byte[] data) throws Exception {
+				return signAttached(profile, data);
+			}
+		};
+	}
+	
+	/**
+	 * Стадия encrypt. Реализация по умолчанию копит данные и шифрует их при закрытии потока.
+	 * @param profile
+	 * @param ciphertext - приемник зашифрованного сообщения
+	 * @return поток для записи открытых данных
+	 * @throws Exception
+	 */
+	protected OutputStream openEncrypt(final CmsProfile profile, OutputStream ciphertext) throws Exception {
+		return new StreamUtils.BufferedStageOutputStream(ciphertext) {
+			@Override
+			protected byte[] transform(byte[] data) throws Exception {
+				return encrypt(profile, data);
+			}
+		};
 	}
 
 }
@@ -0,0 +1,250 @@
+package org.lu.pki.tools;
+
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.Signature;
+import java.security.cert.CertPathBuilder;
+import java.security.cert.CertPathValidator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.KeyGenerator;
+import javax.crypto.NoSuchPaddingException;
+
+/**
+ * JCA-движки (Cipher, Signature, KeyAgreement, KeyFactory...) по потокам - в том же духе, что ThreadLocal CertPathBuilder в CryptoUtils.
+ * getInstance() на каждую операцию - это поиск провайдера и создание движка, на коротких сообщениях заметная доля времени.
+ * Здесь экземпляр создается один раз на поток для (тип, алгоритм, провайдер) и дальше переиспользуется.
+ * <p>
+ * Каждая операция обязана заново вызвать init (initSign, initVerify) - от предыдущей остается только сам объект.
+ * Движок нельзя передавать в другой поток и держать дольше вызова (например, в потоке, отданном наружу):
+ * следующая операция этого потока получит тот же экземпляр. Для таких случаев нужен собственный getInstance().
+ * @author Igor Konovalov ikonovalov@luxoft.com
+ *
+ */
+public final class EnginePool {
+
+	private static final int USAGE_DEFAULT = 0;
+
+	private static final int USAGE_WRAP = 1;
+
+	/**
+	 * Ключ движка: тип, алгоритм (transformation для Cipher), провайдер (null - по умолчанию)
+	 * и назначение - движки одного алгоритма для разных задач одной операции не должны совпадать.
+	 */
+	private static final class Key {
+
+		private final Class<?> type;
+
+		private final String algorithm;
+
+		private final String provider;
+
+		private final int usage;
+
+		Key(Class<?> type, String algorithm, String provider) {
+			this(type, algorithm, provider, USAGE_DEFAULT);
+		}
+
+		Key(Class<?> type, String algorithm, String provider, int usage) {
+			if (algorithm == null) {
+				throw new NullPointerException("algorithm");
+			}
+			this.type = type;
+			this.algorithm = algorithm;
+			this.provider = provider;
+			this.usage = usage;
+		}
+
+		@Override
+		public int hashCode() {
+			return ((type.hashCode() * 31 + algorithm.hashCode()) * 31 + (provider != null ? provider.hashCode() : 0)) * 31 + usage;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return type == other.type && usage == other.usage && algorithm.equals(other.algorithm) && (provider == null ? other.provider == null : provider.equals(other.provider));
+		}
+	}
+
+	private final static ThreadLocal<Map<Key, Object>> engines = new ThreadLocal<Map<Key, Object>>();
+
+	private static final AtomicLong hits = new AtomicLong();
+
+	private static final AtomicLong created = new AtomicLong();
+
+	private static final AtomicLong threads = new AtomicLong();
+
+	private EnginePool() {
+	}
+
+	private static Object lookup(Key key) {
+		Map<Key, Object> map = engines.get();
+		Object engine = map != null ? map.get(key) : null;
+		if (engine != null) {
+			hits.incrementAndGet();
+		}
+		return engine;
+	}
+
+	private static <T> T store(Key key, T engine) {
+		Map<Key, Object> map = engines.get();
+		if (map == null) {
+			map = new HashMap<Key, Object>();
+			engines.set(map);
+			threads.incrementAndGet();
+		}
+		map.put(key, engine);
+		created.incrementAndGet();
+		return engine;
+	}
+
+	public static Cipher cipher(String transformation) throws NoSuchAlgorithmException, NoSuchPaddingException {
+		Key key = new Key(Cipher.class, transformation, null);
+		Cipher cipher = (Cipher) lookup(key);
+		return cipher != null ? cipher : store(key, Cipher.getInstance(transformation));
+	}
+
+	public static Cipher cipher(String transformation, String provider) throws NoSuchAlgorithmException, NoSuchProviderException, NoSuchPaddingException {
+		if (provider == null) {
+			return cipher(transformation);
+		}
+		Key key = new Key(Cipher.class, transformation, provider);
+		Cipher cipher = (Cipher) lookup(key);
+		return cipher != null ? cipher : store(key, Cipher.getInstance(transformation, provider));
+	}
+
+	/**
+	 * Cipher для шифрования ключей (WRAP_MODE, UNWRAP_MODE). Отдельный от cipher(transformation) экземпляр:
+	 * ключ можно развернуть или завернуть, пока Cipher содержимого того же алгоритма уже инициализирован.
+	 */
+	public static Cipher wrapCipher(String transformation) throws NoSuchAlgorithmException, NoSuchPaddingException {
+		Key key = new Key(Cipher.class, transformation, null, USAGE_WRAP);
+		Cipher cipher = (Cipher) lookup(key);
+		return cipher != null ? cipher : store(key, Cipher.getInstance(transformation));
+	}
+
+	public static Signature signature(String algorithm) throws NoSuchAlgorithmException {
+		Key key = new Key(Signature.class, algorithm, null);
+		Signature signature = (Signature) lookup(key);
+		return signature != null ? signature : store(key, Signature.getInstance(algorithm));
+	}
+
+	public static Signature signature(String algorithm, String provider) throws NoSuchAlgorithmException, NoSuchProviderException {
+		if (provider == null) {
+			return signature(algorithm);
+		}
+		Key key = new Key(Signature.class, algorithm, provider);
+		Signature signature = (Signature) lookup(key);
+		return signature != null ? signature : store(key, Signature.getInstance(algorithm, provider));
+	}
+
+	public static KeyAgreement keyAgreement(String algorithm) throws NoSuchAlgorithmException {
+		Key key = new Key(KeyAgreement.class, algorithm, null);
+		KeyAgreement agreement = (KeyAgreement) lookup(key);
+		return agreement != null ? agreement : store(key, KeyAgreement.getInstance(algorithm));
+	}
+
+	/**
+	 * KeyFactory состояния не имеет, его можно использовать без подготовки.
+	 */
+	public static KeyFactory keyFactory(String algorithm) throws NoSuchAlgorithmException {
+		Key key = new Key(KeyFactory.class, algorithm, null);
+		KeyFactory factory = (KeyFactory) lookup(key);
+		return factory != null ? factory : store(key, KeyFactory.getInstance(algorithm));
+	}
+
+	public static KeyGenerator keyGenerator(String algorithm) throws NoSuchAlgorithmException {
+		Key key = new Key(KeyGenerator.class, algorithm, null);
+		KeyGenerator generator = (KeyGenerator) lookup(key);
+		return generator != null ? generator : store(key, KeyGenerator.getInstance(algorithm));
+	}
+
+	/**
+	 * @return MessageDigest текущего потока, уже сброшенный (reset)
+	 */
+	public static MessageDigest messageDigest(String algorithm) throws NoSuchAlgorithmException {
+		Key key = new Key(MessageDigest.class, algorithm, null);
+		MessageDigest digest = (MessageDigest) lookup(key);
+		if (digest == null) {
+			return store(key, MessageDigest.getInstance(algorithm));
+		}
+		digest.reset();
+		return digest;
+	}
+
+	/**
+	 * @param algorithm - например "PKIX"
+	 * @param provider - имя провайдера или null
+	 */
+	public static CertPathBuilder certPathBuilder(String algorithm, String provider) throws NoSuchAlgorithmException, NoSuchProviderException {
+		Key key = new Key(CertPathBuilder.class, algorithm, provider);
+		CertPathBuilder builder = (CertPathBuilder) lookup(key);
+		if (builder != null) {
+			return builder;
+		}
+		return store(key, provider != null ? CertPathBuilder.getInstance(algorithm, provider) : CertPathBuilder.getInstance(algorithm));
+	}
+
+	/**
+	 * @param algorithm - например "PKIX"
+	 * @param provider - имя провайдера или null
+	 */
+	public static CertPathValidator certPathValidator(String algorithm, String provider) throws NoSuchAlgorithmException, NoSuchProviderException {
+		Key key = new Key(CertPathValidator.class, algorithm, provider);
+		CertPathValidator validator = (CertPathValidator) lookup(key);
+		if (validator != null) {
+			return validator;
+		}
+		return store(key, provider != null ? CertPathValidator.getInstance(algorithm, provider) : CertPathValidator.getInstance(algorithm));
+	}
+
+	/**
+	 * Освобождение движков текущего потока (например, перед возвратом потока в чужой пул).
+	 */
+	public static void release() {
+		engines.remove();
+	}
+
+	/**
+	 * @return число движков текущего потока
+	 */
+	public static int size() {
+		Map<Key, Object> map = engines.get();
+		return map != null ? map.size() : 0;
+	}
+
+	/**
+	 * @return число выдач уже созданного движка (во всех потоках)
+	 */
+	public static long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return число созданных движков (во всех потоках)
+	 */
+	public static long getCreated() {
+		return created.get();
+	}
+
+	/**
+	 * @return число потоков, заводивших движки (включая освобожденные через release())
+	 */
+	public static long getThreads() {
+		return threads.get();
+	}
+
+	public static String getStatistics() {
+		return "EnginePool [threads=" + threads.get() + ", created=" + created.get() + ", hits=" + hits.get() + "]";
+	}
+}
@@ -0,0 +1,143 @@
+package org.lu.pki.tools;
+
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Несколько хранилищ (например, HDImageStore подразделений и PKCS12 с доверенными сертификатами) как одно.
+ * Хранилища добавляются в порядке приоритета, build() строит общий индекс (KeyStoreIndex): получатель или подписчик
+ * находится одним поиском сразу во всех хранилищах, а getStoreName() говорит, в каком именно.
+ * Алиасы в общем индексе - "имя:алиас"; неквалифицированный алиас разрешается в самое приоритетное хранилище, где он есть.
+ * <p>
+ * Хранилища, добавленные с загрузчиком, перезагружаются при перезагрузке общего индекса (reloader(), CryptoUtils.useKeyStores()).
+ * @author Igor Konovalov ikonovalov@luxoft.com
+ *
+ */
+public final class FederatedKeyStore {
+
+	public static final String SEPARATOR = ":";
+
+	private final List<KeyStoreIndex.Source> sources = new ArrayList<KeyStoreIndex.Source>();
+
+	/**
+	 * Загрузчики хранилищ в порядке sources (null - хранилище добавлено готовым и не перезагружается).
+	 */
+	private final List<KeyStoreHolder.Loader> loaders = new ArrayList<KeyStoreHolder.Loader>();
+
+	private final List<String> names = new ArrayList<String>();
+
+	private final List<char[]> passwords = new ArrayList<char[]>();
+
+	/**
+	 * Добавление хранилища с меньшим приоритетом, чем все добавленные ранее.
+	 * @param name - имя хранилища (уникальное, без SEPARATOR)
+	 * @param keyStore - загруженное хранилище
+	 * @param password - пароль ключей этого хранилища (null - пароль инстанса CryptoUtils)
+	 * @return this
+	 */
+	public FederatedKeyStore add(String name, KeyStore keyStore, char[] password) {
+		return add(name, keyStore, null, password);
+	}
+
+	/**
+	 * Добавление хранилища, которое загружается сейчас и заново - при каждой перезагрузке общего индекса.
+	 * @param name - имя хранилища (уникальное, без SEPARATOR)
+	 * @param loader - загрузка хранилища
+	 * @param password - пароль ключей этого хранилища (null - пароль инстанса CryptoUtils)
+	 * @return this
+	 * @throws Exception - ошибка загрузки хранилища
+	 */
+	public FederatedKeyStore add(String name, KeyStoreHolder.Loader loader, char[] password) throws Exception {
+		if (loader == null) {
+			throw new NullPointerException("loader");
+		}
+		checkName(name);
+		return add(name, loader.load(), loader, password);
+	}
+
+	private FederatedKeyStore add(String name, KeyStore keyStore, KeyStoreHolder.Loader loader, char[] password) {
+		checkName(name);
+		if (keyStore == null) {
+			throw new NullPointerException("keyStore");
+		}
+		char[] copy = password != null ? password.clone() : null;
+		names.add(name);
+		passwords.add(copy);
+		loaders.add(loader);
+		sources.add(new KeyStoreIndex.Source(name, keyStore, copy));
+		return this;
+	}
+
+	private void checkName(String name) {
+		if (name == null || name.isEmpty() || name.contains(SEPARATOR)) {
+			throw new IllegalArgumentException("Invalid key store name '" + name + "'");
+		}
+		if (names.contains(name)) {
+			throw new IllegalArgumentException("Duplicate key store name '" + name + "'");
+		}
+	}
+
+	/**
+	 * Хранилище только с сертификатами (или с ключами под паролем инстанса CryptoUtils).
+	 * @param name
+	 * @param keyStore
+	 * @return this
+	 */
+	public FederatedKeyStore add(String name, KeyStore keyStore) {
+		return add(name, keyStore, null);
+	}
+
+	public int size() {
+		return sources.size();
+	}
+
+	/**
+	 * Построение общего индекса. Хранилища перебираются один раз.
+	 * @return
+	 * @throws KeyStoreException
+	 */
+	public KeyStoreIndex build() throws KeyStoreException {
+		if (sources.isEmpty()) {
+			throw new IllegalStateException("No key stores added");
+		}
+		return KeyStoreIndex.build(sources);
+	}
+
+	/**
+	 * Перестроение общего индекса для KeyStoreHolder.replace(KeyStoreIndex, IndexLoader): каждый раз заново загружаются
+	 * все хранилища, добавленные с загрузчиком, готовые хранилища берутся как есть. Состав хранилищ - на момент вызова.
+	 * @return
+	 */
+	public KeyStoreHolder.IndexLoader reloader() {
+		if (sources.isEmpty()) {
+			throw new IllegalStateException("No key stores added");
+		}
+		final List<KeyStoreIndex.Source> current = new ArrayList<KeyStoreIndex.Source>(sources);
+		final List<KeyStoreHolder.Loader> reloaders = new ArrayList<KeyStoreHolder.Loader>(loaders);
+		final List<String> storeNames = new ArrayList<String>(names);
+		final List<char[]> storePasswords = new ArrayList<char[]>(passwords);
+		return new KeyStoreHolder.IndexLoader() {
+
+			@Override
+			public KeyStoreIndex load() throws Exception {
+				List<KeyStoreIndex.Source> fresh = new ArrayList<KeyStoreIndex.Source>(current.size());
+				for (int i = 0; i < current.size(); i++) {
+					KeyStoreHolder.Loader loader = reloaders.get(i);
+					fresh.add(loader == null ? current.get(i) : new KeyStoreIndex.Source(storeNames.get(i), loader.load(), storePasswords.get(i)));
+				}
+				return KeyStoreIndex.build(fresh);
+			}
+		};
+	}
+
+	/**
+	 * @param storeName
+	 * @param alias
+	 * @return алиас в общем индексе
+	 */
+	public static String qualify(String storeName, String alias) {
+		return storeName + SEPARATOR + alias;
+	}
+}
@@ -0,0 +1,232 @@
+package org.lu.pki.tools;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CRL;
+import java.security.cert.CRLSelector;
+import java.security.cert.CertSelector;
+import java.security.cert.CertStore;
+import java.security.cert.CertStoreParameters;
+import java.security.cert.CertStoreSpi;
+import java.security.cert.Certificate;
+import java.security.cert.X509CertSelector;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * CertStore с индексами по субъекту, (издатель, серийный номер), SubjectKeyIdentifier и AuthorityKeyIdentifier (тип {@value #TYPE}, провайдер PkiToolsProvider).
+ * Collection CertStore проверяет селектором каждый сертификат; здесь X509CertSelector с одним из этих критериев
+ * сужается до нескольких кандидатов по хэш-индексу, остальные критерии селектора проверяются уже на кандидатах.
+ * Селекторы без индексируемых критериев обрабатываются перебором. Сертификаты неизменяемы, поиск без блокировок.
+ * <p>
+ * Дополнительно может искать в большом списке доверия (CompactCertificateIndex): он участвует только в индексных поисках, но не в переборе.
+ * @author Igor Konovalov ikonovalov@luxoft.com
+ *
+ */
+public final class IndexedCertStore extends CertStoreSpi {
+
+	public static final String TYPE = "Indexed";
+
+	private static final String AUTHORITY_KEY_IDENTIFIER_OID = "2.5.29.35";
+
+	/**
+	 * Параметры: сертификаты и, необязательно, большой список доверия.
+	 */
+	public static final class Parameters implements CertStoreParameters {
+
+		private final Collection<? extends Certificate> certificates;
+
+		private final CompactCertificateIndex trustList;
+
+		public Parameters(Collection<? extends Certificate> certificates) {
+			this(certificates, null);
+		}
+
+		/**
+		 * @param certificates
+		 * @param trustList - null, если не нужен
+		 */
+		public Parameters(Collection<? extends Certificate> certificates, CompactCertificateIndex trustList) {
+			if (certificates == null) {
+				throw new NullPointerException("certificates");
+			}
+			this.certificates = certificates;
+			this.trustList = trustList;
+		}
+
+		public Collection<? extends Certificate> getCertificates() {
+			return certificates;
+		}
+
+		public CompactCertificateIndex getTrustList() {
+			return trustList;
+		}
+
+		@Override
+		public Object clone() {
+			try {
+				return super.clone();
+			} catch (CloneNotSupportedException e) {
+				throw new InternalError(e.toString());
+			}
+		}
+	}
+
+	private final List<Certificate> all;
+
+	private final CompactCertificateIndex trustList;
+
+	private final Map<X500Principal, List<X509Certificate>> bySubject = new HashMap<X500Principal, List<X509Certificate>>();
+
+	private final Map<BigInteger, List<X509Certificate>> bySerial = new HashMap<BigInteger, List<X509Certificate>>();
+
+	private final Map<ByteBuffer, List<X509Certificate>> bySki = new HashMap<ByteBuffer, List<X509Certificate>>();
+
+	private final Map<ByteBuffer, List<X509Certificate>> byAki = new HashMap<ByteBuffer, List<X509Certificate>>();
+
+	public IndexedCertStore(CertStoreParameters params) throws InvalidAlgorithmParameterException {
+		super(params);
+		if (!(params instanceof Parameters)) {
+			throw new InvalidAlgorithmParameterException("IndexedCertStore.Parameters expected, but " + params);
+		}
+		Parameters parameters = (Parameters) params;
+		this.all = Collections.unmodifiableList(new ArrayList<Certificate>(parameters.getCertificates()));
+		this.trustList = parameters.getTrustList();
+		for (Certificate c : all) {
+			if (!(c instanceof X509Certificate)) {
+				continue;
+			}
+			X509Certificate cert = (X509Certificate) c;
+			add(bySubject, cert.getSubjectX500Principal(), cert);
+			add(bySerial, cert.getSerialNumber(), cert);
+			byte[] ski = KeyStoreIndex.subjectKeyIdentifier(cert);
+			if (ski != null) {
+				add(bySki, ByteBuffer.wrap(ski), cert);
+			}
+			byte[] aki = cert.getExtensionValue(AUTHORITY_KEY_IDENTIFIER_OID);
+			if (aki != null && (aki = KeyStoreIndex.unwrapOctetString(aki)) != null) {
+				add(byAki, ByteBuffer.wrap(aki), cert);
+			}
+		}
+	}
+
+	/**
+	 * Создание CertStore по списку сертификатов.
+	 * @param certificates
+	 * @return
+	 * @throws InvalidAlgorithmParameterException
+	 * @throws NoSuchAlgorithmException
+	 */
+	public static CertStore create(Collection<? extends Certificate> certificates) throws InvalidAlgorithmParameterException, NoSuchAlgorithmException {
+		return create(certificates, null);
+	}
+
+	public static CertStore create(Collection<? extends Certificate> certificates, CompactCertificateIndex trustList) throws InvalidAlgorithmParameterException, NoSuchAlgorithmException {
+		return CertStore.getInstance(TYPE, new Parameters(certificates, trustList), PkiToolsProvider.getInstance());
+	}
+
+	private static <K> void add(Map<K, List<X509Certificate>> map, K key, X509Certificate cert) {
+		List<X509Certificate> list = map.get(key);
+		if (list == null) {
+			list = new ArrayList<X509Certificate>(1);
+			map.put(key, list);
+		}
+		list.add(cert);
+	}
+
+	@Override
+	public Collection<? extends Certificate> engineGetCertificates(CertSelector selector) {
+		if (selector == null) {
+			return all;
+		}
+		Collection<X509Certificate> candidates = selector instanceof X509CertSelector ? candidates((X509CertSelector) selector) : null;
+		if (candidates == null) {
+			List<Certificate> matched = new ArrayList<Certificate>();
+			for (Certificate cert : all) {
+				if (selector.match(cert)) {
+					matched.add(cert);
+				}
+			}
+			return matched;
+		}
+		Set<Certificate> matched = new LinkedHashSet<Certificate>();
+		for (X509Certificate cert : candidates) {
+			if (selector.match(cert)) {
+				matched.add(cert);
+			}
+		}
+		return matched;
+	}
+
+	/**
+	 * Кандидаты по самому избирательному из индексируемых критериев.
+	 * @param selector
+	 * @return null - критериев для индекса нет, нужен перебор
+	 */
+	private Collection<X509Certificate> candidates(X509CertSelector selector) {
+		X509Certificate exact = selector.getCertificate();
+		X500Principal issuer = exact != null ? exact.getIssuerX500Principal() : selector.getIssuer();
+		BigInteger serial = exact != null ? exact.getSerialNumber() : selector.getSerialNumber();
+		if (serial != null) {
+			List<X509Certificate> found = new ArrayList<X509Certificate>(get(bySerial, serial));
+			if (trustList != null && issuer != null) {
+				addNotNull(found, trustList.findByIssuerAndSerialNumber(issuer, serial));
+			}
+			return found;
+		}
+		byte[] ski = selector.getSubjectKeyIdentifier();
+		if (ski != null) {
+			// в селекторе - DER OCTET STRING с идентификатором, но встречается и сам идентификатор
+			byte[] keyId = KeyStoreIndex.unwrapOctetString(ski);
+			List<X509Certificate> found = new ArrayList<X509Certificate>(get(bySki, ByteBuffer.wrap(keyId != null ? keyId : ski)));
+			if (keyId != null) {
+				found.addAll(get(bySki, ByteBuffer.wrap(ski)));
+			}
+			if (trustList != null) {
+				addNotNull(found, trustList.findBySubjectKeyIdentifier(keyId != null ? keyId : ski));
+			}
+			return found;
+		}
+		byte[] aki = selector.getAuthorityKeyIdentifier();
+		if (aki != null) {
+			return get(byAki, ByteBuffer.wrap(aki));
+		}
+		X500Principal subject = selector.getSubject();
+		if (subject != null) {
+			if (trustList == null) {
+				return get(bySubject, subject);
+			}
+			List<X509Certificate> found = new ArrayList<X509Certificate>(get(bySubject, subject));
+			found.addAll(trustList.findBySubject(subject));
+			return found;
+		}
+		return null;
+	}
+
+	private static <K> List<X509Certificate> get(Map<K, List<X509Certificate>> map, K key) {
+		List<X509Certificate> list = map.get(key);
+		return list != null ? list : Collections.<X509Certificate>emptyList();
+	}
+
+	private static void addNotNull(List<X509Certificate> list, X509Certificate cert) {
+		if (cert != null) {
+			list.add(cert);
+		}
+	}
+
+	@Override
+	public Collection<? extends CRL> engineGetCRLs(CRLSelector selector) {
+		return Collections.emptyList();
+	}
+}
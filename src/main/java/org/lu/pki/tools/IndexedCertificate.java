@@ -0,0 +1,132 @@
+package org.lu.pki.tools;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * Сертификат в индексе хранилища: поля для поиска и проверки срока действия доступны без разбора,
+ * X509Certificate разбирается из DER только при первом обращении (см. KeyStoreIndexFile).
+ * @author Igor Konovalov ikonovalov@luxoft.com
+ *
+ */
+final class IndexedCertificate {
+
+	private final X500Principal subject;
+
+	private final X500Principal issuer;
+
+	private final BigInteger serialNumber;
+
+	/**
+	 * KeyIdentifier без DER-оберток или null
+	 */
+	private final byte[] subjectKeyIdentifier;
+
+	private final long notBefore;
+
+	private final long notAfter;
+
+	/**
+	 * DER сертификата (только чтение, может указывать в отображенный файл)
+	 */
+	private final ByteBuffer encoded;
+
+	private volatile X509Certificate certificate;
+
+	IndexedCertificate(X500Principal subject, X500Principal issuer, BigInteger serialNumber, byte[] subjectKeyIdentifier, long notBefore, long notAfter, ByteBuffer encoded) {
+		this.subject = subject;
+		this.issuer = issuer;
+		this.serialNumber = serialNumber;
+		this.subjectKeyIdentifier = subjectKeyIdentifier;
+		this.notBefore = notBefore;
+		this.notAfter = notAfter;
+		this.encoded = encoded;
+	}
+
+	/**
+	 * Запись по уже разобранному сертификату.
+	 * @param cert
+	 * @return
+	 * @throws CertificateEncodingException
+	 */
+	static IndexedCertificate of(X509Certificate cert) throws CertificateEncodingException {
+		IndexedCertificate indexed = new IndexedCertificate(cert.getSubjectX500Principal(), cert.getIssuerX500Principal(), cert.getSerialNumber(),
+				KeyStoreIndex.subjectKeyIdentifier(cert), cert.getNotBefore().getTime(), cert.getNotAfter().getTime(), ByteBuffer.wrap(cert.getEncoded()).asReadOnlyBuffer());
+		indexed.certificate = cert;
+		return indexed;
+	}
+
+	/**
+	 * @return разобранный сертификат (разбор при первом обращении, повторяющиеся сертификаты - через CertificateCache)
+	 */
+	X509Certificate getCertificate() {
+		X509Certificate cert = certificate;
+		if (cert == null) {
+			try {
+				cert = CertificateCache.getShared().intern(getEncoded());
+			} catch (CertificateException e) {
+				throw new IllegalStateException("Broken certificate in key store index: " + subject, e);
+			}
+			certificate = cert;
+		}
+		return cert;
+	}
+
+	boolean isParsed() {
+		return certificate != null;
+	}
+
+	byte[] getEncoded() {
+		ByteBuffer der = encoded.duplicate();
+		byte[] data = new byte[der.remaining()];
+		der.get(data);
+		return data;
+	}
+
+	/**
+	 * @return DER без копирования (только чтение)
+	 */
+	ByteBuffer getEncodedView() {
+		return encoded.duplicate();
+	}
+
+	X500Principal getSubject() {
+		return subject;
+	}
+
+	X500Principal getIssuer() {
+		return issuer;
+	}
+
+	BigInteger getSerialNumber() {
+		return serialNumber;
+	}
+
+	byte[] getSubjectKeyIdentifier() {
+		return subjectKeyIdentifier;
+	}
+
+	long getNotBefore() {
+		return notBefore;
+	}
+
+	long getNotAfter() {
+		return notAfter;
+	}
+
+	/**
+	 * @return субъект совпадает с издателем (кандидат в корневые; подпись при этом не проверяется)
+	 */
+	boolean isSelfIssued() {
+		return subject.equals(issuer);
+	}
+
+	boolean sameEncoding(IndexedCertificate other) {
+		return encoded.equals(other.encoded);
+	}
+}
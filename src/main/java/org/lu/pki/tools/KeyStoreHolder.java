@@ -0,0 +1,307 @@
+package org.lu.pki.tools;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.KeyStore;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Текущий снимок хранилища (KeyStoreIndex) с возможностью перезагрузки на лету.
+ * Новый снимок строится в фоне и публикуется одной записью volatile-ссылки: операции, начатые на старом снимке,
+ * завершаются на нем же, чтение никогда не блокируется. Разделяется инстансом CryptoUtils и всеми его fork().
+ * <p>
+ * watch() следит за файлом хранилища (WatchService) и перезагружает его после изменения.
+ * @author Igor Konovalov ikonovalov@luxoft.com
+ *
+ */
+public final class KeyStoreHolder implements Closeable {
+
+	private static final Logger LOG = Logger.getLogger(KeyStoreHolder.class.getName());
+
+	/**
+	 * Сколько ждать тишины после последнего события файла перед перезагрузкой (файл часто пишется несколькими вызовами).
+	 */
+	public static final long QUIET_PERIOD_MILLIS = 250;
+
+	/**
+	 * Загрузка хранилища из файла (своя для провайдера).
+	 */
+	public interface Loader {
+
+		KeyStore load() throws Exception;
+	}
+
+	/**
+	 * Построение снимка целиком - для снимка не из одного хранилища (см. FederatedKeyStore.reloader()).
+	 */
+	public interface IndexLoader {
+
+		KeyStoreIndex load() throws Exception;
+	}
+
+	/**
+	 * Уведомление о публикации нового снимка.
+	 */
+	public interface Listener {
+
+		/**
+		 * @param previous
+		 * @param current
+		 * @param changedAliases - добавленные, удаленные и замененные алиасы
+		 */
+		void onReload(KeyStoreIndex previous, KeyStoreIndex current, List<String> changedAliases);
+	}
+
+	private volatile KeyStoreIndex index;
+
+	private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+	private final Object reloadLock = new Object();
+
+	private volatile Loader loader;
+
+	private volatile IndexLoader indexLoader;
+
+	private volatile WatchService watchService;
+
+	private final AtomicLong reloads = new AtomicLong();
+
+	private final AtomicLong failures = new AtomicLong();
+
+	private volatile long lastReloadNanos = 0;
+
+	private volatile int lastChangedEntries = 0;
+
+	public KeyStoreHolder(KeyStoreIndex index) {
+		if (index == null) {
+			throw new NullPointerException("index");
+		}
+		this.index = index;
+	}
+
+	/**
+	 * @return текущий снимок. Для согласованности операция должна брать снимок один раз.
+	 */
+	public KeyStoreIndex getIndex() {
+		return index;
+	}
+
+	public void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(Listener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Перезагрузка снимка: загрузчиком, переданным в replace(KeyStoreIndex, IndexLoader), а без него - загрузчиком, переданным в watch().
+	 * @return изменившиеся алиасы
+	 * @throws Exception - снимок при этом не меняется
+	 */
+	public List<String> reload() throws Exception {
+		IndexLoader builder = indexLoader;
+		if (builder != null) {
+			return rebuild(builder);
+		}
+		Loader current = loader;
+		if (current == null) {
+			throw new IllegalStateException("Loader not set. Use watch() or reload(Loader)");
+		}
+		return reload(current);
+	}
+
+	/**
+	 * Загрузка хранилища, построение индексов и публикация нового снимка.
+	 * Перезагрузки выполняются по одной; чтение снимка в это время не блокируется.
+	 * @param loader
+	 * @return изменившиеся алиасы
+	 * @throws Exception - снимок при этом не меняется
+	 */
+	public List<String> reload(final Loader loader) throws Exception {
+		return rebuild(new IndexLoader() {
+
+			@Override
+			public KeyStoreIndex load() throws Exception {
+				return KeyStoreIndex.build(loader.load());
+			}
+		});
+	}
+
+	private List<String> rebuild(IndexLoader builder) throws Exception {
+		synchronized (reloadLock) {
+			final long started = System.nanoTime();
+			KeyStoreIndex fresh;
+			try {
+				fresh = builder.load();
+			} catch (Exception e) {
+				failures.incrementAndGet();
+				throw e;
+			}
+			return publish(fresh, started);
+		}
+	}
+
+	/**
+	 * Публикация уже построенного снимка. Последующие reload() (в том числе по watch()) снова загружают хранилище загрузчиком watch().
+	 * @param fresh
+	 * @return изменившиеся алиасы
+	 */
+	public List<String> replace(KeyStoreIndex fresh) {
+		return replace(fresh, null);
+	}
+
+	/**
+	 * Публикация уже построенного снимка, который при перезагрузке строится заново целиком
+	 * (например, общий индекс нескольких хранилищ: FederatedKeyStore.build() и FederatedKeyStore.reloader()).
+	 * @param fresh
+	 * @param builder - чем строить снимок в reload() вместо загрузчика watch() (null - загрузчиком watch())
+	 * @return изменившиеся алиасы
+	 */
+	public List<String> replace(KeyStoreIndex fresh, IndexLoader builder) {
+		if (fresh == null) {
+			throw new NullPointerException("index");
+		}
+		synchronized (reloadLock) {
+			indexLoader = builder;
+			return publish(fresh, System.nanoTime());
+		}
+	}
+
+	private List<String> publish(KeyStoreIndex fresh, long started) {
+		KeyStoreIndex previous = index;
+		List<String> changed = fresh.changedSince(previous);
+		index = fresh;
+		lastReloadNanos = System.nanoTime() - started;
+		lastChangedEntries = changed.size();
+		reloads.incrementAndGet();
+		if (LOG.isLoggable(Level.INFO)) {
+			LOG.info("KeyStore reloaded in " + getLastReloadMillis() + " ms, changed entries: " + changed.size() + " " + (changed.size() <= 10 ? changed : ""));
+		}
+		for (Listener listener : listeners) {
+			try {
+				listener.onReload(previous, fresh, changed);
+			} catch (RuntimeException e) {
+				LOG.log(Level.WARNING, "KeyStore reload listener failed", e);
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * Слежение за файлом хранилища: после изменения (и QUIET_PERIOD_MILLIS тишины) хранилище перезагружается в фоновом потоке.
+	 * Ошибка загрузки (например, файл записан не до конца) оставляет прежний снимок.
+	 * @param file - файл хранилища
+	 * @param loader
+	 * @throws IOException
+	 */
+	public synchronized void watch(final Path file, Loader loader) throws IOException {
+		if (watchService != null) {
+			throw new IllegalStateException("Already watching");
+		}
+		this.loader = loader;
+		final Path absolute = file.toAbsolutePath();
+		final Path directory = absolute.getParent();
+		final WatchService service = FileSystems.getDefault().newWatchService();
+		directory.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+		watchService = service;
+		Thread watcher = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				watchLoop(service, directory, absolute.getFileName());
+			}
+		}, "keystore-watch-" + absolute.getFileName());
+		watcher.setDaemon(true);
+		watcher.start();
+		LOG.fine("Watching keystore " + absolute);
+	}
+
+	private void watchLoop(WatchService service, Path directory, Path fileName) {
+		try {
+			while (true) {
+				WatchKey key = service.take();
+				boolean touched = drain(key, fileName);
+				// ждем, пока файл перестанет меняться
+				while (touched) {
+					WatchKey next = service.poll(QUIET_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+					if (next == null) {
+						break;
+					}
+					drain(next, fileName);
+				}
+				if (touched) {
+					try {
+						reload();
+					} catch (Exception e) {
+						LOG.log(Level.WARNING, "KeyStore reload failed, keeping previous snapshot", e);
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ClosedWatchServiceException e) {
+			// close()
+		}
+		LOG.fine("Keystore watching stopped for " + directory.resolve(fileName));
+	}
+
+	private static boolean drain(WatchKey key, Path fileName) {
+		boolean touched = false;
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW || fileName.equals(event.context())) {
+				touched = true;
+			}
+		}
+		key.reset();
+		return touched;
+	}
+
+	/**
+	 * @return число успешных перезагрузок
+	 */
+	public long getReloadCount() {
+		return reloads.get();
+	}
+
+	public long getFailedReloadCount() {
+		return failures.get();
+	}
+
+	/**
+	 * @return длительность последней перезагрузки (загрузка + индексы + публикация)
+	 */
+	public long getLastReloadMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(lastReloadNanos);
+	}
+
+	/**
+	 * @return число изменившихся записей при последней перезагрузке
+	 */
+	public int getLastChangedEntries() {
+		return lastChangedEntries;
+	}
+
+	/**
+	 * Остановка слежения. Текущий снимок остается доступен.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (watchService != null) {
+			watchService.close();
+			watchService = null;
+		}
+	}
+}
@@ -0,0 +1,661 @@
+package org.lu.pki.tools;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.Key;
+import java.security.NoSuchAlgorithmException;
+import java.security.UnrecoverableKeyException;
+import java.security.cert.CertStore;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * Неизменяемый снимок хранилища с индексами для поиска алиаса получателя/подписчика:
+ * (издатель, серийный номер) -> алиас, SubjectKeyIdentifier -> алиас, субъект -> алиасы.
+ * Строится один раз при загрузке хранилища, поиск - O(1) без блокировок. При перезагрузке строится новый снимок и подменяется целиком.
+ * CertStore и набор действующих сертификатов для проверки цепочек строятся по снимку один раз (см. getCertStore(), getValidCertificates()).
+ * <p>
+ * Индексы строятся по полям сертификата (IndexedCertificate), сам X509Certificate разбирается только при обращении к нему:
+ * снимок, прочитанный из файла индекса (KeyStoreIndexFile), не разбирает ни одного сертификата до первого использования.
+ * <p>
+ * Индекс может объединять несколько хранилищ (см. FederatedKeyStore): тогда алиасы квалифицируются именем хранилища ("имя:алиас"),
+ * а поиск получателя/подписчика - один поиск по общим индексам с учетом приоритета хранилищ.
+ * @author Igor Konovalov ikonovalov@luxoft.com
+ *
+ */
+public final class KeyStoreIndex {
+
+	private static final Logger LOG = Logger.getLogger(KeyStoreIndex.class.getName());
+
+	private static final AtomicLong VERSIONS = new AtomicLong();
+
+	/**
+	 * Действующие на момент построения сертификаты и момент, до которого этот набор не меняется.
+	 */
+	private static final class ValidCertificates {
+
+		private final Set<X509Certificate> certificates;
+
+		private final long validUntil;
+
+		ValidCertificates(Set<X509Certificate> certificates, long validUntil) {
+			this.certificates = certificates;
+			this.validUntil = validUntil;
+		}
+	}
+
+	/**
+	 * Хранилище в составе индекса. Может загружаться отложенно - при первом обращении к ключу (см. KeyStoreIndexFile).
+	 */
+	static final class Source {
+
+		private final String name;
+
+		private final KeyStoreHolder.Loader loader;
+
+		private volatile KeyStore keyStore;
+
+		private final char[] password;
+
+		/**
+		 * @param name - имя хранилища (null - единственное хранилище, алиасы не квалифицируются)
+		 * @param keyStore
+		 * @param password - пароль ключей (null - пароль, переданный в getKey())
+		 */
+		Source(String name, KeyStore keyStore, char[] password) {
+			this.name = name;
+			this.loader = null;
+			this.keyStore = keyStore;
+			this.password = password;
+		}
+
+		/**
+		 * Отложенно загружаемое хранилище.
+		 * @param name
+		 * @param loader - вызывается один раз, при первом обращении к хранилищу
+		 * @param password
+		 */
+		Source(String name, KeyStoreHolder.Loader loader, char[] password) {
+			this.name = name;
+			this.loader = loader;
+			this.password = password;
+		}
+
+		KeyStore keyStore() throws KeyStoreException {
+			KeyStore ks = keyStore;
+			if (ks == null) {
+				synchronized (this) {
+					ks = keyStore;
+					if (ks == null) {
+						final long started = System.nanoTime();
+						try {
+							ks = loader.load();
+						} catch (KeyStoreException e) {
+							throw e;
+						} catch (Exception e) {
+							throw new KeyStoreException("Deferred key store loading failed", e);
+						}
+						keyStore = ks;
+						if (LOG.isLoggable(Level.FINE)) {
+							LOG.fine("KeyStore " + (name != null ? name + " " : "") + "loaded on first use in " + (System.nanoTime() - started) / 1000000 + " ms");
+						}
+					}
+				}
+			}
+			return ks;
+		}
+
+		boolean isLoaded() {
+			return keyStore != null;
+		}
+	}
+
+	/**
+	 * Запись индекса: где она лежит (хранилище и алиас внутри него), есть ли по ней ключ и сертификат.
+	 */
+	static final class AliasEntry {
+
+		private final Source source;
+
+		private final String alias;
+
+		private final boolean key;
+
+		private final IndexedCertificate certificate;
+
+		/**
+		 * @param source
+		 * @param alias - алиас внутри хранилища
+		 * @param key - запись с закрытым ключом
+		 * @param certificate - null, если у записи нет сертификата X.509
+		 */
+		AliasEntry(Source source, String alias, boolean key, IndexedCertificate certificate) {
+			this.source = source;
+			this.alias = alias;
+			this.key = key;
+			this.certificate = certificate;
+		}
+
+		String getAlias() {
+			return alias;
+		}
+
+		boolean isKey() {
+			return key;
+		}
+
+		IndexedCertificate getCertificate() {
+			return certificate;
+		}
+	}
+
+	private final long version = VERSIONS.incrementAndGet();
+
+	private final List<Source> sources;
+
+	/**
+	 * алиас индекса -> запись, в порядке приоритета хранилищ
+	 */
+	private final Map<String, AliasEntry> entries;
+
+	/**
+	 * Неквалифицированный алиас -> алиас индекса в самом приоритетном хранилище (только для нескольких хранилищ)
+	 */
+	private final Map<String, String> shortAliases;
+
+	private final Map<String, IndexedCertificate> certificates;
+
+	private final Set<String> keyAliases;
+
+	private final Map<IssuerSerial, String> byIssuerSerial;
+
+	private final Map<BigInteger, String> bySerial;
+
+	private final Map<KeyId, String> bySki;
+
+	private final Map<X500Principal, List<String>> bySubject;
+
+	private volatile CertStore certStore;
+
+	private volatile ValidCertificates validCertificates;
+
+	private KeyStoreIndex(List<Source> sources, Map<String, AliasEntry> entries, Map<String, String> shortAliases, Map<String, IndexedCertificate> certificates, Set<String> keyAliases,
+			Map<IssuerSerial, String> byIssuerSerial, Map<BigInteger, String> bySerial, Map<KeyId, String> bySki, Map<X500Principal, List<String>> bySubject) {
+		this.sources = sources;
+		this.entries = entries;
+		this.shortAliases = shortAliases;
+		this.certificates = certificates;
+		this.keyAliases = keyAliases;
+		this.byIssuerSerial = byIssuerSerial;
+		this.bySerial = bySerial;
+		this.bySki = bySki;
+		this.bySubject = bySubject;
+	}
+
+	/**
+	 * Построение индекса по загруженному хранилищу. Записи без сертификата X.509 в индекс не попадают.
+	 * При совпадении ключей (один сертификат под разными алиасами) побеждает первый алиас, предпочтительно с ключом.
+	 * @param keyStore
+	 * @return
+	 * @throws KeyStoreException
+	 */
+	public static KeyStoreIndex build(KeyStore keyStore) throws KeyStoreException {
+		return build(Collections.singletonList(new Source(null, keyStore, null)));
+	}
+
+	/**
+	 * Общий индекс нескольких хранилищ. Порядок sources - приоритет: при совпадении ключей поиска
+	 * побеждает запись с закрытым ключом, а среди них - из более приоритетного хранилища.
+	 * @param sources
+	 * @return
+	 * @throws KeyStoreException
+	 */
+	static KeyStoreIndex build(List<Source> sources) throws KeyStoreException {
+		final long started = System.nanoTime();
+		List<AliasEntry> entries = new ArrayList<AliasEntry>();
+		for (Source source : sources) {
+			KeyStore keyStore = source.keyStore();
+			Enumeration<String> aliases = keyStore.aliases();
+			while (aliases.hasMoreElements()) {
+				String alias = aliases.nextElement();
+				Certificate c = keyStore.getCertificate(alias);
+				IndexedCertificate cert = null;
+				if (c instanceof X509Certificate) {
+					try {
+						cert = IndexedCertificate.of((X509Certificate) c);
+					} catch (CertificateEncodingException e) {
+						throw new KeyStoreException("Can't encode certificate '" + alias + "'", e);
+					}
+				}
+				entries.add(new AliasEntry(source, alias, keyStore.isKeyEntry(alias), cert));
+			}
+		}
+		return build(sources, entries, started);
+	}
+
+	/**
+	 * Индекс по готовым записям (например, прочитанным из файла индекса) - без обращения к хранилищу и без разбора сертификатов.
+	 * @param sources
+	 * @param entries - записи в порядке приоритета
+	 * @return
+	 * @throws KeyStoreException
+	 */
+	static KeyStoreIndex build(List<Source> sources, List<AliasEntry> entries) throws KeyStoreException {
+		return build(sources, entries, System.nanoTime());
+	}
+
+	private static KeyStoreIndex build(List<Source> sources, List<AliasEntry> list, long started) throws KeyStoreException {
+		Map<String, AliasEntry> entries = new LinkedHashMap<String, AliasEntry>();
+		Map<String, String> shortAliases = new HashMap<String, String>();
+		Map<String, IndexedCertificate> certificates = new LinkedHashMap<String, IndexedCertificate>();
+		Set<String> keyAliases = new HashSet<String>();
+		for (AliasEntry entry : list) {
+			Source source = entry.source;
+			String alias = source.name == null ? entry.alias : FederatedKeyStore.qualify(source.name, entry.alias);
+			if (entries.containsKey(alias)) {
+				throw new KeyStoreException("Duplicate alias '" + alias + "' in federated key store");
+			}
+			entries.put(alias, entry);
+			if (source.name != null && !shortAliases.containsKey(entry.alias)) {
+				shortAliases.put(entry.alias, alias);
+			}
+			if (entry.certificate != null) {
+				certificates.put(alias, entry.certificate);
+			}
+			if (entry.key) {
+				keyAliases.add(alias);
+			}
+		}
+		Map<IssuerSerial, String> byIssuerSerial = new HashMap<IssuerSerial, String>();
+		Map<BigInteger, String> bySerial = new HashMap<BigInteger, String>();
+		Map<KeyId, String> bySki = new HashMap<KeyId, String>();
+		Map<X500Principal, List<String>> bySubject = new HashMap<X500Principal, List<String>>();
+		// сначала алиасы с ключами, чтобы при дублях сертификата находился алиас, по которому есть ключ
+		for (int pass = 0; pass < 2; pass++) {
+			for (Map.Entry<String, IndexedCertificate> entry : certificates.entrySet()) {
+				String alias = entry.getKey();
+				if (keyAliases.contains(alias) != (pass == 0)) {
+					continue;
+				}
+				IndexedCertificate cert = entry.getValue();
+				putFirst(byIssuerSerial, new IssuerSerial(cert.getIssuer(), cert.getSerialNumber()), alias);
+				putFirst(bySerial, cert.getSerialNumber(), alias);
+				if (cert.getSubjectKeyIdentifier() != null) {
+					putFirst(bySki, new KeyId(cert.getSubjectKeyIdentifier()), alias);
+				}
+				List<String> subjectAliases = bySubject.get(cert.getSubject());
+				if (subjectAliases == null) {
+					subjectAliases = new ArrayList<String>(1);
+					bySubject.put(cert.getSubject(), subjectAliases);
+				}
+				subjectAliases.add(alias);
+			}
+		}
+		for (Map.Entry<X500Principal, List<String>> entry : bySubject.entrySet()) {
+			entry.setValue(Collections.unmodifiableList(entry.getValue()));
+		}
+		KeyStoreIndex index = new KeyStoreIndex(Collections.unmodifiableList(new ArrayList<Source>(sources)), entries, shortAliases,
+				Collections.unmodifiableMap(certificates), Collections.unmodifiableSet(keyAliases), byIssuerSerial, bySerial, bySki, bySubject);
+		if (LOG.isLoggable(Level.FINE)) {
+			LOG.fine("KeyStore index built: " + index + " in " + (System.nanoTime() - started) / 1000000 + " ms");
+		}
+		return index;
+	}
+
+	private static <K> void putFirst(Map<K, String> map, K key, String alias) {
+		if (!map.containsKey(key)) {
+			map.put(key, alias);
+		}
+	}
+
+	/**
+	 * Значение расширения SubjectKeyIdentifier без DER-оберток (extnValue OCTET STRING -> KeyIdentifier OCTET STRING).
+	 * @param cert
+	 * @return идентификатор ключа или null, если расширения нет
+	 */
+	public static byte[] subjectKeyIdentifier(X509Certificate cert) {
+		byte[] extension = cert.getExtensionValue(CryptoUtils.SUBJECT_KEY_IDENTEFER_OID);
+		if (extension == null) {
+			return null;
+		}
+		byte[] keyIdentifier = unwrapOctetString(extension);
+		return keyIdentifier != null ? unwrapOctetString(keyIdentifier) : null;
+	}
+
+	/**
+	 * @param der
+	 * @return содержимое, если der - ровно одна примитивная OCTET STRING, иначе null
+	 */
+	static byte[] unwrapOctetString(byte[] der) {
+		ByteBuffer buf = ByteBuffer.wrap(der);
+		BerReader.Header header = BerReader.readHeader(buf, 0);
+		if (header == null || header.getTag() != BerWriter.TAG_OCTET_STRING || header.getValueOffset() + header.getLength() != der.length) {
+			return null;
+		}
+		return Arrays.copyOfRange(der, header.getValueOffset(), der.length);
+	}
+
+	/**
+	 * @return хранилище (для нескольких хранилищ - самое приоритетное). Отложенно загружаемое хранилище загружается здесь.
+	 * @throws IllegalStateException - хранилище не удалось загрузить
+	 */
+	public KeyStore getKeyStore() {
+		try {
+			return sources.get(0).keyStore();
+		} catch (KeyStoreException e) {
+			throw new IllegalStateException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * @return все хранилища индекса уже загружены (false - индекс прочитан из файла, а хранилище еще не понадобилось)
+	 */
+	public boolean isKeyStoreLoaded() {
+		for (Source source : sources) {
+			if (!source.isLoaded()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return индекс объединяет несколько хранилищ
+	 */
+	public boolean isFederated() {
+		return sources.get(0).name != null;
+	}
+
+	/**
+	 * @return записи в порядке приоритета (для записи в файл индекса)
+	 */
+	Collection<AliasEntry> getEntries() {
+		return Collections.unmodifiableCollection(entries.values());
+	}
+
+	/**
+	 * Алиас индекса. Для нескольких хранилищ неквалифицированный алиас разрешается в самое приоритетное хранилище, где он есть.
+	 * @param alias
+	 * @return алиас индекса или null, если его нет
+	 */
+	public String resolveAlias(String alias) {
+		if (alias == null) {
+			return null;
+		}
+		if (entries.containsKey(alias)) {
+			return alias;
+		}
+		return shortAliases.get(alias);
+	}
+
+	/**
+	 * @param alias
+	 * @return имя хранилища, в котором лежит запись (null - для единственного хранилища или если алиаса нет)
+	 */
+	public String getStoreName(String alias) {
+		String resolved = resolveAlias(alias);
+		return resolved != null ? entries.get(resolved).source.name : null;
+	}
+
+	/**
+	 * Ключ из хранилища, в котором лежит запись.
+	 * @param alias
+	 * @param password - пароль, если для хранилища свой не задан
+	 * @return null - если алиаса или ключа нет
+	 * @throws KeyStoreException
+	 * @throws NoSuchAlgorithmException
+	 * @throws UnrecoverableKeyException
+	 */
+	public Key getKey(String alias, char[] password) throws KeyStoreException, NoSuchAlgorithmException, UnrecoverableKeyException {
+		String resolved = resolveAlias(alias);
+		if (resolved == null) {
+			return null;
+		}
+		AliasEntry entry = entries.get(resolved);
+		return entry.source.keyStore().getKey(entry.alias, entry.source.password != null ? entry.source.password : password);
+	}
+
+	/**
+	 * @return все алиасы индекса (включая записи без сертификата) в порядке хранилищ
+	 */
+	public Set<String> getAliases() {
+		return Collections.unmodifiableSet(entries.keySet());
+	}
+
+	/**
+	 * @return номер снимка (растет при каждом построении индекса)
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Все сертификаты снимка как индексированный CertStore (см. IndexedCertStore). Строится при первом обращении и живет, пока жив снимок.
+	 * @return
+	 * @throws InvalidAlgorithmParameterException
+	 * @throws NoSuchAlgorithmException
+	 */
+	public CertStore getCertStore() throws InvalidAlgorithmParameterException, NoSuchAlgorithmException {
+		CertStore store = certStore;
+		if (store == null) {
+			List<X509Certificate> all = new ArrayList<X509Certificate>(certificates.size());
+			for (IndexedCertificate cert : certificates.values()) {
+				all.add(cert.getCertificate());
+			}
+			store = IndexedCertStore.create(all);
+			certStore = store; // гонка безвредна: построится одинаковый CertStore
+		}
+		return store;
+	}
+
+	/**
+	 * Сертификаты снимка, действующие в текущий момент (просроченные и еще не вступившие в силу исключены) - для построения цепочек.
+	 * Набор пересчитывается, только когда срок действия какого-либо сертификата начинается или истекает.
+	 * Срок проверяется по индексу, разбираются только действующие сертификаты.
+	 * @return неизменяемый набор
+	 */
+	public Set<X509Certificate> getValidCertificates() {
+		long now = System.currentTimeMillis();
+		ValidCertificates valid = validCertificates;
+		if (valid == null || now >= valid.validUntil) {
+			valid = selectValid(now);
+			validCertificates = valid;
+		}
+		return valid.certificates;
+	}
+
+	private ValidCertificates selectValid(long now) {
+		Set<X509Certificate> valid = new HashSet<X509Certificate>();
+		long validUntil = Long.MAX_VALUE;
+		for (Map.Entry<String, IndexedCertificate> entry : certificates.entrySet()) {
+			IndexedCertificate cert = entry.getValue();
+			if (now > cert.getNotAfter()) {
+				LOG.severe(entry.getKey() + " (" + cert.getSubject().getName() + ") expired on " + new Date(cert.getNotAfter()) + " and skipped");
+			} else if (now < cert.getNotBefore()) {
+				LOG.severe(entry.getKey() + " (" + cert.getSubject().getName() + ") not yet valide till " + new Date(cert.getNotBefore()) + " and skipped");
+				validUntil = Math.min(validUntil, cert.getNotBefore());
+			} else {
+				valid.add(cert.getCertificate());
+				validUntil = Math.min(validUntil, cert.getNotAfter() + 1);
+			}
+		}
+		return new ValidCertificates(Collections.unmodifiableSet(valid), validUntil);
+	}
+
+	/**
+	 * @param alias
+	 * @return сертификат или null
+	 */
+	public X509Certificate getCertificate(String alias) {
+		IndexedCertificate cert = certificates.get(alias);
+		if (cert == null && !shortAliases.isEmpty()) {
+			String resolved = shortAliases.get(alias);
+			cert = resolved != null ? certificates.get(resolved) : null;
+		}
+		return cert != null ? cert.getCertificate() : null;
+	}
+
+	/**
+	 * Алиасы, отличающиеся от предыдущего снимка: добавленные, удаленные, с другим сертификатом или признаком ключа.
+	 * Сертификаты сравниваются по DER, без разбора.
+	 * @param previous
+	 * @return
+	 */
+	List<String> changedSince(KeyStoreIndex previous) {
+		List<String> changed = new ArrayList<String>();
+		for (Map.Entry<String, AliasEntry> entry : entries.entrySet()) {
+			String alias = entry.getKey();
+			AliasEntry after = entry.getValue();
+			AliasEntry before = previous.entries.get(alias);
+			if (before == null || before.key != after.key || !sameCertificate(before.certificate, after.certificate)) {
+				changed.add(alias);
+			}
+		}
+		for (String alias : previous.entries.keySet()) {
+			if (!entries.containsKey(alias)) {
+				changed.add(alias);
+			}
+		}
+		return Collections.unmodifiableList(changed);
+	}
+
+	private static boolean sameCertificate(IndexedCertificate a, IndexedCertificate b) {
+		return a == null ? b == null : b != null && a.sameEncoding(b);
+	}
+
+	public boolean isKeyEntry(String alias) {
+		return keyAliases.contains(alias) || (!shortAliases.isEmpty() && keyAliases.contains(shortAliases.get(alias)));
+	}
+
+	public Set<String> getKeyAliases() {
+		return keyAliases;
+	}
+
+	/**
+	 * Поиск по IssuerAndSerialNumber.
+	 * @param issuer
+	 * @param serialNumber
+	 * @return алиас или null
+	 */
+	public String findByIssuerAndSerialNumber(X500Principal issuer, BigInteger serialNumber) {
+		return byIssuerSerial.get(new IssuerSerial(issuer, serialNumber));
+	}
+
+	/**
+	 * Поиск только по серийному номеру (без издателя номера разных УЦ могут совпасть - используйте findByIssuerAndSerialNumber).
+	 * @param serialNumber
+	 * @return алиас или null
+	 */
+	public String findBySerialNumber(BigInteger serialNumber) {
+		return bySerial.get(serialNumber);
+	}
+
+	/**
+	 * Поиск по SubjectKeyIdentifier. Принимается как сам идентификатор, так и его DER-кодировка (OCTET STRING).
+	 * @param ski
+	 * @return алиас или null
+	 */
+	public String findBySubjectKeyIdentifier(byte[] ski) {
+		if (ski == null) {
+			return null;
+		}
+		String alias = bySki.get(new KeyId(ski));
+		if (alias == null) {
+			byte[] unwrapped = unwrapOctetString(ski);
+			if (unwrapped != null) {
+				alias = bySki.get(new KeyId(unwrapped));
+			}
+		}
+		return alias;
+	}
+
+	/**
+	 * @param subject
+	 * @return алиасы сертификатов субъекта (пустой список, если нет)
+	 */
+	public List<String> findBySubject(X500Principal subject) {
+		List<String> aliases = bySubject.get(subject);
+		return aliases != null ? aliases : Collections.<String>emptyList();
+	}
+
+	public int size() {
+		return certificates.size();
+	}
+
+	@Override
+	public String toString() {
+		return "KeyStoreIndex [version=" + version + ", stores=" + sources.size() + ", certificates=" + certificates.size() + ", keys=" + keyAliases.size() + ", ski=" + bySki.size() + ", subjects=" + bySubject.size() + "]";
+	}
+
+	/**
+	 * Ключ (издатель, серийный номер). X500Principal сравнивается по канонической форме имени.
+	 */
+	private static final class IssuerSerial {
+
+		private final X500Principal issuer;
+
+		private final BigInteger serial;
+
+		IssuerSerial(X500Principal issuer, BigInteger serial) {
+			this.issuer = issuer;
+			this.serial = serial;
+		}
+
+		@Override
+		public int hashCode() {
+			return issuer.hashCode() * 31 + serial.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof IssuerSerial)) {
+				return false;
+			}
+			IssuerSerial other = (IssuerSerial) obj;
+			return serial.equals(other.serial) && issuer.equals(other.issuer);
+		}
+	}
+
+	private static final class KeyId {
+
+		private final byte[] id;
+
+		private final int hash;
+
+		KeyId(byte[] id) {
+			this.id = id;
+			this.hash = Arrays.hashCode(id);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof KeyId && Arrays.equals(id, ((KeyId) obj).id);
+		}
+	}
+}
@@ -0,0 +1,329 @@
+package org.lu.pki.tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * Файл индекса хранилища (&lt;хранилище&gt;.idx рядом с файлом хранилища) для быстрого старта.
+ * Хранит для каждого алиаса признак ключа, издателя, субъекта, серийный номер, SubjectKeyIdentifier, срок действия,
+ * признак самоподписанного и смещение DER сертификата. Файл отображается в память, DER сертификатов не копируется,
+ * а X509Certificate разбирается только при первом обращении (см. IndexedCertificate).
+ * <p>
+ * Файл действителен, пока у хранилища те же время изменения, размер и SHA-256 содержимого; иначе индекс строится по хранилищу заново и файл перезаписывается.
+ * Включается системным свойством {@value #ENABLE_PROPERTY}=true.
+ * <p>
+ * Формат (big-endian): заголовок (магия, версия формата, время изменения и размер хранилища, SHA-256 хранилища, число записей, смещение области DER),
+ * записи (алиас UTF-8, флаги, издатель и субъект в DER, серийный номер, SKI, notBefore, notAfter, смещение и длина DER), область DER сертификатов.
+ * @author Igor Konovalov ikonovalov@luxoft.com
+ *
+ */
+public final class KeyStoreIndexFile {
+
+	private static final Logger LOG = Logger.getLogger(KeyStoreIndexFile.class.getName());
+
+	public static final String ENABLE_PROPERTY = "org.lu.pki.tools.keystore.index";
+
+	/**
+	 * Отложенная загрузка хранилища: при действительном файле индекса само хранилище загружается только при первом обращении к ключу.
+	 * Включает и файл индекса.
+	 */
+	public static final String LAZY_PROPERTY = "org.lu.pki.tools.keystore.lazy";
+
+	public static final String SUFFIX = ".idx";
+
+	private static final int MAGIC = 0x4B534958; // "KSIX"
+
+	private static final int FORMAT_VERSION = 1;
+
+	private static final int FLAG_KEY = 1;
+
+	private static final int FLAG_CERTIFICATE = 2;
+
+	private static final int FLAG_SELF_ISSUED = 4;
+
+	private static final int HASH_LENGTH = 32;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private KeyStoreIndexFile() {
+	}
+
+	public static boolean isEnabled() {
+		return "true".equals(System.getProperty(ENABLE_PROPERTY)) || isLazy();
+	}
+
+	public static boolean isLazy() {
+		return "true".equals(System.getProperty(LAZY_PROPERTY));
+	}
+
+	/**
+	 * @param keyStoreFile
+	 * @return файл индекса для хранилища
+	 */
+	public static Path indexFileOf(Path keyStoreFile) {
+		return Paths.get(keyStoreFile.toString() + SUFFIX);
+	}
+
+	/**
+	 * Снимок хранилища по файлу индекса. Если файла нет или он не соответствует хранилищу, индекс строится по хранилищу
+	 * и записывается в файл (ошибка записи, например каталог только для чтения, не мешает работе).
+	 * @param keyStoreFile - файл, из которого загружено хранилище
+	 * @param keyStore
+	 * @return
+	 * @throws KeyStoreException
+	 */
+	public static KeyStoreIndex load(Path keyStoreFile, KeyStore keyStore) throws KeyStoreException {
+		return load(keyStoreFile, new KeyStoreIndex.Source(null, keyStore, null));
+	}
+
+	/**
+	 * Снимок хранилища с отложенной загрузкой: если файл индекса действителен, хранилище загружается только при первом обращении к ключу,
+	 * а сертификаты разбираются при первом использовании. Иначе хранилище загружается сразу, индекс строится и записывается в файл.
+	 * Если файл хранилища изменится до отложенной загрузки, ключи будут браться из нового содержимого - для согласованности используйте watchKeyStore().
+	 * @param keyStoreFile
+	 * @param loader
+	 * @return
+	 * @throws KeyStoreException - в т.ч. ошибка загрузки хранилища
+	 */
+	public static KeyStoreIndex load(Path keyStoreFile, KeyStoreHolder.Loader loader) throws KeyStoreException {
+		return load(keyStoreFile, new KeyStoreIndex.Source(null, loader, null));
+	}
+
+	private static KeyStoreIndex load(Path keyStoreFile, KeyStoreIndex.Source source) throws KeyStoreException {
+		final long started = System.nanoTime();
+		List<KeyStoreIndex.Source> sources = Collections.singletonList(source);
+		Path indexFile = indexFileOf(keyStoreFile);
+		Stamp stamp;
+		try {
+			stamp = Stamp.of(keyStoreFile);
+		} catch (IOException e) {
+			LOG.log(Level.WARNING, "Can't read key store file " + keyStoreFile + ", index file is not used", e);
+			return KeyStoreIndex.build(sources);
+		}
+		KeyStoreIndex index = read(indexFile, stamp, source);
+		if (index != null) {
+			if (LOG.isLoggable(Level.FINE)) {
+				LOG.fine("KeyStore index loaded from " + indexFile + ": " + index + " in " + (System.nanoTime() - started) / 1000000 + " ms");
+			}
+			return index;
+		}
+		index = KeyStoreIndex.build(sources);
+		try {
+			write(indexFile, stamp, index);
+			LOG.fine("KeyStore index written to " + indexFile);
+		} catch (IOException e) {
+			LOG.log(Level.WARNING, "Can't write key store index file " + indexFile, e);
+		}
+		return index;
+	}
+
+	/**
+	 * Чтение файла индекса.
+	 * @param indexFile
+	 * @param stamp - отпечаток хранилища
+	 * @param source - хранилище (хранилище при чтении не загружается)
+	 * @return снимок или null, если файла нет, он устарел или поврежден
+	 * @throws KeyStoreException
+	 */
+	static KeyStoreIndex read(Path indexFile, Stamp stamp, KeyStoreIndex.Source source) throws KeyStoreException {
+		ByteBuffer buf;
+		try {
+			buf = MappedFiles.map(indexFile);
+		} catch (NoSuchFileException e) {
+			return null;
+		} catch (IOException e) {
+			LOG.log(Level.WARNING, "Can't map key store index file " + indexFile, e);
+			return null;
+		}
+		try {
+			if (buf.getInt() != MAGIC || buf.getInt() != FORMAT_VERSION) {
+				LOG.info("Unknown key store index file format " + indexFile + ", rebuilding");
+				return null;
+			}
+			Stamp stored = new Stamp(buf.getLong(), buf.getLong(), bytes(buf, HASH_LENGTH));
+			if (!stored.equals(stamp)) {
+				LOG.info("Key store index file " + indexFile + " is stale, rebuilding");
+				return null;
+			}
+			int count = buf.getInt();
+			int derOffset = buf.getInt();
+			List<KeyStoreIndex.AliasEntry> entries = new ArrayList<KeyStoreIndex.AliasEntry>(count);
+			for (int i = 0; i < count; i++) {
+				String alias = new String(bytes(buf, buf.getShort() & 0xFFFF), UTF8);
+				int flags = buf.get();
+				IndexedCertificate cert = null;
+				if ((flags & FLAG_CERTIFICATE) != 0) {
+					X500Principal issuer = new X500Principal(bytes(buf, buf.getShort() & 0xFFFF));
+					X500Principal subject = (flags & FLAG_SELF_ISSUED) != 0 ? issuer : new X500Principal(bytes(buf, buf.getShort() & 0xFFFF));
+					BigInteger serialNumber = new BigInteger(bytes(buf, buf.getShort() & 0xFFFF));
+					int skiLength = buf.getShort();
+					byte[] ski = skiLength >= 0 ? bytes(buf, skiLength) : null;
+					long notBefore = buf.getLong();
+					long notAfter = buf.getLong();
+					int offset = buf.getInt();
+					int length = buf.getInt();
+					ByteBuffer der = buf.duplicate();
+					der.limit(derOffset + offset + length).position(derOffset + offset);
+					cert = new IndexedCertificate(subject, issuer, serialNumber, ski, notBefore, notAfter, der.slice().asReadOnlyBuffer());
+				}
+				entries.add(new KeyStoreIndex.AliasEntry(source, alias, (flags & FLAG_KEY) != 0, cert));
+			}
+			return KeyStoreIndex.build(Collections.singletonList(source), entries);
+		} catch (BufferUnderflowException e) {
+			LOG.log(Level.WARNING, "Key store index file " + indexFile + " is truncated, rebuilding", e);
+		} catch (IllegalArgumentException e) {
+			LOG.log(Level.WARNING, "Key store index file " + indexFile + " is corrupted, rebuilding", e);
+		}
+		return null;
+	}
+
+	/**
+	 * Атомарная запись файла индекса.
+	 * @param indexFile
+	 * @param stamp - отпечаток хранилища, по которому построен индекс
+	 * @param index
+	 * @throws IOException
+	 */
+	static void write(Path indexFile, Stamp stamp, KeyStoreIndex index) throws IOException {
+		Collection<KeyStoreIndex.AliasEntry> entries = index.getEntries();
+		ByteArrayOutputStream header = new ByteArrayOutputStream(64 + entries.size() * 256);
+		ByteArrayOutputStream certificates = new ByteArrayOutputStream(entries.size() * 1024);
+		DataOutputStream out = new DataOutputStream(header);
+		for (KeyStoreIndex.AliasEntry entry : entries) {
+			writeBytes(out, entry.getAlias().getBytes(UTF8));
+			IndexedCertificate cert = entry.getCertificate();
+			int flags = (entry.isKey() ? FLAG_KEY : 0) | (cert != null ? FLAG_CERTIFICATE : 0) | (cert != null && cert.isSelfIssued() ? FLAG_SELF_ISSUED : 0);
+			out.writeByte(flags);
+			if (cert == null) {
+				continue;
+			}
+			writeBytes(out, cert.getIssuer().getEncoded());
+			if (!cert.isSelfIssued()) {
+				writeBytes(out, cert.getSubject().getEncoded());
+			}
+			writeBytes(out, cert.getSerialNumber().toByteArray());
+			if (cert.getSubjectKeyIdentifier() != null) {
+				writeBytes(out, cert.getSubjectKeyIdentifier());
+			} else {
+				out.writeShort(-1);
+			}
+			out.writeLong(cert.getNotBefore());
+			out.writeLong(cert.getNotAfter());
+			byte[] der = cert.getEncoded();
+			out.writeInt(certificates.size());
+			out.writeInt(der.length);
+			certificates.write(der);
+		}
+		out.flush();
+		byte[] body = header.toByteArray();
+		ByteBuffer file = ByteBuffer.allocate(4 + 4 + 8 + 8 + HASH_LENGTH + 4 + 4 + body.length + certificates.size());
+		file.putInt(MAGIC).putInt(FORMAT_VERSION);
+		file.putLong(stamp.lastModified).putLong(stamp.size).put(stamp.hash);
+		file.putInt(entries.size());
+		file.putInt(file.position() + 4 + body.length);
+		file.put(body);
+		file.put(certificates.toByteArray());
+		MappedFiles.writeAtomically(indexFile, file.array());
+	}
+
+	private static void writeBytes(DataOutputStream out, byte[] data) throws IOException {
+		if (data.length > Short.MAX_VALUE) {
+			throw new IOException("Field is too long for key store index: " + data.length + " bytes");
+		}
+		out.writeShort(data.length);
+		out.write(data);
+	}
+
+	private static byte[] bytes(ByteBuffer buf, int length) {
+		byte[] data = new byte[length];
+		buf.get(data);
+		return data;
+	}
+
+	/**
+	 * Отпечаток файла хранилища: время изменения, размер, SHA-256 содержимого.
+	 */
+	static final class Stamp {
+
+		private final long lastModified;
+
+		private final long size;
+
+		private final byte[] hash;
+
+		Stamp(long lastModified, long size, byte[] hash) {
+			this.lastModified = lastModified;
+			this.size = size;
+			this.hash = hash;
+		}
+
+		/**
+		 * Хранилище читается потоком, а не отображается в память: отображение живет до сборки мусора,
+		 * а на Windows не дает заменить или удалить файл хранилища (см. KeyStoreHolder.watch()).
+		 * @param keyStoreFile
+		 * @return
+		 * @throws IOException
+		 */
+		static Stamp of(Path keyStoreFile) throws IOException {
+			long lastModified = Files.getLastModifiedTime(keyStoreFile).toMillis();
+			MessageDigest sha256;
+			try {
+				sha256 = MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+			long size = 0;
+			FileChannel channel = FileChannel.open(keyStoreFile, StandardOpenOption.READ);
+			try {
+				ByteBuffer buffer = ByteBuffer.allocate(StreamUtils.BUFFER_SIZE);
+				while (channel.read(buffer) >= 0) {
+					buffer.flip();
+					size += buffer.remaining();
+					sha256.update(buffer);
+					buffer.clear();
+				}
+			} finally {
+				channel.close();
+			}
+			return new Stamp(lastModified, size, sha256.digest());
+		}
+
+		@Override
+		public int hashCode() {
+			return Arrays.hashCode(hash);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Stamp)) {
+				return false;
+			}
+			Stamp other = (Stamp) obj;
+			return lastModified == other.lastModified && size == other.size && Arrays.equals(hash, other.hash);
+		}
+	}
+}
@@ -0,0 +1,248 @@
+package org.lu.pki.tools;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Работа с файлами сообщений без копирования в кучу: вход отображается в память (FileChannel.map),
+ * выход пишется через FileChannel во временный файл рядом с целевым и атомарно переименовывается.
+ * @author Igor Konovalov ikonovalov@luxoft.com
+ *
+ */
+public final class MappedFiles {
+
+	private static final Logger LOG = Logger.getLogger(MappedFiles.class.getName());
+
+	/**
+	 * Размер окна отображения для потокового чтения. Файлы больше окна отображаются последовательно.
+	 */
+	public static final long MAPPING_WINDOW = 64L * 1024 * 1024;
+
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	private MappedFiles() {
+	}
+
+	/**
+	 * Отображение файла в память целиком (только чтение).
+	 * @param path
+	 * @return MappedByteBuffer
+	 * @throws IOException - в т.ч. если файл больше 2Gb (используйте openMapped)
+	 */
+	public static MappedByteBuffer map(Path path) throws IOException {
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+		try {
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException("File " + path + " is too large for a single mapping (" + size + " bytes)");
+			}
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, size); // отображение живет и после закрытия канала
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Поток чтения файла через последовательные окна отображения размером MAPPING_WINDOW.
+	 * Файл, помещающийся в одно окно, отдается как ByteBufferInputStream - стадии могут работать прямо с буфером.
+	 * @param path
+	 * @return
+	 * @throws IOException
+	 */
+	public static InputStream openMapped(Path path) throws IOException {
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+		boolean windowed = false;
+		try {
+			long size = channel.size();
+			if (size <= MAPPING_WINDOW) {
+				return new ByteBufferInputStream(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+			}
+			windowed = true;
+			return new MappedFileInputStream(channel);
+		} finally {
+			if (!windowed) {
+				channel.close();
+			}
+		}
+	}
+
+	/**
+	 * Открытие файла на атомарную запись: данные пишутся во временный файл в том же каталоге,
+	 * на месте target он появляется только после AtomicFileOutputStream.commit().
+	 * @param target
+	 * @return
+	 * @throws IOException
+	 */
+	public static AtomicFileOutputStream openAtomic(Path target) throws IOException {
+		Path absolute = target.toAbsolutePath();
+		Path temp = Files.createTempFile(absolute.getParent(), absolute.getFileName().toString(), TEMP_SUFFIX);
+		FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		return new AtomicFileOutputStream(channel, temp, absolute);
+	}
+
+	/**
+	 * Атомарная запись массива в файл.
+	 * @param target
+	 * @param data
+	 * @throws IOException
+	 */
+	public static void writeAtomically(Path target, byte[] data) throws IOException {
+		AtomicFileOutputStream out = openAtomic(target);
+		boolean committed = false;
+		try {
+			out.write(data);
+			out.commit();
+			committed = true;
+		} finally {
+			if (!committed) {
+				out.abort();
+			}
+		}
+	}
+
+	/**
+	 * Вывод во временный файл с атомарной подменой целевого при commit(). close() без commit() равносилен abort().
+	 */
+	public static class AtomicFileOutputStream extends FilterOutputStream {
+
+		private final FileChannel channel;
+
+		private final Path temp;
+
+		private final Path target;
+
+		private boolean finished = false;
+
+		AtomicFileOutputStream(FileChannel channel, Path temp, Path target) {
+			super(new BufferedOutputStream(Channels.newOutputStream(channel), StreamUtils.BUFFER_SIZE));
+			this.channel = channel;
+			this.temp = temp;
+			this.target = target;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+		}
+
+		/**
+		 * Сброс данных на диск и переименование временного файла в целевой.
+		 * @throws IOException
+		 */
+		public void commit() throws IOException {
+			if (finished) {
+				return;
+			}
+			out.flush();
+			channel.force(true);
+			out.close();
+			finished = true;
+			try {
+				Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				LOG.warning("Atomic move not supported for " + target + ", falling back to plain replace");
+				Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+			} catch (IOException e) {
+				Files.deleteIfExists(temp);
+				throw e;
+			}
+			if (LOG.isLoggable(Level.FINE)) {
+				LOG.fine("File " + target + " written (" + Files.size(target) + " bytes)");
+			}
+		}
+
+		/**
+		 * Отказ от записи: временный файл удаляется, целевой не трогается.
+		 */
+		public void abort() {
+			if (finished) {
+				return;
+			}
+			finished = true;
+			StreamUtils.closeQuietly(out);
+			try {
+				Files.deleteIfExists(temp);
+			} catch (IOException e) {
+				LOG.warning("Temporary file " + temp + " not deleted: " + e.getMessage());
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			abort();
+		}
+	}
+
+	/**
+	 * Последовательное чтение файла окнами отображения.
+	 */
+	private static final class MappedFileInputStream extends InputStream {
+
+		private final FileChannel channel;
+
+		private final long size;
+
+		private long windowStart = 0;
+
+		private ByteBuffer window = ByteBuffer.allocate(0);
+
+		MappedFileInputStream(FileChannel channel) throws IOException {
+			this.channel = channel;
+			this.size = channel.size();
+		}
+
+		private boolean nextWindow() throws IOException {
+			if (window.hasRemaining()) {
+				return true;
+			}
+			windowStart += window.capacity();
+			if (windowStart >= size) {
+				return false;
+			}
+			window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(MAPPING_WINDOW, size - windowStart));
+			return true;
+		}
+
+		@Override
+		public int read() throws IOException {
+			return nextWindow() ? window.get() & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (!nextWindow()) {
+				return -1;
+			}
+			int count = Math.min(len, window.remaining());
+			window.get(b, off, count);
+			return count;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int) Math.min(Integer.MAX_VALUE, size - windowStart - window.position());
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+}
@@ -194,6 +194,7 @@ public class PKIXUtils {
 	
 	/**
 	 * Получение всех сертификатов из хранилища.
+	 * Все сертификаты оказываются в куче - для больших списков доверия используйте CompactCertificateIndex.
 	 * @param keyStore - хранилище ключей (и дополнительный certstore, если подключен)
 	 * @return массив Certificate[]. Null недопустим, может быть массив нулевой длинны.
 	 */
@@ -201,7 +202,7 @@ public class PKIXUtils {
 		Certificate[] res = new Certificate[0];
 		try {
 			Enumeration<String> aliasesSet =  keyStore.aliases();
-			List<Certificate> certList = new ArrayList<Certificate>();
+			List<Certificate> certList = new ArrayList<Certificate>(keyStore.size());
 			Certificate cert = null;
 			while (aliasesSet.hasMoreElements()) {
 				cert = keyStore.getCertificate(aliasesSet.nextElement());
@@ -211,7 +212,7 @@ public class PKIXUtils {
 				certList.add(cert);
 			}
 			if (certList.size() > 0) {
-				res = certList.toArray(new Certificate[0]);
+				res = certList.toArray(new Certificate[certList.size()]);
 			}
 		} catch (KeyStoreException e) {
 			LOG.log(Level.SEVERE, "Key store access problem Method 'containsCertificateInStore' failed. " + e.getMessage(), e);
@@ -0,0 +1,29 @@
+package org.lu.pki.tools;
+
+import java.security.Provider;
+
+/**
+ * Провайдер собственных реализаций JCA. Регистрировать в Security не нужно - экземпляр передается в getInstance() напрямую.
+ * <ul>
+ * <li>CertStore.{@value IndexedCertStore#TYPE} - IndexedCertStore</li>
+ * </ul>
+ * @author Igor Konovalov ikonovalov@luxoft.com
+ *
+ */
+public final class PkiToolsProvider extends Provider {
+
+	private static final long serialVersionUID = 1L;
+
+	public static final String NAME = "LuPKI";
+
+	private static final PkiToolsProvider INSTANCE = new PkiToolsProvider();
+
+	public PkiToolsProvider() {
+		super(NAME, 1.0, "LU PKI tools provider (indexed CertStore)");
+		put("CertStore." + IndexedCertStore.TYPE, IndexedCertStore.class.getName());
+	}
+
+	public static PkiToolsProvider getInstance() {
+		return INSTANCE;
+	}
+}
@@ -0,0 +1,143 @@
+package org.lu.pki.tools;
+
+import java.security.PrivateKey;
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Кэш разблокированных закрытых ключей по алиасу. Чтение ключа из контейнера (HDImageStore, pfx) - одна из самых дорогих операций,
+ * поэтому ключ достается из хранилища один раз и живет в кэше не дольше ttl.
+ * Размер ограничен: при переполнении вытесняется ключ, к которому дольше всего не обращались.
+ * Потокобезопасен; один экземпляр разделяется инстансом CryptoUtils и всеми его fork().
+ * Явное удаление ключа (evict, evictAll) удаляет и ключи согласования этого отправителя в привязанных AgreementKeyCache.
+ * @author Igor Konovalov ikonovalov@luxoft.com
+ *
+ */
+public final class PrivateKeyCache {
+
+	private static final Logger LOG = Logger.getLogger(PrivateKeyCache.class.getName());
+
+	public static final int DEFAULT_MAX_SIZE = 64;
+
+	public static final long DEFAULT_TTL_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+	private final BoundedTtlCache<String, PrivateKey> keys;
+
+	/**
+	 * Кэши ключей согласования профилей (слабые ссылки: профиль может быть выброшен).
+	 */
+	private final Set<AgreementKeyCache> agreementKeyCaches = Collections.newSetFromMap(new WeakHashMap<AgreementKeyCache, Boolean>());
+
+	public PrivateKeyCache() {
+		this(DEFAULT_MAX_SIZE, DEFAULT_TTL_MILLIS);
+	}
+
+	/**
+	 * @param maxSize - максимальное число ключей (0 - кэширование отключено)
+	 * @param ttlMillis - время жизни ключа в кэше (0 и меньше - без ограничения)
+	 */
+	public PrivateKeyCache(int maxSize, long ttlMillis) {
+		this.keys = new BoundedTtlCache<String, PrivateKey>(maxSize, ttlMillis);
+	}
+
+	/**
+	 * @param alias
+	 * @return ключ или null, если его нет в кэше или истек срок жизни
+	 */
+	public PrivateKey get(String alias) {
+		return keys.get(alias);
+	}
+
+	/**
+	 * @param alias
+	 * @param key - null не кэшируется
+	 */
+	public void put(String alias, PrivateKey key) {
+		keys.put(alias, key);
+	}
+
+	/**
+	 * Удаление ключа из кэша (например, после смены ключа в хранилище).
+	 * @param alias
+	 * @return ключ был в кэше
+	 */
+	public boolean evict(String alias) {
+		boolean removed = keys.remove(alias);
+		for (AgreementKeyCache cache : agreementKeyCaches()) {
+			cache.evict(alias);
+		}
+		return removed;
+	}
+
+	public void evictAll() {
+		keys.clear();
+		for (AgreementKeyCache cache : agreementKeyCaches()) {
+			cache.evictAll();
+		}
+		LOG.fine("Private key cache cleared");
+	}
+
+	/**
+	 * Привязка кэша ключей согласования: его ключи удаляются вместе с ключами отправителей.
+	 * @param cache
+	 */
+	void link(AgreementKeyCache cache) {
+		synchronized (agreementKeyCaches) {
+			agreementKeyCaches.add(cache);
+		}
+	}
+
+	private AgreementKeyCache[] agreementKeyCaches() {
+		synchronized (agreementKeyCaches) {
+			return agreementKeyCaches.toArray(new AgreementKeyCache[agreementKeyCaches.size()]);
+		}
+	}
+
+	/**
+	 * Удаление ключей с истекшим сроком жизни.
+	 * @return число удаленных ключей
+	 */
+	public int purgeExpired() {
+		int purged = keys.purgeExpired();
+		if (purged > 0 && LOG.isLoggable(Level.FINE)) {
+			LOG.fine("Purged " + purged + " expired private key(s)");
+		}
+		return purged;
+	}
+
+	public int size() {
+		return keys.size();
+	}
+
+	public int getMaxSize() {
+		return keys.getMaxSize();
+	}
+
+	public long getTtlMillis() {
+		return keys.getTtlMillis();
+	}
+
+	public long getHits() {
+		return keys.getHits();
+	}
+
+	public long getMisses() {
+		return keys.getMisses();
+	}
+
+	/**
+	 * @return число ключей, удаленных по размеру, сроку жизни или явно
+	 */
+	public long getEvictions() {
+		return keys.getEvictions();
+	}
+
+	@Override
+	public String toString() {
+		return "PrivateKeyCache [" + keys + "]";
+	}
+}
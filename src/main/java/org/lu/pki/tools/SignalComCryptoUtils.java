@@ -4,24 +4,31 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.SecureRandom;
 import java.security.UnrecoverableKeyException;
-import java.security.cert.CertPathBuilder;
 import java.security.cert.CertStore;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.security.auth.x500.X500Principal;
+
 import ru.signalcom.crypto.cms.Attribute;
 import ru.signalcom.crypto.cms.AttributeType;
 import ru.signalcom.crypto.cms.CMSException;
@@ -53,15 +60,24 @@ public final class SignalComCryptoUtils extends CryptoUtils {
     private final String storeFile;
     private final char[] storePassword;
 
-    private final List<Signer> signers = new ArrayList<Signer>();
-    private final List<Recipient> recipients = new ArrayList<Recipient>();
-    
-    private SecureRandom random;
+    /**
+     * ГСЧ по потокам: потокобезопасность GOST28147PRNG провайдером не заявлена, а операции с разными профилями
+     * идут на одном экземпляре одновременно. Поток, отданный наружу (openSign, openEncrypt), держит ГСЧ потока, где открыт.
+     */
+    private final ThreadLocal<SecureRandom> random = new ThreadLocal<SecureRandom>() {
+
+        @Override
+        protected SecureRandom initialValue() {
+            try {
+                return createRandom();
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
     
     private static Logger LOG = Logger.getLogger(SignalComCryptoUtils.class.getName());
     
-    private final List<CertStore> allStoredCertificates = new ArrayList<CertStore>();
-    
     /**
      * 
      * @param keystoreFile - путь до pfx или p12 файла-хранилища. На уровне файла должны распологаться файлы генератора случайных чисел.
@@ -85,6 +101,27 @@ public final class SignalComCryptoUtils extends CryptoUtils {
     	this(keystoreFile, null);
     }
     
+    /**
+     * Копия для другого потока (см. fork()) со своим ГСЧ.
+     * @param parent
+     * @throws Exception
+     */
+    private SignalComCryptoUtils(final SignalComCryptoUtils parent) throws Exception {
+    	storeFile = parent.storeFile;
+    	storePassword = parent.storePassword;
+    	psePath = parent.psePath;
+        random.set(createRandom());
+        setKeyStoreHolder(parent.getKeyStoreHolder());
+        setPrivateKeyCache(parent.getPrivateKeyCache());
+        useTrustList(parent.getTrustList());
+        setProfile(parent.getProfile());
+    }
+    
+    @Override
+    public SignalComCryptoUtils fork() throws Exception {
+    	return new SignalComCryptoUtils(this);
+    }
+    
     /**
      * Установка списка Signers. (Все что было в списке до этого будет стерто)
      * @param signerAliases алиасы ключей участвующих в подписании сообщения
@@ -94,18 +131,8 @@ public final class SignalComCryptoUtils extends CryptoUtils {
      * @throws NoSuchAlgorithmException
      */
     public SignalComCryptoUtils signer(String... signerAliases) throws KeyStoreException, UnrecoverableKeyException, NoSuchAlgorithmException {
-    	signers.clear();
-    	if (signerAliases == null) { // ничего не делаем просто очищаем список
-    		return this;
-    	}
-    	for (String signer : signerAliases) {
-    		if (getKeyStore().isKeyEntry(signer)) {
-    			addSignerToList(signer);
-    			LOG.fine("Adding signer with alias " + signer);
-    		} else {
-    			LOG.warning("Alias " + signer + " doesn't have private key and can't be a signer");
-    		}
-    	}
+    	KeyStoreIndex snapshot = getKeyStoreIndex();
+    	setSigners(resolveSigners(signerAliases), snapshot);
     	return this;
     }
     
@@ -116,12 +143,8 @@ public final class SignalComCryptoUtils extends CryptoUtils {
      * @throws KeyStoreException
      */
     public SignalComCryptoUtils recipients(String... recipientsAliases) throws KeyStoreException {
-    	recipients.clear();
-    	if (recipientsAliases != null) {	
-	    	for (String recipient : recipientsAliases) {
-	    		addRecipientToList(recipient);
-	    	}
-    	}
+    	KeyStoreIndex snapshot = getKeyStoreIndex();
+    	setRecipients(resolveRecipients(recipientsAliases), snapshot);
     	return this;
     }
 
@@ -132,101 +155,181 @@ public final class SignalComCryptoUtils extends CryptoUtils {
      */
     private void init() throws Exception {
     	LOG.fine("RNG initialization...");
-        random = SecureRandom.getInstance("GOST28147PRNG", "SC");
-        random.setSeed(psePath.getBytes());
+        random.set(createRandom()); // ошибки провайдера - сразу, а не на первой операции
         
-        KeyStore keyStore = null;
-
         LOG.fine("Key store loading...");
-        keyStore = KeyStore.getInstance(STORE_TYPE, CRYPTO_PROVIDER);
+        setKeyStore(storeFile, keyStoreLoader());
+    }
+
+    /**
+     * Цепочку сертификата подписчика строит PKIX CertPathBuilder самого SignalCom.
+     */
+    @Override
+    protected String getCertPathBuilderProvider() {
+        return CRYPTO_PROVIDER;
+    }
+
+    private SecureRandom createRandom() throws GeneralSecurityException {
+        SecureRandom rnd = SecureRandom.getInstance("GOST28147PRNG", CRYPTO_PROVIDER);
+        rnd.setSeed(psePath.getBytes());
+        return rnd;
+    }
+
+    private KeyStore loadKeyStore() throws Exception {
+        KeyStore keyStore = KeyStore.getInstance(STORE_TYPE, CRYPTO_PROVIDER);
         InputStream in = new FileInputStream(new File(storeFile));
-        keyStore.load(in, storePassword);
-        in.close();
-        setKeyStore(keyStore);
-        
-        LOG.fine("Load all certificates from store...");
-        allStoredCertificates.add(getAllCertificateFromStore());
+        try {
+            keyStore.load(in, storePassword);
+        } finally {
+            in.close();
+        }
+        return keyStore;
+    }
 
-        CryptoUtils.setCertPathBuilder(CertPathBuilder.getInstance("PKIX", "SC"));
+    /**
+     * Перезагрузка хранилища на лету при изменении файла (новые сертификаты контрагентов без пересоздания SignalComCryptoUtils).
+     * @return KeyStoreHolder
+     * @throws IOException
+     */
+    public KeyStoreHolder watchKeyStore() throws IOException {
+        return watchKeyStore(storeFile, keyStoreLoader());
+    }
+
+    private KeyStoreHolder.Loader keyStoreLoader() {
+        return new KeyStoreHolder.Loader() {
+
+            @Override
+            public KeyStore load() throws Exception {
+                return loadKeyStore();
+            }
+        };
+    }
+
+    @Override
+    protected PrivateKey loadPrivateKey(String alias) throws KeyStoreException, NoSuchAlgorithmException, UnrecoverableKeyException {
+    	return getKeyFromStore(alias, storePassword);
     }
 
     /**
-     * Добавление Signer-а в список подписчиков.
-     * @param alias
-     * @return Signer's X509Certificate 
-     * @throws KeyStoreException
-     * @throws NoSuchAlgorithmException
-     * @throws UnrecoverableKeyException
+     * Подписчики SignalCom для профиля (разрешенного по текущему снимку хранилища). Signer привязан к ГСЧ, поэтому создается на каждую операцию.
+     * @param profile
+     * @return
+     * @throws Exception
      */
-	private X509Certificate addSignerToList(String alias) throws KeyStoreException, NoSuchAlgorithmException, UnrecoverableKeyException {
-		PrivateKey priv = (PrivateKey) getKeyStore().getKey(alias, storePassword);
-		X509Certificate cert = getCertificateFromStore(alias);
-		signers.add(new Signer(priv, cert, random));
-		return cert;
-	}
-	
-	private X509Certificate addRecipientToList(String recipient) throws KeyStoreException {
-		X509Certificate cert = getCertificateFromStore(recipient);
-		recipients.add(new Recipient(cert));
-		return cert;
-	}
+    private List<Signer> createSigners(CmsProfile profile) throws Exception {
+    	profile = currentProfile(profile);
+    	List<Signer> signers = new ArrayList<Signer>(profile.getSigners().size());
+    	for (CmsProfile.SignerEntry entry : profile.getSigners()) {
+    		signers.add(new Signer(entry.getKey(), entry.getCert(), random.get()));
+    	}
+    	return signers;
+    }
+    
+    private List<Recipient> createRecipients(CmsProfile profile) throws Exception {
+    	profile = currentProfile(profile);
+    	List<Recipient> recipients = new ArrayList<Recipient>(profile.getRecipients().size());
+    	for (CmsProfile.RecipientEntry entry : profile.getRecipients()) {
+    		recipients.add(new Recipient(entry.getCert()));
+    	}
+    	return recipients;
+    }
 
     /**
      * Пример формирования подписанного (SignedData) сообщения.
+     * @param profile подписчики.
      * @param data подписываемые данные.
      * @param type идентификатор типа подписываемых данных.
      * @param detached если true, то формируется отсоединённая подпись.
      * @return подписанное сообщение.
      * @throws Exception
      */
-    private byte[] sign(byte[] data, String type, boolean detached) throws Exception {
-        LOG.fine("Signing...");
-        InputStream in = new ByteArrayInputStream(data);
+    private byte[] sign(CmsProfile profile, byte[] data, String type, boolean detached) throws Exception {
         ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutputStream sigOut = openSign(profile, out, type, detached);
+        sigOut.write(data);
+        sigOut.close();
+        return out.toByteArray();
+    }
 
-        SignedDataGenerator generator = new SignedDataGenerator(out);
+    /**
+     * Потоковое формирование SignedData: данные, записанные в возвращенный поток, подписываются и уходят в out.
+     * Сообщение дописывается при закрытии потока, out при этом тоже закрывается.
+     * @param profile подписчики.
+     * @param out приемник подписанного сообщения.
+     * @param type идентификатор типа подписываемых данных.
+     * @param detached если true, то формируется отсоединённая подпись.
+     * @return поток для записи подписываемых данных.
+     * @throws Exception
+     */
+    private OutputStream openSign(CmsProfile profile, final OutputStream out, String type, boolean detached) throws Exception {
+        LOG.fine("Signing...");
+        final SignedDataGenerator generator = new SignedDataGenerator(out);
         generator.setContentType(type);
-        generator.addSigners(signers);
+        generator.addSigners(createSigners(profile));
         generator.setDetached(detached);
+        return new GeneratorOutputStream(generator.open(), out) {
+            @Override
+            protected void closeGenerator() throws IOException, CMSException {
+                generator.close();
+            }
+        };
+    }
 
-        OutputStream sigOut = generator.open();
-
-        byte[] buf = new byte[1024];
-        int len;
-        while ((len = in.read(buf)) > 0) {
-            sigOut.write(buf, 0, len);
-        }
-        generator.close();
-        in.close();
-        return out.toByteArray();
+    public byte[] signAttached(CmsProfile profile, byte[] data) throws Exception {
+        return sign(profile, data, ContentType.DATA, false);
     }
 
-    public byte[] signAttached(byte[] data) throws Exception {
-        return sign(data, ContentType.DATA, false);
+    @Override
+    protected OutputStream openSign(CmsProfile profile, OutputStream signed) throws Exception {
+        return openSign(profile, signed, ContentType.DATA, false);
     }
 
    
 
+    /**
+     * Поиск алиаса в хранилище: по SubjectKeyIdentifier, если он задан, иначе по издателю и серийному номеру.
+     * @param issuer
+     * @param serialNumber
+     * @param ski
+     * @return null - если сертификат не найден в хранилище
+     * @throws KeyStoreException
+     */
+    private String lookupAlias(X500Principal issuer, BigInteger serialNumber, byte[] ski) throws KeyStoreException {
+        if (ski != null) {
+            return lookupKeyStoreBySubjectKeyIdentefer(ski);
+        }
+        return lookupKeyStoreByIssuerAndSerialNumber(issuer, serialNumber);
+    }
+
     /**
      * Пример проверки блока подписи (SignerInfo).
      * Включает:
      * <br>1) проверку подписи для данных;</br>
      * <br>2) проверку сертификата;</br>
      * <br>3) проверку удостоверяющих подписей (если есть).</br>
+     * @param profile опции проверки.
+     * @param stores хранилища сертификатов для поиска сертификата подписчика.
      * @param signerInfo блок подписи.
-     * @param trust список доверенных сертификатов.
-     * @param stores хранилища сертификатов и списков отозванных сертификатов.
+     * @param outcome результат проверки.
      * @throws Exception
      */
-    private void verifySignerInfo(SignerInfo signerInfo) throws Exception {
+    private void verifySignerInfo(CmsProfile profile, List<CertStore> stores, SignerInfo signerInfo, VerificationOutcome outcome) throws Exception {
     	
         X509Certificate signerCert = null;
         
-        // поиск сертификата в хранилище
-        if (signerInfo.getSubjectKeyIdentifier() == null) {
-        	signerCert = lookupCertificateBySerialNumber(allStoredCertificates, signerInfo.getIssuer(), signerInfo.getSerialNumber());
-        } else {
-        	signerCert = lookupCertificateBySubjectKeyIdentefer(allStoredCertificates, signerInfo.getSubjectKeyIdentifier());
+        // поиск сертификата в хранилище (по индексу), затем во входящем CMS
+        String alias = lookupAlias(signerInfo.getIssuer(), signerInfo.getSerialNumber(), signerInfo.getSubjectKeyIdentifier());
+        if (alias != null) {
+        	signerCert = getCertificateFromStore(alias);
+        } else if (!stores.isEmpty()) {
+        	if (signerInfo.getSubjectKeyIdentifier() == null) {
+        		signerCert = lookupCertificateBySerialNumber(stores, signerInfo.getIssuer(), signerInfo.getSerialNumber());
+        	} else {
+        		signerCert = lookupCertificateBySubjectKeyIdentefer(stores, signerInfo.getSubjectKeyIdentifier());
+        	}
+        }
+        if (signerCert == null) {
+        	throw new CMSException("Signer certificate not found: serial=" + signerInfo.getSerialNumber());
         }
         
         if (LOG.isLoggable(Level.FINE)) {
@@ -234,7 +337,7 @@ public final class SignalComCryptoUtils extends CryptoUtils {
         }
         
         // пропскаем самоподписанные сертификаты, если это необходимо.
-        if (isFlagSet(OPT_SKIP_SELFSIGNED_CERT) && PKIXUtils.isSelfSigned(signerCert)) {
+        if (profile.isFlagSet(OPT_SKIP_SELFSIGNED_CERT) && PKIXUtils.isSelfSigned(signerCert)) {
         	LOG.fine("Skipping self-signed certificate " + signerCert.getSubjectDN().getName());
         	return;
         }
@@ -244,10 +347,8 @@ public final class SignalComCryptoUtils extends CryptoUtils {
             throw new CMSException("Signature " + signerCert.getSubjectDN().getName() +" failure");
         }
 
-        if (isFlagNotSet(OPT_DISABLE_CERT_VALIDATION)) {
-        	//verifyCertificate(cert, trust, stores); // это огигинальный вариант проверки из примера
-        	CertificateVerifier.verifyCertificate(signerCert, getKeyStore(), isFlagSet(OPT_ALLOW_SELFSIGNED_CERT), "SC"); // а это наш, адаптированный под разные VM
-        }
+        //verifyCertificate(cert, trust, stores); // это огигинальный вариант проверки из примера
+        verifySignerCertificate(profile, signerCert, "SC", outcome); // а это наш, адаптированный под разные VM
         
         @SuppressWarnings("unchecked")
         Collection<Attribute> attrs = signerInfo.getUnsignedAttributes();
@@ -259,7 +360,7 @@ public final class SignalComCryptoUtils extends CryptoUtils {
                 if (at.getType().equals(AttributeType.COUNTER_SIGNATURE)) {
                 	LOG.fine("Countersignature was found...");
                     CounterSignature counterSignature = new CounterSignature(at.getValue(), signerInfo);
-                    verifySignerInfo(counterSignature);
+                    verifySignerInfo(profile, stores, counterSignature, outcome);
                 }
             }
         }
@@ -267,14 +368,15 @@ public final class SignalComCryptoUtils extends CryptoUtils {
 
     /**
      * Пример проверки подписанного (SignedData) сообщения.
+     * @param profile опции проверки.
      * @param signed подписанное сообщение.
      * @param data данные, используемые при проверке отсоединённой подписи.
+     * @param outcome результат проверки.
      * @throws Exception
      */
-    private void verify(byte[] signed, byte[] data) throws Exception {
+    private void verify(CmsProfile profile, InputStream in, InputStream data, VerificationOutcome outcome) throws Exception {
 
     	LOG.fine("Signature(s) verifying...");
-        InputStream in = new ByteArrayInputStream(signed);
         ContentInfoParser cinfoParser = ContentInfoParser.getInstance(in);
         if (!(cinfoParser instanceof SignedDataParser)) {
             throw new RuntimeException("SignedData expected here");
@@ -286,14 +388,15 @@ public final class SignalComCryptoUtils extends CryptoUtils {
             if (data == null) {
                 throw new RuntimeException("detached signed data required");
             }
-            parser.setContent(new ByteArrayInputStream(data));
+            parser.setContent(data);
         }
         parser.process();
         in.close();
         
         CertStore cmsCertificates = parser.getCertificatesAndCRLs();
-        if (isFlagNotSet(OPT_STORED_CERT_ONLY)) { // если это разрешается, то проверка будет производится И на сертификатах пришедших в CMS
-        	allStoredCertificates.add(cmsCertificates);
+        List<CertStore> stores = Collections.emptyList(); // сертификаты хранилища ищутся по индексу
+        if (profile.isFlagNotSet(OPT_STORED_CERT_ONLY)) { // если это разрешается, то проверка будет производится И на сертификатах пришедших в CMS
+        	stores = Collections.singletonList(cmsCertificates);
         	if (LOG.isLoggable(Level.FINE)) {
         		LOG.fine("Added " + cmsCertificates.getCertificates(null).size() + " certificate from incoming CMS. Flag OPT_STORED_CERT_ONLY not set.");
         	}
@@ -307,14 +410,24 @@ public final class SignalComCryptoUtils extends CryptoUtils {
         Iterator<SignerInfo> it = signerInfos.iterator();
         while (it.hasNext()) {
             SignerInfo signerInfo = it.next();
-            verifySignerInfo(signerInfo);
+            verifySignerInfo(profile, stores, signerInfo, outcome);
         }
         parser.close();
     }
 
-    public void verify(byte[] signed) throws Exception {
-    	signed = forceBASE64(signed);
-        verify(signed, null);
+    @Override
+    protected void verify(CmsProfile profile, byte[] signed, VerificationOutcome outcome) throws Exception {
+        verify(profile, CmsMessageContext.detect(signed), outcome);
+    }
+
+    @Override
+    protected void verify(CmsProfile profile, CmsMessageContext message, VerificationOutcome outcome) throws Exception {
+        verify(profile, new ByteArrayInputStream(message.getDer()), null, outcome);
+    }
+
+    @Override
+    protected void verify(CmsProfile profile, InputStream signed, VerificationOutcome outcome) throws Exception {
+        verify(profile, forceBASE64(signed), null, outcome);
     }
 
     /**
@@ -324,18 +437,47 @@ public final class SignalComCryptoUtils extends CryptoUtils {
      * @throws Exception
      */
     public byte[] detach(byte[] signed) throws Exception {
-    	signed = forceBASE64(signed);
-    	LOG.fine("Data detaching...");
-        SignedDataParser parser = new SignedDataParser(new ByteArrayInputStream(signed));
-        InputStream content = parser.getContent(false);
-        ByteArrayOutputStream bOut = new ByteArrayOutputStream();
-        byte[] data = new byte[1024];
-        int len;
-        while ((len = content.read(data)) >= 0) {
-            bOut.write(data, 0, len);
+        return detach(CmsMessageContext.detect(signed));
+    }
+
+    @Override
+    protected byte[] detach(CmsMessageContext message) throws Exception {
+        byte[] direct = detachDirect(message);
+        if (direct != null) {
+            return direct;
         }
-        parser.close();
-        return bOut.toByteArray();
+        InputStream content = openSignedContent(new ByteArrayInputStream(message.getDer()));
+        try {
+            return StreamUtils.readAll(content);
+        } finally {
+            content.close();
+        }
+    }
+
+    @Override
+    protected InputStream openDetach(InputStream signed) throws Exception {
+        InputStream direct = openDetachDirect(signed);
+        if (direct != null) {
+            return direct;
+        }
+        return openSignedContent(forceBASE64(signed));
+    }
+
+    /**
+     * Потоковое отделение подписанных данных. Закрытие возвращенного потока закрывает парсер и исходный поток.
+     * @param signed подписанное сообщение (DER).
+     * @return поток подписанных данных.
+     * @throws Exception
+     */
+    private InputStream openSignedContent(final InputStream signed) throws Exception {
+    	LOG.fine("Data detaching...");
+        final SignedDataParser parser = new SignedDataParser(signed);
+        return new ParserInputStream(parser.getContent(false), signed) {
+            @Override
+            protected void closeParser() throws IOException, CMSException {
+                parser.close();
+            }
+        };
     }
 
     /**
@@ -344,27 +486,34 @@ public final class SignalComCryptoUtils extends CryptoUtils {
      * @return зашифрованное сообщение.
      * @throws Exception
      */
-    public byte[] encrypt(byte[] plain) throws Exception {
-
-    	LOG.fine("Enciphering...");
-        InputStream bIn = new ByteArrayInputStream(plain);
+    public byte[] encrypt(CmsProfile profile, byte[] plain) throws Exception {
         ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+        OutputStream out = openEncrypt(profile, bOut);
+        out.write(plain);
+        out.close();
+        return bOut.toByteArray();
+    }
 
-        EnvelopedDataGenerator generator = new EnvelopedDataGenerator(bOut, random);
+    /**
+     * Потоковое формирование EnvelopedData. Сообщение дописывается при закрытии потока, ciphertext при этом тоже закрывается.
+     * @param profile получатели.
+     * @param ciphertext приемник зашифрованного сообщения.
+     * @return поток для записи открытых данных.
+     * @throws Exception
+     */
+    @Override
+    protected OutputStream openEncrypt(CmsProfile profile, OutputStream ciphertext) throws Exception {
+    	LOG.fine("Enciphering...");
+        final EnvelopedDataGenerator generator = new EnvelopedDataGenerator(ciphertext, random.get());
         
         generator.setContentEncryptionAlgorithm(CipherAlgorithm.GOST28147); // устаревший алгоритм. Но что поделать.
-        generator.addRecipients(recipients);
-        OutputStream out = generator.open();
-
-        byte[] data = new byte[1024];
-        int len;
-        while ((len = bIn.read(data)) >= 0) {
-            out.write(data, 0, len);
-        }
-
-        generator.close();
-        bIn.close();
-        return bOut.toByteArray();
+        generator.addRecipients(createRecipients(profile));
+        return new GeneratorOutputStream(generator.open(), ciphertext) {
+            @Override
+            protected void closeGenerator() throws IOException, CMSException {
+                generator.close();
+            }
+        };
     }
 
     /**
@@ -374,11 +523,32 @@ public final class SignalComCryptoUtils extends CryptoUtils {
      * @throws Exception
      */
     public byte[] decrypt(byte[] ciphertext) throws Exception {
-    	ciphertext = forceBASE64(ciphertext);
-    	
-    	LOG.fine("Deciphering...");
-        InputStream bIn = new ByteArrayInputStream(ciphertext);
+        return decrypt(CmsMessageContext.detect(ciphertext));
+    }
 
+    @Override
+    protected byte[] decrypt(CmsMessageContext message) throws Exception {
+        InputStream content = openEnvelopedContent(new ByteArrayInputStream(message.getDer()));
+        try {
+            return StreamUtils.readAll(content);
+        } finally {
+            content.close();
+        }
+    }
+
+    @Override
+    protected InputStream openDecrypt(InputStream ciphertext) throws Exception {
+        return openEnvelopedContent(forceBASE64(ciphertext));
+    }
+
+    /**
+     * Потоковое расшифрование EnvelopedData. Закрытие возвращенного потока закрывает парсер и исходный поток.
+     * @param bIn зашифрованное сообщение (DER).
+     * @return поток расшифрованных данных.
+     * @throws Exception
+     */
+    private InputStream openEnvelopedContent(final InputStream bIn) throws Exception {
+    	LOG.fine("Deciphering...");
         ContentInfoParser cinfoParser = ContentInfoParser.getInstance(bIn);
         if (cinfoParser == null) {
         	throw new RuntimeException("Container type undeterminated. Type is " + ContentInfoParser.getContentType(bIn));
@@ -386,41 +556,97 @@ public final class SignalComCryptoUtils extends CryptoUtils {
         if (!(cinfoParser instanceof EnvelopedDataParser)) {
             throw new RuntimeException("EnvelopedData expected here");
         }
-        EnvelopedDataParser parser = (EnvelopedDataParser) cinfoParser;
+        final EnvelopedDataParser parser = (EnvelopedDataParser) cinfoParser;
         @SuppressWarnings("unchecked")
 		Collection<RecipientInfo> recInfos = parser.getRecipientInfos();
         Iterator<RecipientInfo> it = recInfos.iterator();
-        KeyStore keyStore = getKeyStore();
         while (it.hasNext()) {
             RecipientInfo recInfo = (RecipientInfo) it.next();
-            X509Certificate cert = null;
             LOG.fine("Try decrypt for RecipientInfo serial=" + recInfo.getSerialNumber()+ " RI: " + recInfo.getRecipientIdentifier().toString());
-            if (recInfo.getSubjectKeyIdentifier() == null) {
-            	cert = lookupCertificateBySerialNumber(allStoredCertificates, recInfo.getIssuer(), recInfo.getSerialNumber());
-            } else {
-            	cert = lookupCertificateBySubjectKeyIdentefer(allStoredCertificates, recInfo.getSubjectKeyIdentifier());
-            }
+            String alias = lookupAlias(recInfo.getIssuer(), recInfo.getSerialNumber(), recInfo.getSubjectKeyIdentifier());
     
-            if (cert != null) {
-                PrivateKey priv = (PrivateKey) keyStore.getKey(keyStore.getCertificateAlias(cert), storePassword);
+            if (alias != null) {
+                if (LOG.isLoggable(Level.FINE)) {
+                    LOG.fine("Recipient '" + alias + "' found" + (getKeyStoreIndex().isFederated() ? " in key store " + getKeyStoreIndex().getStoreName(alias) : ""));
+                }
+                PrivateKey priv = getPrivateKey(alias);
                 if (priv != null) {
-                    InputStream content = recInfo.getEncryptedContent(priv, random);
-                    ByteArrayOutputStream bOut = new ByteArrayOutputStream();
-
-                    byte[] data = new byte[1024];
-                    int len;
-                    while ((len = content.read(data)) >= 0) {
-                        bOut.write(data, 0, len);
-                    }
-
-                    parser.close();
-                    bIn.close();
-                    return bOut.toByteArray();
+                    return new ParserInputStream(recInfo.getEncryptedContent(priv, random.get()), bIn) {
+                        @Override
+                        protected void closeParser() throws IOException, CMSException {
+                            parser.close();
+                        }
+                    };
                 }
             }
         }
+        parser.close();
         throw new RuntimeException("recipient's private key not found");
     }
+
+    /**
+     * Поток содержимого, полученный от парсера: при закрытии закрываются парсер и исходный поток.
+     */
+    private abstract static class ParserInputStream extends FilterInputStream {
+
+        private final InputStream source;
+
+        ParserInputStream(InputStream content, InputStream source) {
+            super(content);
+            this.source = source;
+        }
+
+        protected abstract void closeParser() throws IOException, CMSException;
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+                closeParser();
+            } catch (CMSException e) {
+                throw new IOException(e.getMessage(), e);
+            } finally {
+                source.close();
+            }
+        }
+    }
+
+    /**
+     * Поток данных генератора (SignedData/EnvelopedData): при закрытии дописывается сообщение и закрывается приемник.
+     */
+    private abstract static class GeneratorOutputStream extends FilterOutputStream {
+
+        private final OutputStream target;
+
+        private boolean closed = false;
+
+        GeneratorOutputStream(OutputStream generatorOut, OutputStream target) {
+            super(generatorOut);
+            this.target = target;
+        }
+
+        protected abstract void closeGenerator() throws IOException, CMSException;
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                closeGenerator();
+            } catch (CMSException e) {
+                throw new IOException(e.getMessage(), e);
+            } finally {
+                target.close();
+            }
+        }
+    }
     
     /* private byte[] sign(byte[] data, boolean detached) throws Exception {
     return sign(data, ContentType.DATA, detached);
@@ -0,0 +1,231 @@
+package org.lu.pki.tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.logging.Logger;
+
+/**
+ * Мелкие помощники для потоковой обработки (копирование, буферы-спулы, защита от закрытия).
+ * @author Igor Konovalov ikonovalov@luxoft.com
+ *
+ */
+final class StreamUtils {
+
+	private static final Logger LOG = Logger.getLogger(StreamUtils.class.getName());
+
+	/**
+	 * Размер буфера для копирования между стадиями. Именно он (а не размер сообщения) ограничивает расход памяти на стадию.
+	 */
+	static final int BUFFER_SIZE = 8192;
+
+	private static final String SPOOL_PREFIX = "lux-pkcs7-";
+
+	private static final String SPOOL_SUFFIX = ".spool";
+
+	private StreamUtils() {
+	}
+
+	/**
+	 * Копирование из потока в поток до конца входного потока. Потоки не закрываются.
+	 * @param in
+	 * @param out
+	 * @return количество скопированных байт
+	 * @throws IOException
+	 */
+	static long copy(InputStream in, OutputStream out) throws IOException {
+		byte[] buf = new byte[BUFFER_SIZE];
+		long total = 0;
+		int len;
+		while ((len = in.read(buf)) >= 0) {
+			out.write(buf, 0, len);
+			total += len;
+		}
+		return total;
+	}
+
+	/**
+	 * Вычитка потока целиком в массив. Поток не закрывается.
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+		copy(in, bOut);
+		return bOut.toByteArray();
+	}
+
+	static void closeQuietly(InputStream in) {
+		if (in != null) {
+			try {
+				in.close();
+			} catch (IOException e) {
+				LOG.fine("Closing problem: " + e.getMessage());
+			}
+		}
+	}
+
+	static void closeQuietly(OutputStream out) {
+		if (out != null) {
+			try {
+				out.close();
+			} catch (IOException e) {
+				LOG.fine("Closing problem: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Создание временного файла-спула для промежуточных данных стадии. Удаляет его владелец (deleteSpool),
+	 * deleteOnExit не используется: его список растет до конца работы JVM.
+	 * @return
+	 * @throws IOException
+	 */
+	static File createSpool() throws IOException {
+		return File.createTempFile(SPOOL_PREFIX, SPOOL_SUFFIX);
+	}
+
+	/**
+	 * Удаление спула с одной повторной попыткой.
+	 * @param spool
+	 * @return false - файл остался на диске (записано предупреждение в лог)
+	 */
+	static boolean deleteSpool(File spool) {
+		if (!spool.exists() || spool.delete()) {
+			return true;
+		}
+		LOG.fine("Spool file " + spool + " not deleted, retrying");
+		if (!spool.exists() || spool.delete()) {
+			return true;
+		}
+		LOG.warning("Spool file " + spool + " not deleted");
+		return false;
+	}
+
+	/**
+	 * Перекачка потока во временный файл.
+	 * @param in - входной поток (не закрывается)
+	 * @return файл-спул. Удаляется при закрытии потока, полученного через openSpool.
+	 * @throws IOException
+	 */
+	static File spool(InputStream in) throws IOException {
+		File spool = createSpool();
+		OutputStream out = new FileOutputStream(spool);
+		try {
+			copy(in, out);
+		} catch (IOException e) {
+			closeQuietly(out);
+			deleteSpool(spool);
+			throw e;
+		}
+		out.close();
+		return spool;
+	}
+
+	/**
+	 * Открытие спула на чтение. Файл удаляется при закрытии возвращенного потока.
+	 * @param spool
+	 * @return
+	 * @throws IOException
+	 */
+	static InputStream openSpool(File spool) throws IOException {
+		return new SpoolInputStream(spool);
+	}
+
+	/**
+	 * Обертка, не дающая закрыть поток вызывающего (стадии закрывают свои потоки каскадом).
+	 * Поток над ByteBuffer остается ByteBufferInputStream, чтобы стадии могли работать прямо с буфером.
+	 * @param in
+	 * @return
+	 */
+	static InputStream closeShield(InputStream in) {
+		if (in instanceof ByteBufferInputStream) {
+			return ((ByteBufferInputStream) in).closeShield();
+		}
+		return new FilterInputStream(in) {
+			@Override
+			public void close() throws IOException {
+				// поток принадлежит вызывающему
+			}
+		};
+	}
+
+	static OutputStream closeShield(OutputStream out) {
+		return new FilterOutputStream(out) {
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+			}
+
+			@Override
+			public void close() throws IOException {
+				flush(); // поток принадлежит вызывающему
+			}
+		};
+	}
+
+	/**
+	 * Чтение из временного файла с его удалением при закрытии.
+	 */
+	static final class SpoolInputStream extends FileInputStream {
+
+		private final File spool;
+
+		SpoolInputStream(File spool) throws FileNotFoundException {
+			super(spool);
+			this.spool = spool;
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				super.close();
+			} finally {
+				deleteSpool(spool);
+			}
+		}
+	}
+
+	/**
+	 * Буфер стадии для движков, у которых нет потоковой реализации:
+	 * все записанное собирается и при закрытии преобразуется целиком, результат уходит в следующую стадию.
+	 */
+	abstract static class BufferedStageOutputStream extends ByteArrayOutputStream {
+
+		private final OutputStream next;
+
+		private boolean closed = false;
+
+		BufferedStageOutputStream(OutputStream next) {
+			this.next = next;
+		}
+
+		protected abstract byte[] transform(byte[] data) throws Exception;
+
+		@Override
+		public void close() throws IOException {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			try {
+				next.write(transform(toByteArray()));
+			} catch (IOException e) {
+				throw e;
+			} catch (Exception e) {
+				throw new IOException(e.getMessage(), e);
+			} finally {
+				next.close();
+			}
+		}
+	}
+
+}
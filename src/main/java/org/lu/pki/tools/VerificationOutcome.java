@@ -0,0 +1,150 @@
+package org.lu.pki.tools;
+
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Результат проверки SignedData, разделенный на две части: математика подписей (CPU) и проверка сертификатов подписчиков
+ * (цепочка, CRL - может ходить в сеть). При отложенной проверке (CryptoUtils.verifySignatures) сертификаты только собираются,
+ * а проверяются отдельно через CryptoUtils.validateCertificates - например, в пуле ввода-вывода.
+ * @author Igor Konovalov ikonovalov@luxoft.com
+ *
+ */
+public final class VerificationOutcome {
+
+	private final boolean deferred;
+
+	private final List<SignerOutcome> signers = new ArrayList<SignerOutcome>();
+
+	private boolean signaturesValid = false;
+
+	private boolean allowSelfSigned = false;
+
+	VerificationOutcome(boolean deferred) {
+		this.deferred = deferred;
+	}
+
+	/**
+	 * @return true - проверка сертификатов отложена до CryptoUtils.validateCertificates
+	 */
+	public boolean isDeferred() {
+		return deferred;
+	}
+
+	public List<SignerOutcome> getSigners() {
+		return Collections.unmodifiableList(signers);
+	}
+
+	/**
+	 * @return подписи математически верны
+	 */
+	public boolean isSignaturesValid() {
+		return signaturesValid;
+	}
+
+	/**
+	 * @return остались сертификаты, которые нужно проверить
+	 */
+	public boolean isCertificateValidationPending() {
+		for (SignerOutcome signer : signers) {
+			if (signer.isValidationRequired() && signer.getCertificateResult() == null) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return подписи верны и все требуемые проверки сертификатов пройдены
+	 */
+	public boolean isValid() {
+		if (!signaturesValid) {
+			return false;
+		}
+		for (SignerOutcome signer : signers) {
+			if (signer.isValidationRequired() && (signer.getCertificateResult() == null || !signer.getCertificateResult().isValid())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	SignerOutcome addSigner(X509Certificate cert, String provider, boolean validationRequired) {
+		SignerOutcome signer = new SignerOutcome(cert, provider, validationRequired);
+		signers.add(signer);
+		return signer;
+	}
+
+	boolean isAllowSelfSigned() {
+		return allowSelfSigned;
+	}
+
+	void setAllowSelfSigned(boolean allowSelfSigned) {
+		this.allowSelfSigned = allowSelfSigned;
+	}
+
+	void signaturesVerified() {
+		signaturesValid = true;
+	}
+
+	@Override
+	public String toString() {
+		return "VerificationOutcome [signaturesValid=" + signaturesValid + ", deferred=" + deferred + ", signers=" + signers + "]";
+	}
+
+	/**
+	 * Подписчик, чья подпись сошлась, и результат проверки его сертификата.
+	 */
+	public static final class SignerOutcome {
+
+		private final X509Certificate cert;
+
+		private final String provider;
+
+		private final boolean validationRequired;
+
+		private volatile CertificateVerificationResult certificateResult;
+
+		SignerOutcome(X509Certificate cert, String provider, boolean validationRequired) {
+			this.cert = cert;
+			this.provider = provider;
+			this.validationRequired = validationRequired;
+		}
+
+		public X509Certificate getCert() {
+			return cert;
+		}
+
+		/**
+		 * @return провайдер, которым проверяется цепочка сертификата
+		 */
+		public String getProvider() {
+			return provider;
+		}
+
+		/**
+		 * @return false, если проверка сертификатов отключена (OPT_DISABLE_CERT_VALIDATION)
+		 */
+		public boolean isValidationRequired() {
+			return validationRequired;
+		}
+
+		/**
+		 * @return результат проверки сертификата или null, если она не выполнялась
+		 */
+		public CertificateVerificationResult getCertificateResult() {
+			return certificateResult;
+		}
+
+		void setCertificateResult(CertificateVerificationResult certificateResult) {
+			this.certificateResult = certificateResult;
+		}
+
+		@Override
+		public String toString() {
+			return cert.getSubjectX500Principal().getName() + (certificateResult != null ? " -> " + certificateResult.isValid() : "");
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package org.lu.pkcs7.cms.checks;
+
+import static org.lu.pkcs7.cms.checks.Checks.check;
+import static org.lu.pkcs7.cms.checks.Checks.checkBytes;
+import static org.lu.pkcs7.cms.checks.Checks.checkEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import org.lu.pki.tools.Base64Codec;
+import org.lu.pki.tools.Base64InputStream;
+import org.lu.pki.tools.Base64OutputStream;
+import org.lu.pki.tools.CryptoUtils;
+
+/**
+ * Base64Codec: определение BASE64 и снятие кодировки за один проход.
+ * @author Igor Konovalov ikonovalov@luxoft.com
+ *
+ */
+public class Base64CodecCheck {
+
+	/**
+	 * Строгие декодеры (массив и поток) принимают и отвергают одно и то же.
+	 */
+	private static final String[] STRICT = { "QUJD", "QQ==", "QUI=", "QUJD\r\nREVG\n", "QQ== \r\n", "QUI\n=",
+			"", " \r\n", "QUJDRA", "Q", "QQ=", "QUJ==", "QUJD=", "Q===", "QQ==QUJD", "QQ==x", "QUJ*" };
+
+	public static void main(String[] args) throws IOException {
+		checkEquals("QQ==", new String(Base64Codec.encode("A".getBytes())), "encode 1 byte");
+		checkEquals("QUI=", new String(Base64Codec.encode("AB".getBytes())), "encode 2 bytes");
+		checkEquals("QUJD", new String(Base64Codec.encode("ABC".getBytes())), "encode 3 bytes");
+
+		Random random = new Random(20130328);
+		for (int length = 1; length < 300; length++) {
+			byte[] data = new byte[length];
+			random.nextBytes(data);
+			checkBytes(data, Base64Codec.decodeIfBase64(Base64Codec.encode(data)), "round trip of " + length);
+			byte[] pem = Base64Codec.encode(data, Base64Codec.PEM_LINE_LENGTH, Base64Codec.CRLF);
+			checkBytes(data, Base64Codec.decodeIfBase64(pem), "PEM round trip of " + length);
+			checkBytes(data, Base64Codec.decode(Base64Codec.encode(data, Base64Codec.MIME_LINE_LENGTH, Base64Codec.CRLF)), "MIME round trip of " + length);
+			for (String line : new String(pem).split("\r\n")) {
+				check(line.length() <= Base64Codec.PEM_LINE_LENGTH, "PEM line of " + line.length());
+			}
+		}
+
+		// DER не принимается за BASE64
+		byte[] der = { 0x30, (byte) 0x82, 0x01, 0x0A, 0x06, 0x09, 0x2A, (byte) 0x86, 0x48 };
+		check(!Base64Codec.isBase64(der), "DER is not BASE64");
+		check(Base64Codec.decodeIfBase64(der) == null, "DER is not decoded");
+
+		check(Base64Codec.isBase64("QUJD\r\nREVG\n".getBytes()), "line breaks are skipped");
+		check(!Base64Codec.isBase64("QUJDRA".getBytes()), "incomplete group");
+		check(!Base64Codec.isBase64("QQ==QUJD".getBytes()), "padding inside");
+		check(!Base64Codec.isBase64("QUJ*".getBytes()), "invalid character");
+		try {
+			Base64Codec.decode(der);
+			throw new AssertionError("DER decoded as BASE64");
+		} catch (IllegalArgumentException e) {
+			// ожидаемо
+		}
+
+		for (String input : STRICT) {
+			byte[] expected = Base64Codec.decodeIfBase64(input.getBytes());
+			byte[] streamed;
+			try {
+				streamed = Checks.readAll(new Base64InputStream(new ByteArrayInputStream(input.getBytes())));
+			} catch (IOException e) {
+				streamed = null;
+			}
+			checkBytes(expected, streamed, "stream vs array for '" + input.trim() + "'");
+		}
+
+		// параметры разбиения на строки проверяются одинаково
+		int[] lineLengths = { Base64Codec.PEM_LINE_LENGTH, Base64Codec.PEM_LINE_LENGTH, -1 };
+		byte[][] separators = { null, new byte[0], Base64Codec.CRLF };
+		for (int i = 0; i < lineLengths.length; i++) {
+			String encodeError = null;
+			String streamError = null;
+			try {
+				Base64Codec.encode(der, lineLengths[i], separators[i]);
+			} catch (IllegalArgumentException e) {
+				encodeError = e.getMessage();
+			}
+			try {
+				new Base64OutputStream(new ByteArrayOutputStream(), lineLengths[i], separators[i]).close();
+			} catch (IllegalArgumentException e) {
+				streamError = e.getMessage();
+			}
+			check(encodeError != null, "encode accepted line length " + lineLengths[i]);
+			checkEquals(encodeError, streamError, "stream vs array line arguments");
+		}
+
+		// convertBASE64toDER остается нестрогим, как DatatypeConverter.parseBase64Binary
+		checkEquals("AABC", new String(CryptoUtils.convertBASE64toDER("QQ==QUJD".getBytes())), "lenient: data after padding");
+		checkEquals("ABC", new String(CryptoUtils.convertBASE64toDER("QU*JD\r\n".getBytes())), "lenient: foreign characters");
+		checkEquals("ABC", new String(CryptoUtils.convertBASE64toDER("QUJDRA".getBytes())), "lenient: incomplete group");
+		checkEquals(0, CryptoUtils.convertBASE64toDER(der).length, "lenient: DER");
+
+		System.out.println("Base64Codec: OK");
+	}
+}
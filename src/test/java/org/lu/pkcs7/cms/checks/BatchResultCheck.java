@@ -0,0 +1,72 @@
+package org.lu.pkcs7.cms.checks;
+
+import static org.lu.pkcs7.cms.checks.Checks.check;
+import static org.lu.pkcs7.cms.checks.Checks.checkEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.lu.pki.tools.CmsBatchProcessor;
+import org.lu.pki.tools.CmsPlan;
+import org.lu.pki.tools.CmsProfile;
+import org.lu.pki.tools.CryptoUtils;
+
+/**
+ * CmsBatchProcessor: результаты в порядке сообщений при любом порядке завершения, ошибка одного не затрагивает остальные.
+ * @author Igor Konovalov ikonovalov@luxoft.com
+ *
+ */
+public class BatchResultCheck {
+
+	private static final int MESSAGES = 32;
+
+	private static final int FAILING = 7;
+
+	public static void main(String[] args) throws Exception {
+		List<byte[]> messages = new ArrayList<byte[]>(MESSAGES);
+		for (int z = 0; z < MESSAGES; z++) {
+			messages.add(String.valueOf(z).getBytes());
+		}
+		CmsBatchProcessor processor = new CmsBatchProcessor(new SlowSigner(), 4);
+		try {
+			CmsBatchProcessor.BatchResult batch = processor.process(messages, CmsPlan.of("sign"));
+			checkEquals(MESSAGES, batch.size(), "results");
+			checkEquals(1, batch.getFailed(), "failed");
+			for (int z = 0; z < MESSAGES; z++) {
+				CmsBatchProcessor.Result result = batch.getResults().get(z);
+				checkEquals(z, result.getIndex(), "index of result #" + z);
+				if (z == FAILING) {
+					check(!result.isSuccess() && result.getOutput() == null, "result #" + z + " must fail");
+					checkEquals("message " + FAILING, result.getError().getMessage(), "error of #" + z);
+				} else {
+					check(result.isSuccess(), "result #" + z + " failed: " + result.getError());
+					checkEquals("signed:" + z, new String(result.getOutput()), "output of #" + z);
+				}
+			}
+		} finally {
+			processor.shutdown();
+		}
+		System.out.println("CmsBatchProcessor: OK");
+	}
+
+	/**
+	 * "Подпись" без провайдера: чем раньше сообщение в пакете, тем дольше оно обрабатывается.
+	 */
+	private static final class SlowSigner extends FakeCryptoUtils {
+
+		@Override
+		public byte[] signAttached(CmsProfile profile, byte[] data) throws Exception {
+			int number = Integer.parseInt(new String(data));
+			Thread.sleep(MESSAGES - number);
+			if (number == FAILING) {
+				throw new Exception("message " + number);
+			}
+			return ("signed:" + number).getBytes();
+		}
+
+		@Override
+		public CryptoUtils fork() {
+			return new SlowSigner();
+		}
+	}
+}
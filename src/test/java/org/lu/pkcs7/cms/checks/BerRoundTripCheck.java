@@ -0,0 +1,98 @@
+package org.lu.pkcs7.cms.checks;
+
+import static org.lu.pkcs7.cms.checks.Checks.check;
+import static org.lu.pkcs7.cms.checks.Checks.checkBytes;
+import static org.lu.pkcs7.cms.checks.Checks.checkEquals;
+import static org.lu.pkcs7.cms.checks.Checks.readAll;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.lu.pki.tools.BerReader;
+import org.lu.pki.tools.BerWriter;
+
+/**
+ * BerWriter -> BerReader: OCTET STRING неопределенной длины из сегментов и поиск eContent в SignedData в BER.
+ * @author Igor Konovalov ikonovalov@luxoft.com
+ *
+ */
+public class BerRoundTripCheck {
+
+	private static final String SIGNED_DATA_OID = "1.2.840.113549.1.7.2";
+
+	private static final String DATA_OID = "1.2.840.113549.1.7.1";
+
+	public static void main(String[] args) throws IOException {
+		Random random = new Random(20130328);
+		int[] lengths = { 0, 1, BerWriter.SEGMENT_SIZE - 1, BerWriter.SEGMENT_SIZE, 3 * BerWriter.SEGMENT_SIZE + 7 };
+		for (int length : lengths) {
+			byte[] data = new byte[length];
+			random.nextBytes(data);
+
+			ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+			OutputStream segmented = new BerWriter.SegmentedOctetStringOutputStream(bOut, BerWriter.TAG_CONSTRUCTED_OCTET_STRING);
+			segmented.write(data);
+			segmented.close();
+			bOut.write(0x05); // следующий элемент - не часть строки
+			byte[] encoded = bOut.toByteArray();
+
+			ByteBuffer buf = ByteBuffer.wrap(encoded);
+			BerReader.Header header = BerReader.readHeader(buf, 0);
+			check(header != null && header.isConstructed() && header.isIndefinite(), "indefinite header of " + length);
+			checkEquals(BerWriter.TAG_CONSTRUCTED_OCTET_STRING, header.getTag(), "tag of " + length);
+			checkEquals(encoded.length - 1, BerReader.skip(buf, header), "end of " + length);
+			checkBytes(data, readAll(BerReader.openOctetString(buf, header)), "buffer round trip of " + length);
+
+			InputStream in = new ByteArrayInputStream(encoded);
+			header = BerReader.readHeader(in);
+			checkBytes(data, readAll(BerReader.openOctetString(in, header)), "stream round trip of " + length);
+			checkEquals(0x05, in.read(), "stream position after " + length);
+		}
+
+		// длинная форма длины
+		ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+		BerWriter.writeTlv(bOut, BerWriter.TAG_OCTET_STRING, new byte[300]);
+		BerReader.Header header = BerReader.readHeader(ByteBuffer.wrap(bOut.toByteArray()), 0);
+		checkEquals(300, header.getLength(), "long form length");
+		checkEquals(4, header.getValueOffset(), "long form header size");
+
+		// SignedData в BER неопределенной длины: eContent находится без разбора остальных полей
+		byte[] content = new byte[2 * BerWriter.SEGMENT_SIZE + 1];
+		random.nextBytes(content);
+		ByteBuffer signed = ByteBuffer.wrap(signedData(content));
+		BerReader.Header eContent = BerReader.findSignedContent(signed);
+		check(eContent != null && eContent.isIndefinite(), "eContent of indefinite SignedData");
+		checkBytes(content, readAll(BerReader.openOctetString(signed, eContent)), "eContent");
+
+		System.out.println("BerWriter/BerReader: OK");
+	}
+
+	/**
+	 * ContentInfo { signedData, [0] SignedData { version, digestAlgorithms, encapContentInfo { data, [0] eContent } } } -
+	 * все конструированные элементы неопределенной длины, как при потоковой подписи.
+	 */
+	static byte[] signedData(byte[] content) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		BerWriter.writeIndefiniteHeader(out, BerWriter.TAG_SEQUENCE);
+		BerWriter.writeOid(out, SIGNED_DATA_OID);
+		BerWriter.writeIndefiniteHeader(out, BerWriter.TAG_CONTEXT_0_CONSTRUCTED);
+		BerWriter.writeIndefiniteHeader(out, BerWriter.TAG_SEQUENCE);
+		BerWriter.writeTlv(out, BerWriter.TAG_INTEGER, new byte[] { 1 });
+		BerWriter.writeTlv(out, BerWriter.TAG_SET, new byte[0]);
+		BerWriter.writeIndefiniteHeader(out, BerWriter.TAG_SEQUENCE);
+		BerWriter.writeOid(out, DATA_OID);
+		BerWriter.writeIndefiniteHeader(out, BerWriter.TAG_CONTEXT_0_CONSTRUCTED);
+		OutputStream eContent = new BerWriter.SegmentedOctetStringOutputStream(out, BerWriter.TAG_CONSTRUCTED_OCTET_STRING);
+		eContent.write(content);
+		eContent.close();
+		for (int z = 0; z < 5; z++) {
+			BerWriter.writeEndOfContents(out);
+		}
+		return out.toByteArray();
+	}
+}
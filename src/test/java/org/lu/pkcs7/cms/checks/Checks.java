@@ -0,0 +1,59 @@
+package org.lu.pkcs7.cms.checks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Самостоятельные проверки библиотеки: без провайдеров ГОСТ, хранилищ ключей и сети.
+ * main запускает все проверки пакета; первая неудачная прерывает запуск с AssertionError.
+ * @author Igor Konovalov ikonovalov@luxoft.com
+ *
+ */
+public final class Checks {
+
+	private Checks() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		BerRoundTripCheck.main(args);
+		BatchResultCheck.main(args);
+		Base64CodecCheck.main(args);
+		CmsPlanCheck.main(args);
+		CompactCertificateIndexCheck.main(args);
+		IndexedCertStoreCheck.main(args);
+		KeyStoreIndexFileCheck.main(args);
+		MappedFileCheck.main(args);
+		ProfileReloadCheck.main(args);
+		DaemonHandshakeCheck.main(args);
+		System.out.println("All checks passed");
+	}
+
+	static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new AssertionError(message);
+		}
+	}
+
+	static void checkEquals(Object expected, Object actual, String what) {
+		if (expected == null ? actual != null : !expected.equals(actual)) {
+			throw new AssertionError(what + ": expected <" + expected + "> but was <" + actual + ">");
+		}
+	}
+
+	static void checkBytes(byte[] expected, byte[] actual, String what) {
+		if (!Arrays.equals(expected, actual)) {
+			throw new AssertionError(what + ": expected " + (expected != null ? expected.length + " bytes" : "null") + " but was " + (actual != null ? actual.length + " bytes" : "null"));
+		}
+	}
+
+	static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+			out.write(buffer, 0, read);
+		}
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,63 @@
+package org.lu.pkcs7.cms.checks;
+
+import static org.lu.pkcs7.cms.checks.Checks.check;
+import static org.lu.pkcs7.cms.checks.Checks.checkEquals;
+
+import java.util.Arrays;
+
+import org.lu.pki.tools.CmsPlan;
+import org.lu.pki.tools.CryptoUtils;
+
+/**
+ * CmsPlan: отказ для недопустимых цепочек и слияние стадий при компиляции.
+ * @author Igor Konovalov ikonovalov@luxoft.com
+ *
+ */
+public class CmsPlanCheck {
+
+	public static void main(String[] args) {
+		// verify -> detach - одна стадия по одному разбору
+		CmsPlan plan = CmsPlan.compile(CryptoUtils.ACTION_VERIFY, CryptoUtils.ACTION_DETACH);
+		checkEquals(1, plan.size(), "verify -> detach stages");
+		checkEquals("CmsPlan [verify+detach]", plan.toString(), "verify -> detach plan");
+
+		plan = CmsPlan.compile(CryptoUtils.ACTION_DECRYPT, CryptoUtils.ACTION_VERIFY, CryptoUtils.ACTION_VERIFY, CryptoUtils.ACTION_DETACH);
+		checkEquals("CmsPlan [decrypt -> verify+detach]", plan.toString(), "repeated verify");
+		check(Arrays.equals(new int[] { CryptoUtils.ACTION_DECRYPT, CryptoUtils.ACTION_VERIFY, CryptoUtils.ACTION_VERIFY, CryptoUtils.ACTION_DETACH }, plan.getActions()), "original chain is kept");
+
+		// detach без verify и verify в конце не сливаются
+		checkEquals("CmsPlan [detach -> verify]", CmsPlan.compile(CryptoUtils.ACTION_DETACH, CryptoUtils.ACTION_VERIFY).toString(), "detach -> verify");
+		checkEquals("CmsPlan [sign -> base64encode -> encrypt -> base64encode]", CmsPlan.of("sign -> base64encode -> encrypt -> base64encode").toString(), "outbound chain");
+
+		// план по строке кэшируется
+		check(CmsPlan.of("decrypt -> verify -> detach") == CmsPlan.of("decrypt -> verify -> detach"), "plan is cached by command");
+
+		rejected("sign -> decrypt", CryptoUtils.ACTION_SIGN, CryptoUtils.ACTION_DECRYPT);
+		rejected("encrypt -> verify", CryptoUtils.ACTION_ENCRYPT, CryptoUtils.ACTION_VERIFY);
+		rejected("encrypt -> detach", CryptoUtils.ACTION_ENCRYPT, CryptoUtils.ACTION_DETACH);
+		rejected("empty chain");
+		rejected("unknown action", 3);
+		rejected("sign -> decrypt");
+		rejected("decrypt -> unzip");
+
+		System.out.println("CmsPlan: OK");
+	}
+
+	private static void rejected(String what, int... actions) {
+		try {
+			CmsPlan plan = CmsPlan.compile(actions);
+			throw new AssertionError(what + " accepted: " + plan);
+		} catch (IllegalArgumentException e) {
+			// ожидаемо
+		}
+	}
+
+	private static void rejected(String command) {
+		try {
+			CmsPlan plan = CmsPlan.of(command);
+			throw new AssertionError(command + " accepted: " + plan);
+		} catch (IllegalArgumentException e) {
+			// ожидаемо
+		}
+	}
+}
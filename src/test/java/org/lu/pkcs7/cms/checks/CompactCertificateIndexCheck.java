@@ -0,0 +1,58 @@
+package org.lu.pkcs7.cms.checks;
+
+import static org.lu.pkcs7.cms.checks.Checks.check;
+import static org.lu.pkcs7.cms.checks.Checks.checkEquals;
+
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.lu.pki.tools.CompactCertificateIndex;
+import org.lu.pki.tools.KeyStoreIndex;
+
+/**
+ * CompactCertificateIndex: поиск по отпечатку, издателю и серийному номеру, SKI и субъекту; повторы не хранятся.
+ * @author Igor Konovalov ikonovalov@luxoft.com
+ *
+ */
+public class CompactCertificateIndexCheck {
+
+	public static void main(String[] args) throws Exception {
+		X509Certificate ca = TestCertificates.parse(TestCertificates.CA);
+		X509Certificate alice2 = TestCertificates.parse(TestCertificates.ALICE_2);
+		X509Certificate bob3 = TestCertificates.parse(TestCertificates.BOB_3);
+		X509Certificate alice4 = TestCertificates.parse(TestCertificates.ALICE_4);
+		X500Principal issuer = ca.getSubjectX500Principal();
+
+		CompactCertificateIndex.Builder builder = new CompactCertificateIndex.Builder().cacheSize(2);
+		builder.add(ca).add(alice2).add(bob3).add(alice4);
+		builder.add(alice2); // повтор
+		builder.add(bob3.getEncoded()); // повтор в виде DER
+		checkEquals(6, builder.size(), "added");
+		CompactCertificateIndex index = builder.build();
+		checkEquals(4, index.size(), "size without duplicates");
+
+		checkEquals(alice2, index.findByFingerprint(MessageDigest.getInstance("SHA-256").digest(alice2.getEncoded())), "by fingerprint");
+		check(index.findByFingerprint(new byte[32]) == null, "unknown fingerprint");
+		check(index.findByFingerprint(new byte[20]) == null, "fingerprint of wrong length");
+
+		checkEquals(bob3, index.findByIssuerAndSerialNumber(issuer, BigInteger.valueOf(3)), "by issuer and serial");
+		check(index.findByIssuerAndSerialNumber(issuer, BigInteger.valueOf(99)) == null, "unknown serial");
+		check(index.findByIssuerAndSerialNumber(bob3.getSubjectX500Principal(), BigInteger.valueOf(3)) == null, "serial of other issuer");
+
+		checkEquals(alice4, index.findBySubjectKeyIdentifier(KeyStoreIndex.subjectKeyIdentifier(alice4)), "by SKI");
+		check(index.findBySubjectKeyIdentifier(new byte[] { 1, 2, 3 }) == null, "unknown SKI");
+
+		List<X509Certificate> alices = index.findBySubject(alice2.getSubjectX500Principal());
+		checkEquals(2, alices.size(), "certificates of alice (duplicate not repeated)");
+		check(alices.contains(alice2) && alices.contains(alice4), "both alice certificates");
+		checkEquals(Arrays.asList(ca), index.findBySubject(issuer), "by subject");
+		check(index.findBySubject(new X500Principal("CN=nobody")).isEmpty(), "unknown subject");
+
+		System.out.println("CompactCertificateIndex: OK");
+	}
+}
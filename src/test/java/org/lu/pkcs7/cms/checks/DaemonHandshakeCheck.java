@@ -0,0 +1,161 @@
+package org.lu.pkcs7.cms.checks;
+
+import static org.lu.pkcs7.cms.checks.Checks.check;
+import static org.lu.pkcs7.cms.checks.Checks.checkEquals;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.lu.pki.tools.CmsDaemon;
+import org.lu.pki.tools.CmsDaemonClient;
+import org.lu.pki.tools.CmsProfile;
+import org.lu.pki.tools.CryptoUtils;
+
+/**
+ * CmsDaemon/CmsDaemonClient: проверка секрета в обе стороны. Клиент с чужим секретом отвергается процессом,
+ * а процесс, не знающий секрета (занявший порт первым), - клиентом до отправки первого запроса.
+ * Обрыв соединения посреди пачки запросов возвращает процессу весь лимит байт в работе.
+ * @author Igor Konovalov ikonovalov@luxoft.com
+ *
+ */
+public class DaemonHandshakeCheck {
+
+	private static final byte[] SECRET = "0123456789abcdef0123456789abcdef".getBytes();
+
+	public static void main(String[] args) throws Exception {
+		final CmsDaemon daemon = new CmsDaemon(new EchoSigner(), 0, SECRET);
+		Thread serving = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					daemon.serve();
+				} catch (IOException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		}, "daemon-check");
+		serving.setDaemon(true);
+		serving.start();
+		try {
+			CmsDaemonClient client = new CmsDaemonClient(daemon.getPort(), SECRET);
+			try {
+				checkEquals("signed:data", new String(client.call("sign", "data".getBytes())), "reply");
+			} finally {
+				client.close();
+			}
+			check(!connects(daemon.getPort(), "fedcba9876543210fedcba9876543210".getBytes()), "client with wrong secret accepted");
+			disconnectAbruptly(daemon);
+		} finally {
+			daemon.stop();
+		}
+
+		// чужой процесс отвечает STATUS_OK, не зная секрета
+		ServerSocket impostor = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		try {
+			check(!connects(impostor, SECRET), "client trusted a server that does not know the secret");
+		} finally {
+			impostor.close();
+		}
+		System.out.println("CmsDaemon handshake: OK");
+	}
+
+	/**
+	 * Пачка запросов с крупными ответами, которые клиент не читает; затем клиент закрывает сокет (RST - данные не прочитаны).
+	 */
+	private static void disconnectAbruptly(CmsDaemon daemon) throws Exception {
+		final CmsDaemonClient client = new CmsDaemonClient(daemon.getPort(), SECRET);
+		final byte[] data = new byte[64 * 1024];
+		Thread sender = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					for (int i = 0; i < 4 * CmsDaemon.PIPELINE_DEPTH; i++) {
+						client.send("sign", data);
+					}
+				} catch (IOException e) {
+					// сокет закрыт - ожидаемо
+				}
+			}
+		}, "sender-check");
+		sender.setDaemon(true);
+		sender.start();
+		Thread.sleep(500);
+		check(daemon.getInFlightBytes() > 0, "pipelined requests are not in flight");
+		client.close();
+		sender.join();
+		long deadline = System.currentTimeMillis() + 10000;
+		while (daemon.getInFlightBytes() != 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(20);
+		}
+		checkEquals(0L, daemon.getInFlightBytes(), "in-flight bytes after abrupt disconnect");
+		CmsDaemonClient next = new CmsDaemonClient(daemon.getPort(), SECRET);
+		try {
+			checkEquals("signed:data", new String(next.call("sign", "data".getBytes())), "reply after abrupt disconnect");
+		} finally {
+			next.close();
+		}
+	}
+
+	private static boolean connects(int port, byte[] secret) {
+		try {
+			new CmsDaemonClient(port, secret).close();
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private static boolean connects(final ServerSocket impostor, byte[] secret) throws Exception {
+		final int[] received = { 0 };
+		Thread server = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					Socket socket = impostor.accept();
+					try {
+						DataInputStream in = new DataInputStream(socket.getInputStream());
+						DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+						out.writeInt(32); // вызов
+						out.write(new byte[32]);
+						out.writeByte(0); // STATUS_OK, не дожидаясь ответа клиента
+						out.writeInt(32);
+						out.write(new byte[32]);
+						out.flush();
+						while (in.read() >= 0) {
+							received[0]++;
+						}
+					} finally {
+						socket.close();
+					}
+				} catch (IOException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		}, "impostor-check");
+		server.start();
+		boolean connected = connects(impostor.getLocalPort(), secret);
+		server.join();
+		checkEquals(2 * (4 + 32), received[0], "bytes sent to impostor (client nonce and response only)");
+		return connected;
+	}
+
+	/**
+	 * "Подпись" без провайдера.
+	 */
+	private static final class EchoSigner extends FakeCryptoUtils {
+
+		@Override
+		public byte[] signAttached(CmsProfile profile, byte[] data) {
+			return ("signed:" + new String(data)).getBytes();
+		}
+
+		@Override
+		public CryptoUtils fork() {
+			return new EchoSigner();
+		}
+	}
+}
@@ -0,0 +1,66 @@
+package org.lu.pkcs7.cms.checks;
+
+import java.security.PrivateKey;
+
+import org.lu.pki.tools.CmsProfile;
+import org.lu.pki.tools.CryptoUtils;
+import org.lu.pki.tools.KeyStoreIndex;
+import org.lu.pki.tools.VerificationOutcome;
+
+/**
+ * CryptoUtils без провайдера для проверок: операции не поддерживаются, проверка переопределяет только нужную ей.
+ * signer() и recipients() разрешают алиасы так же, как провайдеры (если хранилище задано через setKeyStore()).
+ * @author Igor Konovalov ikonovalov@luxoft.com
+ *
+ */
+abstract class FakeCryptoUtils extends CryptoUtils {
+
+	@Override
+	public byte[] decrypt(byte[] ciphertext) throws Exception {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public byte[] detach(byte[] signed) throws Exception {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public byte[] encrypt(CmsProfile profile, byte[] plain) throws Exception {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public byte[] signAttached(CmsProfile profile, byte[] data) throws Exception {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	protected void verify(CmsProfile profile, byte[] signed, VerificationOutcome outcome) throws Exception {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public CryptoUtils recipients(String... recipientsAliases) throws Exception {
+		KeyStoreIndex snapshot = getKeyStoreIndex();
+		setRecipients(resolveRecipients(recipientsAliases), snapshot);
+		return this;
+	}
+
+	@Override
+	public CryptoUtils signer(String... signerAliases) throws Exception {
+		KeyStoreIndex snapshot = getKeyStoreIndex();
+		setSigners(resolveSigners(signerAliases), snapshot);
+		return this;
+	}
+
+	@Override
+	public CryptoUtils fork() throws Exception {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	protected PrivateKey loadPrivateKey(String alias) {
+		throw new UnsupportedOperationException();
+	}
+}
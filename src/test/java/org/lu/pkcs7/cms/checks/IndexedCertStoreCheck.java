@@ -0,0 +1,92 @@
+package org.lu.pkcs7.cms.checks;
+
+import static org.lu.pkcs7.cms.checks.Checks.check;
+import static org.lu.pkcs7.cms.checks.Checks.checkEquals;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.cert.CertStore;
+import java.security.cert.Certificate;
+import java.security.cert.X509CertSelector;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.lu.pki.tools.BerReader;
+import org.lu.pki.tools.CompactCertificateIndex;
+import org.lu.pki.tools.IndexedCertStore;
+
+/**
+ * IndexedCertStore: выбор индекса по критериям селектора, поиск в списке доверия, перебор без индексируемых критериев.
+ * @author Igor Konovalov ikonovalov@luxoft.com
+ *
+ */
+public class IndexedCertStoreCheck {
+
+	private static final String SUBJECT_KEY_IDENTIFIER_OID = "2.5.29.14";
+
+	private static final String AUTHORITY_KEY_IDENTIFIER_OID = "2.5.29.35";
+
+	public static void main(String[] args) throws Exception {
+		X509Certificate ca = TestCertificates.parse(TestCertificates.CA);
+		X509Certificate alice2 = TestCertificates.parse(TestCertificates.ALICE_2);
+		X509Certificate bob3 = TestCertificates.parse(TestCertificates.BOB_3);
+		X509Certificate alice4 = TestCertificates.parse(TestCertificates.ALICE_4);
+		X500Principal issuer = ca.getSubjectX500Principal();
+
+		// alice4 только в списке доверия
+		CompactCertificateIndex trustList = new CompactCertificateIndex.Builder().add(alice4).build();
+		CertStore store = IndexedCertStore.create(Arrays.asList(ca, alice2, bob3), trustList);
+
+		X509CertSelector selector = new X509CertSelector();
+		selector.setIssuer(issuer);
+		selector.setSerialNumber(BigInteger.valueOf(3));
+		checkEquals(set(bob3), set(store.getCertificates(selector)), "issuer and serial");
+		selector.setSerialNumber(BigInteger.valueOf(4));
+		checkEquals(set(alice4), set(store.getCertificates(selector)), "issuer and serial from trust list");
+
+		selector = new X509CertSelector();
+		selector.setSubjectKeyIdentifier(unwrap(alice2.getExtensionValue(SUBJECT_KEY_IDENTIFIER_OID)));
+		checkEquals(set(alice2), set(store.getCertificates(selector)), "SKI");
+		selector.setSubjectKeyIdentifier(unwrap(alice4.getExtensionValue(SUBJECT_KEY_IDENTIFIER_OID)));
+		checkEquals(set(alice4), set(store.getCertificates(selector)), "SKI from trust list");
+
+		selector = new X509CertSelector();
+		selector.setAuthorityKeyIdentifier(unwrap(alice2.getExtensionValue(AUTHORITY_KEY_IDENTIFIER_OID)));
+		Collection<? extends Certificate> issued = store.getCertificates(selector);
+		check(issued.contains(alice2) && issued.contains(bob3), "AKI: " + issued);
+		check(!issued.contains(alice4), "AKI does not search trust list");
+
+		selector = new X509CertSelector();
+		selector.setSubject(alice2.getSubjectX500Principal());
+		checkEquals(set(alice2, alice4), set(store.getCertificates(selector)), "subject with trust list");
+
+		// без индексируемых критериев - перебор сертификатов хранилища (без списка доверия)
+		selector = new X509CertSelector();
+		selector.setBasicConstraints(-2);
+		checkEquals(set(alice2, bob3), set(store.getCertificates(selector)), "scan");
+		checkEquals(set(ca, alice2, bob3), set(store.getCertificates(null)), "all");
+
+		System.out.println("IndexedCertStore: OK");
+	}
+
+	private static HashSet<Certificate> set(Certificate... certs) {
+		return new HashSet<Certificate>(Arrays.asList(certs));
+	}
+
+	private static HashSet<Certificate> set(Collection<? extends Certificate> certs) {
+		return new HashSet<Certificate>(certs);
+	}
+
+	/**
+	 * Значение расширения без внешней OCTET STRING.
+	 */
+	private static byte[] unwrap(byte[] extensionValue) {
+		ByteBuffer buf = ByteBuffer.wrap(extensionValue);
+		BerReader.Header header = BerReader.readHeader(buf, 0);
+		return Arrays.copyOfRange(extensionValue, header.getValueOffset(), header.getValueOffset() + header.getLength());
+	}
+}
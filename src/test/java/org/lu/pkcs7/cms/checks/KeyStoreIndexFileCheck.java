@@ -0,0 +1,177 @@
+package org.lu.pkcs7.cms.checks;
+
+import static org.lu.pkcs7.cms.checks.Checks.check;
+import static org.lu.pkcs7.cms.checks.Checks.checkEquals;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+
+import org.lu.pki.tools.KeyStoreHolder;
+import org.lu.pki.tools.KeyStoreIndex;
+import org.lu.pki.tools.KeyStoreIndexFile;
+
+/**
+ * KeyStoreIndexFile на хранилище JDK PKCS12 (без провайдеров): индекс, прочитанный из файла, совпадает с построенным по хранилищу,
+ * а устаревший (время изменения, размер, SHA-256), обрезанный или испорченный файл индекса заменяется индексом, построенным заново.
+ * Перестроение видно по загрузчику: действительный файл индекса хранилище не загружает.
+ * @author Igor Konovalov ikonovalov@luxoft.com
+ *
+ */
+public class KeyStoreIndexFileCheck {
+
+	private static final char[] PASSWORD = "changeit".toCharArray();
+
+	public static void main(String[] args) throws Exception {
+		X509Certificate ca = TestCertificates.parse(TestCertificates.CA);
+		X509Certificate alice = TestCertificates.parse(TestCertificates.ALICE_2);
+		X509Certificate bob = TestCertificates.parse(TestCertificates.BOB_3);
+		PrivateKey key = KeyPairGenerator.getInstance("EC").generateKeyPair().getPrivate();
+
+		KeyStore keyStore = KeyStore.getInstance("PKCS12");
+		keyStore.load(null, null);
+		keyStore.setCertificateEntry("ca", ca);
+		keyStore.setCertificateEntry("bob", bob);
+		keyStore.setKeyEntry("alice", key, PASSWORD, new Certificate[] { alice, ca });
+
+		Path dir = Files.createTempDirectory("lux-pkcs7-check-");
+		Path file = dir.resolve("store.p12");
+		Path indexFile = KeyStoreIndexFile.indexFileOf(file);
+		try {
+			store(keyStore, file);
+			Counting loader = new Counting(file);
+
+			// нет файла индекса: строится по хранилищу и записывается
+			KeyStoreIndex built = KeyStoreIndexFile.load(file, loader);
+			checkEquals(1, loader.loads, "loads without index file");
+			check(Files.isRegularFile(indexFile), "index file not written");
+
+			// файл индекса действителен: тот же индекс, хранилище не загружается до обращения к ключу
+			KeyStoreIndex read = loadExpectingRebuild(file, loader, false, "valid index file");
+			checkSame(built, read);
+			check(!read.isKeyStoreLoaded(), "key store loaded with a valid index file");
+			checkEquals(key, read.getKey("alice", PASSWORD), "key through a read index");
+			checkEquals(1, loader.loads, "lazy load on first key access");
+
+			// устаревший отпечаток: только время изменения
+			FileTime modified = Files.getLastModifiedTime(file);
+			Files.setLastModifiedTime(file, FileTime.fromMillis(modified.toMillis() - 60000));
+			checkSame(built, loadExpectingRebuild(file, loader, true, "stale mtime"));
+			loadExpectingRebuild(file, loader, false, "index file rewritten after stale mtime");
+
+			// только SHA-256: то же хранилище записано заново (другая соль) того же размера и с тем же временем изменения
+			modified = Files.getLastModifiedTime(file);
+			long size = Files.size(file);
+			byte[] before = Files.readAllBytes(file);
+			store(keyStore, file);
+			Files.setLastModifiedTime(file, modified);
+			check(Files.size(file) == size && !Arrays.equals(before, Files.readAllBytes(file)), "rewritten key store must differ in content only");
+			checkSame(built, loadExpectingRebuild(file, loader, true, "stale hash"));
+			loadExpectingRebuild(file, loader, false, "index file rewritten after stale hash");
+
+			// размер (и содержимое): новая запись в хранилище попадает в индекс
+			keyStore.setCertificateEntry("alice-ca", ca);
+			store(keyStore, file);
+			Files.setLastModifiedTime(file, modified);
+			KeyStoreIndex grown = loadExpectingRebuild(file, loader, true, "stale size");
+			check(grown.getAliases().contains("alice-ca"), "rebuilt index misses a new alias");
+			checkSame(grown, loadExpectingRebuild(file, loader, false, "index file rewritten after stale size"));
+
+			// обрезанный файл индекса: посреди заголовка и посреди записей
+			byte[] valid = Files.readAllBytes(indexFile);
+			replace(indexFile, Arrays.copyOf(valid, 40));
+			checkSame(grown, loadExpectingRebuild(file, loader, true, "index file truncated in the header"));
+			replace(indexFile, Arrays.copyOf(valid, valid.length / 2));
+			checkSame(grown, loadExpectingRebuild(file, loader, true, "truncated index file"));
+			checkEquals(valid.length, (int) Files.size(indexFile), "index file rewritten after truncation");
+
+			// испорченное имя издателя первой записи (после заголовка: длина алиаса, алиас, флаги, длина имени)
+			byte[] corrupt = valid.clone();
+			int issuer = 64 + 2 + (((corrupt[64] & 0xFF) << 8) | (corrupt[65] & 0xFF)) + 1 + 2;
+			Arrays.fill(corrupt, issuer, issuer + 8, (byte) 0xFF);
+			replace(indexFile, corrupt);
+			checkSame(grown, loadExpectingRebuild(file, loader, true, "corrupted index file"));
+
+			// чужой формат
+			corrupt = valid.clone();
+			corrupt[0] ^= 0xFF;
+			replace(indexFile, corrupt);
+			checkSame(grown, loadExpectingRebuild(file, loader, true, "unknown index file format"));
+			loadExpectingRebuild(file, loader, false, "index file rewritten after corruption");
+		} finally {
+			Files.deleteIfExists(indexFile);
+			Files.deleteIfExists(file);
+			Files.deleteIfExists(dir);
+		}
+		System.out.println("KeyStoreIndexFile: OK");
+	}
+
+	private static KeyStoreIndex loadExpectingRebuild(Path file, Counting loader, boolean rebuild, String what) throws Exception {
+		loader.loads = 0;
+		KeyStoreIndex index = KeyStoreIndexFile.load(file, loader);
+		checkEquals(rebuild ? 1 : 0, loader.loads, what + ": key store loads");
+		return index;
+	}
+
+	private static void checkSame(KeyStoreIndex expected, KeyStoreIndex actual) throws Exception {
+		checkEquals(expected.getAliases(), actual.getAliases(), "aliases");
+		checkEquals(expected.getKeyAliases(), actual.getKeyAliases(), "key aliases");
+		for (String alias : expected.getAliases()) {
+			checkEquals(expected.getCertificate(alias), actual.getCertificate(alias), "certificate of " + alias);
+		}
+		X509Certificate bob = expected.getCertificate("bob");
+		checkEquals("bob", actual.findByIssuerAndSerialNumber(bob.getIssuerX500Principal(), bob.getSerialNumber()), "lookup by issuer and serial");
+		checkEquals("bob", actual.findBySubjectKeyIdentifier(KeyStoreIndex.subjectKeyIdentifier(bob)), "lookup by SKI");
+	}
+
+	private static void store(KeyStore keyStore, Path file) throws Exception {
+		OutputStream out = Files.newOutputStream(file);
+		try {
+			keyStore.store(out, PASSWORD);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Файл индекса может быть отображен в память прежним снимком - подменяется, а не перезаписывается на месте.
+	 */
+	private static void replace(Path indexFile, byte[] content) throws Exception {
+		Path tmp = Files.createTempFile(indexFile.getParent(), "idx-", ".tmp");
+		Files.write(tmp, content);
+		Files.move(tmp, indexFile, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private static final class Counting implements KeyStoreHolder.Loader {
+
+		private final Path file;
+
+		private int loads = 0;
+
+		Counting(Path file) {
+			this.file = file;
+		}
+
+		@Override
+		public KeyStore load() throws Exception {
+			loads++;
+			KeyStore keyStore = KeyStore.getInstance("PKCS12");
+			InputStream in = Files.newInputStream(file);
+			try {
+				keyStore.load(in, PASSWORD);
+			} finally {
+				in.close();
+			}
+			return keyStore;
+		}
+	}
+}
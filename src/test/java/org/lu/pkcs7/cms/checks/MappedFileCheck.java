@@ -0,0 +1,79 @@
+package org.lu.pkcs7.cms.checks;
+
+import static org.lu.pkcs7.cms.checks.Checks.check;
+import static org.lu.pkcs7.cms.checks.Checks.checkBytes;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.lu.pki.tools.BerWriter;
+import org.lu.pki.tools.ByteBufferInputStream;
+import org.lu.pki.tools.CmsProfile;
+import org.lu.pki.tools.VerificationOutcome;
+
+/**
+ * actions(Path, Path, ...): отображенный в память файл доходит до стадий как буфер - verify не сбрасывает его во временный файл,
+ * detach отдает eContent без полного разбора.
+ * @author Igor Konovalov ikonovalov@luxoft.com
+ *
+ */
+public class MappedFileCheck {
+
+	public static void main(String[] args) throws Exception {
+		byte[] content = new byte[3 * BerWriter.SEGMENT_SIZE + 5];
+		new Random(20130402).nextBytes(content);
+		Path in = Files.createTempFile("lux-pkcs7-check-", ".p7m");
+		Path out = Files.createTempFile("lux-pkcs7-check-", ".bin");
+		try {
+			Files.write(in, BerRoundTripCheck.signedData(content));
+			DirectOnly utils = new DirectOnly();
+			utils.actions(in, out, "detach");
+			check(utils.direct, "mapped file did not reach openDetachDirect as a buffer");
+			checkBytes(content, Files.readAllBytes(out), "detached content");
+
+			// verify -> detach: проверка по тому же буферу, без спула
+			utils = new DirectOnly();
+			utils.actions(in, out, "verify -> detach");
+			check(utils.verifiedFromBuffer, "mapped file was spooled before verify");
+			checkBytes(Files.readAllBytes(in), utils.verified, "verified message");
+			check(utils.direct, "detach after verify did not get the buffer");
+			checkBytes(content, Files.readAllBytes(out), "content after verify");
+		} finally {
+			Files.deleteIfExists(in);
+			Files.deleteIfExists(out);
+		}
+		System.out.println("MappedFiles: OK");
+	}
+
+	/**
+	 * Без провайдера: полный разбор запрещен, так что detach проходит только по буферу; verify лишь запоминает сообщение.
+	 */
+	private static final class DirectOnly extends FakeCryptoUtils {
+
+		private boolean direct = false;
+
+		private boolean verifiedFromBuffer = false;
+
+		private byte[] verified;
+
+		@Override
+		protected void verify(CmsProfile profile, InputStream signed, VerificationOutcome outcome) throws Exception {
+			verifiedFromBuffer = signed instanceof ByteBufferInputStream;
+			super.verify(profile, signed, outcome);
+		}
+
+		@Override
+		protected InputStream openDetachDirect(InputStream signed) {
+			InputStream view = super.openDetachDirect(signed);
+			direct |= view != null;
+			return view;
+		}
+
+		@Override
+		protected void verify(CmsProfile profile, byte[] signed, VerificationOutcome outcome) {
+			verified = signed;
+		}
+	}
+}
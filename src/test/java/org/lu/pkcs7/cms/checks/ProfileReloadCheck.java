@@ -0,0 +1,84 @@
+package org.lu.pkcs7.cms.checks;
+
+import static org.lu.pkcs7.cms.checks.Checks.check;
+import static org.lu.pkcs7.cms.checks.Checks.checkEquals;
+
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+
+import org.lu.pki.tools.CmsProfile;
+import org.lu.pki.tools.FederatedKeyStore;
+import org.lu.pki.tools.KeyStoreHolder;
+import org.lu.pki.tools.KeyStoreIndex;
+
+/**
+ * Перезагрузка хранилища (JDK PKCS12, только сертификаты): профиль, собранный до нее, при следующей операции
+ * получает обновленный сертификат, а перезагрузка общего индекса (FederatedKeyStore) сохраняет все хранилища.
+ * @author Igor Konovalov ikonovalov@luxoft.com
+ *
+ */
+public class ProfileReloadCheck {
+
+	public static void main(String[] args) throws Exception {
+		X509Certificate ca = TestCertificates.parse(TestCertificates.CA);
+		X509Certificate bob = TestCertificates.parse(TestCertificates.BOB_3);
+		X509Certificate renewed = TestCertificates.parse(TestCertificates.ALICE_4);
+
+		final KeyStore[] main = { store("bob", bob) };
+		KeyStoreHolder.Loader loader = new KeyStoreHolder.Loader() {
+
+			@Override
+			public KeyStore load() {
+				return main[0];
+			}
+		};
+
+		// один экземпляр: профиль из Builder и текущий профиль инстанса
+		Stores utils = new Stores(main[0]);
+		CmsProfile built = utils.profile().recipients("bob").build();
+		utils.recipients("bob");
+		check(utils.current(built) == built, "profile re-resolved without reload");
+		main[0] = store("bob", renewed);
+		utils.getKeyStoreHolder().reload(loader);
+		CmsProfile fresh = utils.current(built);
+		checkEquals(renewed, fresh.getRecipients().get(0).getCert(), "recipient after reload");
+		check(utils.current(built) == fresh, "profile resolved again for the same snapshot");
+		checkEquals(renewed, utils.current(utils.getProfile()).getRecipients().get(0).getCert(), "instance recipient after reload");
+		checkEquals(bob, built.getRecipients().get(0).getCert(), "built profile itself is immutable");
+
+		// общий индекс: перезагрузка перечитывает хранилище с загрузчиком и оставляет готовое
+		main[0] = store("bob", bob);
+		utils = new Stores(main[0]);
+		check(utils.useKeyStores(new FederatedKeyStore().add("main", loader, null).add("trust", store("ca", ca))) != null, "federated index");
+		built = utils.profile().recipients("bob").build();
+		main[0] = store("bob", renewed);
+		utils.getKeyStoreHolder().reload();
+		KeyStoreIndex index = utils.getKeyStoreIndex();
+		check(index.getAliases().contains(FederatedKeyStore.qualify("main", "bob")), "main store lost on reload");
+		check(index.getAliases().contains(FederatedKeyStore.qualify("trust", "ca")), "trust store lost on reload");
+		checkEquals(renewed, index.getCertificate("bob"), "federated member reloaded");
+		checkEquals(renewed, utils.current(built).getRecipients().get(0).getCert(), "federated recipient after reload");
+		System.out.println("ProfileReload: OK");
+	}
+
+	private static KeyStore store(String alias, X509Certificate cert) throws Exception {
+		KeyStore ks = KeyStore.getInstance("PKCS12");
+		ks.load(null, null);
+		ks.setCertificateEntry(alias, cert);
+		return ks;
+	}
+
+	/**
+	 * Без провайдера: только хранилище и профиль (алиасы разрешает FakeCryptoUtils так же, как провайдеры).
+	 */
+	private static final class Stores extends FakeCryptoUtils {
+
+		Stores(KeyStore keyStore) throws Exception {
+			setKeyStore(keyStore);
+		}
+
+		CmsProfile current(CmsProfile profile) throws Exception {
+			return currentProfile(profile);
+		}
+	}
+}
@@ -0,0 +1,74 @@
+package org.lu.pkcs7.cms.checks;
+
+import java.io.ByteArrayInputStream;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+
+import org.lu.pki.tools.Base64Codec;
+
+/**
+ * Тестовые сертификаты ECDSA P-256 (openssl, срок до 2126 г.): УЦ "Test CA" и выпущенные им alice (серийные 2 и 4 - один субъект)
+ * и bob (серийный 3). У всех есть SubjectKeyIdentifier, у выпущенных - AuthorityKeyIdentifier.
+ * @author Igor Konovalov ikonovalov@luxoft.com
+ *
+ */
+final class TestCertificates {
+
+	static final String CA =
+			"MIIBkDCCATagAwIBAgIBATAKBggqhkjOPQQDAjAmMRAwDgYDVQQDDAdUZXN0IENB"
+			+ "MRIwEAYDVQQKDAlwa2ktdG9vbHMwIBcNMjYxMDE2MjEyMDA1WhgPMjEyNjA5MjIy"
+			+ "MTIwMDVaMCYxEDAOBgNVBAMMB1Rlc3QgQ0ExEjAQBgNVBAoMCXBraS10b29sczBZ"
+			+ "MBMGByqGSM49AgEGCCqGSM49AwEHA0IABCYAZmnx1utkPflmWH1FSLxAnBnX4K4n"
+			+ "V7Ri+SGfyB7NT23/704JwHI6qRXfn1aJlqt76v3d9B6v+JHsZ+dVVESjUzBRMB8G"
+			+ "A1UdIwQYMBaAFDdM4W9I72hyo8vUfIC2QIQ8V0G9MB0GA1UdDgQWBBQ3TOFvSO9o"
+			+ "cqPL1HyAtkCEPFdBvTAPBgNVHRMBAf8EBTADAQH/MAoGCCqGSM49BAMCA0gAMEUC"
+			+ "IATnWk0lGKet2R62WT4HHzd2LfATgxROF4Wqg2+dYlqsAiEAlDJVlZAsRLvBVWWF"
+			+ "hJCvvYol9sBvOWC5nXGmk5VdueM=";
+
+	static final String ALICE_2 =
+			"MIIBiDCCAS6gAwIBAgIBAjAKBggqhkjOPQQDAjAmMRAwDgYDVQQDDAdUZXN0IENB"
+			+ "MRIwEAYDVQQKDAlwa2ktdG9vbHMwIBcNMjYxMDE2MjEyMDA1WhgPMjEyNjA5MjIy"
+			+ "MTIwMDVaMCQxDjAMBgNVBAMMBWFsaWNlMRIwEAYDVQQKDAlwa2ktdG9vbHMwWTAT"
+			+ "BgcqhkjOPQIBBggqhkjOPQMBBwNCAASGkfrmKXjITDNwlKMZ2mt+6lIygN9WVetI"
+			+ "4jIsIilZ8P5+rDhcz2h6ZcnHMUF3k/5PjUWQ2EqtMakhTpDvIf0eo00wSzAdBgNV"
+			+ "HQ4EFgQUL/L1D2thrkqx2sSUP10sKQMaGgcwHwYDVR0jBBgwFoAUN0zhb0jvaHKj"
+			+ "y9R8gLZAhDxXQb0wCQYDVR0TBAIwADAKBggqhkjOPQQDAgNIADBFAiAB0leZMi/L"
+			+ "f8zWpZP+PlBSyg4rreyHVsnpIbaccTrUjwIhAJlBYLgtD7pHQgXOVeYdsxEVFMNH"
+			+ "kuskU/mAXMtTSPiw";
+
+	static final String BOB_3 =
+			"MIIBhzCCASygAwIBAgIBAzAKBggqhkjOPQQDAjAmMRAwDgYDVQQDDAdUZXN0IENB"
+			+ "MRIwEAYDVQQKDAlwa2ktdG9vbHMwIBcNMjYxMDE2MjEyMDA1WhgPMjEyNjA5MjIy"
+			+ "MTIwMDVaMCIxDDAKBgNVBAMMA2JvYjESMBAGA1UECgwJcGtpLXRvb2xzMFkwEwYH"
+			+ "KoZIzj0CAQYIKoZIzj0DAQcDQgAEJJVk6y2Tn/DbVDZiuKjBlnsIAmGv+uH9X00T"
+			+ "XebHe2VJ6Wq6J1FNTGJQ3Zb1Jyep7N6BNtmbGRytTOsqnqpuuaNNMEswHQYDVR0O"
+			+ "BBYEFJ6uO8Ug6vXOuaCdzFUcA1qU2IuJMB8GA1UdIwQYMBaAFDdM4W9I72hyo8vU"
+			+ "fIC2QIQ8V0G9MAkGA1UdEwQCMAAwCgYIKoZIzj0EAwIDSQAwRgIhAO4F8XuqQBI2"
+			+ "K9YVp/dEJNyXsr2ovt8kYxnLNh9LrVF5AiEA07AZua9weZeoLNv5ezzHa34A44dy"
+			+ "mYDoRPcceyh13OA=";
+
+	static final String ALICE_4 =
+			"MIIBiTCCAS6gAwIBAgIBBDAKBggqhkjOPQQDAjAmMRAwDgYDVQQDDAdUZXN0IENB"
+			+ "MRIwEAYDVQQKDAlwa2ktdG9vbHMwIBcNMjYxMDE2MjEyMDA1WhgPMjEyNjA5MjIy"
+			+ "MTIwMDVaMCQxDjAMBgNVBAMMBWFsaWNlMRIwEAYDVQQKDAlwa2ktdG9vbHMwWTAT"
+			+ "BgcqhkjOPQIBBggqhkjOPQMBBwNCAARazZTqFPu5S8zLF7qPDbStdzPp95KE+F+T"
+			+ "ROho2fX/VOfSwdNtpTidsJKwHYKfiQ32m5U118LOeKVDeaxvd+0co00wSzAdBgNV"
+			+ "HQ4EFgQUdamgy8/+4G+EcNmcVVMN46KY6IQwHwYDVR0jBBgwFoAUN0zhb0jvaHKj"
+			+ "y9R8gLZAhDxXQb0wCQYDVR0TBAIwADAKBggqhkjOPQQDAgNJADBGAiEAo+j2WiCY"
+			+ "Xcsf97n+5iBBc1oXYfBdnTSfvHOZu3qys+gCIQCeOPTZkin8py3oSUm2sc+GPfb4"
+			+ "8qpMN603rQvIqkoFsg==";
+
+	private TestCertificates() {
+	}
+
+	/**
+	 * @param base64 - сертификат в BASE64 (DER)
+	 * @return
+	 * @throws CertificateException
+	 */
+	static X509Certificate parse(String base64) throws CertificateException {
+		byte[] der = Base64Codec.decode(base64.getBytes());
+		return (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(new ByteArrayInputStream(der));
+	}
+}
@@ -0,0 +1,45 @@
+package org.lu.pkcs7.cms.cryptopro;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.lu.pki.tools.CmsBatchProcessor;
+import org.lu.pki.tools.CryptoProCryptoUtils;
+import org.lu.pki.tools.CryptoUtils;
+
+public class BatchThroughput {
+
+	public static final int MESSAGES = 2000;
+
+	public static void main(String... args) throws Exception {
+
+		CryptoUtils cputils = new CryptoProCryptoUtils("C:/Users/user1/Documents/444", "123");
+		cputils.signer(DoSignEncrypt.SIGNERS).recipients(DoSignEncrypt.RECIPIENTS);
+		cputils.withVerificationOptions("STORED_CERT_ONLY, SKIP_SELFSIGNED_CERT");
+
+		List<byte[]> documents = new ArrayList<byte[]>(MESSAGES);
+		for (int z = 0; z < MESSAGES; z++) {
+			documents.add(("payment-document-" + z).getBytes());
+		}
+
+		int cores = Runtime.getRuntime().availableProcessors();
+		List<byte[]> encrypted = null;
+		for (int threads = 1; threads <= cores; threads *= 2) {
+			CmsBatchProcessor processor = new CmsBatchProcessor(cputils, threads);
+			try {
+				CmsBatchProcessor.BatchResult out = processor.process(documents, "sign -> encrypt");
+				System.out.println("sign -> encrypt:           " + out);
+
+				encrypted = new ArrayList<byte[]>(out.size());
+				for (CmsBatchProcessor.Result r : out.getResults()) {
+					encrypted.add(r.getOutput());
+				}
+				CmsBatchProcessor.BatchResult in = processor.process(encrypted, "decrypt -> verify -> detach");
+				System.out.println("decrypt -> verify -> detach: " + in);
+			} finally {
+				processor.shutdown();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,48 @@
+package org.lu.pkcs7.cms.cryptopro;
+
+import org.lu.pki.tools.CmsProfile;
+import org.lu.pki.tools.CryptoProCryptoUtils;
+
+public class RecipientScaling {
+
+	public static final int[] RECIPIENT_COUNTS = { 1, 8, 32, 64, 128, 256, 512 };
+
+	public static final int ROUNDS = 20;
+
+	public static void main(String... args) throws Exception {
+
+		CryptoProCryptoUtils cputils = new CryptoProCryptoUtils("C:/Users/user1/Documents/444", "123");
+		byte[] document = "broadcast-document".getBytes();
+
+		for (int count : RECIPIENT_COUNTS) {
+			// рассылка по филиалам: получатели из DoSignEncrypt.RECIPIENTS по кругу
+			String[] recipients = new String[count];
+			for (int z = 0; z < count; z++) {
+				recipients[z] = DoSignEncrypt.RECIPIENTS[z % DoSignEncrypt.RECIPIENTS.length];
+			}
+			CmsProfile profile = cputils.profile().signer(DoSignEncrypt.SIGNERS).recipients(recipients).build();
+
+			cputils.setParallelRecipients(0);
+			long sequential = measure(cputils, profile, document);
+			cputils.setParallelRecipients(1);
+			long parallel = measure(cputils, profile, document);
+
+			System.out.println(String.format("recipients=%4d sequential=%7.2f ms parallel=%7.2f ms speedup=%.2f",
+					count, sequential / 1e6, parallel / 1e6, (double) sequential / parallel));
+		}
+		System.out.println("cores=" + Runtime.getRuntime().availableProcessors() + ", default threshold=" + CryptoProCryptoUtils.DEFAULT_PARALLEL_RECIPIENTS);
+	}
+
+	/**
+	 * @return среднее время encrypt() в наносекундах (первый прогон - прогрев)
+	 */
+	private static long measure(CryptoProCryptoUtils cputils, CmsProfile profile, byte[] document) throws Exception {
+		cputils.encrypt(profile, document);
+		long started = System.nanoTime();
+		for (int z = 0; z < ROUNDS; z++) {
+			cputils.encrypt(profile, document);
+		}
+		return (System.nanoTime() - started) / ROUNDS;
+	}
+
+}
@@ -0,0 +1,36 @@
+package org.lu.pkcs7.cms.signalcom;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.Security;
+
+import org.lu.pki.tools.CryptoUtils;
+import org.lu.pki.tools.SignalComCryptoUtils;
+
+import ru.signalcom.crypto.provider.SignalCOMProvider;
+
+
+public class SignalDecryptMapped {
+
+	public static void main(String[] args) throws Exception {
+
+		Security.addProvider(new SignalCOMProvider());
+
+		String keystoreFile = "C:/developer/temp/bak_contact/Key#2_2011/store.pfx";
+		String password = "123";
+
+		String folder = "C:/developer/temp/";
+
+		CryptoUtils scutils = new SignalComCryptoUtils(keystoreFile, password);
+		scutils.withVerificationOptions(CryptoUtils.OPT_STORED_CERT_ONLY);
+
+		// файл отображается в память и не копируется в кучу, результат появляется только после успешной проверки
+		Path result = Paths.get(folder, "PS_RUR20130328.detached");
+		scutils.actions(Paths.get(folder, "PS_RUR20130328.TXT"), result, "decrypt -> verify -> detach");
+
+		System.out.println("Result "  + new String(Files.readAllBytes(result))) ;
+
+	}
+
+}